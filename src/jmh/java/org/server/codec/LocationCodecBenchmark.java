@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.codec;
+
+import com.google.gson.Gson;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.server.dto.Location;
+
+/**
+ * Encoding single and batched locations with the binary codec and with the
+ * Gson text the publisher used to send.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LocationCodecBenchmark {
+
+    private static final int BATCH = 100;
+    private static final Gson GSON = new Gson();
+
+    private Location location;
+    private List<Location> batch;
+
+    @Setup
+    public void setUp() {
+        LocalDateTime time = LocalDateTime.of(2017, 6, 1, 8, 30, 15);
+        location = location(359710040000001L, time);
+        batch = new ArrayList<>();
+        for (int i = 0; i < BATCH; i++) {
+            batch.add(location(359710040000001L + i % 10, time.plusSeconds(i)));
+        }
+    }
+
+    /**
+     *
+     * @return
+     */
+    @Benchmark
+    public byte[] codec() {
+        return LocationCodec.encode(location);
+    }
+
+    /**
+     *
+     * @return
+     */
+    @Benchmark
+    public byte[] gson() {
+        return GSON.toJson(Collections.singletonList(location)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     *
+     * @return
+     */
+    @Benchmark
+    public byte[] codecBatch() {
+        return LocationCodec.encodeBatch(batch);
+    }
+
+    /**
+     *
+     * @return
+     */
+    @Benchmark
+    public byte[] gsonBatch() {
+        return GSON.toJson(batch).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Location location(long imei, LocalDateTime timestamp) {
+        return Location.builder()
+                .type(1)
+                .imei(imei)
+                .point(Arrays.asList(6.9271234, 79.8612345))
+                .speed(42.5)
+                .heading(271.3)
+                .distance(118.2)
+                .timestamp(timestamp)
+                .receivedTime(timestamp.plusSeconds(2))
+                .build();
+    }
+}
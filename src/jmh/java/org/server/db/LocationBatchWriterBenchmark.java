@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.db;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.server.dto.Location;
+import org.server.dto.properties.DatabaseProperties;
+
+/**
+ * Location write rate of the batch writer against a stand-in asynchronous
+ * server that acknowledges a request after a fixed round trip plus a little
+ * per document. A batch size of 1 with one batch in flight is the old insert
+ * per point.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LocationBatchWriterBenchmark {
+
+    private static final long ROUND_TRIP_NANOS = TimeUnit.MICROSECONDS.toNanos(500);
+    private static final long PER_DOCUMENT_NANOS = TimeUnit.MICROSECONDS.toNanos(2);
+
+    @Param({"1", "100", "500"})
+    public int batchSize;
+
+    @Param({"1", "2"})
+    public int maxInFlight;
+
+    private final Location location = Location.builder()
+            .imei(359710040000001L)
+            .point(Arrays.asList(79.8612, 6.9271))
+            .speed(42.0)
+            .heading(180.0)
+            .build();
+    private ScheduledExecutorService server;
+    private LocationBatchWriter writer;
+
+    @Setup
+    public void setUp() {
+        // plays the driver's channel group, it only delivers the acknowledgements
+        server = Executors.newSingleThreadScheduledExecutor();
+        AsyncDatabaseHandler handler = inserted -> {
+            CompletableFuture<Integer> result = new CompletableFuture<>();
+            server.schedule(
+                    () -> result.complete(inserted.size()),
+                    ROUND_TRIP_NANOS + PER_DOCUMENT_NANOS * inserted.size(),
+                    TimeUnit.NANOSECONDS
+            );
+            return result;
+        };
+        DatabaseProperties db = new DatabaseProperties();
+        db.setBatchSize(batchSize);
+        db.setMaxInFlight(maxInFlight);
+        writer = new LocationBatchWriter(handler, db, null, t -> {
+        });
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        writer.flush();
+        server.shutdown();
+    }
+
+    /**
+     *
+     * @throws Exception
+     */
+    @Benchmark
+    public void add() throws Exception {
+        writer.add(location);
+    }
+}
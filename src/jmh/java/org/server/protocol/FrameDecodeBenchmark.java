@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Decodes a burst of device frames straight from a buffer, as the pipeline
+ * does once the bytes arrived. Run with {@code -prof gc} to see the
+ * allocation rate, which should stay near zero.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FrameDecodeBenchmark {
+
+    private static final String TK103_BURST = "(013612345678BP05000013612345678080524A2232.9806N11404.9355E000.1101241323.8700000000L000450AC)"
+            + "(013612345678BR00080612A2232.9828N11404.9297E000.0022828000.0000000000L00000000)"
+            + "(013612345678BP00000013612345678HSO)";
+    // login, gps and heartbeat
+    private static final String GT06_BURST = "78780D01012345678901234500018CDD0D0A"
+            + "78781F120B081D112E10CF027AC7EB0C46584900148F01CC00287D001FB8000380810D0A"
+            + "78780A1340040400010008A8510D0A";
+    private static final String TELTONIKA_LOGIN = "000F333536333037303432343431303133";
+    // codec 8 packet of two records
+    private static final String TELTONIKA_PACKET = "000000000000004308020000015957536400002F99DB790420FEC2000A005A07002A0001011503"
+            + "000000000001595753D930002F9A0289042125D2000A00B4090032000101150300000002000043A9";
+
+    private final List<Object> out = new ArrayList<>(4);
+    private Tk103FrameDecoder tk103;
+    private ChannelHandlerContext tk103Context;
+    private ByteBuf tk103Burst;
+    private Gt06FrameDecoder gt06;
+    private ChannelHandlerContext gt06Context;
+    private ByteBuf gt06Burst;
+    private TeltonikaFrameDecoder teltonika;
+    private ChannelHandlerContext teltonikaContext;
+    private ByteBuf teltonikaPacket;
+
+    @Setup
+    public void setUp() {
+        LogManager.getLogger("RequestLog").setLevel(Level.WARN);
+        tk103 = new Tk103FrameDecoder(256);
+        tk103Context = new EmbeddedChannel(tk103).pipeline().context(tk103);
+        tk103Burst = Unpooled.copiedBuffer(TK103_BURST, StandardCharsets.US_ASCII);
+        gt06 = new Gt06FrameDecoder(1024);
+        gt06Context = new EmbeddedChannel(gt06).pipeline().context(gt06);
+        gt06Burst = pooled(GT06_BURST);
+        teltonika = new TeltonikaFrameDecoder(2048);
+        EmbeddedChannel teltonikaChannel = new EmbeddedChannel(teltonika);
+        // records are only decoded for a logged in device
+        teltonikaChannel.writeInbound(pooled(TELTONIKA_LOGIN));
+        teltonikaChannel.inboundMessages().clear();
+        teltonikaContext = teltonikaChannel.pipeline().context(teltonika);
+        teltonikaPacket = pooled(TELTONIKA_PACKET);
+    }
+
+    @TearDown
+    public void tearDown() {
+        tk103Burst.release();
+        gt06Burst.release();
+        teltonikaPacket.release();
+    }
+
+    /**
+     *
+     * @return frames decoded from the burst
+     * @throws Exception
+     */
+    @Benchmark
+    public int tk103() throws Exception {
+        tk103Burst.readerIndex(0);
+        while (tk103Burst.isReadable()) {
+            tk103.decode(tk103Context, tk103Burst, out);
+        }
+        int frames = out.size();
+        out.clear();
+        return frames;
+    }
+
+    /**
+     *
+     * @return frames decoded from the burst
+     * @throws Exception
+     */
+    @Benchmark
+    public int gt06() throws Exception {
+        gt06Burst.readerIndex(0);
+        int frames = 0;
+        while (gt06.decode(gt06Context, gt06Burst) != null) {
+            frames++;
+        }
+        return frames;
+    }
+
+    /**
+     *
+     * @return frames decoded from the packet
+     * @throws Exception
+     */
+    @Benchmark
+    public int teltonika() throws Exception {
+        teltonikaPacket.readerIndex(0);
+        teltonika.decode(teltonikaContext, teltonikaPacket, out);
+        int frames = out.size();
+        out.clear();
+        return frames;
+    }
+
+    /**
+     * Pooled like the channel's cumulation buffer, decoders may slice frames
+     * out of it.
+     *
+     * @param hex
+     * @return
+     */
+    private static ByteBuf pooled(String hex) {
+        byte[] bytes = ByteBufUtil.decodeHexDump(hex);
+        return PooledByteBufAllocator.DEFAULT.heapBuffer(bytes.length).writeBytes(bytes);
+    }
+}
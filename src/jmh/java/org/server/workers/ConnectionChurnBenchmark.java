@@ -0,0 +1,175 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.workers;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.server.dto.properties.ServerProperties;
+import org.server.protocol.DeviceProtocol;
+import org.server.protocol.Tk103Protocol;
+
+/**
+ * Round trip of one TK103 report over loopback to a local server, with the
+ * device connecting for every report and the server closing after the reply,
+ * against one connection kept open for every report.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ConnectionChurnBenchmark {
+
+    private static final byte[] REPORT = ("(013612345678BP05000013612345678080524A2232.9806N11404.9355E000.1101241323.8700000000L000450AC)")
+            .getBytes(StandardCharsets.US_ASCII);
+    private static final int REPLY_END = ')';
+
+    @Param({"true", "false"})
+    public boolean keepAlive;
+
+    private EventLoopGroup group;
+    private Channel server;
+    private Thread processor;
+    private volatile boolean running;
+    private InetSocketAddress address;
+
+    @Setup
+    public void setUp() throws InterruptedException {
+        LogManager.getLogger("RequestLog").setLevel(Level.WARN);
+        final DeviceProtocol protocol = new Tk103Protocol();
+        final RequestDispatcher dispatcher = new RequestDispatcher(
+                1, 1024, LocationRingBuffer.WaitStrategy.YIELD, IngestBackpressure.OverloadPolicy.REJECT, 1.0, 1.0
+        );
+        group = new NioEventLoopGroup(1);
+        server = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(
+                                protocol.newFrameDecoder(new ServerProperties()),
+                                new InboundRequestHandlerEngine(protocol, dispatcher, new LinkedBlockingQueue<>(), keepAlive, 0, 60000)
+                        );
+                    }
+                })
+                .bind("127.0.0.1", 0)
+                .sync()
+                .channel();
+        address = (InetSocketAddress) server.localAddress();
+
+        // completes the replies as the queue processor would once a batch is stored
+        running = true;
+        final IngestBackpressure shard = dispatcher.getShard(0);
+        processor = new Thread(() -> {
+            while (running) {
+                int drained = shard.getRing().drain((record, endOfBatch) -> {
+                    if (record.getReply() != null) {
+                        record.getReply().complete(true);
+                        record.setReply(null);
+                    }
+                }, 1024);
+                if (drained == 0) {
+                    Thread.yield();
+                } else {
+                    shard.onDrained();
+                }
+            }
+        }, "connectionChurnProcessor");
+        processor.setDaemon(true);
+        processor.start();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        running = false;
+        processor.join();
+        server.close().sync();
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+    }
+
+    /**
+     * Connection of one device thread, opened lazily and reused while the
+     * server keeps it open.
+     */
+    @State(Scope.Thread)
+    public static class Device {
+
+        private Socket socket;
+
+        @TearDown
+        public void tearDown() throws IOException {
+            if (socket != null) {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     *
+     * @param device
+     * @return bytes of the reply
+     * @throws IOException
+     */
+    @Benchmark
+    public int report(Device device) throws IOException {
+        if (device.socket == null) {
+            device.socket = new Socket();
+            device.socket.setTcpNoDelay(true);
+            device.socket.connect(address);
+        }
+        device.socket.getOutputStream().write(REPORT);
+        InputStream in = device.socket.getInputStream();
+        int length = 0;
+        int b;
+        while ((b = in.read()) != -1) {
+            length++;
+            if (b == REPLY_END) {
+                break;
+            }
+        }
+        if (!keepAlive) {
+            // wait for the server to close, like a device that reconnects for the next report
+            while (in.read() != -1) {
+                length++;
+            }
+            device.socket.close();
+            device.socket = null;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.workers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.server.dto.properties.ServerProperties;
+import org.server.protocol.DeviceProtocol;
+import org.server.protocol.Gt06Protocol;
+import org.server.protocol.ProtocolRegistry;
+import org.server.protocol.TeltonikaProtocol;
+import org.server.protocol.Tk103Protocol;
+
+/**
+ * Takes a read of every protocol through its frame decoder, the inbound
+ * handler and the dispatcher into the shard's ring, then drains the ring and
+ * completes the replies as the processor would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class IngestPipelineBenchmark {
+
+    private static final String TK103_READ = "(013612345678BP05000013612345678080524A2232.9806N11404.9355E000.1101241323.8700000000L000450AC)"
+            + "(013612345678BR00080612A2232.9828N11404.9297E000.0022828000.0000000000L00000000)";
+    private static final String GT06_LOGIN = "78780D01012345678901234500018CDD0D0A";
+    private static final String GT06_READ = "78781F120B081D112E10CF027AC7EB0C46584900148F01CC00287D001FB8000380810D0A";
+    private static final String TELTONIKA_LOGIN = "000F333536333037303432343431303133";
+    private static final String TELTONIKA_READ = "000000000000004308020000015957536400002F99DB790420FEC2000A005A07002A0001011503"
+            + "000000000001595753D930002F9A0289042125D2000A00B4090032000101150300000002000043A9";
+
+    @Param({Tk103Protocol.NAME, Gt06Protocol.NAME, TeltonikaProtocol.NAME})
+    public String protocol;
+
+    private final LocationRingBuffer.EventHandler processor = (record, endOfBatch) -> {
+        if (record.getReply() != null) {
+            record.getReply().complete(true);
+            record.setReply(null);
+        }
+    };
+    private RequestDispatcher dispatcher;
+    private EmbeddedChannel channel;
+    private ByteBuf read;
+
+    @Setup
+    public void setUp() {
+        LogManager.getLogger("RequestLog").setLevel(Level.WARN);
+        DeviceProtocol deviceProtocol = ProtocolRegistry.defaults().get(protocol);
+        dispatcher = new RequestDispatcher(1, 1024, LocationRingBuffer.WaitStrategy.BUSY_SPIN, IngestBackpressure.OverloadPolicy.REJECT, 1.0, 1.0);
+        channel = new EmbeddedChannel(
+                deviceProtocol.newFrameDecoder(new ServerProperties()),
+                new InboundRequestHandlerEngine(deviceProtocol, dispatcher, new LinkedBlockingQueue<>(), true, 0, 60000)
+        );
+        switch (protocol) {
+            case Gt06Protocol.NAME: {
+                channel.writeInbound(pooledHex(GT06_LOGIN));
+                read = pooledHex(GT06_READ);
+                break;
+            }
+            case TeltonikaProtocol.NAME: {
+                channel.writeInbound(pooledHex(TELTONIKA_LOGIN));
+                read = pooledHex(TELTONIKA_READ);
+                break;
+            }
+            default: {
+                byte[] bytes = TK103_READ.getBytes(StandardCharsets.US_ASCII);
+                read = PooledByteBufAllocator.DEFAULT.heapBuffer(bytes.length).writeBytes(bytes);
+                break;
+            }
+        }
+        releaseReplies();
+    }
+
+    @TearDown
+    public void tearDown() {
+        read.release();
+        channel.finishAndReleaseAll();
+    }
+
+    /**
+     *
+     * @return locations that reached the ring
+     */
+    @Benchmark
+    public int ingest() {
+        // copied into a pooled direct buffer like a socket read
+        channel.writeInbound(channel.alloc().ioBuffer(read.readableBytes()).writeBytes(read, read.readerIndex(), read.readableBytes()));
+        int locations = dispatcher.getShard(0).getRing().drain(processor, 1024);
+        releaseReplies();
+        return locations;
+    }
+
+    private void releaseReplies() {
+        Object reply;
+        while ((reply = channel.readOutbound()) != null) {
+            ReferenceCountUtil.release(reply);
+        }
+    }
+
+    private static ByteBuf pooledHex(String hex) {
+        byte[] bytes = ByteBufUtil.decodeHexDump(hex);
+        return PooledByteBufAllocator.DEFAULT.heapBuffer(bytes.length).writeBytes(bytes);
+    }
+}
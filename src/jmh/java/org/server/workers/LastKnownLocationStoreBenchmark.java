@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.workers;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.server.dto.LocationRecord;
+
+/**
+ * One processor thread updating last known locations while three threads
+ * read them, for the slot store and for the map of boxed objects it
+ * replaced. Run with {@code -prof gc}, the store should not allocate.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LastKnownLocationStoreBenchmark {
+
+    private static final int DEVICES = 100000;
+    private static final long FIRST_IMEI = 359710040000000L;
+
+    @Param({"store", "map"})
+    public String implementation;
+
+    private LastKnownLocationStore store;
+    private ConcurrentHashMap<Long, LastKnownLocationInfo> map;
+
+    /**
+     * Shape of the map values before the store.
+     */
+    private static final class LastKnownLocationInfo {
+
+        private final LocalDateTime requestTimestamp;
+        private final Double[] coordinates;
+
+        private LastKnownLocationInfo(LocalDateTime requestTimestamp, Double[] coordinates) {
+            this.requestTimestamp = requestTimestamp;
+            this.coordinates = coordinates;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        store = new LastKnownLocationStore(DEVICES, false);
+        map = new ConcurrentHashMap<>();
+        LocationRecord record = new LocationRecord();
+        for (int i = 0; i < DEVICES; i++) {
+            record.setImei(FIRST_IMEI + i);
+            record.setLat(6.9271);
+            record.setLng(79.8612);
+            record.setTimestamp(1500000000000L + i);
+            store.put(record);
+            map.put(record.getImei(), new LastKnownLocationInfo(
+                    LocalDateTime.ofEpochSecond(record.getTimestamp() / 1000, 0, ZoneOffset.UTC),
+                    new Double[]{record.getLat(), record.getLng()}
+            ));
+        }
+    }
+
+    /**
+     * Record and device sequence of one thread.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        private final LocationRecord record = new LocationRecord();
+        private long seed = System.nanoTime() | 1;
+
+        private long nextImei() {
+            // xorshift, cheap and allocation free
+            seed ^= seed << 13;
+            seed ^= seed >>> 7;
+            seed ^= seed << 17;
+            return FIRST_IMEI + (seed & Long.MAX_VALUE) % DEVICES;
+        }
+    }
+
+    /**
+     *
+     * @param cursor
+     */
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void put(Cursor cursor) {
+        LocationRecord record = cursor.record;
+        record.setImei(cursor.nextImei());
+        record.setLat(record.getLat() + 0.0001);
+        record.setLng(record.getLng() + 0.0001);
+        record.setTimestamp(record.getTimestamp() + 1000);
+        if ("store".equals(implementation)) {
+            store.put(record);
+        } else {
+            map.put(record.getImei(), new LastKnownLocationInfo(
+                    LocalDateTime.ofEpochSecond(record.getTimestamp() / 1000, 0, ZoneOffset.UTC),
+                    new Double[]{record.getLat(), record.getLng()}
+            ));
+        }
+    }
+
+    /**
+     *
+     * @param cursor
+     * @return
+     */
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public double get(Cursor cursor) {
+        long imei = cursor.nextImei();
+        if ("store".equals(implementation)) {
+            return store.get(imei, cursor.record) ? cursor.record.getLat() : 0;
+        }
+        LastKnownLocationInfo info = map.get(imei);
+        return info == null ? 0 : info.coordinates[0] + info.requestTimestamp.getSecond();
+    }
+}
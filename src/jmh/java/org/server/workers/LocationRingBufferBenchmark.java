@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.workers;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.server.dto.LocationRecord;
+import org.server.protocol.DeviceFrame;
+
+/**
+ * Two I/O threads publish frames into one ring that a single processor
+ * drains. Publishes that find the ring full and drains that find it empty
+ * return at once, so compare the {@code published} and {@code drained}
+ * location rates rather than the operations.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LocationRingBufferBenchmark {
+
+    private LocationRingBuffer ring;
+    private LocationRingBuffer.EventHandler processor;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        ring = new LocationRingBuffer(4096, LocationRingBuffer.WaitStrategy.BUSY_SPIN);
+        processor = (record, endOfBatch) -> blackhole.consume(record.getTimestamp());
+    }
+
+    /**
+     * The frame of one I/O thread, reused like the decoders do.
+     */
+    @State(Scope.Thread)
+    public static class Producer {
+
+        @Param({"1", "8"})
+        public int locationsPerFrame;
+
+        private final DeviceFrame frame = new DeviceFrame();
+
+        @Setup
+        public void setUp() {
+            long imei = Thread.currentThread().getId();
+            frame.reset(0, imei);
+            for (int i = 0; i < locationsPerFrame; i++) {
+                LocationRecord location = frame.addLocation();
+                location.setImei(imei);
+                location.setTimestamp(i);
+            }
+        }
+    }
+
+    /**
+     * Locations that made it through, per thread.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+
+        public long published;
+        public long drained;
+    }
+
+    /**
+     *
+     * @param producer
+     * @param counters
+     * @return false when the ring was full
+     */
+    @Benchmark
+    @Group("ring")
+    @GroupThreads(2)
+    public boolean publish(Producer producer, Counters counters) {
+        if (ring.tryPublish(producer.frame)) {
+            counters.published += producer.locationsPerFrame;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     *
+     * @param counters
+     * @return number of drained locations
+     */
+    @Benchmark
+    @Group("ring")
+    @GroupThreads(1)
+    public int drain(Counters counters) {
+        int drained = ring.drain(processor, 256);
+        counters.drained += drained;
+        return drained;
+    }
+}
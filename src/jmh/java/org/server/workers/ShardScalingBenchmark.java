@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.workers;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.Blackhole;
+import org.server.protocol.DeviceFrame;
+
+/**
+ * Sustained ingest rate over 1, 2 and 4 shards. Every shard has a processor
+ * thread spending a fixed amount of CPU per location, the I/O threads retry
+ * until their frame is accepted, so the score is bounded by the processors.
+ * It should grow close to linearly with the shards while there are cores
+ * left for them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(4)
+public class ShardScalingBenchmark {
+
+    private static final long DEVICES = 4096;
+    // roughly the cost of distance chaining and encoding a location
+    private static final long WORK_TOKENS = 500;
+
+    @Param({"1", "2", "4"})
+    public int shards;
+
+    private final List<Thread> processors = new ArrayList<>();
+    private RequestDispatcher dispatcher;
+    private volatile boolean running;
+
+    @Setup
+    public void setUp() {
+        dispatcher = new RequestDispatcher(shards, 4096, LocationRingBuffer.WaitStrategy.PARK, IngestBackpressure.OverloadPolicy.REJECT, 1.0, 1.0);
+        running = true;
+        for (int i = 0; i < shards; i++) {
+            IngestBackpressure shard = dispatcher.getShard(i);
+            Thread processor = new Thread(() -> {
+                while (running) {
+                    shard.getRing().drain((record, endOfBatch) -> Blackhole.consumeCPU(WORK_TOKENS), 256);
+                    shard.onDrained();
+                }
+            }, "processor-" + i);
+            processor.setDaemon(true);
+            processor.start();
+            processors.add(processor);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        running = false;
+        for (Thread processor : processors) {
+            processor.join();
+        }
+        processors.clear();
+    }
+
+    /**
+     * The frame of one I/O thread, reused like the decoders do.
+     */
+    @State(Scope.Thread)
+    public static class Producer {
+
+        private final DeviceFrame frame = new DeviceFrame();
+        private final EmbeddedChannel channel = new EmbeddedChannel();
+        private long nextDevice;
+    }
+
+    /**
+     *
+     * @param producer
+     */
+    @Benchmark
+    public void publish(Producer producer) {
+        long imei = 359710040000000L + producer.nextDevice++ % DEVICES;
+        DeviceFrame frame = producer.frame;
+        frame.reset(0, imei);
+        frame.addLocation().setImei(imei);
+        while (!dispatcher.publish(frame, producer.channel)) {
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.workers;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of one timer tick with a million tracked devices, each due once per
+ * {@link #PERIOD} ticks, on the timing wheel and on a scan of every device
+ * as the lookup engine did before it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TimingWheelBenchmark {
+
+    private static final long PERIOD = 3600;
+
+    @Param({"1000000"})
+    public int devices;
+
+    private TimingWheel wheel;
+    private Consumer<TimingWheel.Timeout> rearm;
+    private Map<Long, Long> deadlines;
+    private long tick;
+    private int expired;
+
+    @Setup
+    public void setUp() {
+        wheel = new TimingWheel(0);
+        deadlines = new HashMap<>(devices * 2);
+        for (int i = 0; i < devices; i++) {
+            long deadline = 1 + i % PERIOD;
+            wheel.schedule(new TimingWheel.Timeout(i), deadline);
+            deadlines.put((long) i, deadline);
+        }
+        rearm = timeout -> {
+            expired++;
+            wheel.schedule(timeout, wheel.getTick() + PERIOD);
+        };
+    }
+
+    /**
+     *
+     * @return devices expired on this tick
+     */
+    @Benchmark
+    public int wheel() {
+        expired = 0;
+        wheel.advance(wheel.getTick() + 1, rearm);
+        return expired;
+    }
+
+    /**
+     *
+     * @return devices expired on this tick
+     */
+    @Benchmark
+    public int scan() {
+        int count = 0;
+        tick++;
+        for (Map.Entry<Long, Long> entry : deadlines.entrySet()) {
+            if (entry.getValue() <= tick) {
+                entry.setValue(tick + PERIOD);
+                count++;
+            }
+        }
+        return count;
+    }
+}
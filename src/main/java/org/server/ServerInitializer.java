@@ -1,178 +1,474 @@
-/*
- * Copyright 2017 Benjamin.C.
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *      http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-package org.server;
-
-import io.netty.bootstrap.ServerBootstrap;
-import io.netty.channel.ChannelInitializer;
-import io.netty.channel.ChannelOption;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import java.io.IOException;
-import java.lang.management.ManagementFactory;
-import java.util.Arrays;
-import java.util.Timer;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
-import org.apache.log4j.LogManager;
-import org.apache.log4j.Logger;
-import org.server.dto.LastKnownLocationInfo;
-import org.server.dto.Message;
-import org.server.dto.properties.ServerProperties;
-import org.server.dto.properties.SystemProperties;
-import org.server.util.TimezoneUtil;
-import org.server.workers.MessageQueueProcessor;
-import org.server.workers.RequestQueueProcessorEngine;
-import org.server.workers.RequestLookupEngine;
-import org.server.workers.InboundRequestHandlerEngine;
-
-public class ServerInitializer {
-
-    private static final Logger ERROR_LOGGER = LogManager.getLogger("ErrorLog");
-    private static final Logger DEBUG_LOGGER = LogManager.getLogger("DebugLog");
-
-    static {
-        try {
-            Context.checkSysConfigs();
-        } catch (IllegalStateException e) {
-            ERROR_LOGGER.error(getLogMetaInfo(), e);
-            ERROR_LOGGER.error("System exiting on error - 101");
-            System.exit(0);
-        }
-    }
-
-    /**
-     *
-     * @param args
-     */
-    public static void main(String[] args) {
-        LinkedBlockingQueue<String> requestQueue = null;
-        LinkedBlockingQueue<Message> messageQueue = null;
-        ConcurrentHashMap<Long, LastKnownLocationInfo> latestRequests = null;
-
-        try {
-            SystemProperties systemProperties = Context.getSystemProperties();
-            requestQueue = new LinkedBlockingQueue<>(systemProperties.getServer().getRequestQueueSize());
-            messageQueue = new LinkedBlockingQueue<>(systemProperties.getServer().getMessageQueueSize());
-            latestRequests = new ConcurrentHashMap<>();
-            // initiate server
-            new ServerInitializer().init(
-                    systemProperties.getServer(),
-                    requestQueue,
-                    messageQueue
-            );
-            // initiate data stream consumer threadnew
-            RequestQueueProcessorEngine requestQueueProcessorEngine = new RequestQueueProcessorEngine(
-                    requestQueue,
-                    messageQueue,
-                    latestRequests,
-                    systemProperties.getAmp().isActive()
-            );
-
-            Thread rqpeThread = new Thread(requestQueueProcessorEngine);
-            rqpeThread.setName("requestQueueProcessorEngine");
-            rqpeThread.start();
-
-            // initiate event message excecution service thread
-            if (systemProperties.getServer().isMessagingService()) {
-                MessageQueueProcessor messageQueueProcessor = new MessageQueueProcessor(
-                        messageQueue,
-                        systemProperties.getMail()
-                );
-                Thread messageMessageQueueProcessorThread = new Thread(messageQueueProcessor);
-                messageMessageQueueProcessorThread.setName("messageQueueProcessorThread");
-                messageMessageQueueProcessorThread.start();
-            }
-
-            // initiate request lookup service
-            if (systemProperties.getServer().isRequestLookupService()) {
-                Timer reqListnerTimer = new Timer("RequestLookupEngine");
-                RequestLookupEngine requestLookupEngine = new RequestLookupEngine(
-                        messageQueue,
-                        latestRequests,
-                        systemProperties.getAmp().isActive()
-                );
-                reqListnerTimer.schedule(
-                        requestLookupEngine,
-                        0l,
-                        systemProperties.getServer().getRequestLookupInterval()
-                );
-            }
-
-            DEBUG_LOGGER.debug("Service started - " + ManagementFactory.getRuntimeMXBean().getName());
-            messageQueue.put(Message.getBuilder()
-                    .type(Message.MessageType.SERVER_STARTUP)
-                    .payload(Arrays.asList(
-                            systemProperties.getServer().getServerAddress(),
-                            systemProperties.getDb().getServerAddress()
-                    )).timestamp(TimezoneUtil.nowLocal(TimezoneUtil.TIMEZONE_SL))
-                    .build()
-            );
-        } catch (IOException | InterruptedException | NumberFormatException | IllegalStateException ex) {
-            ERROR_LOGGER.error(getLogMetaInfo(), ex);
-            try {
-                if (null != messageQueue) {
-                    messageQueue.put(Message.getBuilder()
-                            .type(Message.MessageType.CRITICAL_SERVER_FAILURE)
-                            .payload(ex)
-                            .timestamp(TimezoneUtil.nowLocal(TimezoneUtil.TIMEZONE_SL))
-                            .build()
-                    );
-                }
-            } catch (InterruptedException ex1) {
-                ERROR_LOGGER.error(getLogMetaInfo(), ex);
-            }
-        }
-
-    }
-
-    /**
-     *
-     * @param port
-     * @param queue
-     * @param backlog
-     * @param mq
-     * @throws java.io.InterruptedException
-     */
-    private void init(
-            final ServerProperties serverProperties,
-            final LinkedBlockingQueue<String> queue,
-            final LinkedBlockingQueue<Message> mq
-    ) throws InterruptedException {
-        EventLoopGroup bossGroup = new NioEventLoopGroup();
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
-
-        ServerBootstrap b = new ServerBootstrap();
-        b.group(bossGroup, workerGroup)
-                .channel(NioServerSocketChannel.class)
-                .childHandler(new ChannelInitializer<SocketChannel>() {
-                    @Override
-                    public void initChannel(SocketChannel ch) throws Exception {
-                        ch.pipeline().addLast(new InboundRequestHandlerEngine(queue, mq));
-                    }
-                })
-                .option(ChannelOption.SO_BACKLOG, serverProperties.getBacklog())
-                .childOption(ChannelOption.SO_KEEPALIVE, true);
-
-        // Bind and start to accept incoming connections.
-        b.bind(serverProperties.getPort()).sync();
-    }
-
-    private static String getLogMetaInfo() {
-        return TimezoneUtil.nowLocal("Asia/Colombo") + " [ServerInitializer.class]";
-    }
-}
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.timeout.IdleStateHandler;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.BiConsumer;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.server.db.DBOperationsHandler;
+import org.server.db.VehicleRegistry;
+import org.server.db.WriteAheadLog;
+import org.server.dto.Message;
+import org.server.dto.properties.DatabaseProperties;
+import org.server.dto.properties.ServerProperties;
+import org.server.dto.properties.SystemProperties;
+import org.server.protocol.DeviceProtocol;
+import org.server.protocol.ProtocolDetector;
+import org.server.protocol.ProtocolRegistry;
+import org.server.util.TimezoneUtil;
+import org.server.util.TransportUtil;
+import org.server.workers.IngestBackpressure;
+import org.server.workers.LastKnownLocationStore;
+import org.server.workers.LivePositionPublisher;
+import org.server.workers.LocationSnapshotEngine;
+import org.server.workers.LocationRingBuffer;
+import org.server.workers.MessageQueueProcessor;
+import org.server.workers.MetricsReporter;
+import org.server.workers.RequestDispatcher;
+import org.server.workers.RequestQueueProcessorEngine;
+import org.server.workers.RequestLookupEngine;
+import org.server.workers.InboundRequestHandlerEngine;
+import org.server.workers.WalRecoveryEngine;
+import org.server.web.LiveFanout;
+import org.server.web.WebServer;
+
+public class ServerInitializer {
+
+    private static final Logger ERROR_LOGGER = LogManager.getLogger("ErrorLog");
+    private static final Logger DEBUG_LOGGER = LogManager.getLogger("DebugLog");
+
+    private static final String PROTOCOL_AUTO = "auto";
+    private static final String SHARD_LOG_PREFIX = "shard-";
+
+    static {
+        try {
+            Context.checkSysConfigs();
+        } catch (IllegalStateException e) {
+            ERROR_LOGGER.error(getLogMetaInfo(), e);
+            ERROR_LOGGER.error("System exiting on error - 101");
+            System.exit(0);
+        }
+    }
+
+    /**
+     *
+     * @param args
+     */
+    public static void main(String[] args) {
+        RequestDispatcher requestDispatcher = null;
+        LinkedBlockingQueue<Message> messageQueue = null;
+        LastKnownLocationStore latestRequests = null;
+
+        try {
+            SystemProperties systemProperties = Context.getSystemProperties();
+            requestDispatcher = new RequestDispatcher(
+                    systemProperties.getServer().getProcessorShards(),
+                    systemProperties.getServer().getRequestQueueSize(),
+                    LocationRingBuffer.WaitStrategy.valueOf(systemProperties.getServer().getWaitStrategy()),
+                    IngestBackpressure.OverloadPolicy.valueOf(systemProperties.getServer().getOverloadPolicy()),
+                    systemProperties.getServer().getQueueHighWatermark(),
+                    systemProperties.getServer().getQueueLowWatermark()
+            );
+            ProtocolRegistry protocols = ProtocolRegistry.defaults();
+            String walDirectory = systemProperties.getDb().getWalDirectory();
+            requireLogForStorageAcknowledgements(systemProperties.getServer(), protocols, walDirectory != null && !walDirectory.isEmpty());
+            for (DeviceProtocol protocol : protocols.getProtocols()) {
+                requestDispatcher.requireCapacity(protocol.getMaxLocationsPerFrame());
+            }
+            messageQueue = new LinkedBlockingQueue<>(systemProperties.getServer().getMessageQueueSize());
+            latestRequests = new LastKnownLocationStore(
+                    systemProperties.getServer().getLocationStoreCapacity(),
+                    systemProperties.getServer().isLocationStoreOffHeap()
+            );
+            if (systemProperties.getDb().isCreateIndexes()) {
+                new DBOperationsHandler().createIndexes();
+            }
+            // warm up the last known locations before the first device is accepted
+            String snapshotFile = systemProperties.getServer().getLocationSnapshotFile();
+            LocationSnapshotEngine locationSnapshotEngine = new LocationSnapshotEngine(
+                    latestRequests,
+                    snapshotFile != null && !snapshotFile.isEmpty() ? Paths.get(snapshotFile) : null,
+                    systemProperties.getServer().getLocationRestoreLookback()
+            );
+            locationSnapshotEngine.restore();
+            // initiate coalesced live publishing, before the processors that feed it
+            LivePositionPublisher livePublisher = null;
+            if (systemProperties.getAmp().isActive()) {
+                livePublisher = new LivePositionPublisher(
+                        systemProperties.getAmp().getBatchTopic(),
+                        systemProperties.getAmp().isPerDeviceTopics(),
+                        "BINARY".equals(systemProperties.getAmp().getWireFormat())
+                );
+                Timer livePublisherTimer = new Timer("LivePositionPublisher", true);
+                livePublisherTimer.schedule(
+                        livePublisher,
+                        systemProperties.getAmp().getPublishWindow(),
+                        systemProperties.getAmp().getPublishWindow()
+                );
+            }
+
+            // vehicles are bulk loaded once up front and then reloaded in the background
+            VehicleRegistry vehicleRegistry = null;
+            if (systemProperties.getServer().isRequestLookupService() || systemProperties.getServer().getWebPort() > 0) {
+                vehicleRegistry = new VehicleRegistry(
+                        new DBOperationsHandler(),
+                        systemProperties.getServer().getVehicleRegistrySize(),
+                        systemProperties.getServer().getVehicleMissTtl()
+                );
+                vehicleRegistry.run();
+                Timer vehicleRegistryTimer = new Timer("VehicleRegistry", true);
+                vehicleRegistryTimer.schedule(
+                        vehicleRegistry,
+                        systemProperties.getServer().getVehicleRefreshInterval(),
+                        systemProperties.getServer().getVehicleRefreshInterval()
+                );
+            }
+
+            // initiate live tracking fan-out, before the processors that feed it
+            LiveFanout liveFanout = null;
+            if (systemProperties.getServer().getWebPort() > 0) {
+                liveFanout = new LiveFanout(vehicleRegistry, systemProperties.getServer().getLiveMaxPending());
+            }
+
+            // initiate request lookup service, before the processors that feed it
+            RequestLookupEngine requestLookupEngine = null;
+            if (systemProperties.getServer().isRequestLookupService()) {
+                Timer reqListnerTimer = new Timer("RequestLookupEngine");
+                RequestLookupEngine offlineDetector = new RequestLookupEngine(
+                        messageQueue,
+                        systemProperties.getAmp().isActive(),
+                        vehicleRegistry,
+                        systemProperties.getServer().getRequestLookupInterval(),
+                        systemProperties.getServer().getStaleThreshold(),
+                        systemProperties.getServer().getOfflineThreshold()
+                );
+                // restored devices are tracked right away without being announced, everything else on its first point
+                latestRequests.forEach(record -> offlineDetector.restore(record.getImei(), record.getTimestamp()));
+                requestLookupEngine = offlineDetector;
+                reqListnerTimer.schedule(
+                        requestLookupEngine,
+                        0l,
+                        systemProperties.getServer().getRequestLookupInterval()
+                );
+            }
+
+            // open the log of every shard and replay what an earlier run left, also in the logs of shards
+            // that no longer exist, before any device is accepted
+            WriteAheadLog[] shardLogs = new WriteAheadLog[requestDispatcher.getShardCount()];
+            List<WriteAheadLog> logs = new ArrayList<>();
+            if (walDirectory != null && !walDirectory.isEmpty()) {
+                logs = openLogs(Paths.get(walDirectory), shardLogs, systemProperties.getDb());
+                new WalRecoveryEngine(logs, systemProperties.getDb().getBatchSize()).run();
+            }
+
+            // initiate server
+            new ServerInitializer().init(
+                    systemProperties.getServer(),
+                    requestDispatcher,
+                    messageQueue,
+                    protocols
+            );
+            if (liveFanout != null) {
+                new WebServer(
+                        systemProperties.getServer(),
+                        liveFanout,
+                        latestRequests,
+                        new DBOperationsHandler(),
+                        vehicleRegistry
+                ).start();
+            }
+            // initiate one data stream consumer thread per shard, each with its own database handler and log
+            for (int shard = 0; shard < requestDispatcher.getShardCount(); shard++) {
+                RequestQueueProcessorEngine requestQueueProcessorEngine = new RequestQueueProcessorEngine(
+                        requestDispatcher.getShard(shard),
+                        systemProperties.getServer().getProcessorBatchSize(),
+                        systemProperties.getServer().getReorderWindow(),
+                        systemProperties.getServer().getMaxClockSkew(),
+                        messageQueue,
+                        latestRequests,
+                        livePublisher,
+                        liveFanout,
+                        systemProperties.getDb(),
+                        shardLogs[shard],
+                        requestLookupEngine
+                );
+
+                Thread rqpeThread = new Thread(requestQueueProcessorEngine);
+                rqpeThread.setName("requestQueueProcessorEngine-" + shard);
+                rqpeThread.start();
+            }
+
+            // retry retained segments, and whatever the first replay could not store, periodically
+            if (!logs.isEmpty()) {
+                Timer walRecoveryTimer = new Timer("WalRecoveryEngine", true);
+                walRecoveryTimer.schedule(
+                        new WalRecoveryEngine(logs, systemProperties.getDb().getBatchSize()),
+                        systemProperties.getDb().getWalRecoveryInterval(),
+                        systemProperties.getDb().getWalRecoveryInterval()
+                );
+            }
+
+            // initiate event message excecution service thread
+            if (systemProperties.getServer().isMessagingService()) {
+                MessageQueueProcessor messageQueueProcessor = new MessageQueueProcessor(
+                        messageQueue,
+                        systemProperties.getMail()
+                );
+                Thread messageMessageQueueProcessorThread = new Thread(messageQueueProcessor);
+                messageMessageQueueProcessorThread.setName("messageQueueProcessorThread");
+                messageMessageQueueProcessorThread.start();
+            }
+
+            // initiate periodic snapshots of the last known locations, plus a final one on shutdown
+            if (snapshotFile != null && !snapshotFile.isEmpty()) {
+                Timer snapshotTimer = new Timer("LocationSnapshotEngine", true);
+                snapshotTimer.schedule(
+                        locationSnapshotEngine,
+                        systemProperties.getServer().getLocationSnapshotInterval(),
+                        systemProperties.getServer().getLocationSnapshotInterval()
+                );
+                Runtime.getRuntime().addShutdownHook(new Thread(locationSnapshotEngine::snapshot, "locationSnapshotHook"));
+            }
+
+            // initiate periodic metrics logging
+            if (systemProperties.getServer().getMetricsInterval() > 0) {
+                Timer metricsTimer = new Timer("MetricsReporter", true);
+                metricsTimer.schedule(
+                        new MetricsReporter(),
+                        systemProperties.getServer().getMetricsInterval(),
+                        systemProperties.getServer().getMetricsInterval()
+                );
+            }
+
+            DEBUG_LOGGER.debug("Service started - " + ManagementFactory.getRuntimeMXBean().getName());
+            messageQueue.put(Message.getBuilder()
+                    .type(Message.MessageType.SERVER_STARTUP)
+                    .payload(Arrays.asList(
+                            systemProperties.getServer().getServerAddress(),
+                            systemProperties.getDb().getServerAddress()
+                    )).timestamp(TimezoneUtil.nowLocal(TimezoneUtil.TIMEZONE_SL))
+                    .build()
+            );
+        } catch (IOException | InterruptedException | NumberFormatException | IllegalStateException ex) {
+            ERROR_LOGGER.error(getLogMetaInfo(), ex);
+            try {
+                if (null != messageQueue) {
+                    messageQueue.put(Message.getBuilder()
+                            .type(Message.MessageType.CRITICAL_SERVER_FAILURE)
+                            .payload(ex)
+                            .timestamp(TimezoneUtil.nowLocal(TimezoneUtil.TIMEZONE_SL))
+                            .build()
+                    );
+                }
+            } catch (InterruptedException ex1) {
+                ERROR_LOGGER.error(getLogMetaInfo(), ex);
+            }
+        }
+
+    }
+
+    /**
+     * The acknowledgement of a protocol like Teltonika tells the device its
+     * records are stored and may be discarded, which only the log can vouch
+     * for before the bulk write is acknowledged. Without a log such protocols
+     * are left out of detection, binding one explicitly fails.
+     *
+     * @param serverProperties
+     * @param registry
+     * @param logged true when a write-ahead log is configured
+     * @throws IllegalStateException
+     */
+    private static void requireLogForStorageAcknowledgements(
+            ServerProperties serverProperties,
+            ProtocolRegistry registry,
+            boolean logged
+    ) throws IllegalStateException {
+        if (logged) {
+            return;
+        }
+        for (DeviceProtocol protocol : new ArrayList<>(registry.getProtocols())) {
+            if (!protocol.isAcknowledgingStorage()) {
+                continue;
+            }
+            if (protocol.getName().equals(serverProperties.getDeviceProtocol())
+                    || (serverProperties.getProtocolPorts() != null && serverProperties.getProtocolPorts().containsKey(protocol.getName()))) {
+                throw new IllegalStateException("Device protocol " + protocol.getName() + " acknowledges stored records and requires db.walDirectory");
+            }
+            registry.unregister(protocol.getName());
+            DEBUG_LOGGER.debug("Device protocol " + protocol.getName() + " is not detected without db.walDirectory");
+        }
+    }
+
+    /**
+     * Opens the log of every current shard into {@code shardLogs}, plus a
+     * replay only log for every other {@code shard-*} directory, e.g. left
+     * behind by a run with more shards.
+     *
+     * @param directory
+     * @param shardLogs
+     * @param db
+     * @return every opened log
+     * @throws IOException
+     */
+    private static List<WriteAheadLog> openLogs(Path directory, WriteAheadLog[] shardLogs, DatabaseProperties db) throws IOException {
+        List<WriteAheadLog> logs = new ArrayList<>();
+        for (int shard = 0; shard < shardLogs.length; shard++) {
+            shardLogs[shard] = new WriteAheadLog(directory.resolve(SHARD_LOG_PREFIX + shard), db.getWalSegmentSize(), db.getWalSyncInterval());
+            logs.add(shardLogs[shard]);
+        }
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(directory, SHARD_LOG_PREFIX + "*")) {
+            for (Path dir : dirs) {
+                String suffix = dir.getFileName().toString().substring(SHARD_LOG_PREFIX.length());
+                if (!Files.isDirectory(dir) || (suffix.matches("\\d{1,9}") && Integer.parseInt(suffix) < shardLogs.length)) {
+                    continue;
+                }
+                DEBUG_LOGGER.debug("Replaying the log of a former shard in " + dir);
+                logs.add(WriteAheadLog.openForReplay(dir));
+            }
+        }
+        return logs;
+    }
+
+    /**
+     * Binds {@code port} for {@code deviceProtocol}, or for every registered
+     * protocol when it is {@code auto}, plus one port per entry of
+     * {@code protocolPorts}. All listeners share the event loops.
+     *
+     * @param serverProperties
+     * @param dispatcher
+     * @param mq
+     * @param registry
+     * @throws java.lang.InterruptedException
+     */
+    private void init(
+            final ServerProperties serverProperties,
+            final RequestDispatcher dispatcher,
+            final LinkedBlockingQueue<Message> mq,
+            final ProtocolRegistry registry
+    ) throws InterruptedException {
+        // native epoll on linux, nio everywhere else
+        final boolean epoll = TransportUtil.isEpollAvailable();
+        EventLoopGroup bossGroup = TransportUtil.newEventLoopGroup(epoll, serverProperties.getAcceptThreads());
+        EventLoopGroup workerGroup = TransportUtil.newEventLoopGroup(epoll, serverProperties.getThreads());
+        // appends the protocol's decoder and the generic handler
+        final BiConsumer<ChannelPipeline, DeviceProtocol> initializer = (pipeline, detected) -> pipeline.addLast(
+                detected.newFrameDecoder(serverProperties),
+                new InboundRequestHandlerEngine(detected, dispatcher, mq, serverProperties.isKeepAlive(), serverProperties.getCloseDelay(), serverProperties.getMaxClockSkew())
+        );
+
+        bind(serverProperties, initializer, registry, bossGroup, workerGroup, epoll,
+                serverProperties.getPort(),
+                PROTOCOL_AUTO.equals(serverProperties.getDeviceProtocol()) ? null : registry.get(serverProperties.getDeviceProtocol())
+        );
+        if (serverProperties.getProtocolPorts() != null) {
+            for (Map.Entry<String, Integer> entry : serverProperties.getProtocolPorts().entrySet()) {
+                bind(serverProperties, initializer, registry, bossGroup, workerGroup, epoll,
+                        entry.getValue(),
+                        registry.get(entry.getKey())
+                );
+            }
+        }
+    }
+
+    /**
+     *
+     * @param serverProperties
+     * @param initializer appends the handlers of a protocol to a pipeline
+     * @param registry
+     * @param bossGroup
+     * @param workerGroup
+     * @param epoll
+     * @param port
+     * @param protocol null to detect the protocol of every connection
+     * @throws InterruptedException
+     */
+    private void bind(
+            final ServerProperties serverProperties,
+            final BiConsumer<ChannelPipeline, DeviceProtocol> initializer,
+            final ProtocolRegistry registry,
+            final EventLoopGroup bossGroup,
+            final EventLoopGroup workerGroup,
+            final boolean epoll,
+            final int port,
+            final DeviceProtocol protocol
+    ) throws InterruptedException {
+        ByteBufAllocator allocator = serverProperties.isPooledAllocator()
+                ? PooledByteBufAllocator.DEFAULT
+                : UnpooledByteBufAllocator.DEFAULT;
+
+        ServerBootstrap b = new ServerBootstrap();
+        b.group(bossGroup, workerGroup)
+                .channel(TransportUtil.serverChannelClass(epoll))
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    public void initChannel(SocketChannel ch) throws Exception {
+                        if (serverProperties.isKeepAlive() || protocol == null || protocol.isSessionBased()) {
+                            ch.pipeline().addLast(new IdleStateHandler(0, 0, serverProperties.getIdleTimeout()));
+                        }
+                        if (protocol == null) {
+                            ch.pipeline().addLast(new ProtocolDetector(registry, initializer));
+                        } else {
+                            initializer.accept(ch.pipeline(), protocol);
+                        }
+                    }
+                })
+                .option(ChannelOption.SO_BACKLOG, serverProperties.getBacklog())
+                .option(ChannelOption.ALLOCATOR, allocator)
+                .childOption(ChannelOption.SO_KEEPALIVE, true)
+                .childOption(ChannelOption.TCP_NODELAY, serverProperties.isTcpNoDelay())
+                .childOption(ChannelOption.ALLOCATOR, allocator);
+        if (serverProperties.getReceiveBufferSize() > 0) {
+            b.childOption(ChannelOption.SO_RCVBUF, serverProperties.getReceiveBufferSize());
+        }
+
+        // Bind and start to accept incoming connections.
+        int binds = TransportUtil.listeningSockets(epoll, serverProperties.isReusePort(), serverProperties.getAcceptThreads());
+        if (epoll && serverProperties.isReusePort()) {
+            b.option(EpollChannelOption.SO_REUSEPORT, true);
+        }
+        for (int i = 0; i < binds; i++) {
+            b.bind(port).sync();
+        }
+        DEBUG_LOGGER.debug("Listening on " + port + " for " + (protocol == null ? "any protocol" : protocol.getName()) + " using " + (epoll ? "epoll" : "nio") + " transport, " + binds + " listening socket(s)");
+    }
+
+    private static String getLogMetaInfo() {
+        return TimezoneUtil.nowLocal("Asia/Colombo") + " [ServerInitializer.class]";
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.codec;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.server.dto.Location;
+
+/**
+ * Compact binary encoding of published locations, the alternative to the
+ * JSON published by default. Messages carry their format in the
+ * {@value #CONTENT_TYPE_PROPERTY} property so consumers can pick a decoder.
+ * The class depends on nothing but the JDK and {@link Location} and is meant
+ * to be shared with consumers as is.
+ * <p>
+ * A single location ({@value #CONTENT_TYPE_LOCATION}) is a fixed-width
+ * {@value #LOCATION_SIZE} byte big-endian record:
+ * <pre>
+ * version:1 flags:1 type:2 imei:8 timestamp:8 receivedTime:8 lat:4 lng:4 speed:4 heading:4 distance:4
+ * </pre>
+ * A batch ({@value #CONTENT_TYPE_BATCH}) starts with the version and a varint
+ * count, followed by each location as flags, type, then imei, timestamp, lat
+ * and lng as zigzag varint deltas to the previous location, the received
+ * time as zigzag varint delta to its own timestamp and speed, heading and
+ * distance in tenths as zigzag varints. Deltas stay small when the batch is
+ * sorted by imei.
+ * <p>
+ * Timestamps travel as epoch milliseconds, coordinates as degrees * 10^7.
+ * Absent fields are flagged and left zero, a backfilled location is only
+ * flagged.
+ * <p>
+ * Version 1 messages, without received time and backfill flag and with a
+ * {@value #LOCATION_SIZE_V1} byte single location, are still decoded.
+ */
+public final class LocationCodec {
+
+    public static final String CONTENT_TYPE_PROPERTY = "contentType";
+    public static final String CONTENT_TYPE_JSON = "application/json";
+    public static final String CONTENT_TYPE_LOCATION = "application/x-location";
+    public static final String CONTENT_TYPE_BATCH = "application/x-location-batch";
+
+    public static final int LOCATION_SIZE = 48;
+    public static final int LOCATION_SIZE_V1 = 40;
+
+    private static final byte VERSION = 2;
+    private static final byte VERSION_1 = 1;
+
+    private static final int HAS_POINT = 1;
+    private static final int HAS_TIMESTAMP = 1 << 1;
+    private static final int HAS_SPEED = 1 << 2;
+    private static final int HAS_HEADING = 1 << 3;
+    private static final int HAS_DISTANCE = 1 << 4;
+    private static final int HAS_RECEIVED_TIME = 1 << 5;
+    private static final int BACKFILL = 1 << 6;
+
+    private static final double COORDINATE_SCALE = 1e7;
+    private static final double TENTHS = 10;
+
+    // worst case of one batched location: flags, type and eight varints
+    private static final int MAX_BATCHED_SIZE = 1 + 5 + 10 + 10 + 10 + 5 + 5 + 5 + 5 + 5;
+
+    private LocationCodec() {
+    }
+
+    /**
+     *
+     * @param location
+     * @return
+     */
+    public static byte[] encode(Location location) {
+        ByteBuffer buffer = ByteBuffer.allocate(LOCATION_SIZE);
+        int flags = flagsOf(location);
+        buffer.put(VERSION)
+                .put((byte) flags)
+                .putShort((short) location.getType())
+                .putLong(location.getImei())
+                .putLong((flags & HAS_TIMESTAMP) != 0 ? toEpochMilli(location.getTimestamp()) : 0)
+                .putLong((flags & HAS_RECEIVED_TIME) != 0 ? toEpochMilli(location.getReceivedTime()) : 0)
+                .putInt((flags & HAS_POINT) != 0 ? toFixed(location.getPoint().get(0)) : 0)
+                .putInt((flags & HAS_POINT) != 0 ? toFixed(location.getPoint().get(1)) : 0)
+                .putFloat((flags & HAS_SPEED) != 0 ? location.getSpeed().floatValue() : 0)
+                .putFloat((flags & HAS_HEADING) != 0 ? location.getHeading().floatValue() : 0)
+                .putFloat((flags & HAS_DISTANCE) != 0 ? location.getDistance().floatValue() : 0);
+        return buffer.array();
+    }
+
+    /**
+     *
+     * @param message
+     * @return
+     * @throws IllegalArgumentException when the message is not a location of
+     * a known version
+     */
+    public static Location decode(byte[] message) throws IllegalArgumentException {
+        boolean v1 = message.length > 0 && message[0] == VERSION_1;
+        if (message.length < (v1 ? LOCATION_SIZE_V1 : LOCATION_SIZE) || (!v1 && message[0] != VERSION)) {
+            throw new IllegalArgumentException("Not a location message");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(message, 1, message.length - 1);
+        int flags = buffer.get();
+        int type = buffer.getShort();
+        long imei = buffer.getLong();
+        long timestamp = buffer.getLong();
+        long receivedTime = v1 ? 0 : buffer.getLong();
+        int lat = buffer.getInt();
+        int lng = buffer.getInt();
+        float speed = buffer.getFloat();
+        float heading = buffer.getFloat();
+        float distance = buffer.getFloat();
+        return Location.builder()
+                .type(type)
+                .imei(imei)
+                .timestamp((flags & HAS_TIMESTAMP) != 0 ? toLocalDateTime(timestamp) : null)
+                .receivedTime((flags & HAS_RECEIVED_TIME) != 0 ? toLocalDateTime(receivedTime) : null)
+                .backfill((flags & BACKFILL) != 0 ? Boolean.TRUE : null)
+                .point((flags & HAS_POINT) != 0 ? Arrays.asList(lat / COORDINATE_SCALE, lng / COORDINATE_SCALE) : null)
+                .speed((flags & HAS_SPEED) != 0 ? (double) speed : null)
+                .heading((flags & HAS_HEADING) != 0 ? (double) heading : null)
+                .distance((flags & HAS_DISTANCE) != 0 ? (double) distance : null)
+                .build();
+    }
+
+    /**
+     *
+     * @param locations
+     * @return
+     */
+    public static byte[] encodeBatch(List<Location> locations) {
+        byte[] out = new byte[1 + 5 + locations.size() * MAX_BATCHED_SIZE];
+        out[0] = VERSION;
+        int position = writeVarint(out, 1, locations.size());
+        long imei = 0;
+        long timestamp = 0;
+        long lat = 0;
+        long lng = 0;
+        for (Location location : locations) {
+            int flags = flagsOf(location);
+            out[position++] = (byte) flags;
+            position = writeVarint(out, position, zigzag(location.getType()));
+            position = writeVarint(out, position, zigzag(location.getImei() - imei));
+            imei = location.getImei();
+            long own = 0;
+            if ((flags & HAS_TIMESTAMP) != 0) {
+                long next = toEpochMilli(location.getTimestamp());
+                position = writeVarint(out, position, zigzag(next - timestamp));
+                timestamp = next;
+                own = next;
+            }
+            if ((flags & HAS_POINT) != 0) {
+                long nextLat = toFixed(location.getPoint().get(0));
+                long nextLng = toFixed(location.getPoint().get(1));
+                position = writeVarint(out, position, zigzag(nextLat - lat));
+                position = writeVarint(out, position, zigzag(nextLng - lng));
+                lat = nextLat;
+                lng = nextLng;
+            }
+            if ((flags & HAS_RECEIVED_TIME) != 0) {
+                position = writeVarint(out, position, zigzag(toEpochMilli(location.getReceivedTime()) - own));
+            }
+            if ((flags & HAS_SPEED) != 0) {
+                position = writeVarint(out, position, zigzag(Math.round(location.getSpeed() * TENTHS)));
+            }
+            if ((flags & HAS_HEADING) != 0) {
+                position = writeVarint(out, position, zigzag(Math.round(location.getHeading() * TENTHS)));
+            }
+            if ((flags & HAS_DISTANCE) != 0) {
+                position = writeVarint(out, position, zigzag(Math.round(location.getDistance() * TENTHS)));
+            }
+        }
+        return Arrays.copyOf(out, position);
+    }
+
+    /**
+     *
+     * @param message
+     * @return
+     * @throws IllegalArgumentException when the message is not a batch of a
+     * known version or is truncated
+     */
+    public static List<Location> decodeBatch(byte[] message) throws IllegalArgumentException {
+        // version 1 never sets the flags of the fields added since, so both parse alike
+        if (message.length < 2 || (message[0] != VERSION && message[0] != VERSION_1)) {
+            throw new IllegalArgumentException("Not a location batch message");
+        }
+        Reader reader = new Reader(message, 1);
+        int count = (int) reader.varint();
+        List<Location> locations = new ArrayList<>(count);
+        long imei = 0;
+        long timestamp = 0;
+        long lat = 0;
+        long lng = 0;
+        for (int i = 0; i < count; i++) {
+            int flags = reader.next();
+            Location.LocationBuilder builder = Location.builder()
+                    .type((int) unzigzag(reader.varint()));
+            imei += unzigzag(reader.varint());
+            builder.imei(imei);
+            long own = 0;
+            if ((flags & HAS_TIMESTAMP) != 0) {
+                timestamp += unzigzag(reader.varint());
+                builder.timestamp(toLocalDateTime(timestamp));
+                own = timestamp;
+            }
+            if ((flags & HAS_POINT) != 0) {
+                lat += unzigzag(reader.varint());
+                lng += unzigzag(reader.varint());
+                builder.point(Arrays.asList(lat / COORDINATE_SCALE, lng / COORDINATE_SCALE));
+            }
+            if ((flags & HAS_RECEIVED_TIME) != 0) {
+                builder.receivedTime(toLocalDateTime(own + unzigzag(reader.varint())));
+            }
+            if ((flags & BACKFILL) != 0) {
+                builder.backfill(true);
+            }
+            if ((flags & HAS_SPEED) != 0) {
+                builder.speed(unzigzag(reader.varint()) / TENTHS);
+            }
+            if ((flags & HAS_HEADING) != 0) {
+                builder.heading(unzigzag(reader.varint()) / TENTHS);
+            }
+            if ((flags & HAS_DISTANCE) != 0) {
+                builder.distance(unzigzag(reader.varint()) / TENTHS);
+            }
+            locations.add(builder.build());
+        }
+        return locations;
+    }
+
+    private static int flagsOf(Location location) {
+        int flags = 0;
+        if (location.getPoint() != null && location.getPoint().size() >= 2) {
+            flags |= HAS_POINT;
+        }
+        if (location.getTimestamp() != null) {
+            flags |= HAS_TIMESTAMP;
+        }
+        if (location.getSpeed() != null) {
+            flags |= HAS_SPEED;
+        }
+        if (location.getHeading() != null) {
+            flags |= HAS_HEADING;
+        }
+        if (location.getDistance() != null) {
+            flags |= HAS_DISTANCE;
+        }
+        if (location.getReceivedTime() != null) {
+            flags |= HAS_RECEIVED_TIME;
+        }
+        if (Boolean.TRUE.equals(location.getBackfill())) {
+            flags |= BACKFILL;
+        }
+        return flags;
+    }
+
+    private static int toFixed(double degrees) {
+        return (int) Math.round(degrees * COORDINATE_SCALE);
+    }
+
+    // the processor builds timestamps in the system zone, see RequestQueueProcessorEngine
+    private static long toEpochMilli(LocalDateTime timestamp) {
+        return timestamp.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static LocalDateTime toLocalDateTime(long epochMilli) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMilli), ZoneId.systemDefault());
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int writeVarint(byte[] out, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[position++] = (byte) value;
+        return position;
+    }
+
+    private static final class Reader {
+
+        private final byte[] in;
+        private int position;
+
+        private Reader(byte[] in, int position) {
+            this.in = in;
+            this.position = position;
+        }
+
+        private int next() {
+            if (position >= in.length) {
+                throw new IllegalArgumentException("Truncated location batch message");
+            }
+            return in[position++];
+        }
+
+        private long varint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = next();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint in location batch message");
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.connection;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.Topic;
+import org.apache.activemq.command.ActiveMQTopic;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.server.util.Metrics;
+import org.server.util.TimezoneUtil;
+
+/**
+ * Publishes to topics over a pool of sessions on one connection. A sender
+ * borrows an idle session, sends through its single anonymous producer with
+ * the destination given per message, and hands the session back, so nothing
+ * is created per message. At most {@code maxSessions} sessions exist, a
+ * sender only waits while that many sends are in flight. Topics are cached
+ * by name.
+ */
+public final class ActiveMqPublisher {
+
+    private static final Logger ERROR_LOGGER = LogManager.getLogger("ErrorLog");
+
+    private static final LongAdder SENT = Metrics.counter("amq.sent");
+    private static final LongAdder FAILED = Metrics.counter("amq.failed");
+    private static final LongAdder SESSIONS = Metrics.counter("amq.sessions");
+
+    /**
+     * Creates the message to send on the session that sends it.
+     */
+    public interface MessageFactory {
+
+        /**
+         *
+         * @param session
+         * @return
+         * @throws JMSException
+         */
+        Message create(Session session) throws JMSException;
+    }
+
+    private final Connection connection;
+    private final int deliveryMode;
+    private final ConcurrentLinkedQueue<PooledSession> idle = new ConcurrentLinkedQueue<>();
+    // one permit per session that may exist, idle or in use
+    private final Semaphore permits;
+    private final ConcurrentHashMap<String, Topic> topics = new ConcurrentHashMap<>();
+
+    /**
+     *
+     * @param connection a started connection
+     * @param deliveryMode {@link javax.jms.DeliveryMode} of every message
+     * @param maxSessions sessions the pool may open
+     */
+    public ActiveMqPublisher(Connection connection, int deliveryMode, int maxSessions) {
+        this.connection = connection;
+        this.deliveryMode = deliveryMode;
+        this.permits = new Semaphore(Math.max(1, maxSessions));
+    }
+
+    /**
+     *
+     * @param topic
+     * @param message
+     * @throws JMSException
+     */
+    public void send(String topic, String message) throws JMSException {
+        send(topic, session -> session.createTextMessage(message));
+    }
+
+    /**
+     *
+     * @param topic
+     * @param factory
+     * @throws JMSException
+     */
+    public void send(String topic, MessageFactory factory) throws JMSException {
+        permits.acquireUninterruptibly();
+        try {
+            PooledSession pooled = idle.poll();
+            if (pooled == null) {
+                pooled = new PooledSession(connection.createSession(false, Session.AUTO_ACKNOWLEDGE), deliveryMode);
+                SESSIONS.increment();
+            }
+            try {
+                pooled.producer.send(topicOf(topic), factory.create(pooled.session));
+            } catch (JMSException | RuntimeException ex) {
+                // a session that failed once is not trusted again
+                FAILED.increment();
+                pooled.close();
+                throw ex;
+            }
+            SENT.increment();
+            idle.offer(pooled);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Closes the idle sessions, sessions in use are closed with the
+     * connection.
+     */
+    public void close() {
+        PooledSession pooled;
+        while ((pooled = idle.poll()) != null) {
+            pooled.close();
+        }
+    }
+
+    private Topic topicOf(String name) {
+        Topic topic = topics.get(name);
+        if (topic == null) {
+            topic = new ActiveMQTopic(name);
+            topics.putIfAbsent(name, topic);
+        }
+        return topic;
+    }
+
+    private static String getLogMetaInfo() {
+        return TimezoneUtil.nowUtc() + " [ActiveMqPublisher.class]";
+    }
+
+    private static final class PooledSession {
+
+        private final Session session;
+        private final MessageProducer producer;
+
+        private PooledSession(Session session, int deliveryMode) throws JMSException {
+            this.session = session;
+            this.producer = session.createProducer(null);
+            this.producer.setDeliveryMode(deliveryMode);
+        }
+
+        private void close() {
+            try {
+                session.close();
+            } catch (JMSException ex) {
+                ERROR_LOGGER.warn(getLogMetaInfo() + " Unable to close session", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.connection;
+
+import com.mongodb.async.client.MongoClient;
+import com.mongodb.async.client.MongoClients;
+import java.io.IOException;
+import org.server.Context;
+
+/**
+ * Client of the asynchronous mongo driver, shared by every asynchronous
+ * handler. Its callbacks run on the driver's own channel group, so writes
+ * take no thread of the server while they are outstanding.
+ *
+ * @author NULL
+ */
+public class AsyncMongoConnection {
+
+    private static MongoClient MONGO_CLIENT;
+
+    private AsyncMongoConnection() {
+    }
+
+    /**
+     *
+     * @return Returns a singleton instance of the asynchronous mongo client
+     * @throws java.io.IOException
+     */
+    public static synchronized MongoClient getMongoClient() throws IOException {
+        if (null == MONGO_CLIENT) {
+            MONGO_CLIENT = MongoClients.create(Context.getSystemProperties().getDb().getServerAddress());
+        }
+        return MONGO_CLIENT;
+    }
+
+}
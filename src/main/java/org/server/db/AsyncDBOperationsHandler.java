@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.db;
+
+import com.mongodb.async.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.bson.Document;
+import org.server.Context;
+import org.server.connection.AsyncMongoConnection;
+import org.server.dto.Location;
+
+/**
+ * Writes through the asynchronous mongo driver, the calling thread only
+ * encodes the documents and never waits for the server. The same unordered,
+ * acknowledged bulk insert as {@link DBOperationsHandler#insertLocations}.
+ */
+public class AsyncDBOperationsHandler implements AsyncDatabaseHandler {
+
+    private static final InsertManyOptions UNORDERED = new InsertManyOptions().ordered(false);
+
+    private MongoCollection<Document> locationCollection;
+
+    /**
+     *
+     * @return the location collection, resolved once per handler
+     * @throws IOException
+     */
+    private MongoCollection<Document> getLocationCollection() throws IOException {
+        if (null == locationCollection) {
+            locationCollection = AsyncMongoConnection.getMongoClient()
+                    .getDatabase(Context.getSystemProperties().getDb().getName()).getCollection("location");
+        }
+        return locationCollection;
+    }
+
+    /**
+     *
+     * @param locations
+     * @return
+     */
+    @Override
+    public CompletableFuture<Integer> insertLocations(List<Location> locations) {
+        final CompletableFuture<Integer> result = new CompletableFuture<>();
+        if (locations.isEmpty()) {
+            result.complete(0);
+            return result;
+        }
+        final List<Document> documents = new ArrayList<>(locations.size());
+        for (Location location : locations) {
+            documents.add(DBOperationsHandler.toDocument(location));
+        }
+        try {
+            getLocationCollection().insertMany(documents, UNORDERED, (Void ignored, Throwable t) -> {
+                if (t != null) {
+                    result.completeExceptionally(t);
+                } else {
+                    result.complete(documents.size());
+                }
+            });
+        } catch (IOException ex) {
+            result.completeExceptionally(ex);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.db;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.server.dto.Location;
+
+/**
+ * Non-blocking counterpart of {@link DatabaseHandler}, every call returns
+ * immediately and completes once the server acknowledged the write.
+ *
+ * @author NULL
+ */
+public interface AsyncDatabaseHandler {
+
+    /**
+     * Inserts all locations in one unordered bulk write.
+     *
+     * @param locations
+     * @return completes with the number of inserted locations
+     */
+    public CompletableFuture<Integer> insertLocations(List<Location> locations);
+}
@@ -1,159 +1,435 @@
-/*
- * Copyright 2017 Benjamin.C.
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *      http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-package org.server.db;
-
-import org.server.connection.MongoConnection;
-import com.mongodb.BasicDBObject;
-import com.mongodb.MongoClient;
-import com.mongodb.MongoException;
-import com.mongodb.client.MongoCollection;
-import com.mongodb.client.MongoCursor;
-import java.io.IOException;
-import java.time.ZoneId;
-import java.util.Date;
-import java.util.List;
-import java.util.Objects;
-import org.bson.Document;
-import org.server.Context;
-import org.server.dto.Location;
-import org.server.dto.Vehicle;
-
-public class DBOperationsHandler implements DatabaseHandler {
-
-    /**
-     *
-     * @param decodedRequest
-     * @return
-     * @throws IOException
-     * @throws ClassNotFoundException
-     * @throws MongoException
-     */
-    @Override
-    public boolean insertCoodinates(Object decodedRequest) throws
-            IOException,
-            ClassNotFoundException,
-            MongoException {
-        if (Objects.isNull(decodedRequest)) {
-            return Boolean.FALSE;
-        }
-
-        Location data = (Location) decodedRequest;
-        Date timestamp = Date.from(data.getTimestamp().atZone(ZoneId.systemDefault()).toInstant());
-
-        MongoClient mongoClient = MongoConnection.getMongoClient();
-        MongoCollection<Document> locationCollection = mongoClient
-                .getDatabase(Context.getSystemProperties().getDb().getName()).getCollection("location");
-        Document document = new Document()
-                .append("imei", data.getImei())
-                .append("point", data.getPoint())
-                .append("heading", data.getHeading())
-                .append("speed", data.getSpeed())
-                .append("timestamp", timestamp)
-                .append("consecutive_point_distance", data.getDistance());
-//        System.out.println(document.toJson());
-        locationCollection.insertOne(document);
-        return true;
-    }
-
-    /**
-     *
-     * @param imei
-     * @return
-     * @throws IOException
-     * @throws java.lang.ClassNotFoundException
-     * @throws MongoException
-     */
-    @Override
-    public double[] findLastLocation(long imei) throws
-            IOException,
-            ClassNotFoundException,
-            MongoException {
-        double[] d = new double[2];
-        MongoClient mongoClient = MongoConnection.getMongoClient();
-        MongoCollection<Document> locationCollection = mongoClient
-                .getDatabase(Context.getSystemProperties().getDb().getName()).getCollection("location");
-        MongoCursor<Document> doc = locationCollection
-                .find(new BasicDBObject().append("imei", imei))
-                .sort(new BasicDBObject().append("_id", -1))
-                .limit(1)
-                .iterator();
-        if (doc.hasNext()) {
-            List<Double> point = (List<Double>) doc.next().get("point");
-            d[0] = point.get(0);
-            d[1] = point.get(1);
-        } else {
-            d[0] = 0.0;
-            d[1] = 0.0;
-        }
-
-        return d;
-    }
-
-    /**
-     *
-     * @param imei
-     * @return
-     * @throws IOException
-     * @throws MongoException
-     * @throws java.lang.ClassNotFoundException
-     */
-    @Override
-    public Vehicle getVehicle(long imei) throws
-            IOException,
-            ClassNotFoundException,
-            MongoException {
-        MongoClient mongoClient = MongoConnection.getMongoClient();
-        MongoCollection<Document> locationCollection = mongoClient
-                .getDatabase(Context.getSystemProperties().getDb().getName()).getCollection("user");
-        MongoCursor<Document> doc = locationCollection
-                .find(new BasicDBObject().append("vehicles.imei", imei))
-                .iterator();
-        Vehicle vehicle_ = null;
-
-        while (doc.hasNext()) {
-            Document next = doc.next();
-            List<Document> vehicles = (List<Document>) next.get("vehicles");
-            for (int i = 0; i < vehicles.size(); i++) {
-                Document vehicle = vehicles.get(i);
-                if ((vehicle.getLong("imei") == imei) && vehicle.getBoolean("active")) {
-                    vehicle_ = new Vehicle(
-                            next.getString("username"),
-                            vehicle.getLong("imei"),
-                            vehicle.getString("key"),
-                            vehicle.getString("trackerSimNumber"),
-                            vehicle.getString("numberPlate")
-                    );
-                }
-            }
-        }
-
-        return vehicle_;
-    }
-
-    /**
-     *
-     * @return @throws IOException
-     * @throws ClassNotFoundException
-     * @throws MongoException
-     */
-    @Override
-    public boolean retryDatabaseConnectivity() throws
-            IOException,
-            ClassNotFoundException,
-            MongoException {
-        return true;
-    }
-}
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.db;
+
+import org.server.connection.MongoConnection;
+import com.mongodb.BasicDBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.Sorts;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.server.Context;
+import org.server.dto.Location;
+import org.server.dto.LocationRecord;
+import org.server.dto.Vehicle;
+import org.server.protocol.Tk103ProtocolDecoder;
+
+public class DBOperationsHandler implements DatabaseHandler {
+
+    private static final InsertManyOptions UNORDERED = new InsertManyOptions().ordered(false);
+
+    private MongoCollection<Document> locationCollection;
+
+    /**
+     *
+     * @return the location collection, resolved once per handler
+     * @throws IOException
+     */
+    private MongoCollection<Document> getLocationCollection() throws IOException {
+        if (null == locationCollection) {
+            locationCollection = MongoConnection.getMongoClient()
+                    .getDatabase(Context.getSystemProperties().getDb().getName()).getCollection("location");
+        }
+        return locationCollection;
+    }
+
+    /**
+     * Creates the location index the read queries rely on, unless it exists.
+     * {imei: 1, timestamp: -1, _id: -1} serves the newest first grouping of
+     * {@link #findLastLocations} and, walked backwards, the keyset order of
+     * {@link #findTrack}.
+     *
+     * @throws IOException
+     * @throws MongoException
+     */
+    public void createIndexes() throws IOException, MongoException {
+        getLocationCollection().createIndex(
+                Indexes.compoundIndex(Indexes.ascending("imei"), Indexes.descending("timestamp", "_id")),
+                new IndexOptions().background(true)
+        );
+    }
+
+    /**
+     *
+     * @param data
+     * @return
+     */
+    static Document toDocument(Location data) {
+        Date timestamp = Date.from(data.getTimestamp().atZone(ZoneId.systemDefault()).toInstant());
+        Document document = new Document()
+                .append("imei", data.getImei())
+                .append("type", data.getType())
+                .append("point", data.getPoint())
+                .append("heading", data.getHeading())
+                .append("speed", data.getSpeed())
+                .append("timestamp", timestamp)
+                .append("consecutive_point_distance", data.getDistance());
+        if (data.getReceivedTime() != null) {
+            document.append("received_timestamp", Date.from(data.getReceivedTime().atZone(ZoneId.systemDefault()).toInstant()));
+        }
+        if (Boolean.TRUE.equals(data.getBackfill())) {
+            document.append("backfill", true);
+        }
+        // logged locations keep their id, so a replayed or retried insert is a duplicate key
+        if (data.getId() != null) {
+            document.append("_id", new ObjectId(data.getId()));
+        }
+        return document;
+    }
+
+    /**
+     *
+     * @param decodedRequest
+     * @return
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws MongoException
+     */
+    @Override
+    public boolean insertCoodinates(Object decodedRequest) throws
+            IOException,
+            ClassNotFoundException,
+            MongoException {
+        if (Objects.isNull(decodedRequest)) {
+            return Boolean.FALSE;
+        }
+
+        getLocationCollection().insertOne(toDocument((Location) decodedRequest));
+        return true;
+    }
+
+    /**
+     *
+     * @param locations
+     * @return
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws MongoException
+     */
+    @Override
+    public int insertLocations(List<Location> locations) throws
+            IOException,
+            ClassNotFoundException,
+            MongoException {
+        if (locations.isEmpty()) {
+            return 0;
+        }
+        List<Document> documents = new ArrayList<>(locations.size());
+        for (Location location : locations) {
+            documents.add(toDocument(location));
+        }
+        getLocationCollection().insertMany(documents, UNORDERED);
+        return documents.size();
+    }
+
+    /**
+     *
+     * @param imei
+     * @return
+     * @throws IOException
+     * @throws java.lang.ClassNotFoundException
+     * @throws MongoException
+     */
+    @Override
+    public double[] findLastLocation(long imei) throws
+            IOException,
+            ClassNotFoundException,
+            MongoException {
+        double[] d = new double[2];
+        MongoClient mongoClient = MongoConnection.getMongoClient();
+        MongoCollection<Document> locationCollection = mongoClient
+                .getDatabase(Context.getSystemProperties().getDb().getName()).getCollection("location");
+        MongoCursor<Document> doc = locationCollection
+                .find(new BasicDBObject().append("imei", imei))
+                .sort(new BasicDBObject().append("_id", -1))
+                .limit(1)
+                .iterator();
+        List<Double> point = doc.hasNext() ? toPoint(doc.next()) : null;
+        if (point != null) {
+            d[0] = point.get(0);
+            d[1] = point.get(1);
+        } else {
+            d[0] = 0.0;
+            d[1] = 0.0;
+        }
+
+        return d;
+    }
+
+    /**
+     *
+     * @param since
+     * @param consumer
+     * @return
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws MongoException
+     */
+    @Override
+    public int findLastLocations(long since, Consumer<LocationRecord> consumer) throws
+            IOException,
+            ClassNotFoundException,
+            MongoException {
+        LocationRecord record = new LocationRecord();
+        int count = 0;
+        try (MongoCursor<Document> cursor = getLocationCollection().aggregate(Arrays.asList(
+                // only fixes are stored, documents written before the type was stored have none
+                Aggregates.match(Filters.and(
+                        Filters.gte("timestamp", new Date(since)),
+                        Filters.or(Filters.eq("type", Tk103ProtocolDecoder.LOCATION_OK), Filters.exists("type", false))
+                )),
+                Aggregates.sort(Sorts.orderBy(Sorts.ascending("imei"), Sorts.descending("timestamp"))),
+                Aggregates.group(
+                        "$imei",
+                        Accumulators.first("point", "$point"),
+                        Accumulators.first("timestamp", "$timestamp"),
+                        Accumulators.first("speed", "$speed"),
+                        Accumulators.first("heading", "$heading")
+                )
+        )).allowDiskUse(true).batchSize(1000).iterator()) {
+            while (cursor.hasNext()) {
+                Document doc = cursor.next();
+                List<Double> point = toPoint(doc);
+                if (point == null) {
+                    continue;
+                }
+                record.setImei(((Number) doc.get("_id")).longValue());
+                record.setLat(point.get(0));
+                record.setLng(point.get(1));
+                record.setTimestamp(doc.getDate("timestamp").getTime());
+                record.setSpeed(valueOf(doc.get("speed")));
+                record.setHeading(valueOf(doc.get("heading")));
+                consumer.accept(record);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     *
+     * @param imei
+     * @param from
+     * @param to
+     * @param afterId
+     * @param limit
+     * @param batchSize
+     * @param consumer
+     * @return
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws MongoException
+     */
+    @Override
+    public int findTrack(long imei, long from, long to, String afterId, int limit, int batchSize, Consumer<Location> consumer) throws
+            IOException,
+            ClassNotFoundException,
+            MongoException {
+        // keyset on (timestamp, _id), locations sharing the timestamp of the page end are not skipped
+        Bson start = afterId == null
+                ? Filters.gte("timestamp", new Date(from))
+                : Filters.or(
+                        Filters.gt("timestamp", new Date(from)),
+                        Filters.and(Filters.eq("timestamp", new Date(from)), Filters.gt("_id", new ObjectId(afterId)))
+                );
+        int count = 0;
+        try (MongoCursor<Document> cursor = getLocationCollection()
+                .find(Filters.and(
+                        Filters.eq("imei", imei),
+                        start,
+                        Filters.lt("timestamp", new Date(to))
+                ))
+                .sort(Sorts.ascending("timestamp", "_id"))
+                .limit(limit)
+                .batchSize(batchSize)
+                .iterator()) {
+            while (cursor.hasNext()) {
+                Document doc = cursor.next();
+                Date received = doc.getDate("received_timestamp");
+                consumer.accept(Location.builder()
+                        .imei(imei)
+                        .point(toPoint(doc))
+                        .speed(doc.getDouble("speed"))
+                        .heading(doc.getDouble("heading"))
+                        .distance(doc.getDouble("consecutive_point_distance"))
+                        .timestamp(LocalDateTime.ofInstant(doc.getDate("timestamp").toInstant(), ZoneId.systemDefault()))
+                        .receivedTime(received != null ? LocalDateTime.ofInstant(received.toInstant(), ZoneId.systemDefault()) : null)
+                        .backfill(doc.getBoolean("backfill"))
+                        .id(doc.getObjectId("_id").toHexString())
+                        .build());
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static double valueOf(Object value) {
+        return value instanceof Number ? ((Number) value).doubleValue() : 0;
+    }
+
+    /**
+     *
+     * @param imei
+     * @return
+     * @throws IOException
+     * @throws MongoException
+     * @throws java.lang.ClassNotFoundException
+     */
+    @Override
+    public Vehicle getVehicle(long imei) throws
+            IOException,
+            ClassNotFoundException,
+            MongoException {
+        MongoClient mongoClient = MongoConnection.getMongoClient();
+        MongoCollection<Document> locationCollection = mongoClient
+                .getDatabase(Context.getSystemProperties().getDb().getName()).getCollection("user");
+        MongoCursor<Document> doc = locationCollection
+                .find(new BasicDBObject().append("vehicles.imei", imei))
+                .iterator();
+        Vehicle vehicle_ = null;
+
+        while (doc.hasNext()) {
+            Document next = doc.next();
+            List<Document> vehicles = toVehicleDocuments(next);
+            for (int i = 0; i < vehicles.size(); i++) {
+                Document vehicle = vehicles.get(i);
+                if ((vehicle.getLong("imei") == imei) && vehicle.getBoolean("active")) {
+                    vehicle_ = toVehicle(next.getString("username"), vehicle);
+                }
+            }
+        }
+
+        return vehicle_;
+    }
+
+    /**
+     *
+     * @param consumer
+     * @return
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws MongoException
+     */
+    @Override
+    public int findVehicles(Consumer<Vehicle> consumer) throws
+            IOException,
+            ClassNotFoundException,
+            MongoException {
+        MongoClient mongoClient = MongoConnection.getMongoClient();
+        MongoCollection<Document> userCollection = mongoClient
+                .getDatabase(Context.getSystemProperties().getDb().getName()).getCollection("user");
+        int count = 0;
+        try (MongoCursor<Document> cursor = userCollection
+                .find(new BasicDBObject().append("vehicles.active", true))
+                .projection(new BasicDBObject().append("username", 1).append("vehicles", 1))
+                .batchSize(1000)
+                .iterator()) {
+            while (cursor.hasNext()) {
+                Document next = cursor.next();
+                for (Document vehicle : toVehicleDocuments(next)) {
+                    if (Boolean.TRUE.equals(vehicle.getBoolean("active")) && vehicle.get("imei") != null) {
+                        consumer.accept(toVehicle(next.getString("username"), vehicle));
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     *
+     * @param doc location document
+     * @return the point as lat, lng, or null when it has none
+     */
+    private static List<Double> toPoint(Document doc) {
+        List<?> point = doc.get("point", List.class);
+        if (point == null || point.size() < 2) {
+            return null;
+        }
+        return Arrays.asList(((Number) point.get(0)).doubleValue(), ((Number) point.get(1)).doubleValue());
+    }
+
+    /**
+     *
+     * @param user user document
+     * @return the embedded vehicle documents, empty when it has none
+     */
+    private static List<Document> toVehicleDocuments(Document user) {
+        List<?> vehicles = user.get("vehicles", List.class);
+        List<Document> documents = new ArrayList<>();
+        if (vehicles != null) {
+            for (Object vehicle : vehicles) {
+                if (vehicle instanceof Document) {
+                    documents.add((Document) vehicle);
+                }
+            }
+        }
+        return documents;
+    }
+
+    /**
+     *
+     * @param username
+     * @param vehicle embedded vehicle document
+     * @return
+     */
+    private static Vehicle toVehicle(String username, Document vehicle) {
+        return Vehicle.builder()
+                .user(username)
+                .imei(vehicle.getLong("imei"))
+                .key(vehicle.getString("key"))
+                .trackerSimNumber(vehicle.getString("trackerSimNumber"))
+                .numberPlate(vehicle.getString("numberPlate"))
+                .offlineThreshold(vehicle.get("offlineThreshold") instanceof Number
+                        ? ((Number) vehicle.get("offlineThreshold")).longValue()
+                        : null)
+                .build();
+    }
+
+    /**
+     *
+     * @return @throws IOException
+     * @throws ClassNotFoundException
+     * @throws MongoException
+     */
+    @Override
+    public boolean retryDatabaseConnectivity() throws
+            IOException,
+            ClassNotFoundException,
+            MongoException {
+        return true;
+    }
+}
@@ -1,77 +1,148 @@
-/*
- * Copyright 2018 NULL.
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *      http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-package org.server.db;
-
-import com.mongodb.MongoException;
-import java.io.IOException;
-import org.server.dto.Vehicle;
-
-/**
- *
- * @author NULL
- */
-public interface DatabaseHandler {
-
-    /**
-     *
-     * @param decodedRequest
-     * @return
-     * @throws IOException
-     * @throws ClassNotFoundException
-     * @throws MongoException
-     */
-    public boolean insertCoodinates(Object decodedRequest) throws
-            IOException,
-            ClassNotFoundException,
-            MongoException;
-
-    /**
-     *
-     * @param imei
-     * @return
-     * @throws IOException
-     * @throws ClassNotFoundException
-     * @throws MongoException
-     */
-    public double[] findLastLocation(long imei) throws
-            IOException,
-            ClassNotFoundException,
-            MongoException;
-
-    /**
-     *
-     * @param imei
-     * @return
-     * @throws IOException
-     * @throws ClassNotFoundException
-     * @throws MongoException
-     */
-    public Vehicle getVehicle(long imei) throws
-            IOException,
-            ClassNotFoundException,
-            MongoException;
-
-    /**
-     *
-     * @return @throws IOException
-     * @throws ClassNotFoundException
-     * @throws MongoException
-     */
-    public boolean retryDatabaseConnectivity() throws
-            IOException,
-            ClassNotFoundException,
-            MongoException;
-}
+/*
+ * Copyright 2018 NULL.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.db;
+
+import com.mongodb.MongoException;
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
+import org.server.dto.Location;
+import org.server.dto.LocationRecord;
+import org.server.dto.Vehicle;
+
+/**
+ *
+ * @author NULL
+ */
+public interface DatabaseHandler {
+
+    /**
+     *
+     * @param decodedRequest
+     * @return
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws MongoException
+     */
+    public boolean insertCoodinates(Object decodedRequest) throws
+            IOException,
+            ClassNotFoundException,
+            MongoException;
+
+    /**
+     * Inserts all locations in one unordered bulk write.
+     *
+     * @param locations
+     * @return number of inserted locations
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws MongoException
+     */
+    public int insertLocations(List<Location> locations) throws
+            IOException,
+            ClassNotFoundException,
+            MongoException;
+
+    /**
+     *
+     * @param imei
+     * @return
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws MongoException
+     */
+    public double[] findLastLocation(long imei) throws
+            IOException,
+            ClassNotFoundException,
+            MongoException;
+
+    /**
+     * Streams the latest stored location of every imei that reported since
+     * {@code since}, using one aggregation instead of a query per imei.
+     *
+     * @param since epoch millis
+     * @param consumer receives a reused record per imei
+     * @return number of imeis
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws MongoException
+     */
+    public int findLastLocations(long since, Consumer<LocationRecord> consumer) throws
+            IOException,
+            ClassNotFoundException,
+            MongoException;
+
+    /**
+     * Streams the stored locations of {@code imei} in timestamp order, ties
+     * in id order, so a page can be continued after its last location. The
+     * cursor fetches {@code batchSize} documents per round trip.
+     *
+     * @param imei
+     * @param from epoch millis, inclusive
+     * @param to epoch millis, exclusive
+     * @param afterId id of the last location of the previous page, whose
+     * timestamp is {@code from}, or null for the first page
+     * @param limit maximum number of locations
+     * @param batchSize
+     * @param consumer
+     * @return number of locations
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws MongoException
+     */
+    public int findTrack(long imei, long from, long to, String afterId, int limit, int batchSize, Consumer<Location> consumer) throws
+            IOException,
+            ClassNotFoundException,
+            MongoException;
+
+    /**
+     *
+     * @param imei
+     * @return
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws MongoException
+     */
+    public Vehicle getVehicle(long imei) throws
+            IOException,
+            ClassNotFoundException,
+            MongoException;
+
+    /**
+     * Streams every active vehicle in one pass over the user collection.
+     *
+     * @param consumer
+     * @return number of vehicles
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws MongoException
+     */
+    public int findVehicles(Consumer<Vehicle> consumer) throws
+            IOException,
+            ClassNotFoundException,
+            MongoException;
+
+    /**
+     *
+     * @return @throws IOException
+     * @throws ClassNotFoundException
+     * @throws MongoException
+     */
+    public boolean retryDatabaseConnectivity() throws
+            IOException,
+            ClassNotFoundException,
+            MongoException;
+}
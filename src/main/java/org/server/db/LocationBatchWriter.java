@@ -0,0 +1,251 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.db;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.server.dto.Location;
+import org.server.dto.properties.DatabaseProperties;
+import org.server.util.Metrics;
+import org.server.util.TimezoneUtil;
+
+/**
+ * Write-behind batcher for location inserts. Locations are collected by the
+ * owning processor thread and flushed as one unordered bulk insert once the
+ * batch is full or has been open for {@code flushInterval} ms. Writes are
+ * handed to an {@link AsyncDatabaseHandler} and completed through callbacks,
+ * so no thread sits waiting on the server. At most {@code maxInFlight}
+ * batches are outstanding; when the window is full the processor thread
+ * waits, which in turn lets the ingest ring fill up and the overload policy
+ * take over.
+ * <p>
+ * With a {@link WriteAheadLog} every location is logged before it joins a
+ * batch; acknowledged batches release their log records and batches that
+ * finally fail keep them for replay.
+ */
+public final class LocationBatchWriter {
+
+    private static final Logger ERROR_LOGGER = LogManager.getLogger("ErrorLog");
+
+    private static final LongAdder WRITTEN = Metrics.counter("db.location.written");
+    private static final LongAdder BATCHES = Metrics.counter("db.location.batches");
+    private static final LongAdder RETRIES = Metrics.counter("db.location.retries");
+    private static final LongAdder FAILED = Metrics.counter("db.location.failed");
+    private static final LongAdder ACK_MILLIS = Metrics.counter("db.location.ack_millis");
+
+    // only delays retries, the writes themselves never run on it
+    private static final ScheduledExecutorService RETRY_SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "locationBatchWriter-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AsyncDatabaseHandler databaseHandler;
+    private final int batchSize;
+    private final long flushInterval;
+    private final int maxRetries;
+    private final long retryBackoff;
+    private final Semaphore inFlight;
+    private final Consumer<Throwable> onFailure;
+    private final WriteAheadLog wal;
+    private List<Location> batch;
+    // log records of the open batch per segment id
+    private Map<Long, Integer> batchSegments;
+    private long batchOpened;
+
+    /**
+     *
+     * @param databaseHandler
+     * @param db
+     * @param wal may be null to write without a log
+     * @param onFailure receives the cause of a batch that could not be
+     * written after all retries
+     */
+    public LocationBatchWriter(
+            AsyncDatabaseHandler databaseHandler,
+            DatabaseProperties db,
+            WriteAheadLog wal,
+            Consumer<Throwable> onFailure
+    ) {
+        this.databaseHandler = databaseHandler;
+        this.batchSize = db.getBatchSize();
+        this.flushInterval = db.getFlushInterval();
+        this.maxRetries = db.getMaxRetries();
+        this.retryBackoff = db.getRetryBackoff();
+        this.inFlight = new Semaphore(db.getMaxInFlight());
+        this.onFailure = onFailure;
+        this.wal = wal;
+        this.batch = new ArrayList<>(batchSize);
+        this.batchSegments = new LinkedHashMap<>();
+    }
+
+    /**
+     *
+     * @param location
+     * @throws InterruptedException
+     * @throws IOException when the location could not be logged
+     */
+    public void add(Location location) throws InterruptedException, IOException {
+        if (wal != null) {
+            batchSegments.merge(wal.append(location), 1, Integer::sum);
+        }
+        if (batch.isEmpty()) {
+            batchOpened = System.currentTimeMillis();
+        }
+        batch.add(location);
+        if (batch.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Flushes the open batch when it is older than the flush interval.
+     *
+     * @throws InterruptedException
+     */
+    public void flushIfDue() throws InterruptedException {
+        if (!batch.isEmpty() && System.currentTimeMillis() - batchOpened >= flushInterval) {
+            flush();
+        }
+    }
+
+    /**
+     *
+     * @throws InterruptedException
+     */
+    public void flush() throws InterruptedException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        final List<Location> full = batch;
+        final Map<Long, Integer> segments = batchSegments;
+        batch = new ArrayList<>(batchSize);
+        batchSegments = new LinkedHashMap<>();
+        inFlight.acquire();
+        write(segments, full, 0);
+    }
+
+    /**
+     * Issues one attempt, the completion callback either finishes the batch
+     * or schedules the next attempt. The in-flight permit is held until the
+     * batch is finished.
+     *
+     * @param segments log records of the batch
+     * @param pending locations still to be written
+     * @param attempt
+     */
+    private void write(Map<Long, Integer> segments, List<Location> pending, int attempt) {
+        final long started = System.currentTimeMillis();
+        try {
+            databaseHandler.insertLocations(pending).whenComplete((written, t) -> {
+                ACK_MILLIS.add(System.currentTimeMillis() - started);
+                if (t == null) {
+                    WRITTEN.add(written);
+                    BATCHES.increment();
+                    complete(segments, true);
+                } else {
+                    onError(segments, pending, attempt, t instanceof CompletionException && t.getCause() != null ? t.getCause() : t);
+                }
+            });
+        } catch (RuntimeException ex) {
+            onError(segments, pending, attempt, ex);
+        }
+    }
+
+    /**
+     *
+     * @param segments
+     * @param pending
+     * @param attempt
+     * @param cause
+     */
+    private void onError(Map<Long, Integer> segments, List<Location> pending, int attempt, Throwable cause) {
+        List<Location> retry = pending;
+        if (cause instanceof MongoBulkWriteException) {
+            MongoBulkWriteException ex = (MongoBulkWriteException) cause;
+            // unordered: everything not listed was written
+            WRITTEN.add(pending.size() - ex.getWriteErrors().size());
+            retry = retryable(pending, ex);
+            if (retry.isEmpty()) {
+                BATCHES.increment();
+                complete(segments, true);
+                return;
+            }
+        }
+        if (attempt >= maxRetries) {
+            FAILED.add(retry.size());
+            ERROR_LOGGER.error(getLogMetaInfo() + (wal == null ? " Dropping " : " Leaving for log replay ") + retry.size() + " locations after " + maxRetries + " retries", cause);
+            complete(segments, false);
+            onFailure.accept(cause);
+            return;
+        }
+        RETRIES.increment();
+        final List<Location> next = retry;
+        RETRY_SCHEDULER.schedule(() -> write(segments, next, attempt + 1), retryBackoff * (attempt + 1), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     *
+     * @param segments
+     * @param stored false when part of the batch was given up on
+     */
+    private void complete(Map<Long, Integer> segments, boolean stored) {
+        if (wal != null) {
+            if (stored) {
+                wal.release(segments);
+            } else {
+                wal.retain(segments);
+            }
+        }
+        inFlight.release();
+    }
+
+    /**
+     * Duplicate keys are already stored, anything else is worth another try.
+     *
+     * @param locations
+     * @param ex
+     * @return
+     */
+    private static List<Location> retryable(List<Location> locations, MongoBulkWriteException ex) {
+        List<Location> retry = new ArrayList<>(ex.getWriteErrors().size());
+        for (BulkWriteError error : ex.getWriteErrors()) {
+            if (ErrorCategory.fromErrorCode(error.getCode()) != ErrorCategory.DUPLICATE_KEY) {
+                retry.add(locations.get(error.getIndex()));
+            }
+        }
+        return retry;
+    }
+
+    private static String getLogMetaInfo() {
+        return TimezoneUtil.nowUtc() + " [LocationBatchWriter.class]";
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.db;
+
+import com.mongodb.MongoException;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.server.dto.Vehicle;
+import org.server.util.Metrics;
+import org.server.util.TimezoneUtil;
+
+/**
+ * In-memory imei to {@link Vehicle} cache in front of the user collection.
+ * All active vehicles are bulk read into a map that is replaced as a whole on
+ * every timer tick and read without locking, so lookups normally never reach
+ * the database. A miss falls back to a single query; its answer is kept in a
+ * separate cache of at most {@code maxSize} entries, least recently used
+ * first out. Vehicles found that way are dropped on the next reload, which
+ * covers them, while imeis without an active vehicle are remembered for
+ * {@code missTtl} ms regardless of reloads. The bulk read is indexed by
+ * vehicle key as well, which web clients present as their access token.
+ */
+public final class VehicleRegistry extends TimerTask {
+
+    private static final Logger ERROR_LOGGER = LogManager.getLogger("ErrorLog");
+    private static final Logger DEBUG_LOGGER = LogManager.getLogger("DebugLog");
+
+    private static final LongAdder HITS = Metrics.counter("registry.vehicle.hits");
+    private static final LongAdder MISSES = Metrics.counter("registry.vehicle.misses");
+    private static final LongAdder EVICTIONS = Metrics.counter("registry.vehicle.evictions");
+    private static final LongAdder RELOADS = Metrics.counter("registry.vehicle.reloads");
+
+    private final DatabaseHandler databaseHandler;
+    private final long missTtl;
+    // active vehicles of the last bulk read, never modified once published
+    private volatile Map<Long, Vehicle> loaded = Collections.emptyMap();
+    private volatile Map<String, Vehicle> loadedKeys = Collections.emptyMap();
+    // answers of single queries since, guarded by itself
+    private final LookupCache lookups;
+
+    private static final class Lookup {
+
+        // null when the imei has no active vehicle
+        private final Vehicle vehicle;
+        private final long expires;
+
+        private Lookup(Vehicle vehicle, long expires) {
+            this.vehicle = vehicle;
+            this.expires = expires;
+        }
+    }
+
+    private static final class LookupCache extends LinkedHashMap<Long, Lookup> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        private LookupCache(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Lookup> eldest) {
+            if (size() > maxSize) {
+                EVICTIONS.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     *
+     * @param databaseHandler
+     * @param maxSize maximum number of single query answers kept
+     * @param missTtl ms an imei without an active vehicle is remembered
+     */
+    public VehicleRegistry(DatabaseHandler databaseHandler, int maxSize, long missTtl) {
+        this.databaseHandler = databaseHandler;
+        this.missTtl = missTtl;
+        this.lookups = new LookupCache(maxSize);
+    }
+
+    @Override
+    public void run() {
+        try {
+            reload();
+        } catch (IOException | ClassNotFoundException | MongoException ex) {
+            // the previous content stays in use
+            ERROR_LOGGER.error(getLogMetaInfo() + " Vehicle reload failed", ex);
+        }
+    }
+
+    /**
+     * Replaces the content with a fresh bulk read of all active vehicles.
+     *
+     * @return number of cached vehicles
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws MongoException
+     */
+    public int reload() throws IOException, ClassNotFoundException, MongoException {
+        long started = System.currentTimeMillis();
+        Map<Long, Vehicle> fresh = new HashMap<>();
+        Map<String, Vehicle> freshKeys = new HashMap<>();
+        databaseHandler.findVehicles(vehicle -> {
+            fresh.put(vehicle.getImei(), vehicle);
+            if (vehicle.getKey() != null) {
+                freshKeys.put(vehicle.getKey(), vehicle);
+            }
+        });
+        loaded = fresh;
+        loadedKeys = freshKeys;
+        synchronized (lookups) {
+            lookups.values().removeIf(lookup -> lookup.vehicle != null);
+        }
+        RELOADS.increment();
+        DEBUG_LOGGER.debug(getLogMetaInfo() + " Loaded " + fresh.size() + " vehicles in " + (System.currentTimeMillis() - started) + " ms");
+        return fresh.size();
+    }
+
+    /**
+     *
+     * @param imei
+     * @return the active vehicle of the imei, or null
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws MongoException
+     */
+    public Vehicle getVehicle(long imei) throws IOException, ClassNotFoundException, MongoException {
+        Vehicle vehicle = loaded.get(imei);
+        if (vehicle != null) {
+            HITS.increment();
+            return vehicle;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (lookups) {
+            Lookup lookup = lookups.get(imei);
+            if (lookup != null && (lookup.vehicle != null || lookup.expires > now)) {
+                HITS.increment();
+                return lookup.vehicle;
+            }
+        }
+        MISSES.increment();
+        vehicle = databaseHandler.getVehicle(imei);
+        synchronized (lookups) {
+            lookups.put(imei, new Lookup(vehicle, now + missTtl));
+        }
+        return vehicle;
+    }
+
+    /**
+     * Lock-free lookup in the last bulk read only, never queries the
+     * database. Vehicles activated since are found after the next reload.
+     *
+     * @param imei
+     * @return the active vehicle of the imei, or null
+     */
+    public Vehicle getLoadedVehicle(long imei) {
+        return loaded.get(imei);
+    }
+
+    /**
+     * Lock-free lookup in the last bulk read only, never queries the
+     * database.
+     *
+     * @param key
+     * @return the active vehicle with the key, or null
+     */
+    public Vehicle getLoadedVehicleByKey(String key) {
+        return key == null ? null : loadedKeys.get(key);
+    }
+
+    /**
+     *
+     * @return
+     */
+    public int size() {
+        synchronized (lookups) {
+            return loaded.size() + lookups.size();
+        }
+    }
+
+    private static String getLogMetaInfo() {
+        return TimezoneUtil.nowUtc() + " [VehicleRegistry.class]";
+    }
+}
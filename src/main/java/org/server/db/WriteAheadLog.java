@@ -0,0 +1,551 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.db;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.bson.types.ObjectId;
+import org.server.dto.Location;
+import org.server.util.Metrics;
+import org.server.util.TimezoneUtil;
+
+/**
+ * Append-only log of every location handed to the database, kept in
+ * memory-mapped, pre-allocated segment files of one processor shard.
+ * <p>
+ * Records are fixed width and carry a CRC32, so a torn tail left by a crash
+ * simply ends the segment on replay. A record keeps every stored field,
+ * including whether distance and received time are set and the backfill
+ * flag. Segments start with a version header; segments of the first format,
+ * whose header is just the checkpoint, are still replayed. {@link #sync()} forces the active
+ * segment at most once per {@code syncInterval}, which commits every record
+ * appended since the last force in one go. A segment is deleted once it is
+ * sealed and every record in it has been acknowledged by the database.
+ * <p>
+ * Segments left over from a previous run, and segments holding records whose
+ * batch finally failed, are replayed by {@link #recover(DatabaseHandler, int)}.
+ * The segment header holds the number of leading records known to be stored,
+ * those are skipped on replay. Records behind that checkpoint may already be
+ * stored, or still be in flight, so every location gets a database id derived
+ * from its imei, device time and position in the log when it is appended; a
+ * replay writes the same ids again and duplicate keys count as stored.
+ * <p>
+ * {@link #append(Location)} and {@link #sync()} must only be called from the
+ * owning processor thread; release, retain and recover are thread-safe.
+ */
+public final class WriteAheadLog {
+
+    private static final Logger ERROR_LOGGER = LogManager.getLogger("ErrorLog");
+    private static final Logger DEBUG_LOGGER = LogManager.getLogger("DebugLog");
+
+    private static final LongAdder APPENDED = Metrics.counter("wal.appended");
+    private static final LongAdder SYNCS = Metrics.counter("wal.syncs");
+    private static final LongAdder SEGMENTS_DELETED = Metrics.counter("wal.segments.deleted");
+    private static final LongAdder REPLAYED = Metrics.counter("wal.replayed");
+
+    private static final String SUFFIX = ".wal";
+    private static final int VERSION_MAGIC = 0x57414C32; //WAL2
+    //magic, unused, checkpoint
+    private static final int HEADER_SIZE = 4 + 4 + 8;
+    private static final int CHECKPOINT_OFFSET = 8;
+    //crc, type, flags, imei, timestamp, received time, lat, lng, speed, heading, distance
+    private static final int RECORD_SIZE = 4 + 4 + 4 + 8 + 8 + 8 + 8 * 5;
+    private static final int HAS_DISTANCE = 1;
+    private static final int HAS_RECEIVED_TIME = 1 << 1;
+    private static final int BACKFILL = 1 << 2;
+    //segments without the version header: checkpoint, records without flags and received time
+    private static final int LEGACY_HEADER_SIZE = 8;
+    private static final int LEGACY_RECORD_SIZE = 4 + 4 + 8 + 8 + 8 * 5;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long syncInterval;
+    private final CRC32 crc = new CRC32();
+    // segments of this run that are sealed but not yet fully acknowledged
+    private final Map<Long, Segment> sealed = new ConcurrentSkipListMap<>();
+    // segment ids waiting for replay, either from an earlier run or retained after a failure
+    private final Map<Long, Boolean> recoverable = new ConcurrentSkipListMap<>();
+    private volatile Segment active;
+    private long lastSync;
+    private boolean dirty;
+
+    /**
+     * Opens the log in {@code directory}. Segments found there belong to a
+     * previous run and are only replayed, new records go to a fresh segment.
+     *
+     * @param directory
+     * @param segmentSize bytes per segment file
+     * @param syncInterval minimum ms between two forces, 0 forces on every
+     * sync
+     * @throws IOException
+     */
+    public WriteAheadLog(Path directory, int segmentSize, long syncInterval) throws IOException {
+        this(directory, segmentSize, syncInterval, true);
+    }
+
+    /**
+     * Opens the segments a previous run left in {@code directory} for replay
+     * only, e.g. of a shard that no longer exists. Nothing can be appended and
+     * the directory is removed once every segment was replayed.
+     *
+     * @param directory
+     * @return
+     * @throws IOException
+     */
+    public static WriteAheadLog openForReplay(Path directory) throws IOException {
+        return new WriteAheadLog(directory, HEADER_SIZE + RECORD_SIZE, 0, false);
+    }
+
+    private WriteAheadLog(Path directory, int segmentSize, long syncInterval, boolean appendable) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = HEADER_SIZE + Math.max(1, (segmentSize - HEADER_SIZE) / RECORD_SIZE) * RECORD_SIZE;
+        this.syncInterval = syncInterval;
+        long next = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                long id = segmentId(file);
+                recoverable.put(id, Boolean.TRUE);
+                next = Math.max(next, id + 1);
+            }
+        }
+        if (!recoverable.isEmpty()) {
+            DEBUG_LOGGER.debug(getLogMetaInfo() + " " + recoverable.size() + " segments to replay in " + directory);
+        }
+        this.active = appendable ? open(next) : null;
+    }
+
+    /**
+     *
+     * @param location
+     * @return id of the segment the location was written to, to be handed
+     * back through {@link #release(Map)}
+     * @throws IOException
+     */
+    public long append(Location location) throws IOException {
+        if (active == null) {
+            throw new IllegalStateException(directory + " is open for replay only");
+        }
+        if (active.buffer.remaining() < RECORD_SIZE) {
+            roll();
+        }
+        Segment segment = active;
+        ByteBuffer buffer = segment.buffer;
+        int start = buffer.position();
+        long timestamp = toEpochMillis(location.getTimestamp());
+        location.setId(locationId(location.getImei(), timestamp, segment.id, segment.appended).toHexString());
+        int flags = (location.getDistance() != null ? HAS_DISTANCE : 0)
+                | (location.getReceivedTime() != null ? HAS_RECEIVED_TIME : 0)
+                | (Boolean.TRUE.equals(location.getBackfill()) ? BACKFILL : 0);
+        buffer.position(start + 4);
+        buffer.putInt(location.getType());
+        buffer.putInt(flags);
+        buffer.putLong(location.getImei());
+        buffer.putLong(timestamp);
+        buffer.putLong(location.getReceivedTime() != null ? toEpochMillis(location.getReceivedTime()) : 0);
+        buffer.putDouble(location.getPoint().get(0));
+        buffer.putDouble(location.getPoint().get(1));
+        buffer.putDouble(valueOf(location.getSpeed()));
+        buffer.putDouble(valueOf(location.getHeading()));
+        buffer.putDouble(valueOf(location.getDistance()));
+        buffer.putInt(start, checksum(buffer, start + 4));
+        segment.appended++;
+        dirty = true;
+        APPENDED.increment();
+        return segment.id;
+    }
+
+    /**
+     * Forces the active segment when records were appended and the sync
+     * interval has passed.
+     *
+     * @return true when every appended record is forced to disk
+     */
+    public boolean sync() {
+        long now = System.currentTimeMillis();
+        if (dirty && active != null && now - lastSync >= syncInterval) {
+            active.buffer.force();
+            dirty = false;
+            lastSync = now;
+            SYNCS.increment();
+        }
+        return !dirty;
+    }
+
+    /**
+     * Marks records as stored.
+     *
+     * @param counts number of acknowledged records per segment id
+     */
+    public void release(Map<Long, Integer> counts) {
+        for (Map.Entry<Long, Integer> entry : counts.entrySet()) {
+            Segment segment = find(entry.getKey());
+            if (segment != null) {
+                segment.persisted.addAndGet(entry.getValue());
+                checkpoint(segment);
+                tryDelete(segment);
+            }
+        }
+    }
+
+    /**
+     * Keeps the segments for replay, because some of their records could not
+     * be stored.
+     *
+     * @param counts
+     */
+    public void retain(Map<Long, Integer> counts) {
+        for (Long id : counts.keySet()) {
+            Segment segment = find(id);
+            if (segment != null) {
+                segment.retained = true;
+                tryDelete(segment);
+            }
+        }
+    }
+
+    /**
+     *
+     * @return true when segments are waiting for replay
+     */
+    public boolean isRecoveryPending() {
+        return !recoverable.isEmpty();
+    }
+
+    /**
+     * Replays every recoverable segment into {@code databaseHandler} and
+     * deletes it once all of its records were stored. Locations already
+     * stored by an earlier attempt are rejected as duplicate keys and count as
+     * stored. Stops at the first failure, the remaining segments are kept for
+     * the next attempt.
+     *
+     * @param databaseHandler
+     * @param batchSize
+     * @return number of replayed records
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws MongoException
+     */
+    public synchronized int recover(DatabaseHandler databaseHandler, int batchSize) throws
+            IOException,
+            ClassNotFoundException,
+            MongoException {
+        int replayed = 0;
+        for (Long id : new ArrayList<>(recoverable.keySet())) {
+            Path file = directory.resolve(fileName(id));
+            List<Location> batch = new ArrayList<>(batchSize);
+            if (Files.exists(file)) {
+                ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+                boolean legacy = buffer.limit() < HEADER_SIZE || buffer.getInt(0) != VERSION_MAGIC;
+                int headerSize = legacy ? LEGACY_HEADER_SIZE : HEADER_SIZE;
+                int recordSize = legacy ? LEGACY_RECORD_SIZE : RECORD_SIZE;
+                long stored = buffer.limit() < headerSize ? 0 : buffer.getLong(headerSize - 8);
+                buffer.position((int) Math.min(buffer.limit(), headerSize + stored * recordSize));
+                CRC32 check = new CRC32();
+                while (buffer.remaining() >= recordSize) {
+                    int start = buffer.position();
+                    int checksum = buffer.getInt();
+                    check.reset();
+                    check.update(buffer.array(), start + 4, recordSize - 4);
+                    if (checksum != (int) check.getValue()) {
+                        //end of written data or a torn record
+                        break;
+                    }
+                    Location location = legacy ? readLegacyLocation(buffer) : readLocation(buffer);
+                    int index = (start - headerSize) / recordSize;
+                    location.setId(locationId(location.getImei(), toEpochMillis(location.getTimestamp()), id, index).toHexString());
+                    batch.add(location);
+                    if (batch.size() >= batchSize) {
+                        replayed += insert(databaseHandler, batch);
+                        batch.clear();
+                    }
+                }
+                replayed += insert(databaseHandler, batch);
+                Files.delete(file);
+                SEGMENTS_DELETED.increment();
+            }
+            recoverable.remove(id);
+        }
+        if (active == null && recoverable.isEmpty() && Files.deleteIfExists(directory)) {
+            DEBUG_LOGGER.debug(getLogMetaInfo() + " Removed " + directory + " after replay");
+        }
+        REPLAYED.add(replayed);
+        if (replayed > 0) {
+            DEBUG_LOGGER.debug(getLogMetaInfo() + " Replayed " + replayed + " locations from " + directory);
+        }
+        return replayed;
+    }
+
+    /**
+     *
+     * @param databaseHandler
+     * @param batch
+     * @return number of locations stored, including ones stored before
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws MongoException when anything but a duplicate key failed
+     */
+    private static int insert(DatabaseHandler databaseHandler, List<Location> batch) throws
+            IOException,
+            ClassNotFoundException,
+            MongoException {
+        try {
+            return databaseHandler.insertLocations(batch);
+        } catch (MongoBulkWriteException ex) {
+            for (BulkWriteError error : ex.getWriteErrors()) {
+                if (ErrorCategory.fromErrorCode(error.getCode()) != ErrorCategory.DUPLICATE_KEY) {
+                    throw ex;
+                }
+            }
+            return batch.size();
+        }
+    }
+
+    /**
+     * Database id of a logged location. The first four bytes are the device
+     * time in seconds like any object id, the rest mixes imei, device time and
+     * log position, so the id is the same every time the record is written.
+     *
+     * @param imei
+     * @param timestamp device time in ms
+     * @param segment
+     * @param index record in the segment
+     * @return
+     */
+    static ObjectId locationId(long imei, long timestamp, long segment, int index) {
+        long hash = mix(imei);
+        hash = mix(hash ^ timestamp);
+        hash = mix(hash ^ (segment << 32 | index & 0xFFFFFFFFL));
+        return new ObjectId(ByteBuffer.allocate(12)
+                .putInt((int) Math.floorDiv(timestamp, 1000))
+                .putLong(hash)
+                .array()
+        );
+    }
+
+    // finalizer of splitmix64
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+
+    /**
+     * Seals the active segment and opens the next one.
+     *
+     * @throws IOException
+     */
+    private void roll() throws IOException {
+        Segment previous = active;
+        previous.buffer.force();
+        dirty = false;
+        //published as sealed before it stops being active, so a concurrent release always finds it
+        sealed.put(previous.id, previous);
+        previous.sealed = true;
+        active = open(previous.id + 1);
+        tryDelete(previous);
+    }
+
+    private Segment open(long id) throws IOException {
+        try (FileChannel channel = FileChannel.open(
+                directory.resolve(fileName(id)),
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+        )) {
+            //the mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            buffer.putInt(0, VERSION_MAGIC);
+            buffer.position(HEADER_SIZE);
+            return new Segment(id, buffer);
+        }
+    }
+
+    private Segment find(long id) {
+        Segment segment = sealed.get(id);
+        if (segment == null) {
+            Segment current = active;
+            segment = current != null && current.id == id ? current : null;
+        }
+        return segment;
+    }
+
+    /**
+     * Records in the header that every record appended so far is stored.
+     * The acknowledged count is read before the appended count, so equal
+     * values mean no record is missing.
+     *
+     * @param segment
+     */
+    private void checkpoint(Segment segment) {
+        int persisted = segment.persisted.get();
+        int appended = segment.appended;
+        if (persisted >= appended) {
+            synchronized (segment) {
+                if (appended > segment.checkpoint && !segment.closed) {
+                    segment.checkpoint = appended;
+                    segment.buffer.putLong(CHECKPOINT_OFFSET, appended);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes a sealed segment once all its records are stored, or hands it
+     * to recovery when some of them were not.
+     *
+     * @param segment
+     */
+    private void tryDelete(Segment segment) {
+        synchronized (segment) {
+            if (!segment.sealed || segment.closed) {
+                return;
+            }
+            if (segment.retained) {
+                segment.closed = true;
+                sealed.remove(segment.id);
+                recoverable.put(segment.id, Boolean.TRUE);
+                return;
+            }
+            if (segment.persisted.get() < segment.appended) {
+                return;
+            }
+            segment.closed = true;
+            sealed.remove(segment.id);
+        }
+        try {
+            Files.deleteIfExists(directory.resolve(fileName(segment.id)));
+            SEGMENTS_DELETED.increment();
+        } catch (IOException ex) {
+            ERROR_LOGGER.error(getLogMetaInfo() + " Unable to delete segment " + segment.id, ex);
+        }
+    }
+
+    private int checksum(ByteBuffer buffer, int from) {
+        crc.reset();
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(from);
+        payload.limit(from + RECORD_SIZE - 4);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private static Location readLocation(ByteBuffer buffer) {
+        int type = buffer.getInt();
+        int flags = buffer.getInt();
+        long imei = buffer.getLong();
+        long timestamp = buffer.getLong();
+        long receivedTime = buffer.getLong();
+        double lat = buffer.getDouble();
+        double lng = buffer.getDouble();
+        double speed = buffer.getDouble();
+        double heading = buffer.getDouble();
+        double distance = buffer.getDouble();
+        return Location.builder()
+                .type(type)
+                .imei(imei)
+                .timestamp(toLocalDateTime(timestamp))
+                .receivedTime((flags & HAS_RECEIVED_TIME) != 0 ? toLocalDateTime(receivedTime) : null)
+                .point(Arrays.asList(lat, lng))
+                .speed(speed)
+                .heading(heading)
+                .distance((flags & HAS_DISTANCE) != 0 ? distance : null)
+                .backfill((flags & BACKFILL) != 0 ? Boolean.TRUE : null)
+                .build();
+    }
+
+    private static Location readLegacyLocation(ByteBuffer buffer) {
+        int type = buffer.getInt();
+        long imei = buffer.getLong();
+        long timestamp = buffer.getLong();
+        double lat = buffer.getDouble();
+        double lng = buffer.getDouble();
+        return Location.builder()
+                .type(type)
+                .imei(imei)
+                .timestamp(toLocalDateTime(timestamp))
+                .point(Arrays.asList(lat, lng))
+                .speed(buffer.getDouble())
+                .heading(buffer.getDouble())
+                .distance(buffer.getDouble())
+                .build();
+    }
+
+    private static long toEpochMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static LocalDateTime toLocalDateTime(long epochMillis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneId.systemDefault());
+    }
+
+    private static double valueOf(Double value) {
+        return value == null ? 0 : value;
+    }
+
+    private static String fileName(long id) {
+        return String.format("%020d", id) + SUFFIX;
+    }
+
+    private static long segmentId(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    private static String getLogMetaInfo() {
+        return TimezoneUtil.nowUtc() + " [WriteAheadLog.class]";
+    }
+
+    private static final class Segment {
+
+        private final long id;
+        private final MappedByteBuffer buffer;
+        private final AtomicInteger persisted = new AtomicInteger();
+        // written by the processor thread only
+        private volatile int appended;
+        private int checkpoint;
+        private volatile boolean sealed;
+        private volatile boolean retained;
+        private boolean closed;
+
+        private Segment(long id, MappedByteBuffer buffer) {
+            this.id = id;
+            this.buffer = buffer;
+        }
+    }
+}
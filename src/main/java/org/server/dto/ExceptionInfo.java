@@ -1,39 +1,39 @@
-/*
- * Copyright 2017 Benjamin.C.
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *      http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-package org.server.dto;
-
-import com.google.gson.Gson;
-import lombok.Builder;
-import lombok.Getter;
-import lombok.Setter;
-
-@Getter
-@Setter
-@Builder
-public class ExceptionInfo {
-
-    private String timestamp;
-    private String thread;
-    private String level;
-    private String clazz;
-    private String position;
-    private String message;
-    private Object throwable;
-
-    public static String toJson(ExceptionInfo exceptionInfo) {
-        return new Gson().toJson(exceptionInfo);
-    }
-}
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.dto;
+
+import com.google.gson.Gson;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+@Builder
+public class ExceptionInfo {
+
+    private String timestamp;
+    private String thread;
+    private String level;
+    private String clazz;
+    private String position;
+    private String message;
+    private Object throwable;
+
+    public static String toJson(ExceptionInfo exceptionInfo) {
+        return new Gson().toJson(exceptionInfo);
+    }
+}
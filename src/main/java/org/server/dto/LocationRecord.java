@@ -0,0 +1,57 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.dto;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.server.protocol.DeferredReply;
+
+/**
+ * Compact location decoded straight from the device frame, primitives only
+ * apart from the reply of the frame it is the last location of.
+ */
+@Getter
+@Setter
+public final class LocationRecord {
+
+    private int type;
+    private long imei;
+    private double lat;
+    private double lng;
+    private double speed;
+    private double heading;
+    private long timestamp;
+    private long receivedTime;
+    // only set on the last location of a frame whose reply waits for the log
+    private DeferredReply reply;
+
+    /**
+     *
+     * @param other
+     */
+    public void copyFrom(LocationRecord other) {
+        this.type = other.type;
+        this.imei = other.imei;
+        this.lat = other.lat;
+        this.lng = other.lng;
+        this.speed = other.speed;
+        this.heading = other.heading;
+        this.timestamp = other.timestamp;
+        this.receivedTime = other.receivedTime;
+        this.reply = other.reply;
+    }
+
+}
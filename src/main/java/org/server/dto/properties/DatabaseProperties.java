@@ -1,36 +1,46 @@
-/*
- * Copyright 2017 Benjamin.C.
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *      http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-package org.server.dto.properties;
-
-import lombok.Getter;
-import lombok.Setter;
-
-@Getter
-@Setter
-public final class DatabaseProperties {
-
-    private String name;
-    private String user;
-    private String passwd;
-    private String host;
-    private int port;
-    private String url;
-
-    public String getServerAddress() {
-        return this.url + "" + this.host + ":" + this.port;
-    }
-
-}
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.dto.properties;
+
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public final class DatabaseProperties {
+
+    private String name;
+    private String user;
+    private String passwd;
+    private String host;
+    private int port;
+    private String url;
+    private int batchSize = 500;
+    private long flushInterval = 200;
+    private int maxInFlight = 2;
+    private int maxRetries = 3;
+    private long retryBackoff = 500;
+    private String walDirectory;
+    private int walSegmentSize = 64 * 1024 * 1024;
+    private long walSyncInterval = 50;
+    private long walRecoveryInterval = 60000;
+    private boolean createIndexes = true;
+
+    public String getServerAddress() {
+        return this.url + "" + this.host + ":" + this.port;
+    }
+
+}
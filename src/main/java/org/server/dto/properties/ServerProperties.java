@@ -1,40 +1,78 @@
-/*
- * Copyright 2017 Benjamin.C.
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *      http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-package org.server.dto.properties;
-
-import lombok.Getter;
-import lombok.Setter;
-
-@Getter
-@Setter
-public final class ServerProperties {
-
-    private String host;
-    private int port;
-    private String protocol;
-    private int threads;
-    private int backlog;
-    private boolean messagingService;
-    private int messageQueueSize;
-    private int requestQueueSize;
-    private boolean requestLookupService;
-    private long requestLookupInterval;
-
-    public String getServerAddress() {
-        return this.getHost() + ":" + this.getPort() + " " + this.getProtocol();
-    }
-
-}
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.dto.properties;
+
+import java.util.Map;
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public final class ServerProperties {
+
+    private String host;
+    private int port;
+    private String deviceProtocol = "tk103";
+    private Map<String, Integer> protocolPorts;
+    private String protocol;
+    private int threads;
+    private int backlog;
+    private boolean messagingService;
+    private int messageQueueSize;
+    private int requestQueueSize;
+    private int processorShards = 1;
+    private int processorBatchSize = 64;
+    private long reorderWindow;
+    private long maxClockSkew = 5 * 60 * 1000;
+    private String waitStrategy = "PARK";
+    private String overloadPolicy = "PAUSE_READ";
+    private double queueHighWatermark = 0.8;
+    private double queueLowWatermark = 0.5;
+    private long metricsInterval = 60000;
+    private boolean requestLookupService;
+    private long requestLookupInterval;
+    private long staleThreshold = 10 * 60 * 1000;
+    private long offlineThreshold = 20 * 60 * 1000;
+    private int vehicleRegistrySize = 200000;
+    private long vehicleRefreshInterval = 300000;
+    private long vehicleMissTtl = 60000;
+    private int locationStoreCapacity = 100000;
+    private boolean locationStoreOffHeap;
+    private String locationSnapshotFile;
+    private long locationSnapshotInterval = 60000;
+    private long locationRestoreLookback = 7L * 24 * 60 * 60 * 1000;
+    private int maxFrameLength = 1024;
+    private boolean keepAlive;
+    private int idleTimeout = 300;
+    private long closeDelay = 2000;
+    private int acceptThreads = 1;
+    private boolean reusePort;
+    private boolean tcpNoDelay = true;
+    private int receiveBufferSize;
+    private boolean pooledAllocator = true;
+    private int webPort;
+    private int webThreads = 1;
+    private String liveTrackingPath = "/live";
+    private int liveMaxPending = 256;
+    private int apiThreads = 4;
+    private int trackBatchSize = 500;
+    private int trackMaxLimit = 10000;
+
+    public String getServerAddress() {
+        return this.getHost() + ":" + this.getPort() + " " + this.getProtocol();
+    }
+
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+
+/**
+ * Reply to a frame whose acknowledgement tells the device its locations are
+ * stored, see {@link DeviceProtocol#isAcknowledgingStorage()}. It travels
+ * with the last location of the frame and is completed by the processor
+ * thread once every location of the frame is logged.
+ */
+public final class DeferredReply {
+
+    private final Channel channel;
+    private final ByteBuf reply;
+
+    /**
+     *
+     * @param channel
+     * @param reply encoded as if the frame was accepted
+     */
+    public DeferredReply(Channel channel, ByteBuf reply) {
+        this.channel = channel;
+        this.reply = reply;
+    }
+
+    /**
+     * Sends the reply, or closes the connection without it when the
+     * locations could not be logged, so the device sends them again.
+     *
+     * @param stored
+     */
+    public void complete(boolean stored) {
+        if (stored) {
+            channel.writeAndFlush(reply);
+        } else {
+            reply.release();
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.protocol;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+import org.server.dto.LocationRecord;
+
+/**
+ * A single decoded device message, independent of the protocol it came in.
+ * Command, device id and sequence only mean something to the protocol that
+ * encodes the reply. The decoder reuses one instance per channel, so handlers
+ * must copy out what they keep.
+ */
+@Getter
+@Setter
+public final class DeviceFrame {
+
+    private int command;
+    private long deviceId;
+    private int sequence;
+    private boolean continuation;
+    private int locationCount;
+    // set once the locations were handed on, for protocols that acknowledge them
+    private boolean accepted;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private LocationRecord[] locations = {new LocationRecord()};
+
+    /**
+     * Resets the frame for the next message, location slots are kept.
+     *
+     * @param command
+     * @param deviceId
+     */
+    public void reset(int command, long deviceId) {
+        this.command = command;
+        this.deviceId = deviceId;
+        this.sequence = 0;
+        this.continuation = false;
+        this.locationCount = 0;
+        this.accepted = false;
+    }
+
+    /**
+     *
+     * @return the next location slot, reused across messages
+     */
+    public LocationRecord addLocation() {
+        if (locationCount == locations.length) {
+            LocationRecord[] grown = new LocationRecord[locations.length * 2];
+            System.arraycopy(locations, 0, grown, 0, locations.length);
+            for (int i = locations.length; i < grown.length; i++) {
+                grown[i] = new LocationRecord();
+            }
+            locations = grown;
+        }
+        return locations[locationCount++];
+    }
+
+    /**
+     *
+     * @param index below {@link #getLocationCount()}
+     * @return
+     */
+    public LocationRecord getLocation(int index) {
+        return locations[index];
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandler;
+import org.server.dto.properties.ServerProperties;
+
+/**
+ * A device protocol as the server sees it: how a connection is recognised,
+ * how the stream is framed and decoded into {@link DeviceFrame}s and how
+ * frames are answered. Protocols are registered with the
+ * {@link ProtocolRegistry} and bound to their own port or detected from the
+ * first bytes of a connection.
+ */
+public interface DeviceProtocol {
+
+    /**
+     *
+     * @return unique lower case name, used in the configuration
+     */
+    public String getName();
+
+    /**
+     *
+     * @return number of bytes {@link #detect(ByteBuf)} needs
+     */
+    public int getDetectLength();
+
+    /**
+     *
+     * @param in at least {@link #getDetectLength()} readable bytes, which must
+     * not be consumed
+     * @return true when the connection speaks this protocol
+     */
+    public boolean detect(ByteBuf in);
+
+    /**
+     * Decoders are stateful, a new one is needed for every channel.
+     *
+     * @param serverProperties
+     * @return handler turning the inbound bytes into {@link DeviceFrame}s
+     */
+    public ChannelHandler newFrameDecoder(ServerProperties serverProperties);
+
+    /**
+     *
+     * @param alloc
+     * @param frame
+     * @return the reply to send, null when the frame is not answered
+     */
+    public ByteBuf encodeReply(ByteBufAllocator alloc, DeviceFrame frame);
+
+    /**
+     *
+     * @return true when the device logs in once per connection, such
+     * connections are kept open regardless of the keep-alive setting
+     */
+    public boolean isSessionBased();
+
+    /**
+     *
+     * @return true when the reply to a frame with locations tells the device
+     * they are stored, so it drops them. Such replies are only sent once the
+     * locations are logged, see {@link DeferredReply}
+     */
+    public boolean isAcknowledgingStorage();
+
+    /**
+     *
+     * @return the most locations one frame can carry, the frames of a device
+     * are published to its shard as a whole so every shard must hold that
+     * many
+     */
+    public int getMaxLocationsPerFrame();
+}
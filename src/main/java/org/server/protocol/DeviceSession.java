@@ -0,0 +1,57 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.protocol;
+
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Per-channel device state, kept for as long as the device holds its
+ * connection open.
+ */
+@Getter
+@Setter
+public final class DeviceSession {
+
+    private static final AttributeKey<DeviceSession> SESSION_KEY = AttributeKey.valueOf("deviceSession");
+
+    private long deviceId;
+    private long imei;
+
+    /**
+     *
+     * @param channel
+     * @return the session bound to the channel, created on first use
+     */
+    public static DeviceSession of(Channel channel) {
+        DeviceSession session = channel.attr(SESSION_KEY).get();
+        if (session == null) {
+            session = new DeviceSession();
+            channel.attr(SESSION_KEY).set(session);
+        }
+        return session;
+    }
+
+    /**
+     *
+     * @return true once the IMEI has been resolved from a login frame
+     */
+    public boolean isLoggedIn() {
+        return imei != 0;
+    }
+}
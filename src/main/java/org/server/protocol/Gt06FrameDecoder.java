@@ -0,0 +1,263 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.DecoderException;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.server.dto.LocationRecord;
+import org.server.exception.InvalidRequestDataException;
+import org.server.util.ChecksumUtil;
+import org.server.util.Metrics;
+import org.server.util.TimezoneUtil;
+
+/**
+ * Frames and decodes binary GT06 (Concox) packets into {@link DeviceFrame}s.
+ * <pre>
+ * 0x7878 length:1 | protocol:1 content serial:2 crc:2 | 0x0D0A
+ * 0x7979 length:2 | protocol:1 content serial:2 crc:2 | 0x0D0A
+ * </pre>
+ * The length counts protocol number to crc, the CRC-ITU covers length to
+ * serial. Framing is left to {@link LengthFieldBasedFrameDecoder}, this class
+ * only teaches it both length widths, skips to the next start bits after
+ * garbage and decodes the framed packet in place.
+ * <p>
+ * Login, heartbeat, GPS ({@code 0x12}, {@code 0x22}) and alarm ({@code 0x16},
+ * {@code 0x26}) packets are decoded, anything else is dropped. Locations are
+ * only reported once the device has logged in on the channel.
+ */
+public final class Gt06FrameDecoder extends LengthFieldBasedFrameDecoder {
+
+    private static final Logger ERROR_LOGGER = LogManager.getLogger("ErrorLog");
+    private static final Logger REQ_LOGGER = LogManager.getLogger("RequestLog");
+
+    private static final LongAdder CRC_ERRORS = Metrics.counter("gt06.crc_errors");
+    private static final LongAdder ALARMS = Metrics.counter("gt06.alarms");
+    private static final LongAdder UNSUPPORTED = Metrics.counter("gt06.unsupported");
+
+    static final int START_SHORT = 0x7878;
+    static final int START_LONG = 0x7979;
+    static final int STOP = 0x0D0A;
+
+    public static final int MSG_LOGIN = 0x01;
+    public static final int MSG_GPS = 0x12;
+    public static final int MSG_HEARTBEAT = 0x13;
+    public static final int MSG_ALARM = 0x16;
+    public static final int MSG_GPS_LBS = 0x22;
+    public static final int MSG_ALARM_LBS = 0x26;
+
+    // protocol number, serial, crc and stop bits around the content
+    private static final int ENVELOPE_LENGTH = 1 + 2 + 2 + 2;
+    private static final int LOGIN_LENGTH = 8;
+    // date and time, satellites, lat, lng, speed, course and status
+    private static final int GPS_LENGTH = 6 + 1 + 4 + 4 + 1 + 2;
+    private static final double COORDINATE_SCALE = 30000.0 * 60;
+
+    private static final int COURSE_MASK = 0x03FF;
+    private static final int NORTH = 0x0400;
+    private static final int WEST = 0x0800;
+    private static final int POSITIONED = 0x1000;
+
+    // one frame is emitted per decode call and handled before the next one, so it is reused
+    private final DeviceFrame frame = new DeviceFrame();
+
+    /**
+     *
+     * @param maxFrameLength
+     */
+    public Gt06FrameDecoder(int maxFrameLength) {
+        // the two byte length field read here is narrowed to the real width in getUnadjustedFrameLength
+        super(maxFrameLength, 2, 2, 2, 0, true);
+    }
+
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, ByteBuf in) throws Exception {
+        int skipped = 0;
+        while (in.readableBytes() >= 2 && !isStart(in.getUnsignedShort(in.readerIndex()))) {
+            in.skipBytes(1);
+            skipped++;
+        }
+        if (skipped > 0) {
+            ERROR_LOGGER.warn(getLogMetaInfo() + " Skipped " + skipped + " bytes before the start bits");
+        }
+        ByteBuf packet;
+        try {
+            packet = (ByteBuf) super.decode(ctx, in);
+        } catch (DecoderException e) {
+            ERROR_LOGGER.warn(getLogMetaInfo() + " " + e.getMessage());
+            return null;
+        }
+        if (packet == null) {
+            return null;
+        }
+        try {
+            if (REQ_LOGGER.isInfoEnabled()) {
+                REQ_LOGGER.info(TimezoneUtil.nowLocal(TimezoneUtil.TIMEZONE_SL) + "-" + ByteBufUtil.hexDump(packet));
+            }
+            return decodePacket(DeviceSession.of(ctx.channel()), packet);
+        } catch (InvalidRequestDataException e) {
+            ERROR_LOGGER.warn(getLogMetaInfo() + " " + e.getMessage());
+            return null;
+        } finally {
+            packet.release();
+        }
+    }
+
+    @Override
+    protected long getUnadjustedFrameLength(ByteBuf buf, int offset, int length, ByteOrder order) {
+        // frame = start bits + length field + length + stop bits
+        if (buf.getUnsignedShort(offset - 2) == START_LONG) {
+            return buf.getUnsignedShort(offset);
+        }
+        return buf.getUnsignedByte(offset) - 1;
+    }
+
+    /**
+     *
+     * @param session
+     * @param packet
+     * @return null for packets that are not handled
+     * @throws InvalidRequestDataException
+     */
+    private DeviceFrame decodePacket(DeviceSession session, ByteBuf packet) throws InvalidRequestDataException {
+        int index = packet.readerIndex();
+        int end = packet.writerIndex();
+        int header = packet.getUnsignedShort(index) == START_LONG ? 4 : 3;
+        if (end - index < header + ENVELOPE_LENGTH || packet.getUnsignedShort(end - 2) != STOP) {
+            throw new InvalidRequestDataException("Not a GT06 packet: " + (end - index) + " bytes");
+        }
+        int crcIndex = end - 4;
+        if (ChecksumUtil.crcItu(packet, index + 2, crcIndex - index - 2) != packet.getUnsignedShort(crcIndex)) {
+            CRC_ERRORS.increment();
+            throw new InvalidRequestDataException("GT06 packet failed its CRC check");
+        }
+        int type = packet.getUnsignedByte(index + header);
+        int content = index + header + 1;
+        int contentLength = end - 6 - content;
+        frame.reset(type, session.getImei());
+        frame.setSequence(packet.getUnsignedShort(end - 6));
+
+        switch (type) {
+            case MSG_LOGIN: {
+                if (contentLength < LOGIN_LENGTH) {
+                    throw new InvalidRequestDataException("Not a GT06 login packet: " + contentLength + " bytes of content");
+                }
+                long imei = parseBcd(packet, content, LOGIN_LENGTH);
+                session.setImei(imei);
+                session.setDeviceId(imei);
+                frame.setDeviceId(imei);
+                return frame;
+            }
+            case MSG_HEARTBEAT: {
+                return frame;
+            }
+            case MSG_ALARM:
+            case MSG_ALARM_LBS: {
+                ALARMS.increment();
+                decodeGps(session, packet, content, contentLength);
+                return frame;
+            }
+            case MSG_GPS:
+            case MSG_GPS_LBS: {
+                decodeGps(session, packet, content, contentLength);
+                return frame;
+            }
+            default: {
+                UNSUPPORTED.increment();
+                return null;
+            }
+        }
+    }
+
+    /**
+     *
+     * @param session
+     * @param packet
+     * @param index first byte of the date and time
+     * @param length
+     * @throws InvalidRequestDataException
+     */
+    private void decodeGps(DeviceSession session, ByteBuf packet, int index, int length) throws InvalidRequestDataException {
+        if (length < GPS_LENGTH) {
+            throw new InvalidRequestDataException("Not a GT06 location packet: " + length + " bytes of content");
+        }
+        //locations before the login cannot be attributed to a device
+        if (!session.isLoggedIn()) {
+            return;
+        }
+        int status = packet.getUnsignedShort(index + 16);
+        double lat = packet.getUnsignedInt(index + 7) / COORDINATE_SCALE;
+        double lng = packet.getUnsignedInt(index + 11) / COORDINATE_SCALE;
+        if (lat > 90 || lng > 180) {
+            throw new InvalidRequestDataException("GT06 coordinates out of range: " + lat + ", " + lng);
+        }
+        int year = 2000 + packet.getUnsignedByte(index);
+        int month = packet.getUnsignedByte(index + 1);
+        int day = packet.getUnsignedByte(index + 2);
+        int hour = packet.getUnsignedByte(index + 3);
+        int minute = packet.getUnsignedByte(index + 4);
+        int second = packet.getUnsignedByte(index + 5);
+        if (!TimezoneUtil.isValidDateTime(year, month, day, hour, minute, second)) {
+            throw new InvalidRequestDataException("Invalid GT06 date " + year + "-" + month + "-" + day + " " + hour + ":" + minute + ":" + second);
+        }
+        LocationRecord location = frame.addLocation();
+        location.setImei(session.getImei());
+        location.setTimestamp(TimezoneUtil.toEpochMillis(year, month, day, hour, minute, second));
+        if ((status & POSITIONED) == 0) {
+            location.setType(Tk103ProtocolDecoder.LOCATION_UNAVAILABLE);
+            return;
+        }
+        location.setType(Tk103ProtocolDecoder.LOCATION_OK);
+        location.setLat((status & NORTH) != 0 ? lat : -lat);
+        location.setLng((status & WEST) != 0 ? -lng : lng);
+        location.setSpeed(packet.getUnsignedByte(index + 15));
+        location.setHeading(status & COURSE_MASK);
+    }
+
+    /**
+     *
+     * @param buf
+     * @param index
+     * @param length
+     * @return
+     * @throws InvalidRequestDataException
+     */
+    private static long parseBcd(ByteBuf buf, int index, int length) throws InvalidRequestDataException {
+        long value = 0;
+        for (int i = index; i < index + length; i++) {
+            int b = buf.getUnsignedByte(i);
+            if ((b >>> 4) > 9 || (b & 0x0F) > 9) {
+                throw new InvalidRequestDataException("Unexpected non-BCD byte at index " + i);
+            }
+            value = value * 100 + (b >>> 4) * 10 + (b & 0x0F);
+        }
+        return value;
+    }
+
+    private static boolean isStart(int bits) {
+        return bits == START_SHORT || bits == START_LONG;
+    }
+
+    private static String getLogMetaInfo() {
+        return TimezoneUtil.nowUtc() + " [Gt06FrameDecoder.class]";
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandler;
+import org.server.dto.properties.ServerProperties;
+import org.server.util.ChecksumUtil;
+
+/**
+ * Binary GT06 (Concox) over TCP, decoded by {@link Gt06FrameDecoder}. Login,
+ * heartbeat and alarm packets are acknowledged with their serial number. The
+ * device logs in once and keeps the connection open.
+ */
+public final class Gt06Protocol implements DeviceProtocol {
+
+    public static final String NAME = "gt06";
+
+    // start bits, length, protocol number, serial, crc and stop bits
+    private static final int ACK_LENGTH = 10;
+    private static final int ACK_CONTENT_LENGTH = 5;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public int getDetectLength() {
+        return 2;
+    }
+
+    @Override
+    public boolean detect(ByteBuf in) {
+        int start = in.getUnsignedShort(in.readerIndex());
+        return start == Gt06FrameDecoder.START_SHORT || start == Gt06FrameDecoder.START_LONG;
+    }
+
+    @Override
+    public ChannelHandler newFrameDecoder(ServerProperties serverProperties) {
+        return new Gt06FrameDecoder(serverProperties.getMaxFrameLength());
+    }
+
+    @Override
+    public ByteBuf encodeReply(ByteBufAllocator alloc, DeviceFrame frame) {
+        switch (frame.getCommand()) {
+            case Gt06FrameDecoder.MSG_LOGIN:
+            case Gt06FrameDecoder.MSG_HEARTBEAT:
+            case Gt06FrameDecoder.MSG_ALARM:
+            case Gt06FrameDecoder.MSG_ALARM_LBS: {
+                // written into a pooled buffer, the crc is computed in place
+                ByteBuf out = alloc.ioBuffer(ACK_LENGTH);
+                out.writeShort(Gt06FrameDecoder.START_SHORT);
+                out.writeByte(ACK_CONTENT_LENGTH);
+                out.writeByte(frame.getCommand());
+                out.writeShort(frame.getSequence());
+                out.writeShort(ChecksumUtil.crcItu(out, 2, 4));
+                out.writeShort(Gt06FrameDecoder.STOP);
+                return out;
+            }
+            default: {
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public boolean isSessionBased() {
+        return true;
+    }
+
+    @Override
+    public boolean isAcknowledgingStorage() {
+        return false;
+    }
+
+    @Override
+    public int getMaxLocationsPerFrame() {
+        return 1;
+    }
+}
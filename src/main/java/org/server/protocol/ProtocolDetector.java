@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.timeout.IdleStateEvent;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.server.util.Metrics;
+import org.server.util.TimezoneUtil;
+
+/**
+ * First handler of a connection on a port shared by several protocols. Holds
+ * the inbound bytes until a registered protocol recognises them, then lets
+ * the initializer set up that protocol's handlers and steps aside; the held
+ * bytes are passed on to the new decoder. Connections no protocol recognises
+ * or that go idle before they are recognised are closed.
+ */
+public final class ProtocolDetector extends ByteToMessageDecoder {
+
+    private static final Logger ERROR_LOGGER = LogManager.getLogger("ErrorLog");
+
+    private static final LongAdder DETECTED = Metrics.counter("protocol.detected");
+    private static final LongAdder UNDETECTED = Metrics.counter("protocol.undetected");
+
+    private final ProtocolRegistry registry;
+    private final BiConsumer<ChannelPipeline, DeviceProtocol> initializer;
+
+    /**
+     *
+     * @param registry
+     * @param initializer appends the handlers of the detected protocol
+     */
+    public ProtocolDetector(ProtocolRegistry registry, BiConsumer<ChannelPipeline, DeviceProtocol> initializer) {
+        this.registry = registry;
+        this.initializer = initializer;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        boolean undecided = false;
+        for (DeviceProtocol protocol : registry.getProtocols()) {
+            if (in.readableBytes() < protocol.getDetectLength()) {
+                undecided = true;
+            } else if (protocol.detect(in)) {
+                DETECTED.increment();
+                initializer.accept(ctx.pipeline(), protocol);
+                ctx.pipeline().remove(this);
+                return;
+            }
+        }
+        if (!undecided) {
+            UNDETECTED.increment();
+            ERROR_LOGGER.warn(getLogMetaInfo() + " Closing " + ctx.channel().remoteAddress() + ", no protocol recognises its first bytes");
+            in.skipBytes(in.readableBytes());
+            ctx.close();
+        }
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof IdleStateEvent) {
+            ctx.close();
+        } else {
+            super.userEventTriggered(ctx, evt);
+        }
+    }
+
+    private static String getLogMetaInfo() {
+        return TimezoneUtil.nowUtc() + " [ProtocolDetector.class]";
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.protocol;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The device protocols the server speaks, by name. Detection tries them in
+ * registration order.
+ */
+public final class ProtocolRegistry {
+
+    private final Map<String, DeviceProtocol> protocols = new LinkedHashMap<>();
+
+    /**
+     *
+     * @return a registry of every built-in protocol
+     */
+    public static ProtocolRegistry defaults() {
+        ProtocolRegistry registry = new ProtocolRegistry();
+        registry.register(new Tk103Protocol());
+        registry.register(new Gt06Protocol());
+        registry.register(new TeltonikaProtocol());
+        return registry;
+    }
+
+    /**
+     *
+     * @param protocol
+     */
+    public void register(DeviceProtocol protocol) {
+        protocols.put(protocol.getName(), protocol);
+    }
+
+    /**
+     *
+     * @param name
+     */
+    public void unregister(String name) {
+        protocols.remove(name);
+    }
+
+    /**
+     *
+     * @param name
+     * @return
+     * @throws IllegalStateException when no such protocol is registered
+     */
+    public DeviceProtocol get(String name) throws IllegalStateException {
+        DeviceProtocol protocol = protocols.get(name);
+        if (protocol == null) {
+            throw new IllegalStateException("Unknown device protocol " + name + ", expected one of " + protocols.keySet());
+        }
+        return protocol;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public Collection<DeviceProtocol> getProtocols() {
+        return Collections.unmodifiableCollection(protocols.values());
+    }
+}
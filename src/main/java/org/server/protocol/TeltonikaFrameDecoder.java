@@ -0,0 +1,266 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.server.dto.LocationRecord;
+import org.server.exception.InvalidRequestDataException;
+import org.server.util.AsciiUtil;
+import org.server.util.ChecksumUtil;
+import org.server.util.Metrics;
+import org.server.util.TimezoneUtil;
+
+/**
+ * Decodes the Teltonika TCP protocol, Codec 8 and Codec 8 Extended, into
+ * {@link DeviceFrame}s. A connection opens with the IMEI
+ * <pre>
+ * length:2 imei:15 (ASCII digits)
+ * </pre>
+ * followed by AVL data packets
+ * <pre>
+ * 0x00000000 length:4 | codec:1 count:1 record... count:1 | crc:4
+ * record = timestamp:8 priority:1 lng:4 lat:4 altitude:2 angle:2 satellites:1 speed:2 io...
+ * </pre>
+ * where the length and the CRC-16/IBM cover codec to the second count.
+ * <p>
+ * Every record of a packet is decoded in place into the same frame, which is
+ * handed on as one unit and acknowledged with the number of records taken.
+ * IO elements are not decoded, only their counts are read to step over
+ * them. A packet failing its CRC is acknowledged with zero records so the
+ * device sends it again. A packet of any other codec than 8 and 8 extended
+ * closes the connection, as it could be neither stored nor acknowledged.
+ */
+public final class TeltonikaFrameDecoder extends ByteToMessageDecoder {
+
+    private static final Logger ERROR_LOGGER = LogManager.getLogger("ErrorLog");
+    private static final Logger REQ_LOGGER = LogManager.getLogger("RequestLog");
+
+    private static final LongAdder CRC_ERRORS = Metrics.counter("teltonika.crc_errors");
+    private static final LongAdder UNSUPPORTED = Metrics.counter("teltonika.unsupported");
+
+    static final int IMEI_LENGTH = 15;
+
+    //the imei handshake, not a codec id on the wire
+    public static final int MSG_LOGIN = 0x01;
+    public static final int CODEC_8 = 0x08;
+    public static final int CODEC_8_EXTENDED = 0x8E;
+
+    //preamble and data field length before the data field, crc after it
+    private static final int HEADER_LENGTH = 8;
+    private static final int CRC_LENGTH = 4;
+    //codec id and both record counts
+    private static final int MIN_DATA_LENGTH = 3;
+    //timestamp, priority and gps element
+    private static final int RECORD_HEADER_LENGTH = 8 + 1 + 15;
+    private static final double COORDINATE_SCALE = 1e7;
+    //the record count is a single byte
+    static final int MAX_RECORDS = 255;
+
+    private final int maxFrameLength;
+    // one frame is emitted per decode call and handled before the next one, so it is reused
+    private final DeviceFrame frame = new DeviceFrame();
+
+    /**
+     *
+     * @param maxFrameLength
+     */
+    public TeltonikaFrameDecoder(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        DeviceSession session = DeviceSession.of(ctx.channel());
+        try {
+            if (session.isLoggedIn()) {
+                decodePacket(session, in, out);
+            } else {
+                decodeLogin(session, in, out);
+            }
+        } catch (InvalidRequestDataException e) {
+            //without framing to resync on the rest of the stream cannot be trusted
+            ERROR_LOGGER.warn(getLogMetaInfo() + " " + e.getMessage() + ", closing the connection");
+            in.skipBytes(in.readableBytes());
+            ctx.close();
+        }
+    }
+
+    /**
+     *
+     * @param session
+     * @param in
+     * @param out
+     * @throws InvalidRequestDataException
+     */
+    private void decodeLogin(DeviceSession session, ByteBuf in, List<Object> out) throws InvalidRequestDataException {
+        if (in.readableBytes() < 2) {
+            return;
+        }
+        int index = in.readerIndex();
+        int length = in.getUnsignedShort(index);
+        if (length != IMEI_LENGTH) {
+            throw new InvalidRequestDataException("Not a Teltonika IMEI of " + length + " bytes");
+        }
+        if (in.readableBytes() < 2 + length) {
+            return;
+        }
+        in.skipBytes(2 + length);
+        if (REQ_LOGGER.isInfoEnabled()) {
+            REQ_LOGGER.info(TimezoneUtil.nowLocal(TimezoneUtil.TIMEZONE_SL) + "-" + ByteBufUtil.hexDump(in, index, 2 + length));
+        }
+        long imei = AsciiUtil.parseDigits(in, index + 2, length);
+        session.setImei(imei);
+        session.setDeviceId(imei);
+        frame.reset(MSG_LOGIN, imei);
+        out.add(frame);
+    }
+
+    /**
+     *
+     * @param session
+     * @param in
+     * @param out
+     * @throws InvalidRequestDataException
+     */
+    private void decodePacket(DeviceSession session, ByteBuf in, List<Object> out) throws InvalidRequestDataException {
+        if (in.readableBytes() < HEADER_LENGTH) {
+            return;
+        }
+        int index = in.readerIndex();
+        if (in.getInt(index) != 0) {
+            throw new InvalidRequestDataException("Missing Teltonika packet preamble");
+        }
+        long length = in.getUnsignedInt(index + 4);
+        if (length < MIN_DATA_LENGTH || length > maxFrameLength) {
+            throw new InvalidRequestDataException("Teltonika data field of " + length + " bytes");
+        }
+        int packetLength = HEADER_LENGTH + (int) length + CRC_LENGTH;
+        if (in.readableBytes() < packetLength) {
+            return;
+        }
+        in.skipBytes(packetLength);
+        if (REQ_LOGGER.isInfoEnabled()) {
+            REQ_LOGGER.info(TimezoneUtil.nowLocal(TimezoneUtil.TIMEZONE_SL) + "-" + ByteBufUtil.hexDump(in, index, packetLength));
+        }
+
+        int data = index + HEADER_LENGTH;
+        int end = data + (int) length;
+        int codec = in.getUnsignedByte(data);
+        if (codec != CODEC_8 && codec != CODEC_8_EXTENDED) {
+            UNSUPPORTED.increment();
+            throw new InvalidRequestDataException("Unsupported Teltonika codec 0x" + Integer.toHexString(codec));
+        }
+        frame.reset(codec, session.getImei());
+        if (ChecksumUtil.crc16Ibm(in, data, (int) length) != in.getInt(end)) {
+            CRC_ERRORS.increment();
+            ERROR_LOGGER.warn(getLogMetaInfo() + " Teltonika packet failed its CRC check");
+            out.add(frame);
+            return;
+        }
+        int count = in.getUnsignedByte(data + 1);
+        if (count != in.getUnsignedByte(end - 1)) {
+            throw new InvalidRequestDataException("Teltonika record counts differ: " + count + ", " + in.getUnsignedByte(end - 1));
+        }
+        int record = data + 2;
+        for (int i = 0; i < count; i++) {
+            record = decodeRecord(session, in, record, end - 1, codec == CODEC_8_EXTENDED);
+        }
+        if (record != end - 1) {
+            throw new InvalidRequestDataException("Teltonika records end at " + (record - data) + " of " + length + " bytes");
+        }
+        out.add(frame);
+    }
+
+    /**
+     *
+     * @param session
+     * @param buf
+     * @param index first byte of the record
+     * @param limit end of the records
+     * @param extended
+     * @return index of the next record
+     * @throws InvalidRequestDataException
+     */
+    private int decodeRecord(DeviceSession session, ByteBuf buf, int index, int limit, boolean extended) throws InvalidRequestDataException {
+        if (limit - index < RECORD_HEADER_LENGTH) {
+            throw new InvalidRequestDataException("Truncated Teltonika record");
+        }
+        LocationRecord location = frame.addLocation();
+        location.setImei(session.getImei());
+        location.setTimestamp(buf.getLong(index));
+        //no satellites in view means the coordinates are the last known ones
+        if (buf.getUnsignedByte(index + 21) == 0) {
+            location.setType(Tk103ProtocolDecoder.LOCATION_UNAVAILABLE);
+        } else {
+            location.setType(Tk103ProtocolDecoder.LOCATION_OK);
+            location.setLng(buf.getInt(index + 9) / COORDINATE_SCALE);
+            location.setLat(buf.getInt(index + 13) / COORDINATE_SCALE);
+            location.setHeading(buf.getUnsignedShort(index + 19));
+            location.setSpeed(buf.getUnsignedShort(index + 22));
+        }
+        return skipIoElements(buf, index + RECORD_HEADER_LENGTH, limit, extended);
+    }
+
+    /**
+     * Steps over the event id, the total count and the groups of one, two,
+     * four and eight byte values, plus the variable length group of Codec 8
+     * Extended.
+     *
+     * @param buf
+     * @param index first byte of the IO element
+     * @param limit end of the records
+     * @param extended ids and counts are two bytes wide
+     * @return index after the IO element
+     * @throws InvalidRequestDataException
+     */
+    private static int skipIoElements(ByteBuf buf, int index, int limit, boolean extended) throws InvalidRequestDataException {
+        int width = extended ? 2 : 1;
+        index += 2 * width;
+        for (int valueLength = 1; valueLength <= 8; valueLength <<= 1) {
+            checkBounds(index + width, limit);
+            int count = extended ? buf.getUnsignedShort(index) : buf.getUnsignedByte(index);
+            index += width + count * (width + valueLength);
+        }
+        if (extended) {
+            checkBounds(index + 2, limit);
+            int count = buf.getUnsignedShort(index);
+            index += 2;
+            for (int i = 0; i < count; i++) {
+                checkBounds(index + 4, limit);
+                index += 4 + buf.getUnsignedShort(index + 2);
+            }
+        }
+        checkBounds(index, limit);
+        return index;
+    }
+
+    private static void checkBounds(int index, int limit) throws InvalidRequestDataException {
+        if (index > limit) {
+            throw new InvalidRequestDataException("Truncated Teltonika IO element");
+        }
+    }
+
+    private static String getLogMetaInfo() {
+        return TimezoneUtil.nowUtc() + " [TeltonikaFrameDecoder.class]";
+    }
+}
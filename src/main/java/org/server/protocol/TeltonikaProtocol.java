@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandler;
+import org.server.dto.properties.ServerProperties;
+
+/**
+ * Teltonika Codec 8 and Codec 8 Extended over TCP, decoded by
+ * {@link TeltonikaFrameDecoder}. The IMEI handshake is accepted with a single
+ * {@code 0x01} and every AVL data packet is acknowledged with the number of
+ * records taken, zero when they were dropped so the device sends them again.
+ * The device deletes acknowledged records, so the count is only sent once
+ * they are logged. The device keeps the connection open.
+ */
+public final class TeltonikaProtocol implements DeviceProtocol {
+
+    public static final String NAME = "teltonika";
+
+    private static final int LOGIN_ACCEPTED = 0x01;
+    // data fields of up to 1280 bytes are sent by stock devices
+    private static final int MIN_FRAME_LENGTH = 1280;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public int getDetectLength() {
+        return 2;
+    }
+
+    @Override
+    public boolean detect(ByteBuf in) {
+        return in.getUnsignedShort(in.readerIndex()) == TeltonikaFrameDecoder.IMEI_LENGTH;
+    }
+
+    @Override
+    public ChannelHandler newFrameDecoder(ServerProperties serverProperties) {
+        return new TeltonikaFrameDecoder(Math.max(serverProperties.getMaxFrameLength(), MIN_FRAME_LENGTH));
+    }
+
+    @Override
+    public ByteBuf encodeReply(ByteBufAllocator alloc, DeviceFrame frame) {
+        switch (frame.getCommand()) {
+            case TeltonikaFrameDecoder.MSG_LOGIN: {
+                ByteBuf out = alloc.ioBuffer(1);
+                out.writeByte(LOGIN_ACCEPTED);
+                return out;
+            }
+            case TeltonikaFrameDecoder.CODEC_8:
+            case TeltonikaFrameDecoder.CODEC_8_EXTENDED: {
+                ByteBuf out = alloc.ioBuffer(4);
+                out.writeInt(frame.isAccepted() ? frame.getLocationCount() : 0);
+                return out;
+            }
+            default: {
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public boolean isSessionBased() {
+        return true;
+    }
+
+    @Override
+    public boolean isAcknowledgingStorage() {
+        return true;
+    }
+
+    @Override
+    public int getMaxLocationsPerFrame() {
+        return TeltonikaFrameDecoder.MAX_RECORDS;
+    }
+}
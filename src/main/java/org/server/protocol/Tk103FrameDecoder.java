@@ -0,0 +1,234 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.server.dto.LocationRecord;
+import org.server.exception.InvalidRequestDataException;
+import org.server.util.AsciiUtil;
+import org.server.util.TimezoneUtil;
+
+/**
+ * Finds {@code (...)} TK103 frames in the inbound stream and decodes them by
+ * index arithmetic on the {@link ByteBuf} into {@link DeviceFrame}s, see
+ * {@code TK103-REF} for the field layout. Replies are encoded by
+ * {@link Tk103Protocol}.
+ * <p>
+ * Partial frames stay in the cumulation buffer until the closing bracket
+ * arrives in a later read, coalesced frames are emitted one by one, and a
+ * frame that grows past {@code maxFrameLength} is discarded.
+ */
+public final class Tk103FrameDecoder extends ByteToMessageDecoder {
+
+    private static final Logger ERROR_LOGGER = LogManager.getLogger("ErrorLog");
+    private static final Logger REQ_LOGGER = LogManager.getLogger("RequestLog");
+
+    //four command characters read as one big-endian int
+    public static final int CMD_LOGIN = 0x42503035;              //BP05
+    public static final int CMD_HANDSHAKE_SIGNAL = 0x42503030;   //BP00
+    public static final int CMD_CONTINUES_FEEDBACK = 0x42523030; //BR00
+
+    static final byte FRAME_START = '(';
+    static final byte FRAME_END = ')';
+
+    //offsets are relative to the first byte after '('
+    static final int DEVICE_ID_LENGTH = 12;
+    private static final int COMMAND_OFFSET = 12;
+    private static final int BP05_LENGTH = 93;
+    private static final int BP05_IMEI_OFFSET = 16;
+    private static final int BP05_IMEI_LENGTH = 15;
+    private static final int BP05_LOCATION_OFFSET = 37;
+    private static final int BR00_LENGTH = 78;
+    private static final int BR00_LOCATION_OFFSET = 22;
+
+    //offsets are relative to the data availability flag
+    private static final int DATE_OFFSET = -6;
+    private static final int DATE_LENGTH = 6;
+    private static final int LAT_OFFSET = 1;
+    private static final int LAT_LENGTH = 9;
+    private static final int LNG_OFFSET = 11;
+    private static final int LNG_LENGTH = 10;
+    private static final int SPEED_OFFSET = 22;
+    private static final int SPEED_LENGTH = 5;
+    private static final int TIME_OFFSET = 27;
+    private static final int TIME_LENGTH = 6;
+    private static final int HEADING_OFFSET = 33;
+    private static final int HEADING_LENGTH = 6;
+
+    private final int maxFrameLength;
+    // one frame is emitted per decode call and handled before the next one, so it is reused
+    private final DeviceFrame frame = new DeviceFrame();
+
+    /**
+     *
+     * @param maxFrameLength
+     */
+    public Tk103FrameDecoder(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        int start = in.indexOf(in.readerIndex(), in.writerIndex(), FRAME_START);
+        if (start < 0) {
+            in.skipBytes(in.readableBytes());
+            return;
+        }
+        int end = in.indexOf(start + 1, in.writerIndex(), FRAME_END);
+        if (end < 0) {
+            if (in.writerIndex() - start > maxFrameLength) {
+                ERROR_LOGGER.warn(getLogMetaInfo() + " Discarding " + (in.writerIndex() - start) + " bytes of an unterminated frame");
+                in.skipBytes(in.readableBytes());
+            } else {
+                in.readerIndex(start);
+            }
+            return;
+        }
+        in.readerIndex(end + 1);
+
+        //a second '(' before the closing bracket means the earlier frame was cut short
+        int lastStart = in.indexOf(end, start, FRAME_START);
+        if (lastStart > start) {
+            ERROR_LOGGER.warn(getLogMetaInfo() + " Discarding " + (lastStart - start) + " bytes of a truncated frame");
+            start = lastStart;
+        }
+        if (end - start > maxFrameLength) {
+            ERROR_LOGGER.warn(getLogMetaInfo() + " Discarding frame of " + (end - start + 1) + " bytes");
+            return;
+        }
+
+        int index = start + 1;
+        int length = end - index;
+        if (REQ_LOGGER.isInfoEnabled()) {
+            REQ_LOGGER.info(TimezoneUtil.nowLocal(TimezoneUtil.TIMEZONE_SL) + "-" + in.toString(start, length + 2, StandardCharsets.US_ASCII));
+        }
+        if (length < COMMAND_OFFSET + 4) {
+            return;
+        }
+
+        try {
+            if (decodeFrame(DeviceSession.of(ctx.channel()), in, index, length)) {
+                out.add(frame);
+            }
+        } catch (InvalidRequestDataException e) {
+            ERROR_LOGGER.warn(getLogMetaInfo() + " " + e.getMessage());
+        }
+    }
+
+    /**
+     *
+     * @param session
+     * @param buf
+     * @param index
+     * @param length
+     * @return false for frames that are not handled
+     * @throws InvalidRequestDataException
+     */
+    private boolean decodeFrame(DeviceSession session, ByteBuf buf, int index, int length) throws InvalidRequestDataException {
+        long deviceId = AsciiUtil.parseDigits(buf, index, DEVICE_ID_LENGTH);
+        int command = buf.getInt(index + COMMAND_OFFSET);
+        frame.reset(command, deviceId);
+
+        switch (command) {
+            case CMD_LOGIN: {
+                if (length != BP05_LENGTH) {
+                    throw new InvalidRequestDataException("Not a BP05 message: BP05 message must contains 95 characters");
+                }
+                //the imei never changes for a device id, so it is parsed once per session
+                if (!session.isLoggedIn() || session.getDeviceId() != deviceId) {
+                    session.setImei(AsciiUtil.parseDigits(buf, index + BP05_IMEI_OFFSET, BP05_IMEI_LENGTH));
+                    session.setDeviceId(deviceId);
+                }
+                decodeLocation(frame.addLocation(), session.getImei(), buf, index + BP05_LOCATION_OFFSET);
+                return true;
+            }
+            case CMD_CONTINUES_FEEDBACK: {
+                if (length != BR00_LENGTH) {
+                    throw new InvalidRequestDataException("Not a BR00 message: BR00 message must contains 80 characters");
+                }
+                //continuation frames carry no imei, they belong to the last login on this channel
+                frame.setContinuation(true);
+                if (session.isLoggedIn()) {
+                    decodeLocation(frame.addLocation(), session.getImei(), buf, index + BR00_LOCATION_OFFSET);
+                }
+                return true;
+            }
+            case CMD_HANDSHAKE_SIGNAL: {
+                return true;
+            }
+            default: {
+                return false;
+            }
+        }
+    }
+
+    /**
+     *
+     * @param location
+     * @param imei
+     * @param buf
+     * @param index index of the data availability flag
+     * @throws InvalidRequestDataException
+     */
+    private static void decodeLocation(LocationRecord location, long imei, ByteBuf buf, int index) throws InvalidRequestDataException {
+        location.setImei(imei);
+        if (buf.getByte(index) != 'A') {
+            location.setType(Tk103ProtocolDecoder.LOCATION_UNAVAILABLE);
+            location.setTimestamp(System.currentTimeMillis());
+            return;
+        }
+        location.setType(Tk103ProtocolDecoder.LOCATION_OK);
+        location.setTimestamp(parseTimestamp(buf, index));
+        location.setLat(AsciiUtil.parseCoordinate(buf, index + LAT_OFFSET, LAT_LENGTH, 2));
+        location.setLng(AsciiUtil.parseCoordinate(buf, index + LNG_OFFSET, LNG_LENGTH, 3));
+        location.setSpeed(AsciiUtil.parseDecimal(buf, index + SPEED_OFFSET, SPEED_LENGTH));
+        location.setHeading(AsciiUtil.parseDecimal(buf, index + HEADING_OFFSET, HEADING_LENGTH));
+    }
+
+    /**
+     * Reads the GPS date (yymmdd, in front of the flag) and time (hhmmss) the
+     * device reports in UTC.
+     *
+     * @param buf
+     * @param index index of the data availability flag
+     * @return epoch millis
+     * @throws InvalidRequestDataException
+     */
+    private static long parseTimestamp(ByteBuf buf, int index) throws InvalidRequestDataException {
+        int date = (int) AsciiUtil.parseDigits(buf, index + DATE_OFFSET, DATE_LENGTH);
+        int time = (int) AsciiUtil.parseDigits(buf, index + TIME_OFFSET, TIME_LENGTH);
+        int year = 2000 + date / 10000;
+        int month = date / 100 % 100;
+        int day = date % 100;
+        int hour = time / 10000;
+        int minute = time / 100 % 100;
+        int second = time % 100;
+        if (!TimezoneUtil.isValidDateTime(year, month, day, hour, minute, second)) {
+            throw new InvalidRequestDataException("Invalid device date " + date + " and time " + time);
+        }
+        return TimezoneUtil.toEpochMillis(year, month, day, hour, minute, second);
+    }
+
+    private static String getLogMetaInfo() {
+        return TimezoneUtil.nowUtc() + " [Tk103FrameDecoder.class]";
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandler;
+import java.nio.charset.StandardCharsets;
+import org.server.dto.properties.ServerProperties;
+import org.server.util.AsciiUtil;
+
+/**
+ * TK103 over TCP, ASCII {@code (...)} frames decoded by
+ * {@link Tk103FrameDecoder}. A device may report and disconnect every time,
+ * so connections follow the keep-alive setting.
+ */
+public final class Tk103Protocol implements DeviceProtocol {
+
+    public static final String NAME = "tk103";
+
+    private static final byte[] LOGIN_RESPONSE = Tk103ProtocolDecoder.CMD_LOGIN_RESPONSE.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HANDSHAKE_RESPONSE = Tk103ProtocolDecoder.CMD_HANDSHAKE_SIGNAL_RESPONSE.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONTINUES_FEEDBACK_RESPONSE = "No".getBytes(StandardCharsets.US_ASCII);
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public int getDetectLength() {
+        return 1;
+    }
+
+    @Override
+    public boolean detect(ByteBuf in) {
+        return in.getByte(in.readerIndex()) == Tk103FrameDecoder.FRAME_START;
+    }
+
+    @Override
+    public ChannelHandler newFrameDecoder(ServerProperties serverProperties) {
+        return new Tk103FrameDecoder(serverProperties.getMaxFrameLength());
+    }
+
+    @Override
+    public ByteBuf encodeReply(ByteBufAllocator alloc, DeviceFrame frame) {
+        switch (frame.getCommand()) {
+            //BP05
+            case Tk103FrameDecoder.CMD_LOGIN: {
+                return encodeResponse(alloc, frame.getDeviceId(), LOGIN_RESPONSE);
+            }
+            //BP00
+            case Tk103FrameDecoder.CMD_HANDSHAKE_SIGNAL: {
+                return encodeResponse(alloc, frame.getDeviceId(), HANDSHAKE_RESPONSE);
+            }
+            //BR00
+            case Tk103FrameDecoder.CMD_CONTINUES_FEEDBACK: {
+                return alloc.ioBuffer(CONTINUES_FEEDBACK_RESPONSE.length).writeBytes(CONTINUES_FEEDBACK_RESPONSE);
+            }
+            default: {
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public boolean isSessionBased() {
+        return false;
+    }
+
+    @Override
+    public boolean isAcknowledgingStorage() {
+        return false;
+    }
+
+    @Override
+    public int getMaxLocationsPerFrame() {
+        return 1;
+    }
+
+    private static ByteBuf encodeResponse(ByteBufAllocator alloc, long deviceId, byte[] command) {
+        ByteBuf out = alloc.ioBuffer(Tk103FrameDecoder.DEVICE_ID_LENGTH + command.length + 2);
+        out.writeByte(Tk103FrameDecoder.FRAME_START);
+        AsciiUtil.writeDigits(out, deviceId, Tk103FrameDecoder.DEVICE_ID_LENGTH);
+        out.writeBytes(command);
+        out.writeByte(Tk103FrameDecoder.FRAME_END);
+        return out;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.util;
+
+import io.netty.buffer.ByteBuf;
+import org.server.exception.InvalidRequestDataException;
+
+/**
+ * Reads ASCII encoded numbers straight out of a {@link ByteBuf} by index,
+ * without copying bytes into an intermediate {@link String}.
+ */
+public final class AsciiUtil {
+
+    private static final double[] POWERS_OF_TEN = {
+        1d, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18
+    };
+
+    private AsciiUtil() {
+    }
+
+    /**
+     *
+     * @param buf
+     * @param index
+     * @param length
+     * @return
+     * @throws InvalidRequestDataException
+     */
+    public static long parseDigits(ByteBuf buf, int index, int length) throws InvalidRequestDataException {
+        long value = 0;
+        for (int i = index; i < index + length; i++) {
+            int digit = buf.getByte(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new InvalidRequestDataException("Unexpected non-digit character at index " + i);
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Parses an unsigned decimal such as {@code 000.00}. The unscaled digits
+     * are divided by a power of ten once, which yields the same value as
+     * {@link Double#valueOf(String)} for the field widths used by devices.
+     *
+     * @param buf
+     * @param index
+     * @param length
+     * @return
+     * @throws InvalidRequestDataException
+     */
+    public static double parseDecimal(ByteBuf buf, int index, int length) throws InvalidRequestDataException {
+        long unscaled = 0;
+        int scale = -1;
+        for (int i = index; i < index + length; i++) {
+            byte b = buf.getByte(i);
+            if (b == '.' && scale < 0) {
+                scale = 0;
+                continue;
+            }
+            int digit = b - '0';
+            if (digit < 0 || digit > 9) {
+                throw new InvalidRequestDataException("Unexpected non-digit character at index " + i);
+            }
+            unscaled = unscaled * 10 + digit;
+            if (scale >= 0) {
+                scale++;
+            }
+        }
+        return scale <= 0 ? unscaled : unscaled / POWERS_OF_TEN[scale];
+    }
+
+    /**
+     * Parses a NMEA style {@code (d)ddmm.mmmm} coordinate into decimal
+     * degrees.
+     *
+     * @param buf
+     * @param index
+     * @param length
+     * @param degreeDigits
+     * @return
+     * @throws InvalidRequestDataException
+     */
+    public static double parseCoordinate(ByteBuf buf, int index, int length, int degreeDigits) throws InvalidRequestDataException {
+        return parseDigits(buf, index, degreeDigits)
+                + parseDecimal(buf, index + degreeDigits, length - degreeDigits) / 60;
+    }
+
+    /**
+     * Writes {@code value} as zero padded ASCII digits.
+     *
+     * @param out
+     * @param value
+     * @param width
+     */
+    public static void writeDigits(ByteBuf out, long value, int width) {
+        int index = out.writerIndex();
+        out.ensureWritable(width);
+        for (int i = index + width - 1; i >= index; i--) {
+            out.setByte(i, (int) ('0' + value % 10));
+            value /= 10;
+        }
+        out.writerIndex(index + width);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.util;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Table driven checksums of binary device protocols, computed in place on
+ * the {@link ByteBuf}.
+ */
+public final class ChecksumUtil {
+
+    // CRC-ITU as used by GT06: reflected polynomial 0x1021, initial 0xFFFF, final xor 0xFFFF
+    private static final int[] CRC_ITU_TABLE = crcTable(0x8408);
+    // CRC-16/IBM as used by Teltonika: reflected polynomial 0x8005, initial 0x0000, no final xor
+    private static final int[] CRC_IBM_TABLE = crcTable(0xA001);
+
+    private ChecksumUtil() {
+    }
+
+    /**
+     *
+     * @param buf
+     * @param index
+     * @param length
+     * @return
+     */
+    public static int crcItu(ByteBuf buf, int index, int length) {
+        int crc = 0xFFFF;
+        for (int i = index; i < index + length; i++) {
+            crc = (crc >>> 8) ^ CRC_ITU_TABLE[(crc ^ buf.getByte(i)) & 0xFF];
+        }
+        return ~crc & 0xFFFF;
+    }
+
+    /**
+     *
+     * @param buf
+     * @param index
+     * @param length
+     * @return
+     */
+    public static int crc16Ibm(ByteBuf buf, int index, int length) {
+        int crc = 0;
+        for (int i = index; i < index + length; i++) {
+            crc = (crc >>> 8) ^ CRC_IBM_TABLE[(crc ^ buf.getByte(i)) & 0xFF];
+        }
+        return crc;
+    }
+
+    private static int[] crcTable(int polynomial) {
+        int[] table = new int[256];
+        for (int i = 0; i < table.length; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ polynomial : crc >>> 1;
+            }
+            table[i] = crc;
+        }
+        return table;
+    }
+}
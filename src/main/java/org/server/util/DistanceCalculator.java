@@ -1,92 +1,89 @@
-/*
- * Copyright 2017 Benjamin.C.
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *      http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-package org.server.util;
-
-public final class DistanceCalculator {
-
-    private DistanceCalculator() {
-    }
-
-    private static final double EQUATORIAL_EARTH_RADIUS = 6378.1370;
-    private static final double DEG_TO_RAD = Math.PI / 180;
-
-    /**
-     *
-     * @param lat1
-     * @param lon1
-     * @param lat2
-     * @param lon2
-     * @return
-     */
-    public static double distance(
-            double lat1,
-            double lon1,
-            double lat2,
-            double lon2
-    ) throws IllegalArgumentException {
-        if (lat1 <= 0 || lon1 <= 0 || lat2 <= 0 || lon2 <= 0) {
-            throw new IllegalArgumentException("Longitude and latitude values cannot be 0s or negatives");
-        }
-
-        double dlong = (lon2 - lon1) * DEG_TO_RAD;
-        double dlat = (lat2 - lat1) * DEG_TO_RAD;
-        double a
-                = Math.pow(Math.sin(dlat / 2), 2)
-                + Math.cos(lat1 * DEG_TO_RAD)
-                * Math.cos(lat2 * DEG_TO_RAD)
-                * Math.pow(Math.sin(dlong / 2), 2);
-        double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
-        double d = EQUATORIAL_EARTH_RADIUS * c;
-        return d * 1000;
-    }
-
-    /**
-     *
-     * @param pointLat
-     * @param pointLon
-     * @param lat1
-     * @param lon1
-     * @param lat2
-     * @param lon2
-     * @return
-     */
-    public static double distanceToLine(
-            double pointLat,
-            double pointLon,
-            double lat1,
-            double lon1,
-            double lat2,
-            double lon2
-    ) throws IllegalArgumentException {
-        if (lat1 <= 0 || lon1 <= 0 || lat2 <= 0 || lon2 <= 0 || pointLat <= 0 || pointLon <= 0) {
-            throw new IllegalArgumentException("Longitude and latitude values cannot be 0s or negatives");
-        }
-
-        double d0 = distance(pointLat, pointLon, lat1, lon1);
-        double d1 = distance(lat1, lon1, lat2, lon2);
-        double d2 = distance(lat2, lon2, pointLat, pointLon);
-        if (Math.pow(d0, 2) > Math.pow(d1, 2) + Math.pow(d2, 2)) {
-            return d2;
-        }
-        if (Math.pow(d2, 2) > Math.pow(d1, 2) + Math.pow(d0, 2)) {
-            return d0;
-        }
-        double halfP = (d0 + d1 + d2) * 0.5;
-        double area = Math.sqrt(halfP * (halfP - d0) * (halfP - d1) * (halfP - d2));
-        return 2 * area / d1;
-    }
-
-}
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.util;
+
+public final class DistanceCalculator {
+
+    private DistanceCalculator() {
+    }
+
+    private static final double EQUATORIAL_EARTH_RADIUS = 6378.1370;
+    private static final double DEG_TO_RAD = Math.PI / 180;
+
+    /**
+     *
+     * @param lat1
+     * @param lon1
+     * @param lat2
+     * @param lon2
+     * @return
+     */
+    public static double distance(
+            double lat1,
+            double lon1,
+            double lat2,
+            double lon2
+    ) throws IllegalArgumentException {
+        if (Math.abs(lat1) > 90 || Math.abs(lon1) > 180 || Math.abs(lat2) > 90 || Math.abs(lon2) > 180) {
+            throw new IllegalArgumentException("Latitude must be within 90 and longitude within 180 degrees");
+        }
+
+        double dlong = (lon2 - lon1) * DEG_TO_RAD;
+        double dlat = (lat2 - lat1) * DEG_TO_RAD;
+        double a
+                = Math.pow(Math.sin(dlat / 2), 2)
+                + Math.cos(lat1 * DEG_TO_RAD)
+                * Math.cos(lat2 * DEG_TO_RAD)
+                * Math.pow(Math.sin(dlong / 2), 2);
+        double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+        double d = EQUATORIAL_EARTH_RADIUS * c;
+        return d * 1000;
+    }
+
+    /**
+     *
+     * @param pointLat
+     * @param pointLon
+     * @param lat1
+     * @param lon1
+     * @param lat2
+     * @param lon2
+     * @return
+     */
+    public static double distanceToLine(
+            double pointLat,
+            double pointLon,
+            double lat1,
+            double lon1,
+            double lat2,
+            double lon2
+    ) throws IllegalArgumentException {
+        // every point is range checked by distance, negative coordinates are valid
+        double d0 = distance(pointLat, pointLon, lat1, lon1);
+        double d1 = distance(lat1, lon1, lat2, lon2);
+        double d2 = distance(lat2, lon2, pointLat, pointLon);
+        if (Math.pow(d0, 2) > Math.pow(d1, 2) + Math.pow(d2, 2)) {
+            return d2;
+        }
+        if (Math.pow(d2, 2) > Math.pow(d1, 2) + Math.pow(d0, 2)) {
+            return d0;
+        }
+        double halfP = (d0 + d1 + d2) * 0.5;
+        double area = Math.sqrt(halfP * (halfP - d0) * (halfP - d1) * (halfP - d2));
+        return 2 * area / d1;
+    }
+
+}
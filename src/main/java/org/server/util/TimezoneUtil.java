@@ -1,61 +1,106 @@
-/*
- * Copyright 2017 Benjamin.C.
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *      http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-package org.server.util;
-
-import java.time.LocalDateTime;
-import java.time.ZoneId;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.TimeZone;
-
-public final class TimezoneUtil {
-
-    public final static String TIMEZONE_SL = "Asia/Colombo";
-
-    /**
-     *
-     * @param timezone
-     * @return
-     */
-    public static final String nowLocal(String timezone) {
-        return ZonedDateTime
-                .now()
-                .withZoneSameInstant(ZoneId.of(timezone))
-                .toLocalDateTime()
-                .format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-    }
-
-    /**
-     *
-     * @return
-     */
-    public static final LocalDateTime nowUtc() {
-        return ZonedDateTime
-                .now()
-                .withZoneSameInstant(ZoneId.of("UTC"))
-                .toLocalDateTime();
-    }
-
-    /**
-     *
-     * @param timezone
-     * @return
-     */
-    public static final LocalDateTime getZonedTimestamp(String timezone) {
-        return LocalDateTime
-                .parse(nowLocal(timezone), DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-    }
-}
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.util;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.TimeZone;
+
+public final class TimezoneUtil {
+
+    public final static String TIMEZONE_SL = "Asia/Colombo";
+
+    /**
+     *
+     * @param timezone
+     * @return
+     */
+    public static final String nowLocal(String timezone) {
+        return ZonedDateTime
+                .now()
+                .withZoneSameInstant(ZoneId.of(timezone))
+                .toLocalDateTime()
+                .format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+    }
+
+    /**
+     *
+     * @return
+     */
+    public static final LocalDateTime nowUtc() {
+        return ZonedDateTime
+                .now()
+                .withZoneSameInstant(ZoneId.of("UTC"))
+                .toLocalDateTime();
+    }
+
+    /**
+     * Epoch millis of a UTC date and time, computed arithmetically so device
+     * timestamps are converted without allocating.
+     *
+     * @param year
+     * @param month 1 to 12
+     * @param day
+     * @param hour
+     * @param minute
+     * @param second
+     * @return
+     */
+    public static final long toEpochMillis(int year, int month, int day, int hour, int minute, int second) {
+        // days since 1970-01-01 of the proleptic gregorian calendar, years starting in march
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long days = era * 146097L + dayOfEra - 719468;
+        return ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L;
+    }
+
+    /**
+     * Range check of a device reported date and time, including the length
+     * of the month.
+     *
+     * @param year
+     * @param month 1 to 12
+     * @param day
+     * @param hour
+     * @param minute
+     * @param second
+     * @return
+     */
+    public static final boolean isValidDateTime(int year, int month, int day, int hour, int minute, int second) {
+        if (month < 1 || month > 12 || day < 1 || hour > 23 || minute > 59 || second > 59) {
+            return false;
+        }
+        int length = month == 2
+                ? ((year % 4 == 0 && year % 100 != 0) || year % 400 == 0 ? 29 : 28)
+                : (month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31);
+        return day <= length;
+    }
+
+    /**
+     *
+     * @param timezone
+     * @return
+     */
+    public static final LocalDateTime getZonedTimestamp(String timezone) {
+        return LocalDateTime
+                .parse(nowLocal(timezone), DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+    }
+}
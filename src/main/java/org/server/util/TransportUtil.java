@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.util;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+
+/**
+ * Picks the Netty transport of the servers: native epoll on linux, nio
+ * everywhere else.
+ */
+public final class TransportUtil {
+
+    private TransportUtil() {
+    }
+
+    /**
+     *
+     * @return true when the native epoll transport can be used
+     */
+    public static boolean isEpollAvailable() {
+        return Epoll.isAvailable();
+    }
+
+    /**
+     *
+     * @param epoll
+     * @param threads event loop threads, 0 for netty's default of twice the
+     * cores
+     * @return
+     */
+    public static EventLoopGroup newEventLoopGroup(boolean epoll, int threads) {
+        return epoll ? new EpollEventLoopGroup(threads) : new NioEventLoopGroup(threads);
+    }
+
+    /**
+     *
+     * @param epoll
+     * @return
+     */
+    public static Class<? extends ServerChannel> serverChannelClass(boolean epoll) {
+        return epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    /**
+     * With SO_REUSEPORT every accept thread binds its own listening socket
+     * and the kernel spreads incoming connections across them, which only
+     * the epoll transport supports.
+     *
+     * @param epoll
+     * @param reusePort
+     * @param acceptThreads
+     * @return listening sockets to bind per port
+     */
+    public static int listeningSockets(boolean epoll, boolean reusePort, int acceptThreads) {
+        return epoll && reusePort ? Math.max(1, acceptThreads) : 1;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.web;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.AttributeKey;
+
+/**
+ * Authenticates the web socket upgrade of live tracking clients, which
+ * carries the key of a vehicle of the client as
+ * {@code Authorization: Bearer <token>} header. An upgrade without a valid
+ * token is answered with 401 and closed, otherwise the user the token
+ * grants is kept on the channel for the {@link LiveSubscriptionHandler}.
+ */
+public final class LiveAuthenticationHandler extends ChannelInboundHandlerAdapter {
+
+    static final AttributeKey<String> OWNER = AttributeKey.valueOf("liveTrackingOwner");
+
+    private final LiveFanout fanout;
+    private final String path;
+
+    /**
+     *
+     * @param fanout resolves access tokens
+     * @param path path of the live tracking web socket
+     */
+    public LiveAuthenticationHandler(LiveFanout fanout, String path) {
+        this.fanout = fanout;
+        this.path = path;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (msg instanceof FullHttpRequest && path.equals(((FullHttpRequest) msg).uri())) {
+            FullHttpRequest request = (FullHttpRequest) msg;
+            String owner = fanout.authenticate(QueryApiHandler.bearerToken(request.headers()));
+            if (owner == null) {
+                request.release();
+                FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.UNAUTHORIZED, Unpooled.EMPTY_BUFFER);
+                response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, 0);
+                ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+                return;
+            }
+            ctx.channel().attr(OWNER).set(owner);
+        }
+        ctx.fireChannelRead(msg);
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.web;
+
+import com.google.gson.Gson;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.server.db.VehicleRegistry;
+import org.server.dto.LiveSubscription;
+import org.server.dto.Location;
+import org.server.dto.Vehicle;
+import org.server.util.Metrics;
+
+/**
+ * Fans live locations out to web socket subscribers straight from the
+ * processor threads. Subscribers are indexed by imei and user, bounding
+ * boxes are scanned. The user of a device is taken from the bulk loaded
+ * vehicles of the {@link VehicleRegistry}, which its timer refreshes, so a
+ * vehicle activated since the last reload reaches user subscribers after the
+ * next one. Clients authenticate with the key of one of their vehicles,
+ * which grants the vehicles of its user: their imeis and their user may be
+ * subscribed, and bounding boxes only match their own vehicles.
+ * <p>
+ * A location is serialized once into a frame buffer that every matching
+ * subscriber shares. Each subscriber may have at most {@code maxPending}
+ * frames unwritten, further frames are dropped until the client catches up,
+ * so a slow client never holds back the pipeline or anybody else.
+ */
+public final class LiveFanout {
+
+    private static final LongAdder FRAMES = Metrics.counter("live.ws.frames");
+    private static final LongAdder DROPPED = Metrics.counter("live.ws.dropped");
+    private static final LongAdder SUBSCRIBERS = Metrics.counter("live.ws.subscribers");
+
+    // thread-safe, shared by every serialization
+    private static final Gson GSON = new Gson();
+
+    /**
+     * One connected client and what it is subscribed to. Only the event loop
+     * of its channel changes the subscription.
+     */
+    public final class Subscriber {
+
+        private final Channel channel;
+        private final AtomicInteger pending = new AtomicInteger();
+        private Set<Long> imeis = Collections.emptySet();
+        private Set<String> users = Collections.emptySet();
+        private volatile double[] bbox;
+        private volatile String owner;
+        private boolean subscribed;
+
+        private Subscriber(Channel channel) {
+            this.channel = channel;
+        }
+
+        private boolean contains(String user, double lat, double lng) {
+            double[] box = bbox;
+            return box != null && user != null && user.equals(owner) && lat >= box[0] && lng >= box[1] && lat <= box[2] && lng <= box[3];
+        }
+
+        private void send(ByteBuf content) {
+            if (!channel.isActive()) {
+                DROPPED.increment();
+                return;
+            }
+            // claim the slot first so concurrent senders cannot overshoot
+            if (pending.getAndIncrement() >= maxPending) {
+                pending.decrementAndGet();
+                DROPPED.increment();
+                return;
+            }
+            channel.writeAndFlush(new TextWebSocketFrame(content.retainedDuplicate()))
+                    .addListener(future -> pending.decrementAndGet());
+            FRAMES.increment();
+        }
+    }
+
+    private final ConcurrentHashMap<Long, Set<Subscriber>> byImei = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<Subscriber>> byUser = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<Subscriber> byArea = new CopyOnWriteArrayList<>();
+    private final AtomicInteger subscribed = new AtomicInteger();
+    // matched subscribers of the location being published, reused by every processor thread
+    private final ThreadLocal<Set<Subscriber>> matched = ThreadLocal.withInitial(HashSet::new);
+    private final VehicleRegistry registry;
+    private final int maxPending;
+
+    /**
+     *
+     * @param registry resolves access tokens and the user of a device
+     * @param maxPending frames a subscriber may have unwritten before frames
+     * are dropped
+     */
+    public LiveFanout(VehicleRegistry registry, int maxPending) {
+        this.registry = registry;
+        this.maxPending = maxPending;
+    }
+
+    /**
+     *
+     * @param token key of a vehicle of the client
+     * @return the user the token grants access to, or null
+     */
+    public String authenticate(String token) {
+        Vehicle vehicle = registry.getLoadedVehicleByKey(token);
+        return vehicle != null ? vehicle.getUser() : null;
+    }
+
+    /**
+     *
+     * @param user
+     * @param imei
+     * @return true when the device is an active vehicle of the user
+     */
+    public boolean isAccessible(String user, long imei) {
+        Vehicle vehicle = registry.getLoadedVehicle(imei);
+        return vehicle != null && user != null && user.equals(vehicle.getUser());
+    }
+
+    /**
+     *
+     * @param channel
+     * @return a subscriber without subscriptions
+     */
+    public Subscriber newSubscriber(Channel channel) {
+        return new Subscriber(channel);
+    }
+
+    /**
+     * Replaces the subscription of {@code subscriber}, which the caller has
+     * checked to be accessible to {@code owner}.
+     *
+     * @param subscriber
+     * @param owner authenticated user of the subscriber
+     * @param subscription
+     */
+    public void subscribe(Subscriber subscriber, String owner, LiveSubscription subscription) {
+        unsubscribe(subscriber);
+        subscriber.owner = owner;
+        subscriber.imeis = subscription.getImei() != null ? new HashSet<>(subscription.getImei()) : Collections.<Long>emptySet();
+        subscriber.users = subscription.getUser() != null ? new HashSet<>(subscription.getUser()) : Collections.<String>emptySet();
+        for (Long imei : subscriber.imeis) {
+            add(byImei, imei, subscriber);
+        }
+        for (String user : subscriber.users) {
+            add(byUser, user, subscriber);
+        }
+        if (subscription.getBbox() != null) {
+            subscriber.bbox = new double[]{
+                subscription.getBbox().get(0),
+                subscription.getBbox().get(1),
+                subscription.getBbox().get(2),
+                subscription.getBbox().get(3)
+            };
+            byArea.add(subscriber);
+        }
+        subscriber.subscribed = true;
+        subscribed.incrementAndGet();
+        SUBSCRIBERS.increment();
+    }
+
+    /**
+     *
+     * @param subscriber
+     */
+    public void unsubscribe(Subscriber subscriber) {
+        if (!subscriber.subscribed) {
+            return;
+        }
+        for (Long imei : subscriber.imeis) {
+            remove(byImei, imei, subscriber);
+        }
+        for (String user : subscriber.users) {
+            remove(byUser, user, subscriber);
+        }
+        if (subscriber.bbox != null) {
+            byArea.remove(subscriber);
+        }
+        subscriber.imeis = Collections.emptySet();
+        subscriber.users = Collections.emptySet();
+        subscriber.bbox = null;
+        subscriber.owner = null;
+        subscriber.subscribed = false;
+        subscribed.decrementAndGet();
+        SUBSCRIBERS.decrement();
+    }
+
+    /**
+     * Sends {@code location} to every subscriber it matches. Costs one
+     * counter read while nobody is subscribed.
+     *
+     * @param location
+     */
+    public void publish(Location location) {
+        if (subscribed.get() == 0) {
+            return;
+        }
+        Set<Subscriber> targets = matched.get();
+        try {
+            collect(location, targets);
+            if (!targets.isEmpty()) {
+                send(location, targets);
+            }
+        } finally {
+            targets.clear();
+        }
+    }
+
+    /**
+     * Adds every subscriber {@code location} matches to {@code targets}, a
+     * subscriber matching more than one way is added once.
+     *
+     * @param location
+     * @param targets
+     */
+    private void collect(Location location, Set<Subscriber> targets) {
+        Set<Subscriber> subscribers = byImei.get(location.getImei());
+        if (subscribers != null) {
+            targets.addAll(subscribers);
+        }
+        String user = null;
+        if (!byUser.isEmpty() || !byArea.isEmpty()) {
+            // lock-free read of the last bulk reload, never a query per point
+            Vehicle vehicle = registry.getLoadedVehicle(location.getImei());
+            user = vehicle != null ? vehicle.getUser() : null;
+        }
+        if (user != null && !byUser.isEmpty()) {
+            subscribers = byUser.get(user);
+            if (subscribers != null) {
+                targets.addAll(subscribers);
+            }
+        }
+        if (user != null && !byArea.isEmpty() && location.getPoint() != null) {
+            double lat = location.getPoint().get(0);
+            double lng = location.getPoint().get(1);
+            for (Subscriber subscriber : byArea) {
+                if (subscriber.contains(user, lat, lng)) {
+                    targets.add(subscriber);
+                }
+            }
+        }
+    }
+
+    private static void send(Location location, Set<Subscriber> targets) {
+        // same message format as the per-device broker topics
+        ByteBuf content = Unpooled.copiedBuffer(GSON.toJson(Collections.singletonList(location)), StandardCharsets.UTF_8);
+        try {
+            for (Subscriber subscriber : targets) {
+                subscriber.send(content);
+            }
+        } finally {
+            content.release();
+        }
+    }
+
+    private static <K> void add(ConcurrentHashMap<K, Set<Subscriber>> index, K key, Subscriber subscriber) {
+        index.compute(key, (k, subscribers) -> {
+            Set<Subscriber> set = subscribers != null ? subscribers : new CopyOnWriteArraySet<>();
+            set.add(subscriber);
+            return set;
+        });
+    }
+
+    private static <K> void remove(ConcurrentHashMap<K, Set<Subscriber>> index, K key, Subscriber subscriber) {
+        index.computeIfPresent(key, (k, subscribers) -> {
+            subscribers.remove(subscriber);
+            return subscribers.isEmpty() ? null : subscribers;
+        });
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.web;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.server.dto.LiveSubscription;
+import org.server.util.TimezoneUtil;
+
+/**
+ * Reads the subscriptions of one live tracking client, a JSON
+ * {@link LiveSubscription} per text frame, and unsubscribes the client when
+ * it disconnects. Every frame is answered with a status frame, a subscription
+ * on a connection the {@link LiveAuthenticationHandler} did not authenticate
+ * or asking for vehicles of another user is refused.
+ */
+public final class LiveSubscriptionHandler extends SimpleChannelInboundHandler<TextWebSocketFrame> {
+
+    private static final Logger ERROR_LOGGER = LogManager.getLogger("ErrorLog");
+
+    private static final Gson GSON = new Gson();
+
+    private final LiveFanout fanout;
+    private LiveFanout.Subscriber subscriber;
+
+    /**
+     *
+     * @param fanout
+     */
+    public LiveSubscriptionHandler(LiveFanout fanout) {
+        this.fanout = fanout;
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, TextWebSocketFrame frame) {
+        LiveSubscription subscription;
+        try {
+            subscription = GSON.fromJson(frame.text(), LiveSubscription.class);
+        } catch (JsonSyntaxException ex) {
+            reply(ctx, "invalid subscription");
+            return;
+        }
+        if (subscription == null) {
+            reply(ctx, "invalid subscription");
+            return;
+        }
+        if (subscription.getBbox() != null && subscription.getBbox().size() != 4) {
+            reply(ctx, "bbox must be minLat, minLng, maxLat, maxLng");
+            return;
+        }
+        String owner = ctx.channel().attr(LiveAuthenticationHandler.OWNER).get();
+        if (owner == null) {
+            reply(ctx, "unauthorized");
+            return;
+        }
+        if (subscription.getImei() != null) {
+            for (Long imei : subscription.getImei()) {
+                if (imei == null || !fanout.isAccessible(owner, imei)) {
+                    reply(ctx, "imei " + imei + " is not accessible");
+                    return;
+                }
+            }
+        }
+        if (subscription.getUser() != null) {
+            for (String user : subscription.getUser()) {
+                if (!owner.equals(user)) {
+                    reply(ctx, "user " + user + " is not accessible");
+                    return;
+                }
+            }
+        }
+        if (subscriber == null) {
+            subscriber = fanout.newSubscriber(ctx.channel());
+        }
+        fanout.subscribe(subscriber, owner, subscription);
+        reply(ctx, "subscribed");
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (subscriber != null) {
+            fanout.unsubscribe(subscriber);
+        }
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        ERROR_LOGGER.error(getLogMetaInfo(), cause);
+        ctx.close();
+    }
+
+    private static void reply(ChannelHandlerContext ctx, String status) {
+        ctx.writeAndFlush(new TextWebSocketFrame("{\"status\":\"" + status + "\"}"));
+    }
+
+    private static String getLogMetaInfo() {
+        return TimezoneUtil.nowUtc() + " [LiveSubscriptionHandler.class]";
+    }
+}
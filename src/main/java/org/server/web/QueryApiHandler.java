@@ -0,0 +1,385 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.web;
+
+import com.google.gson.stream.JsonWriter;
+import com.mongodb.MongoException;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.List;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.bson.types.ObjectId;
+import org.server.db.DatabaseHandler;
+import org.server.db.VehicleRegistry;
+import org.server.dto.Location;
+import org.server.dto.LocationRecord;
+import org.server.dto.Vehicle;
+import org.server.util.TimezoneUtil;
+import org.server.workers.LastKnownLocationStore;
+
+/**
+ * Read-side query API, all timestamps are epoch millis.
+ * <ul>
+ * <li>{@code GET /api/last/<imei>} the last known location, served from the
+ * in-memory store without touching the database</li>
+ * <li>{@code GET /api/track/<imei>?from=&to=&limit=&after=} stored locations
+ * in timestamp order, ties in id order. A full page carries {@code next}, a
+ * cursor of its last location, which is passed as {@code after} with the
+ * same {@code to} to continue after it, {@code from} is then ignored</li>
+ * </ul>
+ * Every request carries the key of a vehicle of the client as
+ * {@code Authorization: Bearer <token>} header, never in the uri, which ends
+ * up in logs, and may only ask for vehicles of the same user.
+ * Tracks are streamed from the database cursor into a chunked response, so a
+ * long track is never held in memory. Runs on its own executor group as the
+ * database calls block.
+ */
+public final class QueryApiHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+
+    private static final Logger ERROR_LOGGER = LogManager.getLogger("ErrorLog");
+
+    public static final String PATH_PREFIX = "/api/";
+    private static final String LAST_PATH = PATH_PREFIX + "last/";
+    private static final String TRACK_PATH = PATH_PREFIX + "track/";
+
+    private static final int CHUNK_SIZE = 8 * 1024;
+    private static final String CONTENT_TYPE_JSON = "application/json; charset=UTF-8";
+    private static final char CURSOR_SEPARATOR = '_';
+    private static final String BEARER = "Bearer ";
+
+    private final LastKnownLocationStore store;
+    private final DatabaseHandler databaseHandler;
+    private final VehicleRegistry registry;
+    private final int trackBatchSize;
+    private final int trackMaxLimit;
+    private final LocationRecord record = new LocationRecord();
+
+    /**
+     *
+     * @param store
+     * @param databaseHandler
+     * @param registry resolves access tokens and the user of a device
+     * @param trackBatchSize documents fetched per cursor round trip
+     * @param trackMaxLimit maximum and default page size of a track
+     */
+    public QueryApiHandler(
+            LastKnownLocationStore store,
+            DatabaseHandler databaseHandler,
+            VehicleRegistry registry,
+            int trackBatchSize,
+            int trackMaxLimit
+    ) {
+        this.store = store;
+        this.databaseHandler = databaseHandler;
+        this.registry = registry;
+        this.trackBatchSize = trackBatchSize;
+        this.trackMaxLimit = trackMaxLimit;
+    }
+
+    @Override
+    public boolean acceptInboundMessage(Object msg) throws Exception {
+        return msg instanceof FullHttpRequest && ((FullHttpRequest) msg).uri().startsWith(PATH_PREFIX);
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) throws Exception {
+        boolean keepAlive = HttpUtil.isKeepAlive(request);
+        if (!HttpMethod.GET.equals(request.method())) {
+            sendError(ctx, HttpResponseStatus.METHOD_NOT_ALLOWED, "only GET is supported", keepAlive);
+            return;
+        }
+        QueryStringDecoder query = new QueryStringDecoder(request.uri());
+        String path = query.path();
+        Vehicle client = registry.getLoadedVehicleByKey(bearerToken(request.headers()));
+        if (client == null || client.getUser() == null) {
+            sendError(ctx, HttpResponseStatus.UNAUTHORIZED, "a valid token is required", keepAlive);
+            return;
+        }
+        try {
+            if (path.startsWith(LAST_PATH)) {
+                long imei = Long.parseLong(path.substring(LAST_PATH.length()));
+                if (!isAccessible(client, imei)) {
+                    sendError(ctx, HttpResponseStatus.FORBIDDEN, imei + " is not accessible", keepAlive);
+                    return;
+                }
+                sendLastLocation(ctx, imei, keepAlive);
+            } else if (path.startsWith(TRACK_PATH)) {
+                long imei = Long.parseLong(path.substring(TRACK_PATH.length()));
+                if (!isAccessible(client, imei)) {
+                    sendError(ctx, HttpResponseStatus.FORBIDDEN, imei + " is not accessible", keepAlive);
+                    return;
+                }
+                long to = parameter(query, "to", System.currentTimeMillis());
+                long from = parameter(query, "from", to - 24 * 60 * 60 * 1000L);
+                int limit = (int) Math.min(parameter(query, "limit", trackMaxLimit), trackMaxLimit);
+                String afterId = null;
+                List<String> after = query.parameters().get("after");
+                if (after != null && !after.isEmpty()) {
+                    String cursor = after.get(0);
+                    int separator = cursor.indexOf(CURSOR_SEPARATOR);
+                    afterId = separator < 0 ? null : cursor.substring(separator + 1);
+                    if (afterId == null || !ObjectId.isValid(afterId)) {
+                        sendError(ctx, HttpResponseStatus.BAD_REQUEST, "after must be the next cursor of a previous page", keepAlive);
+                        return;
+                    }
+                    from = Long.parseLong(cursor.substring(0, separator));
+                }
+                if (from >= to || limit <= 0) {
+                    sendError(ctx, HttpResponseStatus.BAD_REQUEST, "from must be before to and limit positive", keepAlive);
+                    return;
+                }
+                streamTrack(ctx, imei, from, to, afterId, limit, keepAlive);
+            } else {
+                sendError(ctx, HttpResponseStatus.NOT_FOUND, "unknown resource", keepAlive);
+            }
+        } catch (NumberFormatException ex) {
+            sendError(ctx, HttpResponseStatus.BAD_REQUEST, "imei, from, to and limit must be numbers", keepAlive);
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        ERROR_LOGGER.error(getLogMetaInfo(), cause);
+        ctx.close();
+    }
+
+    private void sendLastLocation(ChannelHandlerContext ctx, long imei, boolean keepAlive) throws IOException {
+        if (!store.get(imei, record)) {
+            sendError(ctx, HttpResponseStatus.NOT_FOUND, "no location of " + imei, keepAlive);
+            return;
+        }
+        StringWriter body = new StringWriter();
+        JsonWriter json = new JsonWriter(body);
+        json.beginObject()
+                .name("imei").value(record.getImei())
+                .name("lat").value(record.getLat())
+                .name("lng").value(record.getLng())
+                .name("speed").value(record.getSpeed())
+                .name("heading").value(record.getHeading())
+                .name("timestamp").value(record.getTimestamp())
+                .endObject();
+        json.close();
+        send(ctx, HttpResponseStatus.OK, body.toString(), keepAlive);
+    }
+
+    private void streamTrack(ChannelHandlerContext ctx, long imei, long from, long to, String afterId, int limit, boolean keepAlive) {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.headers()
+                .set(HttpHeaderNames.CONTENT_TYPE, CONTENT_TYPE_JSON)
+                .set(HttpHeaderNames.TRANSFER_ENCODING, HttpHeaderValues.CHUNKED);
+        // written through the channel, whose event loop completes the writes this thread may wait for
+        Channel channel = ctx.channel();
+        channel.write(response);
+        ChunkedWriter out = new ChunkedWriter(channel);
+        try {
+            JsonWriter json = new JsonWriter(out);
+            json.beginObject()
+                    .name("imei").value(imei)
+                    .name("locations").beginArray();
+            long[] last = {from};
+            String[] lastId = {afterId};
+            int count = databaseHandler.findTrack(imei, from, to, afterId, limit, trackBatchSize, location -> {
+                try {
+                    last[0] = writeLocation(json, location);
+                    lastId[0] = location.getId();
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+            json.endArray().name("count").value(count);
+            // a full page may be followed by more, the next one starts right after its last location
+            json.name("next");
+            if (count == limit) {
+                json.value(Long.toString(last[0]) + CURSOR_SEPARATOR + lastId[0]);
+            } else {
+                json.nullValue();
+            }
+            json.endObject();
+            json.flush();
+            out.finish(keepAlive);
+        } catch (IOException | UncheckedIOException | ClassNotFoundException | MongoException ex) {
+            // the status is already sent, all that is left is to cut the response short
+            ERROR_LOGGER.error(getLogMetaInfo() + " Track of " + imei + " aborted", ex);
+            out.discard();
+            channel.close();
+        }
+    }
+
+    private static long writeLocation(JsonWriter json, Location location) throws IOException {
+        long timestamp = location.getTimestamp().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        List<Double> point = location.getPoint();
+        json.beginObject().name("timestamp").value(timestamp);
+        if (location.getReceivedTime() != null) {
+            json.name("receivedTime").value(location.getReceivedTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        }
+        if (point != null && point.size() >= 2) {
+            json.name("lat").value(point.get(0)).name("lng").value(point.get(1));
+        }
+        json.name("speed").value(location.getSpeed())
+                .name("heading").value(location.getHeading())
+                .name("distance").value(location.getDistance());
+        if (Boolean.TRUE.equals(location.getBackfill())) {
+            json.name("backfill").value(true);
+        }
+        json.endObject();
+        return timestamp;
+    }
+
+    private boolean isAccessible(Vehicle client, long imei) {
+        Vehicle vehicle = registry.getLoadedVehicle(imei);
+        return vehicle != null && client.getUser().equals(vehicle.getUser());
+    }
+
+    /**
+     *
+     * @param headers
+     * @return the token of a bearer authorization header, or null
+     */
+    static String bearerToken(HttpHeaders headers) {
+        String authorization = headers.get(HttpHeaderNames.AUTHORIZATION);
+        if (authorization != null && authorization.startsWith(BEARER)) {
+            return authorization.substring(BEARER.length()).trim();
+        }
+        return null;
+    }
+
+    private static long parameter(QueryStringDecoder query, String name, long defaultValue) {
+        List<String> values = query.parameters().get(name);
+        return values == null || values.isEmpty() ? defaultValue : Long.parseLong(values.get(0));
+    }
+
+    private static void sendError(ChannelHandlerContext ctx, HttpResponseStatus status, String message, boolean keepAlive) throws IOException {
+        StringWriter body = new StringWriter();
+        JsonWriter json = new JsonWriter(body);
+        json.beginObject().name("error").value(message).endObject();
+        json.close();
+        send(ctx, status, body.toString(), keepAlive);
+    }
+
+    private static void send(ChannelHandlerContext ctx, HttpResponseStatus status, String body, boolean keepAlive) {
+        FullHttpResponse response = new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1,
+                status,
+                Unpooled.copiedBuffer(body, StandardCharsets.UTF_8)
+        );
+        response.headers()
+                .set(HttpHeaderNames.CONTENT_TYPE, CONTENT_TYPE_JSON)
+                .setInt(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+        ChannelFuture future = ctx.writeAndFlush(response);
+        if (!keepAlive) {
+            future.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    private static String getLogMetaInfo() {
+        return TimezoneUtil.nowUtc() + " [QueryApiHandler.class]";
+    }
+
+    /**
+     * Sends what is written as HTTP chunks of about {@value #CHUNK_SIZE}
+     * chars. While the channel is not writable the writer waits for the last
+     * chunk to go out, so at most a few chunks are buffered no matter how
+     * long the response is.
+     */
+    private static final class ChunkedWriter extends Writer {
+
+        private final Channel channel;
+        private final StringBuilder chunk = new StringBuilder(CHUNK_SIZE);
+
+        private ChunkedWriter(Channel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            chunk.append(cbuf, off, len);
+            if (chunk.length() >= CHUNK_SIZE) {
+                sendChunk();
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            chunk.append(str, off, off + len);
+            if (chunk.length() >= CHUNK_SIZE) {
+                sendChunk();
+            }
+        }
+
+        @Override
+        public void flush() {
+            // chunks are sent when full, see finish
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private void finish(boolean keepAlive) throws IOException {
+            if (chunk.length() > 0) {
+                sendChunk();
+            }
+            ChannelFuture future = channel.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+            if (!keepAlive) {
+                future.addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+
+        private void discard() {
+            chunk.setLength(0);
+        }
+
+        private void sendChunk() throws IOException {
+            ByteBuf content = ByteBufUtil.writeUtf8(channel.alloc(), chunk);
+            chunk.setLength(0);
+            ChannelFuture future = channel.writeAndFlush(new DefaultHttpContent(content));
+            if (!channel.isWritable()) {
+                future.awaitUninterruptibly();
+            }
+            if (future.isDone() && !future.isSuccess()) {
+                throw new IOException("Unable to send track chunk", future.cause());
+            }
+        }
+    }
+}
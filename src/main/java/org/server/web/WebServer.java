@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.web;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutorGroup;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.server.db.DatabaseHandler;
+import org.server.db.VehicleRegistry;
+import org.server.dto.properties.ServerProperties;
+import org.server.util.TransportUtil;
+import org.server.workers.LastKnownLocationStore;
+
+/**
+ * HTTP server for browsers and dashboards, separate from the device port and
+ * running on its own event loops so web clients never compete with devices
+ * for I/O threads. Serves the live tracking web socket on
+ * {@code liveTrackingPath} and the {@link QueryApiHandler} under
+ * {@value QueryApiHandler#PATH_PREFIX}, the latter on a separate executor
+ * group of {@code apiThreads} as its database calls block.
+ */
+public final class WebServer {
+
+    private static final Logger DEBUG_LOGGER = LogManager.getLogger("DebugLog");
+
+    private static final int MAX_CONTENT_LENGTH = 64 * 1024;
+
+    private final ServerProperties serverProperties;
+    private final LiveFanout fanout;
+    private final LastKnownLocationStore store;
+    private final DatabaseHandler databaseHandler;
+    private final VehicleRegistry registry;
+
+    /**
+     *
+     * @param serverProperties
+     * @param fanout
+     * @param store
+     * @param databaseHandler
+     * @param registry
+     */
+    public WebServer(
+            ServerProperties serverProperties,
+            LiveFanout fanout,
+            LastKnownLocationStore store,
+            DatabaseHandler databaseHandler,
+            VehicleRegistry registry
+    ) {
+        this.serverProperties = serverProperties;
+        this.fanout = fanout;
+        this.store = store;
+        this.databaseHandler = databaseHandler;
+        this.registry = registry;
+    }
+
+    /**
+     *
+     * @throws InterruptedException
+     */
+    public void start() throws InterruptedException {
+        final boolean epoll = TransportUtil.isEpollAvailable();
+        EventLoopGroup group = TransportUtil.newEventLoopGroup(epoll, serverProperties.getWebThreads());
+        final EventExecutorGroup apiGroup = new DefaultEventExecutorGroup(serverProperties.getApiThreads());
+
+        ServerBootstrap b = new ServerBootstrap();
+        b.group(group)
+                .channel(TransportUtil.serverChannelClass(epoll))
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    public void initChannel(SocketChannel ch) throws Exception {
+                        ch.pipeline().addLast(
+                                new HttpServerCodec(),
+                                new HttpObjectAggregator(MAX_CONTENT_LENGTH),
+                                new LiveAuthenticationHandler(fanout, serverProperties.getLiveTrackingPath()),
+                                new WebSocketServerProtocolHandler(serverProperties.getLiveTrackingPath(), null, true),
+                                new LiveSubscriptionHandler(fanout)
+                        );
+                        ch.pipeline().addLast(apiGroup, new QueryApiHandler(
+                                store,
+                                databaseHandler,
+                                registry,
+                                serverProperties.getTrackBatchSize(),
+                                serverProperties.getTrackMaxLimit()
+                        ));
+                        ch.pipeline().addLast(new NotFoundHandler());
+                    }
+                });
+        b.bind(serverProperties.getWebPort()).sync();
+        DEBUG_LOGGER.debug("Web server listening on " + serverProperties.getWebPort() + ", live tracking on " + serverProperties.getLiveTrackingPath());
+    }
+
+    /**
+     * Answers every request no other handler took.
+     */
+    private static final class NotFoundHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_FOUND, Unpooled.EMPTY_BUFFER);
+            response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, 0);
+            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.workers;
+
+import org.server.protocol.Tk103ProtocolDecoder;
+
+/**
+ * Connectivity state of a tracked device.
+ * <pre>
+ *   ONLINE/RECOVERED --stale threshold--&gt; STALE --offline threshold--&gt; OFFLINE
+ *   STALE --point--&gt; ONLINE
+ *   OFFLINE --point--&gt; RECOVERED
+ * </pre>
+ * RECOVERED behaves like ONLINE and quietly becomes ONLINE once the device
+ * keeps reporting.
+ */
+public enum DeviceState {
+
+    ONLINE(Tk103ProtocolDecoder.DEVICE_ONLINE),
+    STALE(Tk103ProtocolDecoder.DEVICE_STALE),
+    OFFLINE(Tk103ProtocolDecoder.DEVICE_OFFLINE),
+    RECOVERED(Tk103ProtocolDecoder.DEVICE_RECOVERED);
+
+    private final int status;
+
+    private DeviceState(int status) {
+        this.status = status;
+    }
+
+    /**
+     *
+     * @return status code published on the request status topic
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     *
+     * @return true while points are arriving
+     */
+    public boolean isReporting() {
+        return this == ONLINE || this == RECOVERED;
+    }
+
+    /**
+     *
+     * @return state after a new point
+     */
+    public DeviceState onPoint() {
+        switch (this) {
+            case STALE: {
+                return ONLINE;
+            }
+            case OFFLINE: {
+                return RECOVERED;
+            }
+            default: {
+                return this;
+            }
+        }
+    }
+
+    /**
+     *
+     * @param stale the stale threshold has passed since the last point
+     * @param offline the offline threshold has passed since the last point
+     * @return state when the device's timeout expires
+     */
+    public DeviceState onTimeout(boolean stale, boolean offline) {
+        if (offline) {
+            return OFFLINE;
+        }
+        if (stale) {
+            return STALE;
+        }
+        return this == RECOVERED ? ONLINE : onPoint();
+    }
+}
@@ -1,141 +1,195 @@
-/*
- * Copyright 2017 Benjamin.C.
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *      http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-package org.server.workers;
-
-import io.netty.buffer.ByteBuf;
-import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelFutureListener;
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelInboundHandlerAdapter;
-import java.util.Objects;
-import java.util.concurrent.LinkedBlockingQueue;
-import org.apache.log4j.LogManager;
-import org.apache.log4j.Logger;
-import org.server.dto.Message;
-import org.server.protocol.Tk103ProtocolDecoder;
-import org.server.util.TimezoneUtil;
-
-public final class InboundRequestHandlerEngine extends ChannelInboundHandlerAdapter {
-
-    private static final Logger ERROR_LOGGER = LogManager.getLogger("ErrorLog");
-    private static final Logger REQ_LOGGER = LogManager.getLogger("RequestLog");
-
-    private final LinkedBlockingQueue<String> queue;
-    private final LinkedBlockingQueue<Message> mq;
-    private ByteBuf tmp;
-
-    private static final int BYTE_BUFFER_INIT_CAPACITY = 190;
-    private static final int[] DEVICE_ID_POSITION = {1, 13};
-    private static final int[] COMMAND_POSITION = {13, 17};
-
-    /**
-     *
-     * @param q
-     * @param mq
-     */
-    public InboundRequestHandlerEngine(
-            LinkedBlockingQueue<String> q,
-            LinkedBlockingQueue<Message> mq
-    ) {
-        this.queue = q;
-        this.mq = mq;
-    }
-
-    @Override
-    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
-        tmp = ctx.alloc().buffer(BYTE_BUFFER_INIT_CAPACITY);
-    }
-
-    @Override
-    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
-        tmp.release();
-        tmp = null;
-    }
-
-    @Override
-    public void channelRead(ChannelHandlerContext ctx, Object msg) {
-        ByteBuf in = (ByteBuf) msg;
-        tmp.writeBytes(in);
-        in.release();
-        StringBuilder sb = new StringBuilder();
-        try {
-            while (tmp.isReadable()) {
-                sb.append((char) tmp.readByte());
-            }
-
-            String oriRequest = sb.toString();
-            REQ_LOGGER.info(TimezoneUtil.nowLocal("Asia/Colombo") + "-" + oriRequest);
-            ChannelFuture f = null;
-
-            if (Objects.nonNull(oriRequest) && oriRequest.length() > 17) {
-                String deviceId = oriRequest.substring(DEVICE_ID_POSITION[0], DEVICE_ID_POSITION[1]);
-                String command = oriRequest.substring(COMMAND_POSITION[0], COMMAND_POSITION[1]);
-
-                switch (command) {
-                    //BP05
-                    case Tk103ProtocolDecoder.CMD_LOGIN: {
-                        this.queue.put(oriRequest);
-                        f = ctx.writeAndFlush(Tk103ProtocolDecoder.getLoginCommandResponse(deviceId));
-                        break;
-                    }
-                    //BP00
-                    case Tk103ProtocolDecoder.CMD_HANDSHAKE_SIGNAL: {
-                        f = ctx.writeAndFlush(Tk103ProtocolDecoder.getHandshakeResponse(deviceId));
-                        break;
-                    }
-                    //BR00
-                    case Tk103ProtocolDecoder.CMD_CONTINUES_FEEDBACK: {
-                        f = ctx.writeAndFlush("No");
-                        break;
-                    }
-                    default: {
-                        break;
-                    }
-                }
-            }
-            //channel close
-            if (f != null) {
-                f.addListener(ChannelFutureListener.CLOSE);
-            }
-        } catch (InterruptedException ex) {
-            try {
-                exceptionCaught(null, ex);
-            } catch (Exception ex1) {
-                ERROR_LOGGER.error(getLogMetaInfo(), ex1);
-            }
-        }
-    }
-
-    @Override
-    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
-        ERROR_LOGGER.error(getLogMetaInfo(), cause);
-        try {
-            this.mq.put(Message.getBuilder()
-                    .type(Message.MessageType.CRITICAL_SERVER_FAILURE)
-                    .message(cause.getLocalizedMessage())
-                    .timestamp(TimezoneUtil.nowLocal(TimezoneUtil.TIMEZONE_SL))
-                    .payload(cause)
-                    .build()
-            );
-        } catch (InterruptedException ex) {
-            ERROR_LOGGER.error(getLogMetaInfo(), ex);
-        }
-    }
-
-    private static String getLogMetaInfo() {
-        return TimezoneUtil.nowUtc() + " [InboundRequestHandlerEngine.class]";
-    }
-}
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.workers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.timeout.IdleStateEvent;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.server.dto.LocationRecord;
+import org.server.dto.Message;
+import org.server.protocol.DeferredReply;
+import org.server.protocol.DeviceFrame;
+import org.server.protocol.DeviceProtocol;
+import org.server.util.Metrics;
+import org.server.util.TimezoneUtil;
+
+/**
+ * Protocol independent end of the device pipeline. Hands the locations of
+ * every {@link DeviceFrame} to the dispatcher as one unit and writes the
+ * reply the protocol encodes for it.
+ * <p>
+ * Every location is stamped with the time it was received. A device time
+ * more than {@code maxClockSkew} ahead of it is clamped to the received time,
+ * otherwise a single point from a clock running ahead would make every later
+ * point of the device look late.
+ * <p>
+ * When the protocol's reply confirms storage the reply is not written here
+ * but handed to the processor with the frame's last location, see
+ * {@link DeferredReply}. Only a frame that is not accepted is answered right
+ * away.
+ * <p>
+ * Without keep-alive a replied connection is closed once it stayed silent
+ * for {@code closeDelay}. Every read postpones the close, so a continuation
+ * the device sends in a later segment, or the rest of a frame split across
+ * segments, is still read and answered.
+ */
+public final class InboundRequestHandlerEngine extends ChannelInboundHandlerAdapter {
+
+    private static final Logger ERROR_LOGGER = LogManager.getLogger("ErrorLog");
+
+    private static final LongAdder FUTURE_TIMESTAMPS = Metrics.counter("ingest.clock.future");
+
+    private final DeviceProtocol protocol;
+    private final RequestDispatcher dispatcher;
+    private final LinkedBlockingQueue<Message> mq;
+    private final boolean keepAlive;
+    private final long closeDelay;
+    private final long maxClockSkew;
+    private ChannelFuture lastReply;
+    private ScheduledFuture<?> pendingClose;
+
+    /**
+     *
+     * @param protocol
+     * @param dispatcher
+     * @param mq
+     * @param keepAlive keep the device connection open between reports,
+     * session based protocols are always kept open
+     * @param closeDelay milliseconds a replied connection may stay silent
+     * before it is closed, unused with keep-alive
+     * @param maxClockSkew milliseconds a device time may be ahead of the
+     * received time before it is clamped
+     */
+    public InboundRequestHandlerEngine(
+            DeviceProtocol protocol,
+            RequestDispatcher dispatcher,
+            LinkedBlockingQueue<Message> mq,
+            boolean keepAlive,
+            long closeDelay,
+            long maxClockSkew
+    ) {
+        this.protocol = protocol;
+        this.dispatcher = dispatcher;
+        this.mq = mq;
+        this.keepAlive = keepAlive || protocol.isSessionBased();
+        this.closeDelay = closeDelay;
+        this.maxClockSkew = maxClockSkew;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        DeviceFrame frame = (DeviceFrame) msg;
+        long received = System.currentTimeMillis();
+        for (int i = 0; i < frame.getLocationCount(); i++) {
+            LocationRecord location = frame.getLocation(i);
+            location.setReceivedTime(received);
+            if (location.getTimestamp() > received + maxClockSkew) {
+                FUTURE_TIMESTAMPS.increment();
+                location.setTimestamp(received);
+            }
+        }
+        // overload drops are counted by the dispatcher's shard, not logged per point
+        if (protocol.isAcknowledgingStorage() && frame.getLocationCount() > 0) {
+            frame.setAccepted(true);
+            ByteBuf deferred = protocol.encodeReply(ctx.alloc(), frame);
+            LocationRecord last = frame.getLocation(frame.getLocationCount() - 1);
+            last.setReply(deferred == null ? null : new DeferredReply(ctx.channel(), deferred));
+            boolean accepted = this.dispatcher.publish(frame, ctx.channel());
+            // the slot is reused by the decoder
+            last.setReply(null);
+            if (accepted) {
+                return;
+            }
+            if (deferred != null) {
+                deferred.release();
+            }
+            frame.setAccepted(false);
+        } else {
+            frame.setAccepted(this.dispatcher.publish(frame, ctx.channel()));
+        }
+        ByteBuf reply = protocol.encodeReply(ctx.alloc(), frame);
+        if (reply != null) {
+            lastReply = ctx.write(reply);
+        }
+    }
+
+    /**
+     * Replies for every frame of a read burst (e.g. a TK103 BP05 followed by
+     * BR00 continuations) are flushed together. Unless running in keep-alive
+     * mode the close is (re)scheduled after every read once a reply was
+     * written, and happens after the last reply is written.
+     *
+     * @param ctx
+     */
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        ctx.flush();
+        if (lastReply != null && !keepAlive) {
+            if (pendingClose != null) {
+                pendingClose.cancel(false);
+            }
+            final ChannelFuture reply = lastReply;
+            pendingClose = ctx.executor().schedule(
+                    () -> reply.addListener(ChannelFutureListener.CLOSE), closeDelay, TimeUnit.MILLISECONDS
+            );
+        }
+    }
+
+    /**
+     * Reaps keep-alive connections that went silent.
+     *
+     * @param ctx
+     * @param evt
+     * @throws Exception
+     */
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof IdleStateEvent) {
+            ctx.close();
+        } else {
+            super.userEventTriggered(ctx, evt);
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        ERROR_LOGGER.error(getLogMetaInfo(), cause);
+        try {
+            this.mq.put(Message.getBuilder()
+                    .type(Message.MessageType.CRITICAL_SERVER_FAILURE)
+                    .message(cause.getLocalizedMessage())
+                    .timestamp(TimezoneUtil.nowLocal(TimezoneUtil.TIMEZONE_SL))
+                    .payload(cause)
+                    .build()
+            );
+        } catch (InterruptedException ex) {
+            ERROR_LOGGER.error(getLogMetaInfo(), ex);
+        }
+    }
+
+    private static String getLogMetaInfo() {
+        return TimezoneUtil.nowUtc() + " [InboundRequestHandlerEngine.class]";
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.workers;
+
+import io.netty.channel.Channel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import org.server.protocol.DeviceFrame;
+import org.server.util.Metrics;
+
+/**
+ * Admission control in front of one shard's ring buffer. Once the ring fills
+ * up to the high watermark the shard is overloaded and the configured policy
+ * applies until the processor has drained it back to the low watermark.
+ */
+public final class IngestBackpressure {
+
+    public enum OverloadPolicy {
+        /**
+         * stop reading from the sending channels until the shard recovers
+         */
+        PAUSE_READ,
+        /**
+         * drop BR00 continuation points, keep admitting login points
+         */
+        SHED_CONTINUATIONS,
+        /**
+         * drop every point
+         */
+        REJECT
+    }
+
+    private static final LongAdder ACCEPTED = Metrics.counter("ingest.accepted");
+    private static final LongAdder OVERLOADED = Metrics.counter("ingest.overloaded");
+    private static final LongAdder DROPPED_FULL = Metrics.counter("ingest.dropped.full");
+    private static final LongAdder PAUSED = Metrics.counter("ingest.pause_read.paused");
+    private static final LongAdder RESUMED = Metrics.counter("ingest.pause_read.resumed");
+    private static final LongAdder SHED = Metrics.counter("ingest.shed_continuations.dropped");
+    private static final LongAdder REJECTED = Metrics.counter("ingest.reject.dropped");
+
+    private final LocationRingBuffer ring;
+    private final OverloadPolicy policy;
+    private final int highWatermark;
+    private final int lowWatermark;
+    private final ConcurrentLinkedQueue<Channel> pausedChannels = new ConcurrentLinkedQueue<>();
+    private volatile boolean overloaded;
+
+    /**
+     *
+     * @param ring
+     * @param policy
+     * @param highWatermark fraction of the ring capacity
+     * @param lowWatermark fraction of the ring capacity
+     */
+    public IngestBackpressure(LocationRingBuffer ring, OverloadPolicy policy, double highWatermark, double lowWatermark) {
+        if (lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("Low watermark must not exceed the high watermark");
+        }
+        this.ring = ring;
+        this.policy = policy;
+        this.highWatermark = (int) (ring.getCapacity() * highWatermark);
+        this.lowWatermark = (int) (ring.getCapacity() * lowWatermark);
+    }
+
+    /**
+     *
+     * @return
+     */
+    public LocationRingBuffer getRing() {
+        return ring;
+    }
+
+    /**
+     * Admits the locations of a frame as one unit, either all of them are
+     * accepted or none. Called on the channel's event loop, never blocks.
+     *
+     * @param frame
+     * @param channel the sending channel
+     * @return false when the locations were dropped
+     */
+    public boolean publish(DeviceFrame frame, Channel channel) {
+        int count = frame.getLocationCount();
+        if (!overloaded && ring.size() >= highWatermark) {
+            overloaded = true;
+            OVERLOADED.increment();
+        }
+        if (overloaded) {
+            switch (policy) {
+                case PAUSE_READ: {
+                    if (channel.config().isAutoRead()) {
+                        channel.config().setAutoRead(false);
+                        pausedChannels.add(channel);
+                        PAUSED.increment();
+                    }
+                    break;
+                }
+                case SHED_CONTINUATIONS: {
+                    if (frame.isContinuation()) {
+                        SHED.add(count);
+                        return false;
+                    }
+                    break;
+                }
+                default: {
+                    REJECTED.add(count);
+                    return false;
+                }
+            }
+        }
+        if (!ring.tryPublish(frame)) {
+            DROPPED_FULL.add(count);
+            return false;
+        }
+        ACCEPTED.add(count);
+        return true;
+    }
+
+    /**
+     * Called by the shard's processor thread after every drain.
+     */
+    public void onDrained() {
+        if (overloaded && ring.size() <= lowWatermark) {
+            overloaded = false;
+        }
+        // also picks up channels paused by a producer that raced with the reset above
+        if (!overloaded) {
+            Channel channel;
+            while ((channel = pausedChannels.poll()) != null) {
+                channel.config().setAutoRead(true);
+                RESUMED.increment();
+            }
+        }
+    }
+}
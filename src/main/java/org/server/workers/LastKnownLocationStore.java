@@ -0,0 +1,417 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.workers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import org.server.dto.LocationRecord;
+
+/**
+ * Last known location per IMEI in fixed-width slots of flat buffers, either
+ * on-heap or off-heap, instead of a map of boxed objects. Updates overwrite
+ * the slot in place, so a steady stream of points allocates nothing.
+ * <p>
+ * The table is split into segments by IMEI hash, each an open addressing
+ * table with linear probing guarded by its own {@link StampedLock}. Readers
+ * try an optimistic read first and only take the read lock when a writer
+ * interfered. A slot takes {@value #SLOT_SIZE} bytes, so at the 0.75 load
+ * limit a device costs 64 to 128 bytes.
+ * <p>
+ * Snapshots are the occupied slots written verbatim behind a small header, so
+ * a restore maps the file and copies slot by slot.
+ */
+public final class LastKnownLocationStore {
+
+    private static final int SEGMENT_BITS = 6;
+    private static final int SEGMENTS = 1 << SEGMENT_BITS;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    //imei, lat, lng, timestamp, speed, heading
+    private static final int SLOT_SIZE = 48;
+    private static final int IMEI = 0;
+    private static final int LAT = 8;
+    private static final int LNG = 16;
+    private static final int TIMESTAMP = 24;
+    private static final int SPEED = 32;
+    private static final int HEADING = 40;
+
+    private static final int SNAPSHOT_MAGIC = 0x4C4B4C31; //LKL1
+    //magic, slot size, slot count
+    private static final int SNAPSHOT_HEADER_SIZE = 4 + 4 + 8;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final boolean offHeap;
+
+    /**
+     *
+     * @param expectedSize number of devices to size the table for
+     * @param offHeap true to keep the slots in direct memory
+     */
+    public LastKnownLocationStore(int expectedSize, boolean offHeap) {
+        this.offHeap = offHeap;
+        int perSegment = (int) Math.ceil(Math.max(1, expectedSize / SEGMENTS) / LOAD_FACTOR);
+        int capacity = Integer.highestOneBit(Math.max(2, perSegment) - 1) << 1;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(allocate(capacity));
+        }
+    }
+
+    /**
+     * Stores imei, position, speed, heading and timestamp of the record,
+     * replacing what was stored for the imei before.
+     *
+     * @param record
+     */
+    public void put(LocationRecord record) {
+        long hash = hash(record.getImei());
+        Segment segment = segmentFor(hash);
+        long stamp = segment.lock.writeLock();
+        try {
+            int slot = segment.find(record.getImei(), hash);
+            if (slot < 0) {
+                if (segment.size + 1 > segment.capacity() * LOAD_FACTOR) {
+                    segment.grow(allocate(segment.capacity() << 1));
+                }
+                slot = ~segment.find(record.getImei(), hash);
+                segment.size++;
+            }
+            ByteBuffer slots = segment.slots;
+            int offset = slot * SLOT_SIZE;
+            slots.putDouble(offset + LAT, record.getLat());
+            slots.putDouble(offset + LNG, record.getLng());
+            slots.putLong(offset + TIMESTAMP, record.getTimestamp());
+            slots.putDouble(offset + SPEED, record.getSpeed());
+            slots.putDouble(offset + HEADING, record.getHeading());
+            //the key goes last, a slot only becomes visible once it is complete
+            slots.putLong(offset + IMEI, record.getImei());
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Copies the stored location of {@code imei} into {@code into}.
+     *
+     * @param imei
+     * @param into
+     * @return false when nothing is stored for the imei, {@code into} is
+     * unchanged in that case
+     */
+    public boolean get(long imei, LocationRecord into) {
+        long hash = hash(imei);
+        Segment segment = segmentFor(hash);
+        long stamp = segment.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                //read into locals, into is only touched once the read is known to be consistent
+                ByteBuffer slots = segment.slots;
+                int slot = segment.find(imei, hash);
+                if (slot < 0) {
+                    if (segment.lock.validate(stamp)) {
+                        return false;
+                    }
+                } else {
+                    int offset = slot * SLOT_SIZE;
+                    double lat = slots.getDouble(offset + LAT);
+                    double lng = slots.getDouble(offset + LNG);
+                    long timestamp = slots.getLong(offset + TIMESTAMP);
+                    double speed = slots.getDouble(offset + SPEED);
+                    double heading = slots.getDouble(offset + HEADING);
+                    if (segment.lock.validate(stamp)) {
+                        into.setImei(imei);
+                        into.setLat(lat);
+                        into.setLng(lng);
+                        into.setTimestamp(timestamp);
+                        into.setSpeed(speed);
+                        into.setHeading(heading);
+                        return true;
+                    }
+                }
+            } catch (IndexOutOfBoundsException ex) {
+                //torn read while the segment was growing, retried below
+            }
+        }
+        stamp = segment.lock.readLock();
+        try {
+            return segment.read(imei, hash, into);
+        } finally {
+            segment.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Hands every stored location to {@code consumer}, one segment at a time
+     * under its read lock. The record is reused between calls.
+     *
+     * @param consumer
+     */
+    public void forEach(Consumer<LocationRecord> consumer) {
+        LocationRecord record = new LocationRecord();
+        for (Segment segment : segments) {
+            long stamp = segment.lock.readLock();
+            try {
+                for (int slot = 0; slot < segment.capacity(); slot++) {
+                    if (segment.slots.getLong(slot * SLOT_SIZE + IMEI) != 0) {
+                        segment.copy(slot, record);
+                        consumer.accept(record);
+                    }
+                }
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    /**
+     * Writes every stored location to {@code file}. Each segment is copied
+     * under its read lock and written after the lock is released; the file
+     * is replaced atomically once complete.
+     *
+     * @param file
+     * @return number of written locations
+     * @throws IOException
+     */
+    public long writeSnapshot(Path file) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        long count = 0;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.position(SNAPSHOT_HEADER_SIZE);
+            for (Segment segment : segments) {
+                ByteBuffer copy;
+                long stamp = segment.lock.readLock();
+                try {
+                    copy = ByteBuffer.allocate(segment.size * SLOT_SIZE);
+                    for (int slot = 0; slot < segment.capacity(); slot++) {
+                        int offset = slot * SLOT_SIZE;
+                        if (segment.slots.getLong(offset + IMEI) != 0) {
+                            for (int i = 0; i < SLOT_SIZE; i += 8) {
+                                copy.putLong(segment.slots.getLong(offset + i));
+                            }
+                        }
+                    }
+                } finally {
+                    segment.lock.unlockRead(stamp);
+                }
+                copy.flip();
+                count += copy.remaining() / SLOT_SIZE;
+                while (copy.hasRemaining()) {
+                    channel.write(copy);
+                }
+            }
+            ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE);
+            header.putInt(SNAPSHOT_MAGIC).putInt(SLOT_SIZE).putLong(count).flip();
+            channel.write(header, 0);
+            channel.force(true);
+        } catch (IOException ex) {
+            Files.deleteIfExists(temp);
+            throw ex;
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    /**
+     * Loads a snapshot written by {@link #writeSnapshot(Path)}.
+     *
+     * @param file
+     * @return number of restored locations
+     * @throws IOException when the file is missing or not a complete snapshot
+     */
+    public long readSnapshot(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < SNAPSHOT_HEADER_SIZE
+                    || buffer.getInt() != SNAPSHOT_MAGIC
+                    || buffer.getInt() != SLOT_SIZE) {
+                throw new IOException("Not a location snapshot: " + file);
+            }
+            long count = buffer.getLong();
+            if (buffer.remaining() != count * SLOT_SIZE) {
+                throw new IOException("Truncated location snapshot: " + file);
+            }
+            reserve(count);
+            LocationRecord record = new LocationRecord();
+            for (long i = 0; i < count; i++) {
+                record.setImei(buffer.getLong());
+                record.setLat(buffer.getDouble());
+                record.setLng(buffer.getDouble());
+                record.setTimestamp(buffer.getLong());
+                record.setSpeed(buffer.getDouble());
+                record.setHeading(buffer.getDouble());
+                put(record);
+            }
+            return count;
+        }
+    }
+
+    /**
+     *
+     * @return number of stored imeis
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            long stamp = segment.lock.readLock();
+            size += segment.size;
+            segment.lock.unlockRead(stamp);
+        }
+        return size;
+    }
+
+    /**
+     *
+     * @return bytes taken by the slots
+     */
+    public long getMemoryFootprint() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.slots.capacity();
+        }
+        return bytes;
+    }
+
+    /**
+     * Grows every segment up front so that {@code additional} more imeis,
+     * spread evenly, fit without rehashing.
+     *
+     * @param additional
+     */
+    private void reserve(long additional) {
+        long perSegment = additional / SEGMENTS + 1;
+        for (Segment segment : segments) {
+            long stamp = segment.lock.writeLock();
+            try {
+                long required = (long) Math.ceil((segment.size + perSegment * 1.1) / LOAD_FACTOR);
+                if (required > segment.capacity() && required <= Integer.MAX_VALUE / SLOT_SIZE) {
+                    segment.grow(allocate(Integer.highestOneBit((int) required - 1) << 1));
+                }
+            } finally {
+                segment.lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return offHeap
+                ? ByteBuffer.allocateDirect(capacity * SLOT_SIZE)
+                : ByteBuffer.allocate(capacity * SLOT_SIZE);
+    }
+
+    private Segment segmentFor(long hash) {
+        return segments[(int) (hash >>> (64 - SEGMENT_BITS))];
+    }
+
+    private static long hash(long imei) {
+        return imei * 0x9E3779B97F4A7C15L;
+    }
+
+    private static final class Segment {
+
+        private final StampedLock lock = new StampedLock();
+        private ByteBuffer slots;
+        private int mask;
+        private int size;
+
+        private Segment(ByteBuffer slots) {
+            this.slots = slots;
+            this.mask = slots.capacity() / SLOT_SIZE - 1;
+        }
+
+        private int capacity() {
+            return mask + 1;
+        }
+
+        /**
+         *
+         * @param imei
+         * @param hash
+         * @return slot of the imei, or the complement of the free slot it
+         * would be stored in
+         */
+        private int find(long imei, long hash) {
+            ByteBuffer buffer = slots;
+            int slotMask = buffer.capacity() / SLOT_SIZE - 1;
+            int slot = (int) (hash >>> 32) & slotMask;
+            while (true) {
+                long key = buffer.getLong(slot * SLOT_SIZE + IMEI);
+                if (key == imei) {
+                    return slot;
+                }
+                if (key == 0) {
+                    return ~slot;
+                }
+                slot = (slot + 1) & slotMask;
+            }
+        }
+
+        private boolean read(long imei, long hash, LocationRecord into) {
+            int slot = find(imei, hash);
+            if (slot < 0) {
+                return false;
+            }
+            copy(slot, into);
+            return true;
+        }
+
+        private void copy(int slot, LocationRecord into) {
+            int offset = slot * SLOT_SIZE;
+            into.setImei(slots.getLong(offset + IMEI));
+            into.setLat(slots.getDouble(offset + LAT));
+            into.setLng(slots.getDouble(offset + LNG));
+            into.setTimestamp(slots.getLong(offset + TIMESTAMP));
+            into.setSpeed(slots.getDouble(offset + SPEED));
+            into.setHeading(slots.getDouble(offset + HEADING));
+        }
+
+        /**
+         * Rehashes every slot into {@code larger}. Called under the write
+         * lock.
+         *
+         * @param larger
+         */
+        private void grow(ByteBuffer larger) {
+            ByteBuffer previous = slots;
+            int previousCapacity = capacity();
+            int largerMask = larger.capacity() / SLOT_SIZE - 1;
+            for (int slot = 0; slot < previousCapacity; slot++) {
+                int offset = slot * SLOT_SIZE;
+                long imei = previous.getLong(offset + IMEI);
+                if (imei == 0) {
+                    continue;
+                }
+                int target = (int) (hash(imei) >>> 32) & largerMask;
+                while (larger.getLong(target * SLOT_SIZE + IMEI) != 0) {
+                    target = (target + 1) & largerMask;
+                }
+                for (int i = 0; i < SLOT_SIZE; i += 8) {
+                    larger.putLong(target * SLOT_SIZE + i, previous.getLong(offset + i));
+                }
+            }
+            slots = larger;
+            mask = largerMask;
+        }
+    }
+}
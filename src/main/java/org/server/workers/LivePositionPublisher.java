@@ -0,0 +1,201 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.workers;
+
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.TextMessage;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.server.codec.LocationCodec;
+import org.server.connection.ActiveMq;
+import org.server.dto.Location;
+import org.server.util.Metrics;
+import org.server.util.TimezoneUtil;
+
+/**
+ * Coalesces live positions and request statuses per imei and publishes them
+ * once per window. Within a window only the latest location and status of a
+ * device survive, so broker traffic follows the window rate rather than the
+ * point rate. Every window goes out as one message on the batch topic and,
+ * for subscribers of single devices, as one message per device that moved.
+ * Locations are sent as JSON or in the binary {@link LocationCodec} format,
+ * tagged with their content type either way.
+ * <p>
+ * When a send fails, whatever of the window was not sent yet is put back
+ * for the next window unless a newer location or status of the device
+ * arrived meanwhile. Devices re-queued after the batch went out appear in
+ * the next batch again.
+ */
+public final class LivePositionPublisher extends TimerTask {
+
+    private static final Logger ERROR_LOGGER = LogManager.getLogger("ErrorLog");
+
+    private static final LongAdder OFFERED = Metrics.counter("live.offered");
+    private static final LongAdder COALESCED = Metrics.counter("live.coalesced");
+    private static final LongAdder PUBLISHED = Metrics.counter("live.published");
+    private static final LongAdder REQUEUED = Metrics.counter("live.requeued");
+
+    public static final String AMQ_PREFIX_DEFAULT = "COO.";
+    public static final String AMQ_PREFIX_REQUEST_STATUS = "REQSTATUS.";
+
+    // thread-safe, shared by every serialization
+    private static final Gson GSON = new Gson();
+
+    private final ConcurrentHashMap<Long, Location> locations = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Integer> statuses = new ConcurrentHashMap<>();
+    private final String batchTopic;
+    private final boolean perDeviceTopics;
+    private final boolean binary;
+
+    /**
+     *
+     * @param batchTopic topic of the per-window batch, null or empty to
+     * disable
+     * @param perDeviceTopics true to also publish every device's latest
+     * location on its own topic
+     * @param binary true to publish in the binary format instead of JSON
+     */
+    public LivePositionPublisher(String batchTopic, boolean perDeviceTopics, boolean binary) {
+        this.batchTopic = batchTopic == null || batchTopic.isEmpty() ? null : batchTopic;
+        this.perDeviceTopics = perDeviceTopics;
+        this.binary = binary;
+    }
+
+    /**
+     *
+     * @param location replaces a location of the same imei not yet published
+     */
+    public void offerLocation(Location location) {
+        OFFERED.increment();
+        if (locations.put(location.getImei(), location) != null) {
+            COALESCED.increment();
+        }
+    }
+
+    /**
+     *
+     * @param imei
+     * @param status replaces a status of the same imei not yet published
+     */
+    public void offerStatus(long imei, int status) {
+        statuses.put(imei, status);
+    }
+
+    @Override
+    public void run() {
+        // anything thrown out of here would cancel the timer, and locations failing must not hold statuses back
+        try {
+            publishLocations();
+        } catch (IOException | JMSException | RuntimeException ex) {
+            ERROR_LOGGER.error(getLogMetaInfo() + " Unable to publish locations", ex);
+        }
+        try {
+            publishStatuses();
+        } catch (IOException | JMSException | RuntimeException ex) {
+            ERROR_LOGGER.error(getLogMetaInfo() + " Unable to publish statuses", ex);
+        }
+    }
+
+    private void publishLocations() throws IOException, JMSException {
+        if (locations.isEmpty()) {
+            return;
+        }
+        List<Location> window = new ArrayList<>(locations.size());
+        for (Long imei : locations.keySet()) {
+            // a location offered after the removal goes out with the next window
+            Location location = locations.remove(imei);
+            if (location != null) {
+                window.add(location);
+            }
+        }
+        int sent = 0;
+        try {
+            if (batchTopic != null) {
+                if (binary) {
+                    // neighbouring imeis keep the batch deltas short
+                    window.sort(Comparator.comparingLong(Location::getImei));
+                    sendBytes(batchTopic, LocationCodec.CONTENT_TYPE_BATCH, LocationCodec.encodeBatch(window));
+                } else {
+                    sendText(batchTopic, GSON.toJson(window));
+                }
+            }
+            if (perDeviceTopics) {
+                for (; sent < window.size(); sent++) {
+                    Location location = window.get(sent);
+                    if (binary) {
+                        sendBytes(AMQ_PREFIX_DEFAULT + location.getImei(), LocationCodec.CONTENT_TYPE_LOCATION, LocationCodec.encode(location));
+                    } else {
+                        sendText(AMQ_PREFIX_DEFAULT + location.getImei(), GSON.toJson(Collections.singletonList(location)));
+                    }
+                }
+            }
+            sent = window.size();
+        } finally {
+            for (int i = sent; i < window.size(); i++) {
+                // a location offered since is newer and wins
+                locations.putIfAbsent(window.get(i).getImei(), window.get(i));
+            }
+            REQUEUED.add(window.size() - sent);
+            PUBLISHED.add(sent);
+        }
+    }
+
+    private static void sendText(String topic, String json) throws IOException, JMSException {
+        ActiveMq.sendMessage(topic, session -> {
+            TextMessage message = session.createTextMessage(json);
+            message.setStringProperty(LocationCodec.CONTENT_TYPE_PROPERTY, LocationCodec.CONTENT_TYPE_JSON);
+            return message;
+        });
+    }
+
+    private static void sendBytes(String topic, String contentType, byte[] payload) throws IOException, JMSException {
+        ActiveMq.sendMessage(topic, session -> {
+            BytesMessage message = session.createBytesMessage();
+            message.writeBytes(payload);
+            message.setStringProperty(LocationCodec.CONTENT_TYPE_PROPERTY, contentType);
+            return message;
+        });
+    }
+
+    private void publishStatuses() throws IOException, JMSException {
+        for (Long imei : statuses.keySet()) {
+            Integer status = statuses.remove(imei);
+            if (status != null) {
+                try {
+                    ActiveMq.sendMessage(AMQ_PREFIX_REQUEST_STATUS + imei, String.valueOf(status));
+                } catch (IOException | JMSException | RuntimeException ex) {
+                    // the statuses not reached yet stay queued as they are
+                    statuses.putIfAbsent(imei, status);
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    private static String getLogMetaInfo() {
+        return TimezoneUtil.nowUtc() + " [LivePositionPublisher.class]";
+    }
+}
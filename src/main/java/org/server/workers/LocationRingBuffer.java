@@ -0,0 +1,191 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.workers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.server.dto.LocationRecord;
+import org.server.protocol.DeviceFrame;
+
+/**
+ * Pre-allocated, lock-free multi-producer / single-consumer ring of mutable
+ * {@link LocationRecord} slots. Netty I/O threads copy the records of a frame
+ * into claimed slots and never block; the processing thread consumes
+ * published slots in batches.
+ */
+public final class LocationRingBuffer {
+
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int PARK_YIELDS = 100;
+
+    public enum WaitStrategy {
+        BUSY_SPIN, YIELD, PARK
+    }
+
+    /**
+     * Receives consumed slots. The slot is reused once the call returns.
+     */
+    public interface EventHandler {
+
+        /**
+         *
+         * @param record
+         * @param endOfBatch true for the last slot of the current batch
+         */
+        void onEvent(LocationRecord record, boolean endOfBatch);
+    }
+
+    private final LocationRecord[] slots;
+    private final int mask;
+    private final int indexShift;
+    private final WaitStrategy waitStrategy;
+    // round in which each slot was last published, -1 before the first round
+    private final AtomicIntegerArray published;
+    private final AtomicLong claimed = new AtomicLong(-1);
+    private final AtomicLong consumed = new AtomicLong(-1);
+    private volatile Thread waitingConsumer;
+    private int idleRounds;
+
+    /**
+     *
+     * @param size rounded up to the next power of two
+     * @param waitStrategy
+     */
+    public LocationRingBuffer(int size, WaitStrategy waitStrategy) {
+        int capacity = Integer.highestOneBit(Math.max(2, size) - 1) << 1;
+        this.slots = new LocationRecord[capacity];
+        for (int i = 0; i < capacity; i++) {
+            this.slots[i] = new LocationRecord();
+        }
+        this.mask = capacity - 1;
+        this.indexShift = Integer.numberOfTrailingZeros(capacity);
+        this.waitStrategy = waitStrategy;
+        this.published = new AtomicIntegerArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            this.published.set(i, -1);
+        }
+    }
+
+    /**
+     *
+     * @return
+     */
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    /**
+     *
+     * @return number of published slots not yet consumed
+     */
+    public int size() {
+        return (int) (claimed.get() - consumed.get());
+    }
+
+    /**
+     * Copies every location of {@code frame} into consecutive slots, claimed
+     * at once so the processor drains them together.
+     *
+     * @param frame
+     * @return false when the ring has no room for all of them, nothing is
+     * published in that case
+     */
+    public boolean tryPublish(DeviceFrame frame) {
+        int count = frame.getLocationCount();
+        long current;
+        long next;
+        do {
+            current = claimed.get();
+            next = current + count;
+            if (next - slots.length > consumed.get()) {
+                return false;
+            }
+        } while (!claimed.compareAndSet(current, next));
+
+        for (int i = 0; i < count; i++) {
+            long sequence = current + 1 + i;
+            int index = (int) sequence & mask;
+            slots[index].copyFrom(frame.getLocation(i));
+            published.set(index, (int) (sequence >>> indexShift));
+        }
+
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * Hands every contiguously published slot, up to {@code maxBatch}, to the
+     * handler. On an empty ring it waits once according to the wait strategy
+     * and returns, so the caller regains control regularly. Must only be
+     * called from the single consumer thread.
+     *
+     * @param handler
+     * @param maxBatch
+     * @return number of consumed slots
+     */
+    public int drain(EventHandler handler, int maxBatch) {
+        long next = consumed.get() + 1;
+        if (!isPublished(next)) {
+            await(next, idleRounds++);
+            return 0;
+        }
+        idleRounds = 0;
+
+        long last = next;
+        while (last - next + 1 < maxBatch && isPublished(last + 1)) {
+            last++;
+        }
+        for (long sequence = next; sequence <= last; sequence++) {
+            handler.onEvent(slots[(int) sequence & mask], sequence == last);
+        }
+        consumed.lazySet(last);
+        return (int) (last - next + 1);
+    }
+
+    private boolean isPublished(long sequence) {
+        return published.get((int) sequence & mask) == (int) (sequence >>> indexShift);
+    }
+
+    private void await(long sequence, int attempts) {
+        switch (waitStrategy) {
+            case BUSY_SPIN: {
+                break;
+            }
+            case YIELD: {
+                Thread.yield();
+                break;
+            }
+            default: {
+                // a short burst is usually followed by more, so yield a while before parking
+                if (attempts < PARK_YIELDS) {
+                    Thread.yield();
+                    break;
+                }
+                waitingConsumer = Thread.currentThread();
+                if (!isPublished(sequence)) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+                waitingConsumer = null;
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.workers;
+
+import com.mongodb.MongoException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.TimerTask;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.server.db.DBOperationsHandler;
+import org.server.db.DatabaseHandler;
+import org.server.util.TimezoneUtil;
+
+/**
+ * Periodically snapshots the {@link LastKnownLocationStore} to a local file,
+ * and warms the store up at startup from that file or, without a usable
+ * snapshot, from one aggregation over the stored locations.
+ */
+public final class LocationSnapshotEngine extends TimerTask {
+
+    private static final Logger ERROR_LOGGER = LogManager.getLogger("ErrorLog");
+    private static final Logger DEBUG_LOGGER = LogManager.getLogger("DebugLog");
+
+    private final DatabaseHandler databaseHandler = new DBOperationsHandler();
+    private final LastKnownLocationStore store;
+    private final Path file;
+    private final long restoreLookback;
+
+    /**
+     *
+     * @param store
+     * @param file may be null to only restore from the database
+     * @param restoreLookback how far back, in ms, the database fallback
+     * looks for devices, 0 disables it
+     */
+    public LocationSnapshotEngine(LastKnownLocationStore store, Path file, long restoreLookback) {
+        this.store = store;
+        this.file = file;
+        this.restoreLookback = restoreLookback;
+    }
+
+    @Override
+    public void run() {
+        snapshot();
+    }
+
+    /**
+     *
+     * @return number of written locations, -1 when the snapshot failed
+     */
+    public long snapshot() {
+        if (file == null) {
+            return 0;
+        }
+        try {
+            long started = System.currentTimeMillis();
+            long count = store.writeSnapshot(file);
+            DEBUG_LOGGER.debug(getLogMetaInfo() + " Wrote " + count + " locations to " + file + " in " + (System.currentTimeMillis() - started) + " ms");
+            return count;
+        } catch (IOException ex) {
+            ERROR_LOGGER.error(getLogMetaInfo() + " Snapshot failed", ex);
+            return -1;
+        }
+    }
+
+    /**
+     * Must run before devices are accepted, restored locations overwrite
+     * whatever the store holds.
+     *
+     * @return number of restored locations
+     */
+    public long restore() {
+        long started = System.currentTimeMillis();
+        if (file != null && Files.exists(file)) {
+            try {
+                long count = store.readSnapshot(file);
+                DEBUG_LOGGER.debug(getLogMetaInfo() + " Restored " + count + " locations from " + file + " in " + (System.currentTimeMillis() - started) + " ms");
+                return count;
+            } catch (IOException ex) {
+                ERROR_LOGGER.error(getLogMetaInfo() + " Unusable snapshot, falling back to the database", ex);
+            }
+        }
+        if (restoreLookback <= 0) {
+            return 0;
+        }
+        try {
+            long count = databaseHandler.findLastLocations(started - restoreLookback, store::put);
+            DEBUG_LOGGER.debug(getLogMetaInfo() + " Restored " + count + " locations from the database in " + (System.currentTimeMillis() - started) + " ms");
+            return count;
+        } catch (IOException | ClassNotFoundException | MongoException ex) {
+            ERROR_LOGGER.error(getLogMetaInfo() + " Restore from the database failed", ex);
+            return 0;
+        }
+    }
+
+    private static String getLogMetaInfo() {
+        return TimezoneUtil.nowUtc() + " [LocationSnapshotEngine.class]";
+    }
+}
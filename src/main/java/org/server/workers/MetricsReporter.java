@@ -0,0 +1,36 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.workers;
+
+import java.util.TimerTask;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.server.util.Metrics;
+import org.server.util.TimezoneUtil;
+
+public final class MetricsReporter extends TimerTask {
+
+    private static final Logger DEBUG_LOGGER = LogManager.getLogger("DebugLog");
+
+    @Override
+    public void run() {
+        DEBUG_LOGGER.debug(getLogMetaInfo() + " " + Metrics.snapshot());
+    }
+
+    private static String getLogMetaInfo() {
+        return TimezoneUtil.nowUtc() + " [MetricsReporter.class]";
+    }
+}
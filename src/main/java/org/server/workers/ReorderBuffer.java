@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.workers;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.function.Consumer;
+import org.server.dto.LocationRecord;
+
+/**
+ * Holds the records a processor drained for up to {@code window} ms and
+ * releases them in device time order, so points that reach the server
+ * shuffled are chained in the order they were recorded. Order is only
+ * restored among records held at the same time, anything arriving later
+ * than the window is left to the caller.
+ * <p>
+ * Records are copied into reused slots. Records that already arrive in
+ * order are released without sorting, and with a window of 0 every drained
+ * batch is released as a whole without reading the clock.
+ * <p>
+ * Not thread-safe, the owning processor thread is the only user.
+ */
+public final class ReorderBuffer {
+
+    // stable, so records of the same device time keep their arrival order
+    private static final Comparator<LocationRecord> BY_DEVICE_TIME = Comparator.comparingLong(LocationRecord::getTimestamp);
+
+    private final long window;
+    private LocationRecord[] records;
+    private int count;
+    // false once a record was added with an earlier device time than the one before it
+    private boolean ordered = true;
+
+    /**
+     *
+     * @param window ms a record is held before it is released
+     * @param capacity initial number of slots, grows as needed
+     */
+    public ReorderBuffer(long window, int capacity) {
+        this.window = window;
+        this.records = new LocationRecord[Math.max(1, capacity)];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = new LocationRecord();
+        }
+    }
+
+    /**
+     *
+     * @return number of held records
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     *
+     * @return false when held records arrived out of device time order
+     */
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    /**
+     * Copies the record in, it is released by a later {@link #release}.
+     *
+     * @param record
+     */
+    public void add(LocationRecord record) {
+        if (count == records.length) {
+            LocationRecord[] grown = Arrays.copyOf(records, records.length * 2);
+            for (int i = records.length; i < grown.length; i++) {
+                grown[i] = new LocationRecord();
+            }
+            records = grown;
+        }
+        if (count > 0 && record.getTimestamp() < records[count - 1].getTimestamp()) {
+            ordered = false;
+        }
+        records[count++].copyFrom(record);
+    }
+
+    /**
+     * Hands every record held for at least the window to {@code handler} in
+     * device time order. The slot is reused once the call returns.
+     *
+     * @param now
+     * @param handler
+     * @return number of released records
+     */
+    public int release(long now, Consumer<LocationRecord> handler) {
+        int due = count;
+        if (window > 0) {
+            // received times grow with the arrival order, so the due records are a prefix
+            long cutoff = now - window;
+            due = 0;
+            while (due < count && records[due].getReceivedTime() <= cutoff) {
+                due++;
+            }
+        }
+        if (due == 0) {
+            return 0;
+        }
+        if (!ordered) {
+            Arrays.sort(records, 0, due, BY_DEVICE_TIME);
+        }
+        for (int i = 0; i < due; i++) {
+            handler.accept(records[i]);
+        }
+
+        int held = count - due;
+        ordered = true;
+        for (int i = 0; i < held; i++) {
+            records[i].copyFrom(records[due + i]);
+            if (i > 0 && records[i].getTimestamp() < records[i - 1].getTimestamp()) {
+                ordered = false;
+            }
+        }
+        count = held;
+        return due;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.workers;
+
+import io.netty.channel.Channel;
+import org.server.protocol.DeviceFrame;
+
+/**
+ * Routes decoded records to processing shards by IMEI. Every record of a
+ * device lands on the same shard, which keeps per-device ordering for the
+ * distance chain while devices are processed in parallel.
+ */
+public final class RequestDispatcher {
+
+    private final IngestBackpressure[] shards;
+
+    /**
+     *
+     * @param shardCount
+     * @param shardQueueSize
+     * @param waitStrategy
+     * @param overloadPolicy
+     * @param highWatermark
+     * @param lowWatermark
+     */
+    public RequestDispatcher(
+            int shardCount,
+            int shardQueueSize,
+            LocationRingBuffer.WaitStrategy waitStrategy,
+            IngestBackpressure.OverloadPolicy overloadPolicy,
+            double highWatermark,
+            double lowWatermark
+    ) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Processor shard count must be at least 1");
+        }
+        this.shards = new IngestBackpressure[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            this.shards[i] = new IngestBackpressure(
+                    new LocationRingBuffer(shardQueueSize, waitStrategy),
+                    overloadPolicy,
+                    highWatermark,
+                    lowWatermark
+            );
+        }
+    }
+
+    /**
+     *
+     * @param locations the most locations of one frame
+     * @throws IllegalStateException when the shards could never take a frame
+     * that large, such frames would be dropped every time
+     */
+    public void requireCapacity(int locations) throws IllegalStateException {
+        for (IngestBackpressure shard : shards) {
+            if (shard.getRing().getCapacity() < locations) {
+                throw new IllegalStateException("Request queue of " + shard.getRing().getCapacity()
+                        + " locations per shard cannot take frames of up to " + locations + " locations");
+            }
+        }
+    }
+
+    /**
+     *
+     * @return
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     *
+     * @param shard
+     * @return
+     */
+    public IngestBackpressure getShard(int shard) {
+        return shards[shard];
+    }
+
+    /**
+     *
+     * @param imei
+     * @return
+     */
+    public int shardOf(long imei) {
+        // IMEIs share long prefixes (TAC), so spread the bits before reducing
+        long h = imei * 0x9E3779B97F4A7C15L;
+        return (int) ((h >>> 32) % shards.length);
+    }
+
+    /**
+     * Copies the locations of the frame into their shard without blocking
+     * the calling I/O thread. The locations of a frame come from one device
+     * and so share a shard.
+     *
+     * @param frame
+     * @param channel
+     * @return false when the locations were not accepted
+     */
+    public boolean publish(DeviceFrame frame, Channel channel) {
+        if (frame.getLocationCount() == 0) {
+            return true;
+        }
+        return shards[shardOf(frame.getLocation(0).getImei())].publish(frame, channel);
+    }
+}
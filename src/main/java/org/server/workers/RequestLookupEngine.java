@@ -1,142 +1,376 @@
-/*
- * Copyright 2017 Benjamin.C.
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *      http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-package org.server.workers;
-
-import com.mongodb.MongoException;
-import java.io.IOException;
-import java.time.LocalDateTime;
-import java.time.temporal.ChronoUnit;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.TimerTask;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
-import javax.jms.JMSException;
-import org.apache.log4j.Logger;
-import org.apache.log4j.LogManager;
-import org.server.connection.ActiveMq;
-import org.server.db.DBOperationsHandler;
-import org.server.db.DatabaseHandler;
-import org.server.dto.LastKnownLocationInfo;
-import org.server.dto.Message;
-import org.server.dto.Vehicle;
-import org.server.protocol.Tk103ProtocolDecoder;
-import org.server.util.TimezoneUtil;
-
-public final class RequestLookupEngine extends TimerTask {
-
-    private static final Logger ERROR_LOGGER = LogManager.getLogger("ErrorLog");
-    private static final Logger DEBUG_LOGGER = LogManager.getLogger("DebugLog");
-
-    private final DatabaseHandler databaseHandler = new DBOperationsHandler();
-    private final ConcurrentHashMap<Long, LastKnownLocationInfo> latestReqs;
-    private final LinkedBlockingQueue<Message> mq;
-    private final boolean ampActive;
-
-    /**
-     *
-     * @param mq
-     * @param latestReqs
-     * @param ampActive
-     */
-    public RequestLookupEngine(
-            LinkedBlockingQueue<Message> mq,
-            ConcurrentHashMap<Long, LastKnownLocationInfo> latestReqs,
-            boolean ampActive
-    ) {
-        this.mq = mq;
-        this.latestReqs = latestReqs;
-        this.ampActive = ampActive;
-    }
-
-    /**
-     *
-     * @return
-     */
-    private ConcurrentHashMap<Long, LastKnownLocationInfo> getLatestRequestsQueue() {
-        return latestReqs;
-    }
-
-    /**
-     *
-     * @return
-     */
-    private LinkedBlockingQueue<Message> getMessageQueue() {
-        return mq;
-    }
-
-    /**
-     *
-     * @return
-     */
-    private DatabaseHandler getDatabaseHandler() {
-        return databaseHandler;
-    }
-
-    /**
-     *
-     * @return
-     */
-    private boolean isAmpActive() {
-        return ampActive;
-    }
-
-    @Override
-    public void run() {
-        latestRequestLookup();
-    }
-
-    protected void latestRequestLookup() {
-        List<Vehicle> offlineVehicles = new ArrayList<>();
-        //k - imei
-        //v - time str
-        getLatestRequestsQueue().forEach((k, v) -> {
-            LocalDateTime now = TimezoneUtil.getZonedTimestamp("Asia/Colombo");
-            long minutes = ChronoUnit.MINUTES.between(v.getRequestTimestamp(), now);
-
-            if (minutes > 20) {
-                try {
-                    Vehicle vehicle = getDatabaseHandler().getVehicle(k);
-                    if (vehicle != null) {
-                        offlineVehicles.add(vehicle);
-                        if (isAmpActive()) {
-                            ActiveMq.sendMessage("REQSTATUS." + k, String.valueOf(Tk103ProtocolDecoder.DEVICE_OFFLINE));
-                        }
-                    }
-                } catch (IOException | ClassNotFoundException | JMSException | MongoException ex) {
-                    ERROR_LOGGER.error(getLogMetaInfo(), ex);
-                }
-            }
-        });
-        try {
-            if (!offlineVehicles.isEmpty()) {
-                getMessageQueue().put(Message.getBuilder()
-                        .type(Message.MessageType.DEVICE_DOWN)
-                        .message("")
-                        .timestamp(TimezoneUtil.nowLocal(TimezoneUtil.TIMEZONE_SL))
-                        .payload(offlineVehicles)
-                        .build()
-                );
-            }
-        } catch (InterruptedException ex) {
-            ERROR_LOGGER.error(getLogMetaInfo(), ex);
-        }
-    }
-
-    private static String getLogMetaInfo() {
-        return TimezoneUtil.nowUtc() + " [RequestLookupEngine.class]";
-    }
-}
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.workers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import javax.jms.JMSException;
+import org.apache.log4j.Logger;
+import org.apache.log4j.LogManager;
+import org.server.connection.ActiveMq;
+import org.server.db.VehicleRegistry;
+import org.server.dto.Message;
+import org.server.dto.Vehicle;
+import org.server.protocol.Tk103ProtocolDecoder;
+import org.server.util.Metrics;
+import org.server.util.TimezoneUtil;
+
+/**
+ * Tracks the {@link DeviceState} of every device and publishes state
+ * transitions only, a device that stays offline is reported once.
+ * <p>
+ * Every tracked device has one timeout in a {@link TimingWheel}, due at its
+ * next threshold (stale, then offline) measured from when the device was last
+ * seen, the received time of its latest point of any kind. Points do not move
+ * the timeout, they only record that time; when the timeout expires it is
+ * re-armed from there if the device reported in the meantime, so a device
+ * costs one wheel operation per threshold period regardless of its report
+ * rate.
+ * <p>
+ * Processor threads only read the device map in {@link #touch(long, long)};
+ * every transition is made on the timer thread, so there is a single writer.
+ * Devices restored at startup are tracked from their restored time without
+ * announcing anything, see {@link #restore(long, long)}.
+ */
+public final class RequestLookupEngine extends TimerTask {
+
+    private static final Logger ERROR_LOGGER = LogManager.getLogger("ErrorLog");
+    private static final Logger DEBUG_LOGGER = LogManager.getLogger("DebugLog");
+
+    private static final LongAdder TRANSITIONS = Metrics.counter("device.transitions");
+    private static final LongAdder OFFLINE = Metrics.counter("device.offline");
+    private static final LongAdder RECOVERED = Metrics.counter("device.recovered");
+
+    private final VehicleRegistry vehicleRegistry;
+    private final LinkedBlockingQueue<Message> mq;
+    private final boolean ampActive;
+    private final long tickMillis;
+    private final long staleThreshold;
+    private final long offlineThreshold;
+    private final TimingWheel wheel;
+    private final ConcurrentHashMap<Long, TrackedDevice> devices = new ConcurrentHashMap<>();
+    // points of devices not tracked or not reporting, filled by the processor threads
+    private final ConcurrentLinkedQueue<PendingPoint> pending = new ConcurrentLinkedQueue<>();
+
+    private static final class TrackedDevice {
+
+        // only written by the timer thread
+        private volatile DeviceState state;
+        // only written by the processor thread of the device once tracked
+        private volatile long lastSeen;
+
+        private TrackedDevice(DeviceState state, long lastSeen) {
+            this.state = state;
+            this.lastSeen = lastSeen;
+        }
+    }
+
+    private static final class PendingPoint {
+
+        private final long imei;
+        private final long receivedTime;
+
+        private PendingPoint(long imei, long receivedTime) {
+            this.imei = imei;
+            this.receivedTime = receivedTime;
+        }
+    }
+
+    /**
+     *
+     * @param mq
+     * @param ampActive
+     * @param vehicleRegistry
+     * @param tickMillis interval the engine is run at
+     * @param staleThreshold ms without a point before a device is stale, 0
+     * to go straight to offline
+     * @param offlineThreshold ms without a point before a device is offline,
+     * unless its vehicle sets its own
+     */
+    public RequestLookupEngine(
+            LinkedBlockingQueue<Message> mq,
+            boolean ampActive,
+            VehicleRegistry vehicleRegistry,
+            long tickMillis,
+            long staleThreshold,
+            long offlineThreshold
+    ) {
+        this.vehicleRegistry = vehicleRegistry;
+        this.mq = mq;
+        this.ampActive = ampActive;
+        this.tickMillis = tickMillis;
+        this.staleThreshold = staleThreshold;
+        this.offlineThreshold = offlineThreshold;
+        this.wheel = new TimingWheel(System.currentTimeMillis() / tickMillis);
+    }
+
+    /**
+     *
+     * @return
+     */
+    private LinkedBlockingQueue<Message> getMessageQueue() {
+        return mq;
+    }
+
+    /**
+     *
+     * @return
+     */
+    private VehicleRegistry getVehicleRegistry() {
+        return vehicleRegistry;
+    }
+
+    /**
+     *
+     * @return
+     */
+    private boolean isAmpActive() {
+        return ampActive;
+    }
+
+    /**
+     * Called for every point after it was handled, including points without
+     * a position. A single map read for devices that are reporting already,
+     * only points of other devices are queued for the timer thread.
+     *
+     * @param imei
+     * @param receivedTime epoch millis the point was received at
+     */
+    public void touch(long imei, long receivedTime) {
+        TrackedDevice device = devices.get(imei);
+        if (device == null) {
+            pending.offer(new PendingPoint(imei, receivedTime));
+            return;
+        }
+        device.lastSeen = receivedTime;
+        if (!device.state.isReporting()) {
+            pending.offer(new PendingPoint(imei, receivedTime));
+        }
+    }
+
+    /**
+     * Tracks a device restored at startup in the state its restored time
+     * implies, without announcing it. A device silent for longer than its
+     * offline threshold starts offline and is only reported once it
+     * recovers. Must be called before the engine is scheduled.
+     *
+     * @param imei
+     * @param lastSeen epoch millis of the restored location
+     */
+    public void restore(long imei, long lastSeen) {
+        long now = System.currentTimeMillis();
+        lastSeen = Math.min(lastSeen, now);
+        long silence = now - lastSeen;
+        long offlineAfter = thresholdOf(imei);
+        if (silence >= offlineAfter) {
+            // no timeout while offline, the next point recovers it
+            devices.put(imei, new TrackedDevice(DeviceState.OFFLINE, lastSeen));
+            return;
+        }
+        boolean stale = staleThreshold > 0 && silence >= staleThreshold;
+        devices.put(imei, new TrackedDevice(stale ? DeviceState.STALE : DeviceState.ONLINE, lastSeen));
+        wheel.schedule(new TimingWheel.Timeout(imei), deadline(lastSeen, stale ? offlineAfter : firstThreshold(offlineAfter)));
+    }
+
+    /**
+     *
+     * @param imei
+     * @return current state, null for devices that were never seen
+     */
+    public DeviceState getState(long imei) {
+        TrackedDevice device = devices.get(imei);
+        return device == null ? null : device.state;
+    }
+
+    @Override
+    public void run() {
+        // anything thrown out of here would cancel the timer and end offline detection for good
+        try {
+            latestRequestLookup();
+        } catch (RuntimeException ex) {
+            ERROR_LOGGER.error(getLogMetaInfo(), ex);
+        }
+    }
+
+    protected void latestRequestLookup() {
+        long now = System.currentTimeMillis();
+        List<Long> offlineImeis = new ArrayList<>();
+        PendingPoint point;
+        while ((point = pending.poll()) != null) {
+            long imei = point.imei;
+            TrackedDevice device = devices.get(imei);
+            if (device == null) {
+                // first point, received since the last run, nothing to announce
+                device = new TrackedDevice(DeviceState.ONLINE, Math.min(point.receivedTime, now));
+                devices.put(imei, device);
+                wheel.schedule(new TimingWheel.Timeout(imei), nextDeadline(imei, device.lastSeen));
+            } else if (!device.state.isReporting()) {
+                DeviceState state = device.state;
+                transition(imei, device, state.onPoint(), offlineImeis);
+                if (state == DeviceState.OFFLINE) {
+                    // the timeout was dropped when the device went offline
+                    wheel.schedule(new TimingWheel.Timeout(imei), nextDeadline(imei, device.lastSeen));
+                }
+            }
+        }
+        wheel.advance(now / tickMillis, timeout -> expire(timeout, now, offlineImeis));
+        if (!offlineImeis.isEmpty()) {
+            reportOffline(offlineImeis);
+        }
+    }
+
+    /**
+     *
+     * @param timeout
+     * @param now
+     * @param offlineImeis collects devices that went offline
+     */
+    private void expire(TimingWheel.Timeout timeout, long now, List<Long> offlineImeis) {
+        long imei = timeout.getImei();
+        TrackedDevice device = devices.get(imei);
+        long lastSeen = device.lastSeen;
+        long silence = wheel.getTick() * tickMillis - lastSeen;
+        long offlineAfter = thresholdOf(imei);
+        boolean offline = silence >= offlineAfter;
+        boolean stale = staleThreshold > 0 && silence >= staleThreshold;
+        DeviceState next = device.state.onTimeout(stale, offline);
+        transition(imei, device, next, offlineImeis);
+        if (next != DeviceState.OFFLINE) {
+            wheel.schedule(timeout, deadline(lastSeen, next == DeviceState.STALE ? offlineAfter : firstThreshold(offlineAfter)));
+        }
+    }
+
+    /**
+     *
+     * @param imei
+     * @param device
+     * @param to
+     * @param offlineImeis
+     */
+    private void transition(long imei, TrackedDevice device, DeviceState to, List<Long> offlineImeis) {
+        DeviceState from = device.state;
+        if (from == to) {
+            return;
+        }
+        device.state = to;
+        if (from == DeviceState.RECOVERED && to == DeviceState.ONLINE) {
+            return;
+        }
+        TRANSITIONS.increment();
+        switch (to) {
+            case OFFLINE: {
+                OFFLINE.increment();
+                // published together with the mail
+                offlineImeis.add(imei);
+                return;
+            }
+            case RECOVERED: {
+                RECOVERED.increment();
+                break;
+            }
+            default: {
+                break;
+            }
+        }
+        if (isAmpActive()) {
+            try {
+                ActiveMq.sendMessage("REQSTATUS." + imei, String.valueOf(to.getStatus()));
+            } catch (IOException | JMSException | RuntimeException ex) {
+                ERROR_LOGGER.error(getLogMetaInfo(), ex);
+            }
+        }
+    }
+
+    /**
+     *
+     * @param imei
+     * @param lastSeen
+     * @return tick of the first threshold after the last point
+     */
+    private long nextDeadline(long imei, long lastSeen) {
+        return deadline(lastSeen, firstThreshold(thresholdOf(imei)));
+    }
+
+    private long firstThreshold(long offlineAfter) {
+        return staleThreshold > 0 && staleThreshold < offlineAfter ? staleThreshold : offlineAfter;
+    }
+
+    private long deadline(long lastSeen, long threshold) {
+        return (lastSeen + threshold + tickMillis - 1) / tickMillis;
+    }
+
+    /**
+     *
+     * @param imei
+     * @return the vehicle's own offline threshold, or the default one
+     */
+    private long thresholdOf(long imei) {
+        try {
+            Vehicle vehicle = getVehicleRegistry().getVehicle(imei);
+            if (vehicle != null && vehicle.getOfflineThreshold() != null) {
+                return vehicle.getOfflineThreshold();
+            }
+        } catch (IOException | ClassNotFoundException | RuntimeException ex) {
+            // also called while the wheel expires timeouts, which must not be cut short
+            ERROR_LOGGER.error(getLogMetaInfo(), ex);
+        }
+        return offlineThreshold;
+    }
+
+    /**
+     *
+     * @param offlineImeis
+     */
+    private void reportOffline(List<Long> offlineImeis) {
+        List<Vehicle> offlineVehicles = new ArrayList<>();
+        for (long k : offlineImeis) {
+            try {
+                Vehicle vehicle = getVehicleRegistry().getVehicle(k);
+                if (vehicle != null) {
+                    offlineVehicles.add(vehicle);
+                    if (isAmpActive()) {
+                        ActiveMq.sendMessage("REQSTATUS." + k, String.valueOf(Tk103ProtocolDecoder.DEVICE_OFFLINE));
+                    }
+                }
+            } catch (IOException | ClassNotFoundException | JMSException | RuntimeException ex) {
+                ERROR_LOGGER.error(getLogMetaInfo(), ex);
+            }
+        }
+        try {
+            if (!offlineVehicles.isEmpty()) {
+                getMessageQueue().put(Message.getBuilder()
+                        .type(Message.MessageType.DEVICE_DOWN)
+                        .message("")
+                        .timestamp(TimezoneUtil.nowLocal(TimezoneUtil.TIMEZONE_SL))
+                        .payload(offlineVehicles)
+                        .build()
+                );
+            }
+        } catch (InterruptedException ex) {
+            ERROR_LOGGER.error(getLogMetaInfo(), ex);
+        }
+    }
+
+    private static String getLogMetaInfo() {
+        return TimezoneUtil.nowUtc() + " [RequestLookupEngine.class]";
+    }
+}
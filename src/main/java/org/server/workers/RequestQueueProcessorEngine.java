@@ -1,205 +1,414 @@
-/*
- * Copyright 2017 Benjamin.C.
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *      http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-package org.server.workers;
-
-import com.google.gson.Gson;
-import com.mongodb.MongoException;
-import java.io.IOException;
-import java.text.ParseException;
-import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
-import javax.jms.JMSException;
-import org.apache.log4j.LogManager;
-import org.apache.log4j.Logger;
-import org.server.connection.ActiveMq;
-import org.server.db.DBOperationsHandler;
-import org.server.db.DatabaseHandler;
-import org.server.dto.LastKnownLocationInfo;
-import org.server.dto.Message;
-import org.server.dto.Location;
-import org.server.protocol.Tk103ProtocolDecoder;
-import org.server.util.DistanceCalculator;
-import org.server.util.TimezoneUtil;
-import org.server.protocol.BaseProtocolDecoder;
-
-public class RequestQueueProcessorEngine implements Runnable {
-
-    private static final Logger ERROR_LOGGER = LogManager.getLogger("ErrorLog");
-    private static final Logger DEBUG_LOGGER = LogManager.getLogger("DebugLog");
-
-    private final DatabaseHandler databaseHandler;
-    private final BaseProtocolDecoder protocolParser;
-    private final LinkedBlockingQueue<String> queue;
-    private final ConcurrentHashMap<Long, LastKnownLocationInfo> latest_reqs;
-    private final LinkedBlockingQueue<Message> mq;
-    private final boolean ampActive;
-
-    private static final String AMQ_PREFIX_DEFAULT = "COO.";
-    private static final String AMQ_PREFIX_REQUEST_STATUS = "REQSTATUS.";
-    private static final double ABSOLUTE_LATITUDE = 0.0;
-    private static final double ABSOLUTE_LONGITUDE = 0.0;
-
-    /**
-     *
-     * @param q
-     * @param mq
-     * @param latest_reqs
-     * @param ampActive
-     */
-    public RequestQueueProcessorEngine(
-            LinkedBlockingQueue<String> q,
-            LinkedBlockingQueue<Message> mq,
-            ConcurrentHashMap<Long, LastKnownLocationInfo> latest_reqs,
-            boolean ampActive
-    ) {
-        this.queue = q;
-        this.mq = mq;
-        this.latest_reqs = latest_reqs;
-        this.ampActive = ampActive;
-        this.databaseHandler = new DBOperationsHandler();
-        this.protocolParser = new Tk103ProtocolDecoder();
-    }
-
-    /**
-     *
-     * @return
-     */
-    private DatabaseHandler getDatabaseHandler() {
-        return databaseHandler;
-    }
-
-    /**
-     *
-     * @return
-     */
-    private BaseProtocolDecoder getProtocolParser() {
-        return protocolParser;
-    }
-
-    /**
-     *
-     * @return
-     */
-    private ConcurrentHashMap<Long, LastKnownLocationInfo> getLatestRequests() {
-        return latest_reqs;
-    }
-
-    @Override
-    public void run() {
-        while (true) {
-            try {
-                List<Location> locations = getProtocolParser().parseRequest(queue.take());
-                if (!locations.isEmpty()) {
-                    for (int i = 0; i < locations.size(); i++) {
-                        int objType = locations.get(i).getType();
-                        switch (objType) {
-                            case Tk103ProtocolDecoder.LOCATION_OK: {
-                                LastKnownLocationInfo lkt = getLatestRequests().get(locations.get(i).getImei());
-                                if (lkt == null) {
-                                    getLatestRequests().put(
-                                            locations.get(i).getImei(),
-                                            new LastKnownLocationInfo(
-                                                    locations.get(i).getTimestamp(),
-                                                    new Double[]{
-                                                        locations.get(i).getPoint().get(0),
-                                                        locations.get(i).getPoint().get(1)
-                                                    }
-                                            )
-                                    );
-                                }
-                                LastKnownLocationInfo lastLocation = getLatestRequests().get(locations.get(i).getImei());
-                                Double[] last_location_op = lastLocation.getCoordinates();
-                                double distance = 0;
-                                if (last_location_op[0] != ABSOLUTE_LATITUDE && last_location_op[1] != ABSOLUTE_LONGITUDE) {
-                                    distance = DistanceCalculator.distance(
-                                            last_location_op[0],
-                                            last_location_op[1],
-                                            locations.get(i).getPoint().get(0),
-                                            locations.get(i).getPoint().get(1)
-                                    );
-                                }
-                                locations.get(i).setDistance(distance);
-                                getDatabaseHandler().insertCoodinates(locations.get(i));
-                                getLatestRequests().put(
-                                        locations.get(i).getImei(),
-                                        new LastKnownLocationInfo(
-                                                locations.get(i).getTimestamp(),
-                                                new Double[]{
-                                                    locations.get(i).getPoint().get(0),
-                                                    locations.get(i).getPoint().get(1)
-                                                }
-                                        )
-                                );
-
-                                if (this.ampActive) {
-                                    ActiveMq.sendMessage(AMQ_PREFIX_DEFAULT + locations.get(i).getImei(), new Gson().toJson(locations));
-                                    ActiveMq.sendMessage(AMQ_PREFIX_REQUEST_STATUS + locations.get(i).getImei(), String.valueOf(Tk103ProtocolDecoder.LOCATION_OK));
-                                }
-
-                                break;
-                            }
-                            case Tk103ProtocolDecoder.LOCATION_UNAVAILABLE: {
-                                if (this.ampActive) {
-                                    ActiveMq.sendMessage(AMQ_PREFIX_REQUEST_STATUS + locations.get(i).getImei(), String.valueOf(Tk103ProtocolDecoder.LOCATION_UNAVAILABLE));
-                                }
-                                break;
-                            }
-                            case Tk103ProtocolDecoder.LOCATION_UNDEFINED: {
-                                if (this.ampActive) {
-                                    ActiveMq.sendMessage(AMQ_PREFIX_REQUEST_STATUS + locations.get(i).getImei(), String.valueOf(Tk103ProtocolDecoder.LOCATION_UNDEFINED));
-                                }
-                                break;
-                            }
-                            default: {
-                                break;
-                            }
-                        }
-                    }
-                }
-            } catch (IOException | ClassNotFoundException | InterruptedException | ParseException | JMSException | MongoException ex) {
-                exceptionCaught(ex);
-            }
-        }
-    }
-
-    /**
-     *
-     * @param cause
-     */
-    public void exceptionCaught(Throwable cause) {
-        ERROR_LOGGER.error(getLogMetaInfo(), cause);
-        try {
-            mq.put(Message.getBuilder()
-                    .type(Message.MessageType.CRITICAL_SERVER_FAILURE)
-                    .message(cause.getLocalizedMessage())
-                    .timestamp(TimezoneUtil.nowLocal(TimezoneUtil.TIMEZONE_SL))
-                    .payload(cause)
-                    .build()
-            );
-        } catch (InterruptedException ex) {
-            ERROR_LOGGER.error(getLogMetaInfo(), ex);
-        }
-    }
-
-    /**
-     *
-     * @return
-     */
-    private static String getLogMetaInfo() {
-        return TimezoneUtil.nowUtc() + " [RequestQueueProcessorEngine.class]";
-    }
-}
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.workers;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.server.db.AsyncDBOperationsHandler;
+import org.server.db.AsyncDatabaseHandler;
+import org.server.db.LocationBatchWriter;
+import org.server.db.WriteAheadLog;
+import org.server.dto.Message;
+import org.server.dto.Location;
+import org.server.dto.LocationRecord;
+import org.server.dto.properties.DatabaseProperties;
+import org.server.protocol.DeferredReply;
+import org.server.protocol.Tk103ProtocolDecoder;
+import org.server.util.DistanceCalculator;
+import org.server.util.Metrics;
+import org.server.util.TimezoneUtil;
+import org.server.web.LiveFanout;
+
+public class RequestQueueProcessorEngine implements Runnable, LocationRingBuffer.EventHandler {
+
+    private static final Logger ERROR_LOGGER = LogManager.getLogger("ErrorLog");
+    private static final Logger DEBUG_LOGGER = LogManager.getLogger("DebugLog");
+
+    private static final LongAdder REORDERED = Metrics.counter("processor.reordered");
+    private static final LongAdder BACKFILLED = Metrics.counter("processor.backfilled");
+
+    // devices whose backfill chain is remembered, least recently backfilled ones are forgotten first
+    private static final int MAX_BACKFILL_TAILS = 4096;
+    private static final long NO_HEAD = Long.MIN_VALUE;
+
+    private final LocationBatchWriter locationWriter;
+    private final WriteAheadLog wal;
+    private final RequestLookupEngine lookupEngine;
+    private final IngestBackpressure queue;
+    private final int batchSize;
+    private final LastKnownLocationStore latest_reqs;
+    // last location read back from the store, reused for every record
+    private final LocationRecord lastLocation = new LocationRecord();
+    private final LinkedBlockingQueue<Message> mq;
+    private final LivePositionPublisher livePublisher;
+    private final LiveFanout liveFanout;
+    private final ReorderBuffer reorder;
+    private final long maxClockSkew;
+    private final Consumer<LocationRecord> processor = this::process;
+    // true while records are processed that had to be put back in order
+    private boolean shuffled;
+    // last backfilled point per device, so a buffered upload is chained within itself
+    private final BackfillTails backfillTails = new BackfillTails();
+    // replies of processed frames, sent once their locations are forced to the log
+    private final List<DeferredReply> replies = new ArrayList<>();
+    // set when a location could not be logged, fails the replies waiting at that time
+    private boolean appendFailed;
+
+    private static final double ABSOLUTE_LATITUDE = 0.0;
+    private static final double ABSOLUTE_LONGITUDE = 0.0;
+
+    private static final class BackfillTail {
+
+        private double lat;
+        private double lng;
+        private long timestamp;
+        // last known timestamp of the device when the tail was backfilled, NO_HEAD when it came in shuffled
+        private long head;
+    }
+
+    private static final class BackfillTails extends LinkedHashMap<Long, BackfillTail> {
+
+        private static final long serialVersionUID = 1L;
+
+        private BackfillTails() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, BackfillTail> eldest) {
+            return size() > MAX_BACKFILL_TAILS;
+        }
+    }
+
+    /**
+     *
+     * @param q
+     * @param batchSize maximum records taken from the ring per batch
+     * @param reorderWindow ms drained records are held to be put in device
+     * time order, 0 to only order each drained batch
+     * @param maxClockSkew ms a last known time may be ahead of the received
+     * time of a point before it is no longer trusted to route the point into
+     * backfill
+     * @param mq
+     * @param latest_reqs
+     * @param livePublisher null when publishing is disabled
+     * @param liveFanout null when live tracking is disabled
+     * @param db
+     * @param wal may be null
+     * @param lookupEngine may be null when offline detection is disabled
+     */
+    public RequestQueueProcessorEngine(
+            IngestBackpressure q,
+            int batchSize,
+            long reorderWindow,
+            long maxClockSkew,
+            LinkedBlockingQueue<Message> mq,
+            LastKnownLocationStore latest_reqs,
+            LivePositionPublisher livePublisher,
+            LiveFanout liveFanout,
+            DatabaseProperties db,
+            WriteAheadLog wal,
+            RequestLookupEngine lookupEngine
+    ) {
+        this(q, batchSize, reorderWindow, maxClockSkew, mq, latest_reqs, livePublisher, liveFanout,
+                new AsyncDBOperationsHandler(), db, wal, lookupEngine
+        );
+    }
+
+    /**
+     *
+     * @param q
+     * @param batchSize
+     * @param reorderWindow
+     * @param maxClockSkew
+     * @param mq
+     * @param latest_reqs
+     * @param livePublisher
+     * @param liveFanout
+     * @param databaseHandler
+     * @param db
+     * @param wal
+     * @param lookupEngine
+     */
+    RequestQueueProcessorEngine(
+            IngestBackpressure q,
+            int batchSize,
+            long reorderWindow,
+            long maxClockSkew,
+            LinkedBlockingQueue<Message> mq,
+            LastKnownLocationStore latest_reqs,
+            LivePositionPublisher livePublisher,
+            LiveFanout liveFanout,
+            AsyncDatabaseHandler databaseHandler,
+            DatabaseProperties db,
+            WriteAheadLog wal,
+            RequestLookupEngine lookupEngine
+    ) {
+        this.queue = q;
+        this.batchSize = batchSize;
+        this.reorder = new ReorderBuffer(reorderWindow, batchSize);
+        this.maxClockSkew = maxClockSkew;
+        this.mq = mq;
+        this.latest_reqs = latest_reqs;
+        this.livePublisher = livePublisher;
+        this.liveFanout = liveFanout;
+        this.wal = wal;
+        this.lookupEngine = lookupEngine;
+        this.locationWriter = new LocationBatchWriter(
+                databaseHandler,
+                db,
+                wal,
+                this::exceptionCaught
+        );
+    }
+
+    /**
+     *
+     * @return
+     */
+    private LocationBatchWriter getLocationWriter() {
+        return locationWriter;
+    }
+
+    /**
+     *
+     * @return
+     */
+    private LastKnownLocationStore getLatestRequests() {
+        return latest_reqs;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            poll(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * One turn of the processor loop: drains a batch from the ring, processes
+     * what the reorder buffer releases, completes the replies whose locations
+     * are logged and flushes the writer when due.
+     *
+     * @param now
+     */
+    void poll(long now) {
+        queue.getRing().drain(this, batchSize);
+        queue.onDrained();
+        if (reorder.size() > 0) {
+            shuffled = !reorder.isOrdered();
+            if (shuffled) {
+                REORDERED.increment();
+            }
+            reorder.release(now, processor);
+        }
+        // group commit of everything logged by the batches drained so far
+        boolean logged = wal != null && wal.sync();
+        if ((logged || wal == null) && !replies.isEmpty()) {
+            // without a log nothing vouches for the locations before the bulk write is acknowledged, protocols
+            // acknowledging storage are not started then, so this only turns away a misrouted frame
+            for (DeferredReply reply : replies) {
+                reply.complete(logged && !appendFailed);
+            }
+            replies.clear();
+            appendFailed = false;
+        }
+        try {
+            getLocationWriter().flushIfDue();
+        } catch (InterruptedException ex) {
+            exceptionCaught(ex);
+        }
+    }
+
+    /**
+     * Records are only collected here and processed by {@link #process} once
+     * the reorder buffer releases them.
+     *
+     * @param record ring slot, only valid for the duration of the call
+     * @param endOfBatch
+     */
+    @Override
+    public void onEvent(LocationRecord record, boolean endOfBatch) {
+        reorder.add(record);
+    }
+
+    /**
+     *
+     * @param record reorder slot, only valid for the duration of the call
+     */
+    private void process(LocationRecord record) {
+        if (record.getReply() != null) {
+            // the earlier locations of its frame were released no later than this one
+            replies.add(record.getReply());
+        }
+        try {
+            switch (record.getType()) {
+                case Tk103ProtocolDecoder.LOCATION_OK: {
+                    boolean known = getLatestRequests().get(record.getImei(), lastLocation);
+                    // a last known time beyond the clock skew is not trusted, e.g. one restored from
+                    // before clamping, so the device is chained in order again until it is replaced
+                    if (known && record.getTimestamp() < lastLocation.getTimestamp()
+                            && lastLocation.getTimestamp() <= record.getReceivedTime() + maxClockSkew) {
+                        backfill(record, lastLocation.getTimestamp());
+                        break;
+                    }
+                    Location location = toLocation(record);
+                    double distance = 0;
+                    if (known) {
+                        if (lastLocation.getLat() != ABSOLUTE_LATITUDE && lastLocation.getLng() != ABSOLUTE_LONGITUDE) {
+                            distance = DistanceCalculator.distance(
+                                    lastLocation.getLat(),
+                                    lastLocation.getLng(),
+                                    record.getLat(),
+                                    record.getLng()
+                            );
+                        }
+                    }
+                    location.setDistance(distance);
+                    getLocationWriter().add(location);
+                    getLatestRequests().put(record);
+                    if (lookupEngine != null) {
+                        lookupEngine.touch(record.getImei(), record.getReceivedTime());
+                    }
+
+                    if (livePublisher != null) {
+                        livePublisher.offerLocation(location);
+                        livePublisher.offerStatus(record.getImei(), Tk103ProtocolDecoder.LOCATION_OK);
+                    }
+                    if (liveFanout != null) {
+                        liveFanout.publish(location);
+                    }
+
+                    break;
+                }
+                case Tk103ProtocolDecoder.LOCATION_UNAVAILABLE: {
+                    // no fix, but the device is reporting
+                    if (lookupEngine != null) {
+                        lookupEngine.touch(record.getImei(), record.getReceivedTime());
+                    }
+                    if (livePublisher != null) {
+                        livePublisher.offerStatus(record.getImei(), Tk103ProtocolDecoder.LOCATION_UNAVAILABLE);
+                    }
+                    break;
+                }
+                case Tk103ProtocolDecoder.LOCATION_UNDEFINED: {
+                    if (livePublisher != null) {
+                        livePublisher.offerStatus(record.getImei(), Tk103ProtocolDecoder.LOCATION_UNDEFINED);
+                    }
+                    break;
+                }
+                default: {
+                    break;
+                }
+            }
+        } catch (IOException ex) {
+            appendFailed = true;
+            exceptionCaught(ex);
+        } catch (InterruptedException ex) {
+            exceptionCaught(ex);
+        }
+    }
+
+    /**
+     * Stores a point recorded before the last known location of its device,
+     * e.g. from a buffered upload. It neither moves the last known location
+     * nor goes live. It is chained to the previous backfilled point of the
+     * device only while no newer point came in between and both arrived in
+     * order, so a buffered upload is chained within itself while stray late
+     * points keep an unknown distance.
+     *
+     * @param record
+     * @param head timestamp of the last known location of the device
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void backfill(LocationRecord record, long head) throws IOException, InterruptedException {
+        BACKFILLED.increment();
+        Location location = toLocation(record);
+        location.setBackfill(true);
+        BackfillTail tail = backfillTails.get(record.getImei());
+        if (tail == null) {
+            tail = new BackfillTail();
+            backfillTails.put(record.getImei(), tail);
+        } else if (!shuffled && tail.head == head && tail.timestamp <= record.getTimestamp()) {
+            location.setDistance(DistanceCalculator.distance(tail.lat, tail.lng, record.getLat(), record.getLng()));
+        }
+        tail.lat = record.getLat();
+        tail.lng = record.getLng();
+        tail.timestamp = record.getTimestamp();
+        tail.head = shuffled ? NO_HEAD : head;
+        getLocationWriter().add(location);
+        if (lookupEngine != null) {
+            lookupEngine.touch(record.getImei(), record.getReceivedTime());
+        }
+    }
+
+    /**
+     *
+     * @param record
+     * @return
+     */
+    private static Location toLocation(LocationRecord record) {
+        return Location.builder()
+                .type(record.getType())
+                .imei(record.getImei())
+                .point(Arrays.asList(record.getLat(), record.getLng()))
+                .speed(record.getSpeed())
+                .heading(record.getHeading())
+                .timestamp(LocalDateTime.ofInstant(Instant.ofEpochMilli(record.getTimestamp()), ZoneId.systemDefault()))
+                .receivedTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(record.getReceivedTime()), ZoneId.systemDefault()))
+                .build();
+    }
+
+    /**
+     *
+     * @param cause
+     */
+    public void exceptionCaught(Throwable cause) {
+        ERROR_LOGGER.error(getLogMetaInfo(), cause);
+        try {
+            mq.put(Message.getBuilder()
+                    .type(Message.MessageType.CRITICAL_SERVER_FAILURE)
+                    .message(cause.getLocalizedMessage())
+                    .timestamp(TimezoneUtil.nowLocal(TimezoneUtil.TIMEZONE_SL))
+                    .payload(cause)
+                    .build()
+            );
+        } catch (InterruptedException ex) {
+            ERROR_LOGGER.error(getLogMetaInfo(), ex);
+        }
+    }
+
+    /**
+     *
+     * @return
+     */
+    private static String getLogMetaInfo() {
+        return TimezoneUtil.nowUtc() + " [RequestQueueProcessorEngine.class]";
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.workers;
+
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timing wheel of per-device deadlines, counted in ticks.
+ * <p>
+ * Each of the {@value #LEVELS} levels has 64 slots, a slot of level {@code n}
+ * spans 64^n ticks. A timeout is placed on the lowest level whose range
+ * covers it and moves down one level whenever the level below wraps around,
+ * so scheduling and expiring are O(1) and every timeout is touched at most
+ * once per level. Deadlines beyond the top level are parked in its farthest
+ * slot and placed again when it is reached.
+ * <p>
+ * Not thread-safe, the owning timer thread is the only user.
+ */
+public final class TimingWheel {
+
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 4;
+
+    /**
+     * A scheduled deadline of one imei. Expired timeouts may be scheduled
+     * again, which is how devices are re-armed without allocating.
+     */
+    public static final class Timeout {
+
+        private final long imei;
+        private long deadline;
+        private Timeout next;
+
+        /**
+         *
+         * @param imei
+         */
+        public Timeout(long imei) {
+            this.imei = imei;
+        }
+
+        /**
+         *
+         * @return
+         */
+        public long getImei() {
+            return imei;
+        }
+    }
+
+    private final Timeout[][] wheels = new Timeout[LEVELS][WHEEL_SIZE];
+    private long tick;
+    private int size;
+
+    /**
+     *
+     * @param startTick
+     */
+    public TimingWheel(long startTick) {
+        this.tick = startTick;
+    }
+
+    /**
+     *
+     * @return the last processed tick
+     */
+    public long getTick() {
+        return tick;
+    }
+
+    /**
+     *
+     * @return number of scheduled timeouts
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     *
+     * @param timeout must not be scheduled already
+     * @param deadline tick at which the timeout expires, past deadlines expire
+     * on the next tick
+     */
+    public void schedule(Timeout timeout, long deadline) {
+        timeout.deadline = Math.max(deadline, tick + 1);
+        insert(timeout);
+        size++;
+    }
+
+    /**
+     * Advances to {@code toTick} and hands every timeout whose deadline was
+     * reached to {@code expired}. The consumer may schedule timeouts again.
+     *
+     * @param toTick
+     * @param expired
+     */
+    public void advance(long toTick, Consumer<Timeout> expired) {
+        while (tick < toTick) {
+            tick++;
+            // a level is placed again when every level below it has wrapped around
+            for (int level = 1; level < LEVELS; level++) {
+                if ((tick & ((1L << (WHEEL_BITS * level)) - 1)) != 0) {
+                    break;
+                }
+                int slot = (int) (tick >>> (WHEEL_BITS * level)) & MASK;
+                Timeout timeout = wheels[level][slot];
+                wheels[level][slot] = null;
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    insert(timeout);
+                    timeout = next;
+                }
+            }
+            int slot = (int) tick & MASK;
+            Timeout timeout = wheels[0][slot];
+            wheels[0][slot] = null;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                timeout.next = null;
+                if (timeout.deadline <= tick) {
+                    size--;
+                    expired.accept(timeout);
+                } else {
+                    insert(timeout);
+                }
+                timeout = next;
+            }
+        }
+    }
+
+    private void insert(Timeout timeout) {
+        long delta = timeout.deadline - tick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (WHEEL_BITS * (level + 1))) {
+            level++;
+        }
+        long position = Math.min(timeout.deadline, tick + (1L << (WHEEL_BITS * LEVELS)) - 1);
+        int slot = (int) (position >>> (WHEEL_BITS * level)) & MASK;
+        timeout.next = wheels[level][slot];
+        wheels[level][slot] = timeout;
+    }
+}
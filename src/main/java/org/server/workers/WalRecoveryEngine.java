@@ -0,0 +1,70 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.workers;
+
+import com.mongodb.MongoException;
+import java.io.IOException;
+import java.util.List;
+import java.util.TimerTask;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.server.db.DBOperationsHandler;
+import org.server.db.DatabaseHandler;
+import org.server.db.WriteAheadLog;
+import org.server.util.TimezoneUtil;
+
+/**
+ * Replays write-ahead log segments into the database, first during startup
+ * before any device is accepted and then whenever a segment was retained
+ * because the database could not be reached.
+ */
+public final class WalRecoveryEngine extends TimerTask {
+
+    private static final Logger ERROR_LOGGER = LogManager.getLogger("ErrorLog");
+
+    private final DatabaseHandler databaseHandler = new DBOperationsHandler();
+    private final List<WriteAheadLog> logs;
+    private final int batchSize;
+
+    /**
+     *
+     * @param logs
+     * @param batchSize
+     */
+    public WalRecoveryEngine(List<WriteAheadLog> logs, int batchSize) {
+        this.logs = logs;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void run() {
+        for (WriteAheadLog log : logs) {
+            if (!log.isRecoveryPending()) {
+                continue;
+            }
+            try {
+                log.recover(databaseHandler, batchSize);
+            } catch (IOException | ClassNotFoundException | MongoException ex) {
+                // kept for the next run
+                ERROR_LOGGER.error(getLogMetaInfo() + " Log replay failed", ex);
+            }
+        }
+    }
+
+    private static String getLogMetaInfo() {
+        return TimezoneUtil.nowUtc() + " [WalRecoveryEngine.class]";
+    }
+}
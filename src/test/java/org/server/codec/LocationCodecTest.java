@@ -0,0 +1,161 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.codec;
+
+import com.google.gson.Gson;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import org.server.dto.Location;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips single and batched locations through the binary codec.
+ */
+public class LocationCodecTest {
+
+    private static final long IMEI = 359710040000001L;
+    private static final LocalDateTime TIME = LocalDateTime.of(2017, 6, 1, 8, 30, 15, 250000000);
+
+    @Test
+    public void locationRoundTripKeepsEveryField() {
+        Location location = full(IMEI, TIME);
+        byte[] message = LocationCodec.encode(location);
+
+        assertEquals(LocationCodec.LOCATION_SIZE, message.length);
+        assertLocation(location, LocationCodec.decode(message), 1e-3);
+    }
+
+    @Test
+    public void absentFieldsStayAbsent() {
+        Location location = Location.builder().type(0).imei(IMEI).build();
+
+        Location decoded = LocationCodec.decode(LocationCodec.encode(location));
+        assertEquals(IMEI, decoded.getImei());
+        assertNull(decoded.getPoint());
+        assertNull(decoded.getTimestamp());
+        assertNull(decoded.getReceivedTime());
+        assertNull(decoded.getSpeed());
+        assertNull(decoded.getDistance());
+        assertNull(decoded.getBackfill());
+
+        decoded = LocationCodec.decodeBatch(LocationCodec.encodeBatch(Arrays.asList(location))).get(0);
+        assertNull(decoded.getPoint());
+        assertNull(decoded.getReceivedTime());
+        assertNull(decoded.getBackfill());
+    }
+
+    @Test
+    public void batchRoundTripKeepsEveryField() {
+        List<Location> locations = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            Location location = full(IMEI + i, TIME.plusSeconds(i * 7));
+            location.setBackfill(i % 3 == 0 ? Boolean.TRUE : null);
+            location.setReceivedTime(i % 5 == 0 ? null : TIME.plusSeconds(i * 7 - 3600));
+            locations.add(location);
+        }
+        byte[] message = LocationCodec.encodeBatch(locations);
+
+        // deltas of sorted imeis keep a location well below the fixed width
+        assertTrue(message.length < locations.size() * LocationCodec.LOCATION_SIZE / 2);
+        List<Location> decoded = LocationCodec.decodeBatch(message);
+        assertEquals(locations.size(), decoded.size());
+        for (int i = 0; i < locations.size(); i++) {
+            // speed, heading and distance travel in tenths
+            assertLocation(locations.get(i), decoded.get(i), 0.05);
+        }
+    }
+
+    @Test
+    public void version1LocationIsStillDecoded() {
+        ByteBuffer buffer = ByteBuffer.allocate(LocationCodec.LOCATION_SIZE_V1);
+        // point, timestamp and speed present
+        buffer.put((byte) 1).put((byte) 0b111).putShort((short) 1).putLong(IMEI)
+                .putLong(1496305815250L).putInt(69271234).putInt(798612345)
+                .putFloat(42f).putFloat(0).putFloat(0);
+
+        Location decoded = LocationCodec.decode(buffer.array());
+        assertEquals(IMEI, decoded.getImei());
+        assertEquals(6.9271234, decoded.getPoint().get(0), 1e-9);
+        assertEquals(79.8612345, decoded.getPoint().get(1), 1e-9);
+        assertEquals(42, decoded.getSpeed(), 0);
+        assertNull(decoded.getReceivedTime());
+        assertNull(decoded.getHeading());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownVersionIsRefused() {
+        byte[] message = LocationCodec.encode(full(IMEI, TIME));
+        message[0] = 9;
+        LocationCodec.decode(message);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedBatchIsRefused() {
+        byte[] message = LocationCodec.encodeBatch(Arrays.asList(full(IMEI, TIME), full(IMEI + 1, TIME)));
+        LocationCodec.decodeBatch(Arrays.copyOf(message, message.length - 3));
+    }
+
+    @Test
+    public void encodedPayloadsAreSmallerThanJson() {
+        Gson gson = new Gson();
+        Location location = full(IMEI, TIME);
+        List<Location> locations = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            locations.add(full(IMEI + i % 10, TIME.plusSeconds(i)));
+        }
+
+        int json = gson.toJson(Collections.singletonList(location)).getBytes(StandardCharsets.UTF_8).length;
+        int jsonBatch = gson.toJson(locations).getBytes(StandardCharsets.UTF_8).length;
+        assertTrue(LocationCodec.encode(location).length * 4 < json);
+        assertTrue(LocationCodec.encodeBatch(locations).length * 8 < jsonBatch);
+    }
+
+    private static Location full(long imei, LocalDateTime timestamp) {
+        return Location.builder()
+                .type(1)
+                .imei(imei)
+                .point(Arrays.asList(6.9271234, 79.8612345))
+                .speed(42.5)
+                .heading(271.3)
+                .distance(118.2)
+                .timestamp(timestamp)
+                .receivedTime(timestamp.plusSeconds(2))
+                .backfill(true)
+                .build();
+    }
+
+    private static void assertLocation(Location expected, Location actual, double delta) {
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.getImei(), actual.getImei());
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(expected.getReceivedTime(), actual.getReceivedTime());
+        assertEquals(expected.getBackfill(), actual.getBackfill());
+        assertEquals(expected.getPoint().get(0), actual.getPoint().get(0), 1e-7);
+        assertEquals(expected.getPoint().get(1), actual.getPoint().get(1), 1e-7);
+        assertEquals(expected.getSpeed(), actual.getSpeed(), delta);
+        assertEquals(expected.getHeading(), actual.getHeading(), delta);
+        assertEquals(expected.getDistance(), actual.getDistance(), delta);
+    }
+}
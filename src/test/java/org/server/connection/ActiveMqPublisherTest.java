@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.connection;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Sends through the session pool of the publisher on a recording
+ * connection.
+ */
+public class ActiveMqPublisherTest {
+
+    private final RecordingConnection broker = new RecordingConnection();
+
+    @Test
+    public void sequentialSendsReuseOneSession() throws Exception {
+        ActiveMqPublisher publisher = new ActiveMqPublisher(broker.connection(), DeliveryMode.NON_PERSISTENT, 4);
+        for (int i = 0; i < 10; i++) {
+            publisher.send("REQSTATUS.1", "1");
+        }
+
+        assertEquals(10, broker.sent.size());
+        assertEquals(1, broker.sessionsCreated.get());
+    }
+
+    @Test
+    public void concurrentSendersStayWithinTheBound() throws Exception {
+        ActiveMqPublisher publisher = new ActiveMqPublisher(broker.connection(), DeliveryMode.NON_PERSISTENT, 2);
+        broker.whileSending = () -> {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        Thread[] senders = new Thread[6];
+        for (int i = 0; i < senders.length; i++) {
+            final String topic = "COO." + i;
+            senders[i] = new Thread(() -> {
+                for (int j = 0; j < 50; j++) {
+                    try {
+                        publisher.send(topic, String.valueOf(j));
+                    } catch (JMSException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                }
+            });
+            senders[i].start();
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+
+        assertEquals(300, broker.sent.size());
+        assertTrue(broker.maxSending.get() <= 2);
+        assertTrue(broker.sessionsCreated.get() <= 2);
+    }
+
+    @Test
+    public void senderWaitsWhileEverySessionIsInUse() throws Exception {
+        ActiveMqPublisher publisher = new ActiveMqPublisher(broker.connection(), DeliveryMode.NON_PERSISTENT, 1);
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        broker.whileSending = () -> {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        Thread first = sender(publisher, "COO.1");
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        Thread second = sender(publisher, "COO.2");
+        second.join(100);
+
+        assertTrue(second.isAlive());
+        assertEquals(1, broker.sessionsCreated.get());
+        release.countDown();
+        first.join();
+        second.join();
+        assertEquals(2, broker.sent.size());
+        assertEquals(1, broker.sessionsCreated.get());
+    }
+
+    @Test
+    public void failedSessionIsClosedAndItsSlotReused() throws Exception {
+        ActiveMqPublisher publisher = new ActiveMqPublisher(broker.connection(), DeliveryMode.NON_PERSISTENT, 1);
+        broker.failing = topic -> topic.startsWith("BAD.");
+        try {
+            publisher.send("BAD.1", "1");
+            fail();
+        } catch (IllegalStateException expected) {
+            assertEquals(0, broker.sessionsOpen.get());
+        }
+        publisher.send("COO.1", "1");
+
+        assertEquals(1, broker.sent.size());
+        assertEquals(2, broker.sessionsCreated.get());
+        publisher.close();
+        assertEquals(0, broker.sessionsOpen.get());
+        assertFalse(broker.sent.contains("BAD.1=1"));
+    }
+
+    private static Thread sender(ActiveMqPublisher publisher, String topic) {
+        Thread thread = new Thread(() -> {
+            try {
+                publisher.send(topic, "1");
+            } catch (JMSException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+}
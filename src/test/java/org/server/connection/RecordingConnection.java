@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.connection;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import javax.jms.Topic;
+
+/**
+ * In-memory JMS {@link Connection} for tests: sent messages are recorded as
+ * {@code topic=payload} and sessions are counted. Sends to topics matching
+ * {@link #failing} throw, sends wait while {@link #sending} blocks.
+ */
+public class RecordingConnection {
+
+    public final List<String> sent = new CopyOnWriteArrayList<>();
+    public final AtomicInteger sessionsCreated = new AtomicInteger();
+    public final AtomicInteger sessionsOpen = new AtomicInteger();
+    public final AtomicInteger sending = new AtomicInteger();
+    public final AtomicInteger maxSending = new AtomicInteger();
+    public volatile Predicate<String> failing = topic -> false;
+    public volatile Runnable whileSending = () -> {
+    };
+
+    /**
+     *
+     * @return a connection handing out recording sessions
+     */
+    public Connection connection() {
+        return proxy(Connection.class, (proxy, method, args) -> {
+            if ("createSession".equals(method.getName())) {
+                sessionsCreated.incrementAndGet();
+                sessionsOpen.incrementAndGet();
+                return session();
+            }
+            return null;
+        });
+    }
+
+    private Session session() {
+        return proxy(Session.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "createProducer": {
+                    return producer();
+                }
+                case "createTextMessage": {
+                    return message(TextMessage.class, new StringBuilder((String) args[0]));
+                }
+                case "createBytesMessage": {
+                    return message(BytesMessage.class, new StringBuilder());
+                }
+                case "close": {
+                    sessionsOpen.decrementAndGet();
+                    return null;
+                }
+                default: {
+                    return null;
+                }
+            }
+        });
+    }
+
+    private MessageProducer producer() {
+        return proxy(MessageProducer.class, (proxy, method, args) -> {
+            if ("send".equals(method.getName())) {
+                String topic = ((Topic) args[0]).getTopicName();
+                maxSending.accumulateAndGet(sending.incrementAndGet(), Math::max);
+                try {
+                    whileSending.run();
+                    if (failing.test(topic)) {
+                        throw new IllegalStateException("send to " + topic + " failed");
+                    }
+                    sent.add(topic + "=" + args[1].toString());
+                } finally {
+                    sending.decrementAndGet();
+                }
+            }
+            return null;
+        });
+    }
+
+    private static <T> T message(Class<T> type, StringBuilder payload) {
+        return proxy(type, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "writeBytes": {
+                    payload.append(new String((byte[]) args[0], StandardCharsets.ISO_8859_1));
+                    return null;
+                }
+                case "getText":
+                case "toString": {
+                    return payload.toString();
+                }
+                default: {
+                    return null;
+                }
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(RecordingConnection.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+}
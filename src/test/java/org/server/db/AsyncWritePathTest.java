@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.junit.Test;
+import org.server.dto.Location;
+import org.server.dto.properties.DatabaseProperties;
+import org.server.util.Metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the non-blocking write path: writes complete through futures and
+ * never more than the configured number of batches are outstanding.
+ */
+public class AsyncWritePathTest {
+
+    private static final LongAdder WRITTEN = Metrics.counter("db.location.written");
+
+    @Test
+    public void emptyBatchCompletesWithoutTheServer() throws Exception {
+        CompletableFuture<Integer> result = new AsyncDBOperationsHandler().insertLocations(Collections.emptyList());
+        assertTrue(result.isDone());
+        assertEquals(0, (int) result.get());
+    }
+
+    @Test
+    public void outstandingWritesAreBounded() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        StubDatabaseHandler stub = new StubDatabaseHandler() {
+            @Override
+            public synchronized int insertLocations(List<Location> inserted) {
+                return super.insertLocations(inserted);
+            }
+        };
+        AsyncDatabaseHandler slow = locations -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            return CompletableFuture.runAsync(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+            }).thenCompose(v -> CompletableFuture.completedFuture(stub.insertLocations(locations)));
+        };
+        DatabaseProperties db = new DatabaseProperties();
+        db.setBatchSize(1);
+        db.setMaxInFlight(2);
+        LocationBatchWriter writer = new LocationBatchWriter(slow, db, null, t -> {
+        });
+
+        long before = WRITTEN.sum();
+        Thread processor = new Thread(() -> {
+            try {
+                for (Location location : locations(5)) {
+                    writer.add(location);
+                }
+            } catch (Exception ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        processor.start();
+        processor.join(200);
+
+        // two batches outstanding, the third waits for a permit
+        assertTrue(processor.isAlive());
+        assertEquals(2, running.get());
+
+        release.countDown();
+        processor.join(5000);
+        assertFalse(processor.isAlive());
+        assertEquals(2, maxRunning.get());
+
+        // acknowledgements feed the written counter
+        long deadline = System.currentTimeMillis() + 5000;
+        while (WRITTEN.sum() - before < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(5, WRITTEN.sum() - before);
+        assertEquals(5, stub.locations.size());
+    }
+
+    private static List<Location> locations(int count) {
+        List<Location> locations = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            locations.add(Location.builder().imei(i).build());
+        }
+        return locations;
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.db;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoSocketReadException;
+import com.mongodb.ServerAddress;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.bson.BsonDocument;
+import org.junit.Test;
+import org.server.dto.Location;
+import org.server.dto.properties.DatabaseProperties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LocationBatchWriterTest {
+
+    private final ScriptedHandler handler = new ScriptedHandler();
+    private final LinkedBlockingQueue<Throwable> failures = new LinkedBlockingQueue<>();
+
+    @Test
+    public void flushesFullBatches() throws Exception {
+        LocationBatchWriter writer = newWriter(3, 60000, 2, 0);
+        for (int i = 0; i < 7; i++) {
+            writer.add(location(i));
+        }
+        assertEquals(Arrays.asList(3, 3), handler.sizes());
+
+        writer.flush();
+        assertEquals(Arrays.asList(3, 3, 1), handler.sizes());
+        assertEquals(6L, handler.calls.get(2).get(0).getImei());
+    }
+
+    @Test
+    public void flushesOpenBatchOnceItIsDue() throws Exception {
+        LocationBatchWriter writer = newWriter(100, 50, 2, 0);
+        writer.add(location(1));
+        writer.flushIfDue();
+        assertEquals(0, handler.calls.size());
+
+        Thread.sleep(60);
+        writer.flushIfDue();
+        assertEquals(Collections.singletonList(1), handler.sizes());
+
+        writer.flushIfDue();
+        assertEquals(1, handler.calls.size());
+    }
+
+    @Test
+    public void waitsWhileTheWindowIsFull() throws Exception {
+        LocationBatchWriter writer = newWriter(1, 60000, 1, 0);
+        CompletableFuture<Integer> first = new CompletableFuture<>();
+        handler.script.add(first);
+
+        writer.add(location(1));
+        Thread second = new Thread(() -> {
+            try {
+                writer.add(location(2));
+            } catch (Exception ex) {
+                failures.add(ex);
+            }
+        });
+        second.start();
+        second.join(200);
+        assertTrue(second.isAlive());
+        assertEquals(1, handler.calls.size());
+
+        first.complete(1);
+        second.join(5000);
+        assertEquals(2, handler.calls.size());
+        assertTrue(failures.isEmpty());
+    }
+
+    @Test
+    public void retriesFailedBatches() throws Exception {
+        LocationBatchWriter writer = newWriter(2, 60000, 1, 3);
+        handler.script.add(failed(new MongoSocketReadException("reset", new ServerAddress())));
+
+        writer.add(location(1));
+        writer.add(location(2));
+        // the permit comes back once the retry succeeded
+        writer.add(location(3));
+        writer.add(location(4));
+
+        assertEquals(Arrays.asList(2, 2, 2), handler.sizes());
+        assertEquals(handler.calls.get(0), handler.calls.get(1));
+        assertNull(failures.poll());
+    }
+
+    @Test
+    public void retriesOnlyTheFailedPartOfABulkWrite() throws Exception {
+        LocationBatchWriter writer = newWriter(3, 60000, 1, 3);
+        handler.script.add(failed(new MongoBulkWriteException(
+                BulkWriteResult.unacknowledged(),
+                Arrays.asList(
+                        new BulkWriteError(11000, "duplicate key", new BsonDocument(), 0),
+                        new BulkWriteError(91, "shutting down", new BsonDocument(), 2)
+                ),
+                null,
+                new ServerAddress()
+        )));
+
+        writer.add(location(1));
+        writer.add(location(2));
+        writer.add(location(3));
+        // waits for the retry to finish the first batch
+        for (int i = 4; i <= 6; i++) {
+            writer.add(location(i));
+        }
+
+        assertEquals(Arrays.asList(3, 1, 3), handler.sizes());
+        assertEquals(3L, handler.calls.get(1).get(0).getImei());
+    }
+
+    @Test
+    public void reportsBatchesThatKeepFailing() throws Exception {
+        LocationBatchWriter writer = newWriter(1, 60000, 1, 2);
+        MongoSocketReadException cause = new MongoSocketReadException("reset", new ServerAddress());
+        for (int i = 0; i < 3; i++) {
+            handler.script.add(failed(cause));
+        }
+
+        writer.add(location(1));
+        Throwable failure = failures.poll(5, TimeUnit.SECONDS);
+        assertNotNull(failure);
+        assertSame(cause, failure);
+        assertEquals(3, handler.calls.size());
+
+        // the window is open again
+        writer.add(location(2));
+        assertEquals(4, handler.calls.size());
+    }
+
+    private LocationBatchWriter newWriter(int batchSize, long flushInterval, int maxInFlight, int maxRetries) {
+        DatabaseProperties db = new DatabaseProperties();
+        db.setBatchSize(batchSize);
+        db.setFlushInterval(flushInterval);
+        db.setMaxInFlight(maxInFlight);
+        db.setMaxRetries(maxRetries);
+        db.setRetryBackoff(1);
+        return new LocationBatchWriter(handler, db, null, failures::add);
+    }
+
+    private static Location location(long imei) {
+        return Location.builder().imei(imei).build();
+    }
+
+    private static CompletableFuture<Integer> failed(Throwable cause) {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        future.completeExceptionally(cause);
+        return future;
+    }
+
+    /**
+     * Answers writes from a script, every write not scripted succeeds.
+     */
+    private static final class ScriptedHandler implements AsyncDatabaseHandler {
+
+        private final List<CompletableFuture<Integer>> script = new CopyOnWriteArrayList<>();
+        private final List<List<Location>> calls = new CopyOnWriteArrayList<>();
+
+        @Override
+        public CompletableFuture<Integer> insertLocations(List<Location> locations) {
+            calls.add(new ArrayList<>(locations));
+            if (!script.isEmpty()) {
+                return script.remove(0);
+            }
+            return CompletableFuture.completedFuture(locations.size());
+        }
+
+        private List<Integer> sizes() {
+            List<Integer> sizes = new ArrayList<>();
+            for (List<Location> call : calls) {
+                sizes.add(call.size());
+            }
+            return sizes;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.db;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.server.dto.Location;
+import org.server.dto.LocationRecord;
+import org.server.dto.Vehicle;
+
+/**
+ * In-memory {@link DatabaseHandler} for tests: inserted locations are
+ * collected and vehicles are served from a map.
+ */
+public class StubDatabaseHandler implements DatabaseHandler {
+
+    public final List<Location> locations = new ArrayList<>();
+    public final Map<Long, Vehicle> vehicles = new LinkedHashMap<>();
+    public final AtomicInteger vehicleQueries = new AtomicInteger();
+    public final AtomicInteger vehicleReloads = new AtomicInteger();
+
+    /**
+     *
+     * @param imei
+     * @param user
+     * @return the added vehicle
+     */
+    public Vehicle addVehicle(long imei, String user) {
+        Vehicle vehicle = Vehicle.builder().imei(imei).user(user).key("key-" + imei).build();
+        vehicles.put(imei, vehicle);
+        return vehicle;
+    }
+
+    @Override
+    public boolean insertCoodinates(Object decodedRequest) {
+        locations.add((Location) decodedRequest);
+        return true;
+    }
+
+    @Override
+    public int insertLocations(List<Location> inserted) {
+        locations.addAll(inserted);
+        return inserted.size();
+    }
+
+    @Override
+    public double[] findLastLocation(long imei) {
+        return new double[2];
+    }
+
+    @Override
+    public int findLastLocations(long since, Consumer<LocationRecord> consumer) {
+        return 0;
+    }
+
+    @Override
+    public int findTrack(long imei, long from, long to, String afterId, int limit, int batchSize, Consumer<Location> consumer) {
+        return 0;
+    }
+
+    @Override
+    public Vehicle getVehicle(long imei) {
+        vehicleQueries.incrementAndGet();
+        return vehicles.get(imei);
+    }
+
+    @Override
+    public int findVehicles(Consumer<Vehicle> consumer) {
+        vehicleReloads.incrementAndGet();
+        vehicles.values().forEach(consumer);
+        return vehicles.size();
+    }
+
+    @Override
+    public boolean retryDatabaseConnectivity() {
+        return true;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.db;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks which lookups of the vehicle registry reach the database.
+ */
+public class VehicleRegistryTest {
+
+    private static final long KNOWN = 359710040000001L;
+    private static final long LATE = 359710040000002L;
+    private static final long UNKNOWN = 359710040000003L;
+
+    private final StubDatabaseHandler db = new StubDatabaseHandler();
+
+    @Test
+    public void loadedVehiclesAreServedWithoutQueries() throws Exception {
+        db.addVehicle(KNOWN, "fleet");
+        VehicleRegistry registry = new VehicleRegistry(db, 16, 60000);
+        registry.reload();
+
+        assertSame(db.vehicles.get(KNOWN), registry.getVehicle(KNOWN));
+        assertSame(db.vehicles.get(KNOWN), registry.getLoadedVehicle(KNOWN));
+        assertSame(db.vehicles.get(KNOWN), registry.getLoadedVehicleByKey("key-" + KNOWN));
+        assertNull(registry.getLoadedVehicleByKey("key-" + UNKNOWN));
+        assertEquals(0, db.vehicleQueries.get());
+    }
+
+    @Test
+    public void missesSurviveReloadsUntilTheirTtl() throws Exception {
+        VehicleRegistry registry = new VehicleRegistry(db, 16, 100);
+        registry.reload();
+
+        assertNull(registry.getVehicle(UNKNOWN));
+        registry.reload();
+        assertNull(registry.getVehicle(UNKNOWN));
+        assertEquals(1, db.vehicleQueries.get());
+
+        Thread.sleep(150);
+        assertNull(registry.getVehicle(UNKNOWN));
+        assertEquals(2, db.vehicleQueries.get());
+    }
+
+    @Test
+    public void queriedVehiclesAreReplacedByTheNextReload() throws Exception {
+        VehicleRegistry registry = new VehicleRegistry(db, 16, 60000);
+        registry.reload();
+        db.addVehicle(LATE, "fleet");
+
+        assertNull(registry.getLoadedVehicle(LATE));
+        assertNotNull(registry.getVehicle(LATE));
+        assertNotNull(registry.getVehicle(LATE));
+        assertEquals(1, db.vehicleQueries.get());
+
+        registry.reload();
+        assertNotNull(registry.getLoadedVehicle(LATE));
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void queriedAnswersAreBoundedByTheSize() throws Exception {
+        VehicleRegistry registry = new VehicleRegistry(db, 2, 60000);
+        for (long imei = UNKNOWN; imei < UNKNOWN + 3; imei++) {
+            registry.getVehicle(imei);
+        }
+        assertEquals(2, registry.size());
+
+        registry.getVehicle(UNKNOWN);
+        assertEquals(4, db.vehicleQueries.get());
+    }
+}
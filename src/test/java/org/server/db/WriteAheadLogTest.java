@@ -0,0 +1,217 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.db;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import org.bson.BsonDocument;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.server.dto.Location;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Writes locations through the log and replays them as a restart would.
+ */
+public class WriteAheadLogTest {
+
+    private static final LocalDateTime TIMESTAMP = LocalDateTime.of(2018, 3, 27, 10, 15, 30);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replayKeepsEveryField() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        WriteAheadLog wal = new WriteAheadLog(directory, 64 * 1024, 0);
+        wal.append(location(12.5, null, TIMESTAMP.plusSeconds(3), true));
+        wal.append(location(0.0, 1.25, null, null));
+        assertTrue(wal.sync());
+
+        // a restart finds the unreleased segment
+        WriteAheadLog restarted = new WriteAheadLog(directory, 64 * 1024, 0);
+        assertTrue(restarted.isRecoveryPending());
+        StubDatabaseHandler db = new StubDatabaseHandler();
+        assertEquals(2, restarted.recover(db, 10));
+
+        Location first = db.locations.get(0);
+        assertEquals(359710040000001L, first.getImei());
+        assertEquals(TIMESTAMP, first.getTimestamp());
+        assertEquals(TIMESTAMP.plusSeconds(3), first.getReceivedTime());
+        assertEquals(Arrays.asList(6.9271, 79.8612), first.getPoint());
+        assertEquals(12.5, first.getSpeed(), 0);
+        assertNull(first.getDistance());
+        assertTrue(first.getBackfill());
+
+        Location second = db.locations.get(1);
+        assertEquals(0.0, second.getSpeed(), 0);
+        assertEquals(1.25, second.getDistance(), 0);
+        assertNull(second.getReceivedTime());
+        assertNull(second.getBackfill());
+        assertFalse(restarted.isRecoveryPending());
+    }
+
+    @Test
+    public void releasedRecordsAreNotReplayed() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        WriteAheadLog wal = new WriteAheadLog(directory, 64 * 1024, 0);
+        long segment = wal.append(location(10.0, 0.5, null, null));
+        wal.release(Collections.singletonMap(segment, 1));
+        wal.append(location(20.0, 0.75, null, null));
+        wal.sync();
+
+        StubDatabaseHandler db = new StubDatabaseHandler();
+        assertEquals(1, new WriteAheadLog(directory, 64 * 1024, 0).recover(db, 10));
+        assertEquals(20.0, db.locations.get(0).getSpeed(), 0);
+    }
+
+    @Test
+    public void replayWritesTheIdsOfTheFirstWrite() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        WriteAheadLog wal = new WriteAheadLog(directory, 64 * 1024, 0);
+        Location first = location(10.0, 0.5, null, null);
+        Location second = location(10.0, 0.5, null, null);
+        wal.append(first);
+        wal.append(second);
+        wal.sync();
+        assertNotEquals(first.getId(), second.getId());
+
+        StubDatabaseHandler db = new StubDatabaseHandler();
+        assertEquals(2, new WriteAheadLog(directory, 64 * 1024, 0).recover(db, 10));
+        assertEquals(first.getId(), db.locations.get(0).getId());
+        assertEquals(second.getId(), db.locations.get(1).getId());
+    }
+
+    @Test
+    public void duplicateKeysCountAsStoredOnReplay() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        WriteAheadLog wal = new WriteAheadLog(directory, 64 * 1024, 0);
+        wal.append(location(10.0, 0.5, null, null));
+        wal.append(location(20.0, 0.5, null, null));
+        wal.sync();
+
+        // the first location was stored before the crash
+        WriteAheadLog restarted = new WriteAheadLog(directory, 64 * 1024, 0);
+        assertEquals(2, restarted.recover(failing(11000), 10));
+        assertFalse(restarted.isRecoveryPending());
+    }
+
+    @Test
+    public void otherWriteErrorsKeepTheSegment() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        WriteAheadLog wal = new WriteAheadLog(directory, 64 * 1024, 0);
+        wal.append(location(10.0, 0.5, null, null));
+        wal.sync();
+
+        WriteAheadLog restarted = new WriteAheadLog(directory, 64 * 1024, 0);
+        try {
+            restarted.recover(failing(121), 10);
+            fail("validation failure was not raised");
+        } catch (MongoBulkWriteException expected) {
+            // validation failure
+        }
+        assertTrue(restarted.isRecoveryPending());
+        assertEquals(1, restarted.recover(new StubDatabaseHandler(), 10));
+    }
+
+    @Test
+    public void replayOnlyLogRemovesItsDirectory() throws Exception {
+        Path directory = folder.getRoot().toPath().resolve("shard-3");
+        WriteAheadLog wal = new WriteAheadLog(directory, 64 * 1024, 0);
+        wal.append(location(10.0, 0.5, null, null));
+        wal.sync();
+
+        WriteAheadLog former = WriteAheadLog.openForReplay(directory);
+        assertEquals(1, directory.toFile().list().length);
+        StubDatabaseHandler db = new StubDatabaseHandler();
+        assertEquals(1, former.recover(db, 10));
+        assertFalse(Files.exists(directory));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void replayOnlyLogRefusesAppends() throws Exception {
+        WriteAheadLog.openForReplay(folder.getRoot().toPath()).append(location(10.0, 0.5, null, null));
+    }
+
+    @Test
+    public void legacySegmentIsReplayed() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        // header of the first format is the checkpoint alone, records have no flags
+        ByteBuffer segment = ByteBuffer.allocate(8 + 64 * 2);
+        segment.putLong(0);
+        for (int i = 0; i < 2; i++) {
+            int start = segment.position();
+            segment.position(start + 4);
+            segment.putInt(1).putLong(359710040000001L).putLong(1522145730000L + i * 1000)
+                    .putDouble(6.9271).putDouble(79.8612)
+                    .putDouble(30).putDouble(90).putDouble(0.5 * i);
+            CRC32 crc = new CRC32();
+            crc.update(segment.array(), start + 4, 60);
+            segment.putInt(start, (int) crc.getValue());
+        }
+        Files.write(directory.resolve(String.format("%020d", 0) + ".wal"), segment.array());
+
+        StubDatabaseHandler db = new StubDatabaseHandler();
+        assertEquals(2, new WriteAheadLog(directory, 64 * 1024, 0).recover(db, 10));
+        assertEquals(0.5, db.locations.get(1).getDistance(), 0);
+        assertEquals(90, db.locations.get(1).getHeading(), 0);
+    }
+
+    private static StubDatabaseHandler failing(int code) {
+        return new StubDatabaseHandler() {
+            @Override
+            public int insertLocations(List<Location> inserted) {
+                throw new MongoBulkWriteException(
+                        BulkWriteResult.unacknowledged(),
+                        Collections.singletonList(new BulkWriteError(code, "write error", new BsonDocument(), 0)),
+                        null,
+                        new ServerAddress()
+                );
+            }
+        };
+    }
+
+    private static Location location(double speed, Double distance, LocalDateTime received, Boolean backfill) {
+        return Location.builder()
+                .type(1)
+                .imei(359710040000001L)
+                .point(Arrays.asList(6.9271, 79.8612))
+                .speed(speed)
+                .heading(90.0)
+                .timestamp(TIMESTAMP)
+                .receivedTime(received)
+                .distance(distance)
+                .backfill(backfill)
+                .build();
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.protocol;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import java.util.ArrayList;
+import java.util.List;
+import org.server.dto.LocationRecord;
+
+/**
+ * Copies every {@link DeviceFrame} passing by, decoders reuse their frame so
+ * it cannot be kept as is.
+ */
+public class FrameRecorder extends ChannelInboundHandlerAdapter {
+
+    public final List<Recorded> frames = new ArrayList<>();
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        frames.add(new Recorded((DeviceFrame) msg));
+    }
+
+    /**
+     * What a frame carried when it was read.
+     */
+    public static final class Recorded {
+
+        public final int command;
+        public final long deviceId;
+        public final int sequence;
+        public final boolean continuation;
+        public final List<LocationRecord> locations = new ArrayList<>();
+
+        private Recorded(DeviceFrame frame) {
+            this.command = frame.getCommand();
+            this.deviceId = frame.getDeviceId();
+            this.sequence = frame.getSequence();
+            this.continuation = frame.isContinuation();
+            for (int i = 0; i < frame.getLocationCount(); i++) {
+                LocationRecord location = new LocationRecord();
+                location.copyFrom(frame.getLocation(i));
+                locations.add(location);
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.util.List;
+import org.junit.Test;
+import org.server.dto.LocationRecord;
+import org.server.util.ChecksumUtil;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class Gt06FrameDecoderTest {
+
+    private static final long IMEI = 123456789012345L;
+    // samples from the GT06 protocol document
+    private static final String LOGIN = "78780D01012345678901234500018CDD0D0A";
+    private static final String LOGIN_REPLY = "787805010001d9dc0d0a";
+    private static final String GPS = "78781F120B081D112E10CF027AC7EB0C46584900148F01CC00287D001FB8000380810D0A";
+    // 2011-08-29 17:46:16 UTC
+    private static final long GPS_TIME = 1314639976000L;
+    private static final String GPS_CONTENT = "0B081D112E10CF027AC7EB0C46584900148F01CC00287D001FB8";
+
+    private final FrameRecorder recorder = new FrameRecorder();
+    private final List<FrameRecorder.Recorded> frames = recorder.frames;
+    private final EmbeddedChannel channel = new EmbeddedChannel(new Gt06FrameDecoder(1024), recorder);
+
+    @Test
+    public void decodesLogin() {
+        write(LOGIN);
+
+        assertEquals(1, frames.size());
+        assertEquals(Gt06FrameDecoder.MSG_LOGIN, frames.get(0).command);
+        assertEquals(IMEI, frames.get(0).deviceId);
+        assertEquals(1, frames.get(0).sequence);
+    }
+
+    @Test
+    public void repliesToLogin() {
+        DeviceFrame login = new DeviceFrame();
+        login.reset(Gt06FrameDecoder.MSG_LOGIN, IMEI);
+        login.setSequence(1);
+        ByteBuf reply = new Gt06Protocol().encodeReply(ByteBufAllocator.DEFAULT, login);
+        try {
+            assertEquals(LOGIN_REPLY, ByteBufUtil.hexDump(reply));
+        } finally {
+            reply.release();
+        }
+    }
+
+    @Test
+    public void decodesGpsAfterLogin() {
+        write(LOGIN);
+        write(GPS);
+
+        assertEquals(2, frames.size());
+        FrameRecorder.Recorded gps = frames.get(1);
+        assertEquals(Gt06FrameDecoder.MSG_GPS, gps.command);
+        assertEquals(3, gps.sequence);
+        assertEquals(1, gps.locations.size());
+
+        LocationRecord location = gps.locations.get(0);
+        assertEquals(IMEI, location.getImei());
+        assertEquals(Tk103ProtocolDecoder.LOCATION_OK, location.getType());
+        assertEquals(0x027AC7EB / 1800000.0, location.getLat(), 1e-9);
+        assertEquals(0x0C465849 / 1800000.0, location.getLng(), 1e-9);
+        assertEquals(0, location.getSpeed(), 1e-9);
+        assertEquals(0x8F, location.getHeading(), 1e-9);
+        assertEquals(GPS_TIME, location.getTimestamp());
+    }
+
+    @Test
+    public void gpsBeforeLoginHasNoLocation() {
+        write(GPS);
+
+        assertEquals(1, frames.size());
+        assertEquals(0, frames.get(0).locations.size());
+    }
+
+    @Test
+    public void decodesSouthWestAndUnpositioned() {
+        write(LOGIN);
+        // course and status 0x048F: not positioned
+        write(packet(false, Gt06FrameDecoder.MSG_GPS_LBS, GPS_CONTENT.replace("00148F", "00048F"), 4));
+        // 0x108F: positioned, south and east
+        write(packet(false, Gt06FrameDecoder.MSG_GPS, GPS_CONTENT.replace("00148F", "00108F"), 5));
+        // 0x1C8F: positioned, north and west
+        write(packet(false, Gt06FrameDecoder.MSG_GPS, GPS_CONTENT.replace("00148F", "001C8F"), 6));
+
+        assertEquals(4, frames.size());
+        assertEquals(Tk103ProtocolDecoder.LOCATION_UNAVAILABLE, frames.get(1).locations.get(0).getType());
+        assertTrue(frames.get(2).locations.get(0).getLat() < 0);
+        assertTrue(frames.get(2).locations.get(0).getLng() > 0);
+        assertTrue(frames.get(3).locations.get(0).getLat() > 0);
+        assertTrue(frames.get(3).locations.get(0).getLng() < 0);
+    }
+
+    @Test
+    public void decodesLongPackets() {
+        write(LOGIN);
+        write(packet(true, Gt06FrameDecoder.MSG_ALARM, GPS_CONTENT + "0102030405", 7));
+
+        assertEquals(2, frames.size());
+        assertEquals(Gt06FrameDecoder.MSG_ALARM, frames.get(1).command);
+        assertEquals(7, frames.get(1).sequence);
+        assertEquals(GPS_TIME, frames.get(1).locations.get(0).getTimestamp());
+    }
+
+    @Test
+    public void decodesPacketsSplitAcrossReads() {
+        byte[] bytes = ByteBufUtil.decodeHexDump(LOGIN + GPS);
+        for (byte b : bytes) {
+            channel.writeInbound(Unpooled.wrappedBuffer(new byte[]{b}));
+        }
+
+        assertEquals(2, frames.size());
+        assertEquals(GPS_TIME, frames.get(1).locations.get(0).getTimestamp());
+    }
+
+    @Test
+    public void decodesPacketsCoalescedInOneRead() {
+        write(LOGIN + GPS + packet(false, Gt06FrameDecoder.MSG_HEARTBEAT, "4004040001", 8));
+
+        assertEquals(3, frames.size());
+        assertEquals(Gt06FrameDecoder.MSG_LOGIN, frames.get(0).command);
+        assertEquals(Gt06FrameDecoder.MSG_GPS, frames.get(1).command);
+        assertEquals(Gt06FrameDecoder.MSG_HEARTBEAT, frames.get(2).command);
+        assertEquals(8, frames.get(2).sequence);
+    }
+
+    @Test
+    public void skipsGarbageBeforeTheStartBits() {
+        write("0D0A7700" + LOGIN);
+
+        assertEquals(1, frames.size());
+        assertEquals(IMEI, frames.get(0).deviceId);
+    }
+
+    @Test
+    public void dropsCorruptAndUnsupportedPackets() {
+        write(LOGIN.replace("8CDD", "8CDE"));
+        write(packet(false, 0x8A, "", 9));
+
+        assertEquals(0, frames.size());
+        assertTrue(channel.isOpen());
+
+        write(LOGIN);
+        assertEquals(1, frames.size());
+    }
+
+    /**
+     *
+     * @param longPacket 0x7979 with a two byte length
+     * @param type
+     * @param content hex
+     * @param serial
+     * @return the packet in hex
+     */
+    private static String packet(boolean longPacket, int type, String content, int serial) {
+        byte[] body = ByteBufUtil.decodeHexDump(content);
+        ByteBuf out = Unpooled.buffer();
+        out.writeShort(longPacket ? 0x7979 : 0x7878);
+        int length = 1 + body.length + 2 + 2;
+        if (longPacket) {
+            out.writeShort(length);
+        } else {
+            out.writeByte(length);
+        }
+        out.writeByte(type);
+        out.writeBytes(body);
+        out.writeShort(serial);
+        out.writeShort(ChecksumUtil.crcItu(out, 2, out.writerIndex() - 2));
+        out.writeShort(0x0D0A);
+        return ByteBufUtil.hexDump(out);
+    }
+
+    private void write(String hex) {
+        channel.writeInbound(Unpooled.wrappedBuffer(ByteBufUtil.decodeHexDump(hex)));
+    }
+}
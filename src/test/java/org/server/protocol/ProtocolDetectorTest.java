@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.timeout.IdleStateEvent;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.server.dto.properties.ServerProperties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the first bytes of a connection on a shared port select the
+ * right protocol and reach its decoder intact.
+ */
+public class ProtocolDetectorTest {
+
+    private static final String TK103_LOGIN = "(013612345678BP05000013612345678080524A2232.9806N11404.9355E000.1101241323.8700000000L000450AC)";
+    private static final String GT06_LOGIN = "78780D01012345678901234500018CDD0D0A";
+    private static final String TELTONIKA_LOGIN = "000F333536333037303432343431303133";
+
+    private final FrameRecorder recorder = new FrameRecorder();
+    private final List<String> detected = new ArrayList<>();
+    private final EmbeddedChannel channel = new EmbeddedChannel(new ProtocolDetector(ProtocolRegistry.defaults(), (pipeline, protocol) -> {
+        detected.add(protocol.getName());
+        pipeline.addLast(protocol.newFrameDecoder(new ServerProperties()), recorder);
+    }));
+
+    @Test
+    public void detectsTk103() {
+        channel.writeInbound(Unpooled.copiedBuffer(TK103_LOGIN, StandardCharsets.US_ASCII));
+
+        assertEquals(1, detected.size());
+        assertEquals(Tk103Protocol.NAME, detected.get(0));
+        assertEquals(1, recorder.frames.size());
+        assertEquals(13612345678L, recorder.frames.get(0).locations.get(0).getImei());
+        assertNull(channel.pipeline().get(ProtocolDetector.class));
+    }
+
+    @Test
+    public void detectsGt06() {
+        writeHex(GT06_LOGIN);
+
+        assertEquals(Gt06Protocol.NAME, detected.get(0));
+        assertEquals(1, recorder.frames.size());
+        assertEquals(123456789012345L, recorder.frames.get(0).deviceId);
+    }
+
+    @Test
+    public void detectsTeltonika() {
+        writeHex(TELTONIKA_LOGIN);
+
+        assertEquals(TeltonikaProtocol.NAME, detected.get(0));
+        assertEquals(1, recorder.frames.size());
+        assertEquals(356307042441013L, recorder.frames.get(0).deviceId);
+    }
+
+    @Test
+    public void waitsForEnoughBytesToDecide() {
+        writeHex(GT06_LOGIN.substring(0, 2));
+        assertTrue(detected.isEmpty());
+        assertTrue(channel.isOpen());
+
+        writeHex(GT06_LOGIN.substring(2));
+        assertEquals(Gt06Protocol.NAME, detected.get(0));
+        assertEquals(1, recorder.frames.size());
+        assertEquals(123456789012345L, recorder.frames.get(0).deviceId);
+    }
+
+    @Test
+    public void closesUnknownConnections() {
+        channel.writeInbound(Unpooled.copiedBuffer("GET / HTTP/1.1\r\n", StandardCharsets.US_ASCII));
+
+        assertTrue(detected.isEmpty());
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void closesConnectionsIdleBeforeDetection() {
+        writeHex("00");
+        channel.pipeline().fireUserEventTriggered(IdleStateEvent.FIRST_READER_IDLE_STATE_EVENT);
+
+        assertTrue(detected.isEmpty());
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void registryKnowsEveryBuiltInProtocol() {
+        ProtocolRegistry registry = ProtocolRegistry.defaults();
+        assertEquals(3, registry.getProtocols().size());
+        assertEquals(Tk103Protocol.NAME, registry.get("tk103").getName());
+        assertEquals(Gt06Protocol.NAME, registry.get("gt06").getName());
+        assertEquals(TeltonikaProtocol.NAME, registry.get("teltonika").getName());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void registryRejectsUnknownProtocols() {
+        ProtocolRegistry.defaults().get("h02");
+    }
+
+    private void writeHex(String hex) {
+        ByteBuf in = Unpooled.wrappedBuffer(ByteBufUtil.decodeHexDump(hex));
+        channel.writeInbound(in);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.util.List;
+import org.junit.Test;
+import org.server.dto.LocationRecord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Decodes golden Teltonika packets, whole, split and coalesced.
+ */
+public class TeltonikaFrameDecoderTest {
+
+    private static final long IMEI = 356307042441013L;
+    private static final String LOGIN = "000F333536333037303432343431303133";
+    // two codec 8 records with a fix, one 1 byte io element each
+    private static final String CODEC_8 = "000000000000004308020000015957536400002F99DB790420FEC2000A005A07002A0001011503"
+            + "000000000001595753D930002F9A0289042125D2000A00B4090032000101150300000002000043A9";
+    // sample packets of the protocol documentation, no satellites in view
+    private static final String CODEC_8_SAMPLE = "000000000000003608010000016B40D8EA30010000000000000000000000000000000105021503"
+            + "010101425E0F01F10000601A014E0000000000000000010000C7CF";
+    private static final String CODEC_8E_SAMPLE = "000000000000004A8E010000016B412CEE0001000000000000000000000000000000000100050001"
+            + "00010100010011001D00010010015E2C880002000B000000003544C87A000E000000001DD7E06A00000100002994";
+    // a command response, which devices only send when asked
+    private static final String CODEC_12 = "000000000000000F0C010500000007676574696E666F0100004312";
+
+    private final FrameRecorder recorder = new FrameRecorder();
+    private final List<FrameRecorder.Recorded> frames = recorder.frames;
+    private final EmbeddedChannel channel = new EmbeddedChannel(new TeltonikaFrameDecoder(2048), recorder);
+
+    @Test
+    public void loginAndCodec8PacketAreDecoded() {
+        write(LOGIN + CODEC_8);
+
+        assertEquals(2, frames.size());
+        assertEquals(TeltonikaFrameDecoder.MSG_LOGIN, frames.get(0).command);
+        assertEquals(IMEI, frames.get(0).deviceId);
+        assertEquals(0, frames.get(0).locations.size());
+
+        FrameRecorder.Recorded packet = frames.get(1);
+        assertEquals(TeltonikaFrameDecoder.CODEC_8, packet.command);
+        assertEquals(2, packet.locations.size());
+        LocationRecord first = packet.locations.get(0);
+        assertEquals(IMEI, first.getImei());
+        assertEquals(Tk103ProtocolDecoder.LOCATION_OK, first.getType());
+        assertEquals(1483228800000L, first.getTimestamp());
+        assertEquals(6.9271234, first.getLat(), 1e-9);
+        assertEquals(79.8612345, first.getLng(), 1e-9);
+        assertEquals(90, first.getHeading(), 0);
+        assertEquals(42, first.getSpeed(), 0);
+        LocationRecord second = packet.locations.get(1);
+        assertEquals(1483228830000L, second.getTimestamp());
+        assertEquals(6.9281234, second.getLat(), 1e-9);
+        assertEquals(180, second.getHeading(), 0);
+        assertTrue(channel.isOpen());
+    }
+
+    @Test
+    public void documentationSamplesAreDecoded() {
+        write(LOGIN + CODEC_8_SAMPLE + CODEC_8E_SAMPLE);
+
+        assertEquals(3, frames.size());
+        assertEquals(TeltonikaFrameDecoder.CODEC_8, frames.get(1).command);
+        assertEquals(1, frames.get(1).locations.size());
+        assertEquals(1560161086000L, frames.get(1).locations.get(0).getTimestamp());
+        assertEquals(Tk103ProtocolDecoder.LOCATION_UNAVAILABLE, frames.get(1).locations.get(0).getType());
+        assertEquals(TeltonikaFrameDecoder.CODEC_8_EXTENDED, frames.get(2).command);
+        assertEquals(1, frames.get(2).locations.size());
+        assertEquals(1560166592000L, frames.get(2).locations.get(0).getTimestamp());
+        assertTrue(channel.isOpen());
+    }
+
+    @Test
+    public void packetSplitAtEveryByteIsDecodedOnce() {
+        write(LOGIN);
+        byte[] packet = ByteBufUtil.decodeHexDump(CODEC_8);
+        for (byte b : packet) {
+            channel.writeInbound(Unpooled.wrappedBuffer(new byte[]{b}));
+        }
+
+        assertEquals(2, frames.size());
+        assertEquals(2, frames.get(1).locations.size());
+    }
+
+    @Test
+    public void corruptPacketIsAnsweredWithoutLocations() {
+        byte[] packet = ByteBufUtil.decodeHexDump(CODEC_8);
+        packet[20] ^= 0x01;
+        write(LOGIN);
+        channel.writeInbound(Unpooled.wrappedBuffer(packet));
+
+        assertEquals(2, frames.size());
+        assertEquals(TeltonikaFrameDecoder.CODEC_8, frames.get(1).command);
+        assertEquals(0, frames.get(1).locations.size());
+        assertTrue(channel.isOpen());
+    }
+
+    @Test
+    public void unsupportedCodecClosesTheConnection() {
+        write(LOGIN + CODEC_12 + CODEC_8);
+
+        assertEquals(1, frames.size());
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void loginOfAnotherLengthClosesTheConnection() {
+        write("0010333536333037303432343431303133");
+
+        assertEquals(0, frames.size());
+        assertFalse(channel.isOpen());
+    }
+
+    private void write(String hex) {
+        ByteBuf in = Unpooled.wrappedBuffer(ByteBufUtil.decodeHexDump(hex));
+        channel.writeInbound(in);
+    }
+}
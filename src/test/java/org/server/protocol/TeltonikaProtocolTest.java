@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.junit.Test;
+import org.server.workers.InboundRequestHandlerEngine;
+import org.server.workers.IngestBackpressure;
+import org.server.workers.LocationRingBuffer;
+import org.server.workers.RequestDispatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that Teltonika devices are only told their records were accepted
+ * once they are stored.
+ */
+public class TeltonikaProtocolTest {
+
+    private static final long IMEI = 356307042441013L;
+    private static final String LOGIN = "000F333536333037303432343431303133";
+    private static final String CODEC_8 = "000000000000004308020000015957536400002F99DB790420FEC2000A005A07002A0001011503"
+            + "000000000001595753D930002F9A0289042125D2000A00B4090032000101150300000002000043A9";
+
+    private RequestDispatcher dispatcher = newDispatcher(16);
+    private EmbeddedChannel channel = newChannel();
+
+    @Test
+    public void loginIsAcceptedRightAway() {
+        write(LOGIN);
+
+        assertEquals("01", readReply());
+        assertTrue(channel.isOpen());
+    }
+
+    @Test
+    public void recordsAreAcknowledgedOnceStored() {
+        write(LOGIN);
+        readReply();
+        write(CODEC_8);
+        assertNull(channel.readOutbound());
+
+        List<DeferredReply> replies = drainReplies();
+        assertEquals(1, replies.size());
+        replies.get(0).complete(true);
+
+        assertEquals("00000002", readReply());
+        assertTrue(channel.isOpen());
+    }
+
+    @Test
+    public void connectionIsClosedWhenRecordsCouldNotBeStored() {
+        write(LOGIN);
+        readReply();
+        write(CODEC_8);
+
+        drainReplies().get(0).complete(false);
+
+        assertNull(channel.readOutbound());
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void rejectedRecordsAreNotAcknowledged() {
+        dispatcher = newDispatcher(2);
+        channel = newChannel();
+        DeviceFrame filler = new DeviceFrame();
+        filler.reset(TeltonikaFrameDecoder.CODEC_8, IMEI);
+        filler.addLocation().setImei(IMEI);
+        assertTrue(dispatcher.publish(filler, channel));
+
+        write(LOGIN);
+        readReply();
+        write(CODEC_8);
+
+        assertEquals("00000000", readReply());
+        assertTrue(channel.isOpen());
+    }
+
+    private RequestDispatcher newDispatcher(int size) {
+        return new RequestDispatcher(1, size, LocationRingBuffer.WaitStrategy.BUSY_SPIN, IngestBackpressure.OverloadPolicy.REJECT, 1.0, 1.0);
+    }
+
+    private EmbeddedChannel newChannel() {
+        return new EmbeddedChannel(
+                new TeltonikaFrameDecoder(2048),
+                new InboundRequestHandlerEngine(new TeltonikaProtocol(), dispatcher, new LinkedBlockingQueue<>(), false, 0, 60000)
+        );
+    }
+
+    private List<DeferredReply> drainReplies() {
+        List<DeferredReply> replies = new ArrayList<>();
+        dispatcher.getShard(0).getRing().drain((record, endOfBatch) -> {
+            if (record.getReply() != null) {
+                replies.add(record.getReply());
+            }
+        }, 16);
+        return replies;
+    }
+
+    private void write(String hex) {
+        channel.writeInbound(Unpooled.wrappedBuffer(ByteBufUtil.decodeHexDump(hex)));
+    }
+
+    private String readReply() {
+        ByteBuf reply = channel.readOutbound();
+        try {
+            return ByteBufUtil.hexDump(reply);
+        } finally {
+            reply.release();
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.protocol;
+
+import com.sun.management.ThreadMXBean;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.junit.Test;
+import org.server.dto.LocationRecord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class Tk103FrameDecoderTest {
+
+    // samples from the TK103 protocol document
+    private static final String LOGIN = "(013612345678BP05000013612345678080524A2232.9806N11404.9355E000.1101241323.8700000000L000450AC)";
+    private static final String FEEDBACK = "(013612345678BR00080612A2232.9828N11404.9297E000.0022828000.0000000000L00000000)";
+    private static final String HANDSHAKE = "(013612345678BP00000013612345678HSO)";
+
+    private final FrameRecorder recorder = new FrameRecorder();
+    private final List<FrameRecorder.Recorded> frames = recorder.frames;
+    private final EmbeddedChannel channel = new EmbeddedChannel(new Tk103FrameDecoder(256), recorder);
+
+    @Test
+    public void decodesLogin() {
+        write(LOGIN);
+
+        assertEquals(1, frames.size());
+        FrameRecorder.Recorded login = frames.get(0);
+        assertEquals(Tk103FrameDecoder.CMD_LOGIN, login.command);
+        assertEquals(13612345678L, login.deviceId);
+        assertFalse(login.continuation);
+        assertEquals(1, login.locations.size());
+
+        LocationRecord location = login.locations.get(0);
+        assertEquals(Tk103ProtocolDecoder.LOCATION_OK, location.getType());
+        assertEquals(13612345678L, location.getImei());
+        assertEquals(22 + 32.9806 / 60, location.getLat(), 1e-9);
+        assertEquals(114 + 4.9355 / 60, location.getLng(), 1e-9);
+        assertEquals(0.1, location.getSpeed(), 1e-9);
+        assertEquals(323.87, location.getHeading(), 1e-9);
+        // 2008-05-24 10:12:41 UTC
+        assertEquals(1211623961000L, location.getTimestamp());
+    }
+
+    @Test
+    public void feedbackBelongsToTheLastLogin() {
+        write(LOGIN);
+        write(FEEDBACK);
+
+        assertEquals(2, frames.size());
+        FrameRecorder.Recorded feedback = frames.get(1);
+        assertEquals(Tk103FrameDecoder.CMD_CONTINUES_FEEDBACK, feedback.command);
+        assertTrue(feedback.continuation);
+        assertEquals(1, feedback.locations.size());
+
+        LocationRecord location = feedback.locations.get(0);
+        assertEquals(13612345678L, location.getImei());
+        assertEquals(22 + 32.9828 / 60, location.getLat(), 1e-9);
+        assertEquals(114 + 4.9297 / 60, location.getLng(), 1e-9);
+        assertEquals(0.0, location.getHeading(), 1e-9);
+        // 2008-06-12 02:28:28 UTC
+        assertEquals(1213237708000L, location.getTimestamp());
+    }
+
+    @Test
+    public void feedbackWithoutLoginHasNoLocation() {
+        write(FEEDBACK);
+
+        assertEquals(1, frames.size());
+        assertTrue(frames.get(0).continuation);
+        assertEquals(0, frames.get(0).locations.size());
+    }
+
+    @Test
+    public void handshakeCarriesNoLocation() {
+        write(HANDSHAKE);
+
+        assertEquals(1, frames.size());
+        assertEquals(Tk103FrameDecoder.CMD_HANDSHAKE_SIGNAL, frames.get(0).command);
+        assertEquals(0, frames.get(0).locations.size());
+    }
+
+    @Test
+    public void unavailableFixKeepsTheImei() {
+        write(LOGIN.replace("080524A", "080524V"));
+
+        LocationRecord location = frames.get(0).locations.get(0);
+        assertEquals(Tk103ProtocolDecoder.LOCATION_UNAVAILABLE, location.getType());
+        assertEquals(13612345678L, location.getImei());
+    }
+
+    @Test
+    public void decodesFramesSplitAcrossReads() {
+        for (byte b : LOGIN.getBytes(StandardCharsets.US_ASCII)) {
+            channel.writeInbound(Unpooled.wrappedBuffer(new byte[]{b}));
+        }
+
+        assertEquals(1, frames.size());
+        assertEquals(1211623961000L, frames.get(0).locations.get(0).getTimestamp());
+    }
+
+    @Test
+    public void decodesFramesCoalescedInOneRead() {
+        write(HANDSHAKE + LOGIN + FEEDBACK);
+
+        assertEquals(3, frames.size());
+        assertEquals(Tk103FrameDecoder.CMD_HANDSHAKE_SIGNAL, frames.get(0).command);
+        assertEquals(Tk103FrameDecoder.CMD_LOGIN, frames.get(1).command);
+        assertEquals(Tk103FrameDecoder.CMD_CONTINUES_FEEDBACK, frames.get(2).command);
+        assertEquals(13612345678L, frames.get(2).locations.get(0).getImei());
+    }
+
+    @Test
+    public void skipsNoiseAndTruncatedFrames() {
+        write("\r\nnoise" + LOGIN.substring(0, 40) + LOGIN);
+
+        assertEquals(1, frames.size());
+        assertEquals(Tk103FrameDecoder.CMD_LOGIN, frames.get(0).command);
+    }
+
+    @Test
+    public void dropsFramesWithAWrongLengthOrDate() {
+        write(LOGIN.replace("L000450AC", "L0450AC"));
+        write(LOGIN.replace("080524", "080231"));
+        write("(013612345678XX99)");
+
+        assertEquals(0, frames.size());
+        assertTrue(channel.isOpen());
+
+        write(LOGIN);
+        assertEquals(1, frames.size());
+    }
+
+    @Test
+    public void discardsAnUnterminatedFrameOverTheLimit() {
+        StringBuilder garbage = new StringBuilder("(013612345678BP05");
+        while (garbage.length() <= 256) {
+            garbage.append('0');
+        }
+        write(garbage.toString());
+        write(LOGIN);
+
+        assertEquals(1, frames.size());
+        assertEquals(1211623961000L, frames.get(0).locations.get(0).getTimestamp());
+    }
+
+    @Test
+    public void unterminatedFrameGrowingAcrossReadsIsDiscarded() {
+        write("(013612345678BP05");
+        for (int i = 0; i < 4; i++) {
+            write("0000000000000000000000000000000000000000000000000000000000000000");
+        }
+        assertEquals(0, frames.size());
+        write(LOGIN);
+
+        assertEquals(1, frames.size());
+        assertEquals(Tk103FrameDecoder.CMD_LOGIN, frames.get(0).command);
+    }
+
+    @Test
+    public void discardsATerminatedFrameOverTheLimit() {
+        StringBuilder oversized = new StringBuilder(LOGIN.substring(0, LOGIN.length() - 1));
+        while (oversized.length() <= 256) {
+            oversized.append('0');
+        }
+        write(oversized.append(')').append(LOGIN).toString());
+
+        assertEquals(1, frames.size());
+        assertEquals(Tk103FrameDecoder.CMD_LOGIN, frames.get(0).command);
+    }
+
+    @Test
+    public void frameOfExactlyTheLimitIsDecoded() {
+        // the limit counts the brackets' distance, one less than the frame length
+        FrameRecorder atLimit = new FrameRecorder();
+        new EmbeddedChannel(new Tk103FrameDecoder(LOGIN.length() - 1), atLimit)
+                .writeInbound(Unpooled.copiedBuffer(LOGIN, StandardCharsets.US_ASCII));
+        FrameRecorder overLimit = new FrameRecorder();
+        new EmbeddedChannel(new Tk103FrameDecoder(LOGIN.length() - 2), overLimit)
+                .writeInbound(Unpooled.copiedBuffer(LOGIN, StandardCharsets.US_ASCII));
+
+        assertEquals(1, atLimit.frames.size());
+        assertEquals(0, overLimit.frames.size());
+    }
+
+    @Test
+    public void truncatedFrameIsDroppedWhenTheNextArrivesInALaterRead() {
+        write(LOGIN.substring(0, 40));
+        assertEquals(0, frames.size());
+        write(FEEDBACK.substring(0, 30));
+        write(FEEDBACK.substring(30) + LOGIN);
+
+        // the feedback follows a truncated login, so its device is unknown
+        assertEquals(2, frames.size());
+        assertEquals(Tk103FrameDecoder.CMD_CONTINUES_FEEDBACK, frames.get(0).command);
+        assertEquals(0, frames.get(0).locations.size());
+        assertEquals(Tk103FrameDecoder.CMD_LOGIN, frames.get(1).command);
+        assertEquals(1211623961000L, frames.get(1).locations.get(0).getTimestamp());
+    }
+
+    /**
+     * The record is decoded straight from the buffer into the reused frame,
+     * repeated decoding must not allocate per frame.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void steadyStateDecodingDoesNotAllocate() throws Exception {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Logger requestLog = LogManager.getLogger("RequestLog");
+        Level level = requestLog.getLevel();
+        requestLog.setLevel(Level.WARN);
+        try {
+            Tk103FrameDecoder decoder = new Tk103FrameDecoder(256);
+            ChannelHandlerContext ctx = new EmbeddedChannel(decoder).pipeline().context(decoder);
+            ByteBuf in = Unpooled.copiedBuffer(LOGIN + FEEDBACK + HANDSHAKE, StandardCharsets.US_ASCII);
+            List<Object> out = new ArrayList<>(4);
+            decodeRepeatedly(decoder, ctx, in, out, 20000);
+
+            long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            decodeRepeatedly(decoder, ctx, in, out, 10000);
+            long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+
+            assertTrue("Allocated " + allocated + " bytes for 30000 frames", allocated < 30000);
+            in.release();
+        } finally {
+            requestLog.setLevel(level);
+        }
+    }
+
+    private static void decodeRepeatedly(Tk103FrameDecoder decoder, ChannelHandlerContext ctx, ByteBuf in, List<Object> out, int times) throws Exception {
+        for (int i = 0; i < times; i++) {
+            in.readerIndex(0);
+            while (in.isReadable()) {
+                decoder.decode(ctx, in, out);
+            }
+            out.clear();
+        }
+    }
+
+    private void write(String data) {
+        ByteBuf in = Unpooled.copiedBuffer(data, StandardCharsets.US_ASCII);
+        channel.writeInbound(in);
+    }
+}
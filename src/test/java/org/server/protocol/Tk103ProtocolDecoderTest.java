@@ -0,0 +1,55 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.protocol;
+
+import java.util.List;
+import org.junit.Test;
+import org.server.dto.Location;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the legacy string decoder against the same samples as the
+ * {@link Tk103FrameDecoder}.
+ */
+public class Tk103ProtocolDecoderTest {
+
+    private static final String LOGIN = "(013612345678BP05000013612345678080524A2232.9806N11404.9355E000.1101241323.8700000000L000450AC)";
+    private static final String FEEDBACK = "(013612345678BR00080612A2232.9828N11404.9297E000.0022828000.0000000000L00000000)";
+
+    private final Tk103ProtocolDecoder decoder = new Tk103ProtocolDecoder();
+
+    @Test
+    public void decodesLoginAndContinuation() throws Exception {
+        List<Location> locations = decoder.parseRequest(LOGIN + FEEDBACK);
+
+        assertEquals(2, locations.size());
+        for (Location location : locations) {
+            assertEquals(Tk103ProtocolDecoder.LOCATION_OK, location.getType());
+            assertEquals(13612345678L, location.getImei());
+        }
+    }
+
+    @Test
+    public void dropsPointsWithAnImpossibleDate() throws Exception {
+        assertTrue(decoder.parseRequest(LOGIN.replace("080524", "080231")).isEmpty());
+        assertTrue(decoder.parseRequest(LOGIN.replace("080524", "080229")).size() == 1);
+
+        List<Location> locations = decoder.parseRequest(LOGIN + FEEDBACK.replace("080612", "080631"));
+        assertEquals(1, locations.size());
+    }
+}
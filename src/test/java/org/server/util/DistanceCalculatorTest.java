@@ -0,0 +1,41 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class DistanceCalculatorTest {
+
+    @Test
+    public void distanceToLineAcceptsEveryHemisphere() {
+        // a point one degree of latitude off a line along the equator
+        double expected = DistanceCalculator.distance(-1, -10, 0, -10);
+
+        double south = DistanceCalculator.distanceToLine(-1, -10, 0, -20, 0, 0);
+        double north = DistanceCalculator.distanceToLine(1, 10, 0, 0, 0, 20);
+
+        // the planar area formula is within a percent at this scale
+        assertEquals(expected, south, expected / 100);
+        assertEquals(north, south, 1e-6);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCoordinatesOutOfRange() {
+        DistanceCalculator.distanceToLine(91, 10, 0, 0, 0, 20);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.util;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.MultithreadEventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.NettyRuntime;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks which transport the servers pick and how their event loops are
+ * sized.
+ */
+public class TransportUtilTest {
+
+    @Test
+    public void nioGroupIsSizedFromTheThreads() {
+        EventLoopGroup group = TransportUtil.newEventLoopGroup(false, 3);
+        try {
+            assertTrue(group instanceof NioEventLoopGroup);
+            assertEquals(3, ((MultithreadEventLoopGroup) group).executorCount());
+            assertEquals(NioServerSocketChannel.class, TransportUtil.serverChannelClass(false));
+        } finally {
+            group.shutdownGracefully(0, 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Test
+    public void zeroThreadsUsesNettysDefault() {
+        EventLoopGroup group = TransportUtil.newEventLoopGroup(false, 0);
+        try {
+            assertEquals(2 * NettyRuntime.availableProcessors(), ((MultithreadEventLoopGroup) group).executorCount());
+        } finally {
+            group.shutdownGracefully(0, 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Test
+    public void epollIsPickedWhereAvailable() {
+        assertEquals(Epoll.isAvailable(), TransportUtil.isEpollAvailable());
+        Assume.assumeTrue(Epoll.isAvailable());
+        EventLoopGroup group = TransportUtil.newEventLoopGroup(true, 2);
+        try {
+            assertTrue(group instanceof EpollEventLoopGroup);
+            assertEquals(2, ((MultithreadEventLoopGroup) group).executorCount());
+            assertEquals(EpollServerSocketChannel.class, TransportUtil.serverChannelClass(true));
+        } finally {
+            group.shutdownGracefully(0, 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Test
+    public void onlyReusePortOnEpollBindsASocketPerAcceptThread() {
+        assertEquals(4, TransportUtil.listeningSockets(true, true, 4));
+        assertEquals(1, TransportUtil.listeningSockets(true, true, 0));
+        assertEquals(1, TransportUtil.listeningSockets(true, false, 4));
+        assertEquals(1, TransportUtil.listeningSockets(false, true, 4));
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.web;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.util.ReferenceCountUtil;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.server.db.StubDatabaseHandler;
+import org.server.db.VehicleRegistry;
+import org.server.dto.LiveSubscription;
+import org.server.dto.Location;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Routes locations through the fan-out to embedded channels.
+ */
+public class LiveFanoutTest {
+
+    private static final long IMEI = 359710040000001L;
+    private static final long OTHER = 359710040000002L;
+    private static final long FOREIGN = 359710040000003L;
+
+    private final StubDatabaseHandler db = new StubDatabaseHandler();
+    private LiveFanout fanout;
+
+    @Before
+    public void setUp() throws Exception {
+        db.addVehicle(IMEI, "fleet");
+        db.addVehicle(FOREIGN, "other");
+        VehicleRegistry registry = new VehicleRegistry(db, 16, 60000);
+        registry.reload();
+        fanout = new LiveFanout(registry, 4);
+    }
+
+    @Test
+    public void userSubscriptionIsResolvedWithoutQueries() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        LiveSubscription subscription = new LiveSubscription();
+        subscription.setUser(Collections.singletonList("fleet"));
+        fanout.subscribe(fanout.newSubscriber(channel), "fleet", subscription);
+
+        fanout.publish(location(IMEI));
+        fanout.publish(location(OTHER));
+
+        TextWebSocketFrame frame = channel.readOutbound();
+        assertTrue(frame.text().contains("\"imei\":" + IMEI));
+        frame.release();
+        assertNull(channel.readOutbound());
+        assertEquals(0, db.vehicleQueries.get());
+    }
+
+    @Test
+    public void framesBeyondThePendingLimitAreDropped() throws Exception {
+        List<Object> held = new ArrayList<>();
+        // never completes a write, so every sent frame stays pending
+        EmbeddedChannel channel = new EmbeddedChannel(new ChannelOutboundHandlerAdapter() {
+            @Override
+            public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+                held.add(msg);
+            }
+        });
+        LiveSubscription subscription = new LiveSubscription();
+        subscription.setImei(Collections.singletonList(IMEI));
+        fanout.subscribe(fanout.newSubscriber(channel), "fleet", subscription);
+
+        Thread[] senders = new Thread[4];
+        for (int i = 0; i < senders.length; i++) {
+            senders[i] = new Thread(() -> {
+                for (int j = 0; j < 100; j++) {
+                    fanout.publish(location(IMEI));
+                }
+            });
+            senders[i].start();
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        channel.runPendingTasks();
+
+        assertEquals(4, held.size());
+        held.forEach(ReferenceCountUtil::release);
+    }
+
+    @Test
+    public void boundingBoxMatchesOnlyOwnVehiclesInside() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        LiveSubscription subscription = new LiveSubscription();
+        subscription.setBbox(Arrays.asList(6.0, 79.0, 7.0, 80.0));
+        fanout.subscribe(fanout.newSubscriber(channel), "fleet", subscription);
+
+        fanout.publish(location(IMEI));
+        fanout.publish(location(FOREIGN));
+        Location outside = location(IMEI);
+        outside.setPoint(Arrays.asList(8.0, 79.5));
+        fanout.publish(outside);
+
+        TextWebSocketFrame frame = channel.readOutbound();
+        assertTrue(frame.text().contains("\"imei\":" + IMEI));
+        frame.release();
+        assertNull(channel.readOutbound());
+    }
+
+    @Test
+    public void subscriberMatchingEveryWayGetsOneFrame() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        LiveSubscription subscription = new LiveSubscription();
+        subscription.setImei(Collections.singletonList(IMEI));
+        subscription.setUser(Collections.singletonList("fleet"));
+        subscription.setBbox(Arrays.asList(6.0, 79.0, 7.0, 80.0));
+        fanout.subscribe(fanout.newSubscriber(channel), "fleet", subscription);
+
+        fanout.publish(location(IMEI));
+        fanout.publish(location(IMEI));
+
+        for (int i = 0; i < 2; i++) {
+            TextWebSocketFrame frame = channel.readOutbound();
+            assertTrue(frame.text().contains("\"imei\":" + IMEI));
+            frame.release();
+        }
+        assertNull(channel.readOutbound());
+    }
+
+    @Test
+    public void upgradeNeedsABearerToken() {
+        for (String authorization : new String[]{null, "Bearer guess", "key-" + IMEI}) {
+            EmbeddedChannel channel = liveChannel();
+            channel.writeInbound(upgrade(authorization));
+
+            FullHttpResponse response = channel.readOutbound();
+            assertEquals(HttpResponseStatus.UNAUTHORIZED, response.status());
+            response.release();
+            assertFalse(channel.isOpen());
+        }
+        EmbeddedChannel channel = new EmbeddedChannel(new LiveSubscriptionHandler(fanout));
+        assertEquals("{\"status\":\"unauthorized\"}", status(channel, "{\"imei\":[" + IMEI + "]}"));
+    }
+
+    @Test
+    public void subscriptionsAreLimitedToTheAuthenticatedUser() {
+        EmbeddedChannel channel = liveChannel();
+        channel.writeInbound(upgrade("Bearer key-" + IMEI));
+        FullHttpRequest request = channel.readInbound();
+        request.release();
+
+        assertEquals("{\"status\":\"imei " + FOREIGN + " is not accessible\"}",
+                status(channel, "{\"imei\":[" + FOREIGN + "]}"));
+        assertEquals("{\"status\":\"user other is not accessible\"}",
+                status(channel, "{\"user\":[\"other\"]}"));
+        assertEquals("{\"status\":\"subscribed\"}",
+                status(channel, "{\"imei\":[" + IMEI + "],\"user\":[\"fleet\"]}"));
+
+        fanout.publish(location(FOREIGN));
+        fanout.publish(location(IMEI));
+        TextWebSocketFrame frame = channel.readOutbound();
+        assertTrue(frame.text().contains("\"imei\":" + IMEI));
+        frame.release();
+        assertNull(channel.readOutbound());
+    }
+
+    private EmbeddedChannel liveChannel() {
+        return new EmbeddedChannel(new LiveAuthenticationHandler(fanout, "/live"), new LiveSubscriptionHandler(fanout));
+    }
+
+    private static FullHttpRequest upgrade(String authorization) {
+        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/live");
+        if (authorization != null) {
+            request.headers().set(HttpHeaderNames.AUTHORIZATION, authorization);
+        }
+        return request;
+    }
+
+    private static String status(EmbeddedChannel channel, String subscription) {
+        channel.writeInbound(new TextWebSocketFrame(subscription));
+        TextWebSocketFrame frame = channel.readOutbound();
+        String text = frame.text();
+        frame.release();
+        return text;
+    }
+
+    private static Location location(long imei) {
+        return Location.builder()
+                .imei(imei)
+                .point(Arrays.asList(6.9, 79.8))
+                .timestamp(LocalDateTime.of(2017, 1, 1, 0, 0))
+                .build();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.web;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import java.nio.charset.StandardCharsets;
+import org.junit.Before;
+import org.junit.Test;
+import org.server.db.StubDatabaseHandler;
+import org.server.db.VehicleRegistry;
+import org.server.dto.LocationRecord;
+import org.server.workers.LastKnownLocationStore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sends requests through the query api handler on an embedded channel.
+ */
+public class QueryApiHandlerTest {
+
+    private static final long IMEI = 359710040000001L;
+    private static final long FOREIGN = 359710040000003L;
+
+    private EmbeddedChannel channel;
+
+    @Before
+    public void setUp() throws Exception {
+        StubDatabaseHandler db = new StubDatabaseHandler();
+        db.addVehicle(IMEI, "fleet");
+        db.addVehicle(FOREIGN, "other");
+        VehicleRegistry registry = new VehicleRegistry(db, 16, 60000);
+        registry.reload();
+        LastKnownLocationStore store = new LastKnownLocationStore(16, false);
+        for (long imei : new long[]{IMEI, FOREIGN}) {
+            LocationRecord record = new LocationRecord();
+            record.setImei(imei);
+            record.setLat(6.9);
+            record.setLng(79.8);
+            record.setTimestamp(1483228800000L);
+            store.put(record);
+        }
+        channel = new EmbeddedChannel(new QueryApiHandler(store, db, registry, 100, 1000));
+    }
+
+    @Test
+    public void requestWithoutAValidTokenIsUnauthorized() {
+        assertEquals(HttpResponseStatus.UNAUTHORIZED, status(get("/api/last/" + IMEI)));
+        assertEquals(HttpResponseStatus.UNAUTHORIZED, status(get("/api/last/" + IMEI, "guess")));
+        // a token in the uri would end up in access logs
+        assertEquals(HttpResponseStatus.UNAUTHORIZED, status(get("/api/last/" + IMEI + "?token=key-" + IMEI)));
+    }
+
+    @Test
+    public void vehiclesOfAnotherUserAreForbidden() {
+        assertEquals(HttpResponseStatus.FORBIDDEN, status(get("/api/last/" + FOREIGN, "key-" + IMEI)));
+        assertEquals(HttpResponseStatus.FORBIDDEN, status(get("/api/track/" + FOREIGN, "key-" + IMEI)));
+    }
+
+    @Test
+    public void tokenIsAcceptedAsBearer() {
+        FullHttpResponse response = send(get("/api/last/" + IMEI, "key-" + IMEI));
+        assertEquals(HttpResponseStatus.OK, response.status());
+        assertTrue(response.content().toString(StandardCharsets.UTF_8).contains("\"imei\":" + IMEI));
+        response.release();
+    }
+
+    private static FullHttpRequest get(String uri) {
+        return new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+    }
+
+    private static FullHttpRequest get(String uri, String token) {
+        FullHttpRequest request = get(uri);
+        request.headers().set(HttpHeaderNames.AUTHORIZATION, "Bearer " + token);
+        return request;
+    }
+
+    private HttpResponseStatus status(FullHttpRequest request) {
+        FullHttpResponse response = send(request);
+        response.release();
+        return response.status();
+    }
+
+    private FullHttpResponse send(FullHttpRequest request) {
+        channel.writeInbound(request);
+        FullHttpResponse response = channel.readOutbound();
+        return response;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.workers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.timeout.IdleStateEvent;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.junit.Test;
+import org.server.dto.LocationRecord;
+import org.server.protocol.DeviceProtocol;
+import org.server.protocol.TeltonikaFrameDecoder;
+import org.server.protocol.TeltonikaProtocol;
+import org.server.protocol.Tk103FrameDecoder;
+import org.server.protocol.Tk103Protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks when device connections are closed after the reply.
+ */
+public class InboundRequestHandlerEngineTest {
+
+    private static final long IMEI = 13612345678L;
+    private static final String LOGIN = "(013612345678BP05000013612345678080524A2232.9806N11404.9355E000.1101241323.8700000000L000450AC)";
+    private static final String FEEDBACK = "(013612345678BR00080612A2232.9828N11404.9297E000.0022828000.0000000000L00000000)";
+    private static final String TELTONIKA_LOGIN = "000F333536333037303432343431303133";
+    private static final long CLOSE_DELAY = 100;
+
+    private final RequestDispatcher dispatcher = new RequestDispatcher(1, 16, LocationRingBuffer.WaitStrategy.BUSY_SPIN, IngestBackpressure.OverloadPolicy.REJECT, 1.0, 1.0);
+
+    @Test
+    public void closesAfterTheReplyWithoutKeepAlive() throws Exception {
+        EmbeddedChannel channel = tk103Channel(false);
+        write(channel, LOGIN);
+
+        assertEquals("(013612345678AP05)", readReply(channel));
+        assertTrue(channel.isOpen());
+        awaitClose(channel);
+        assertFalse(channel.isOpen());
+        assertEquals(1, ring().size());
+    }
+
+    @Test
+    public void continuationInALaterReadIsAnswered() throws Exception {
+        EmbeddedChannel channel = tk103Channel(false);
+        write(channel, LOGIN);
+        assertEquals("(013612345678AP05)", readReply(channel));
+        write(channel, FEEDBACK);
+
+        assertTrue(channel.isOpen());
+        assertEquals("No", readReply(channel));
+        awaitClose(channel);
+        assertFalse(channel.isOpen());
+        assertEquals(2, drain().size());
+    }
+
+    @Test
+    public void everyReadPostponesTheClose() throws Exception {
+        EmbeddedChannel channel = tk103Channel(false);
+        write(channel, LOGIN);
+        readReply(channel);
+        // the continuation is split across two segments
+        Thread.sleep(CLOSE_DELAY / 2);
+        write(channel, FEEDBACK.substring(0, 20));
+        Thread.sleep(CLOSE_DELAY / 2 + 10);
+        channel.runPendingTasks();
+        assertTrue(channel.isOpen());
+        write(channel, FEEDBACK.substring(20));
+
+        assertEquals("No", readReply(channel));
+        awaitClose(channel);
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void keepsTheConnectionOpenWithKeepAlive() {
+        EmbeddedChannel channel = tk103Channel(true);
+        write(channel, LOGIN);
+        write(channel, FEEDBACK);
+        write(channel, FEEDBACK);
+
+        assertTrue(channel.isOpen());
+        assertEquals("(013612345678AP05)", readReply(channel));
+        assertEquals("No", readReply(channel));
+        assertEquals("No", readReply(channel));
+        assertNull(channel.readOutbound());
+
+        // the imei resolved at login is reused by the continuations
+        List<LocationRecord> locations = drain();
+        assertEquals(3, locations.size());
+        for (LocationRecord location : locations) {
+            assertEquals(IMEI, location.getImei());
+        }
+    }
+
+    @Test
+    public void burstIsAnsweredBeforeClosing() throws Exception {
+        EmbeddedChannel channel = tk103Channel(false);
+        write(channel, LOGIN + FEEDBACK);
+
+        assertEquals("(013612345678AP05)", readReply(channel));
+        assertEquals("No", readReply(channel));
+        awaitClose(channel);
+        assertFalse(channel.isOpen());
+        assertEquals(2, ring().size());
+    }
+
+    @Test
+    public void idleConnectionIsReaped() {
+        EmbeddedChannel channel = tk103Channel(true);
+        write(channel, LOGIN);
+        assertTrue(channel.isOpen());
+
+        channel.pipeline().fireUserEventTriggered(IdleStateEvent.FIRST_ALL_IDLE_STATE_EVENT);
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void sessionBasedProtocolStaysOpen() {
+        EmbeddedChannel channel = newChannel(new TeltonikaProtocol(), new TeltonikaFrameDecoder(2048), false);
+        channel.writeInbound(Unpooled.wrappedBuffer(ByteBufUtil.decodeHexDump(TELTONIKA_LOGIN)));
+
+        ByteBuf reply = channel.readOutbound();
+        assertEquals(1, reply.readByte());
+        reply.release();
+        assertTrue(channel.isOpen());
+    }
+
+    @Test
+    public void futureDeviceTimeIsClamped() {
+        EmbeddedChannel channel = tk103Channel(true);
+        long before = System.currentTimeMillis();
+        write(channel, LOGIN.replace("080524A", "990524A"));
+
+        LocationRecord location = drain().get(0);
+        assertEquals(location.getReceivedTime(), location.getTimestamp());
+        assertTrue(location.getReceivedTime() >= before);
+    }
+
+    private EmbeddedChannel tk103Channel(boolean keepAlive) {
+        return newChannel(new Tk103Protocol(), new Tk103FrameDecoder(256), keepAlive);
+    }
+
+    private EmbeddedChannel newChannel(DeviceProtocol protocol, ChannelHandler decoder, boolean keepAlive) {
+        return new EmbeddedChannel(decoder, new InboundRequestHandlerEngine(protocol, dispatcher, new LinkedBlockingQueue<>(), keepAlive, CLOSE_DELAY, 60000));
+    }
+
+    private LocationRingBuffer ring() {
+        return dispatcher.getShard(dispatcher.shardOf(IMEI)).getRing();
+    }
+
+    private List<LocationRecord> drain() {
+        List<LocationRecord> locations = new ArrayList<>();
+        ring().drain((record, endOfBatch) -> {
+            LocationRecord copy = new LocationRecord();
+            copy.copyFrom(record);
+            locations.add(copy);
+        }, 16);
+        return locations;
+    }
+
+    private static void awaitClose(EmbeddedChannel channel) throws InterruptedException {
+        Thread.sleep(CLOSE_DELAY + 10);
+        channel.runPendingTasks();
+    }
+
+    private static void write(EmbeddedChannel channel, String data) {
+        channel.writeInbound(Unpooled.copiedBuffer(data, StandardCharsets.US_ASCII));
+    }
+
+    private static String readReply(EmbeddedChannel channel) {
+        ByteBuf reply = channel.readOutbound();
+        try {
+            return reply.toString(StandardCharsets.US_ASCII);
+        } finally {
+            reply.release();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.workers;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.server.dto.LocationRecord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips, growth, snapshots and torn reads of the last known location
+ * store, on-heap and off-heap.
+ */
+public class LastKnownLocationStoreTest {
+
+    private static final long IMEI = 359710040000001L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void storedLocationIsReadBack() {
+        for (boolean offHeap : new boolean[]{false, true}) {
+            LastKnownLocationStore store = new LastKnownLocationStore(16, offHeap);
+            store.put(record(IMEI, 7));
+            store.put(record(IMEI, 8));
+
+            LocationRecord into = new LocationRecord();
+            assertTrue(store.get(IMEI, into));
+            assertRecord(IMEI, 8, into);
+            assertEquals(1, store.size());
+        }
+    }
+
+    @Test
+    public void missingImeiLeavesTheRecordUnchanged() {
+        LastKnownLocationStore store = new LastKnownLocationStore(16, false);
+        store.put(record(IMEI, 7));
+
+        LocationRecord into = record(IMEI, 3);
+        assertFalse(store.get(IMEI + 1, into));
+        assertRecord(IMEI, 3, into);
+    }
+
+    @Test
+    public void growingSegmentsKeepEveryImei() {
+        LastKnownLocationStore store = new LastKnownLocationStore(1, true);
+        for (long imei = IMEI; imei < IMEI + 10000; imei++) {
+            store.put(record(imei, imei - IMEI));
+        }
+        assertEquals(10000, store.size());
+        LocationRecord into = new LocationRecord();
+        for (long imei = IMEI; imei < IMEI + 10000; imei++) {
+            assertTrue(store.get(imei, into));
+            assertRecord(imei, imei - IMEI, into);
+        }
+    }
+
+    @Test
+    public void footprintStaysUnderOneHundredTwentyEightBytesPerDevice() {
+        int devices = 100000;
+        LastKnownLocationStore store = new LastKnownLocationStore(devices, false);
+        for (int i = 0; i < devices; i++) {
+            store.put(record(IMEI + i, i));
+        }
+
+        assertEquals(devices, store.size());
+        assertTrue(store.getMemoryFootprint() / store.size() <= 128);
+    }
+
+    @Test
+    public void snapshotIsRestored() throws Exception {
+        LastKnownLocationStore store = new LastKnownLocationStore(16, false);
+        for (long imei = IMEI; imei < IMEI + 500; imei++) {
+            store.put(record(imei, imei - IMEI));
+        }
+        Path file = folder.getRoot().toPath().resolve("locations.snapshot");
+        assertEquals(500, store.writeSnapshot(file));
+        assertTrue(Files.exists(file));
+
+        LastKnownLocationStore restored = new LastKnownLocationStore(16, true);
+        assertEquals(500, restored.readSnapshot(file));
+        LocationRecord into = new LocationRecord();
+        for (long imei = IMEI; imei < IMEI + 500; imei++) {
+            assertTrue(restored.get(imei, into));
+            assertRecord(imei, imei - IMEI, into);
+        }
+    }
+
+    @Test
+    public void readersNeverSeeTornLocations() throws Exception {
+        LastKnownLocationStore store = new LastKnownLocationStore(1, false);
+        store.put(record(IMEI, 0));
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<String> failure = new AtomicReference<>();
+
+        Thread[] readers = new Thread[4];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread(() -> {
+                LocationRecord into = new LocationRecord();
+                while (!done.get() && failure.get() == null) {
+                    store.get(IMEI, into);
+                    long value = into.getTimestamp();
+                    if (into.getImei() != IMEI || into.getLat() != value || into.getLng() != -value
+                            || into.getSpeed() != value || into.getHeading() != value % 360) {
+                        failure.set("torn read of " + value + ": " + into.getLat() + ", " + into.getLng());
+                    }
+                }
+            });
+            readers[i].start();
+        }
+        // updates of one imei interleaved with inserts that grow its segment
+        long other = IMEI + 1;
+        for (long value = 1; value <= 200000; value++) {
+            store.put(record(IMEI, value));
+            if (value % 20 == 0) {
+                store.put(record(other++, value));
+            }
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(failure.get());
+    }
+
+    private static LocationRecord record(long imei, long value) {
+        LocationRecord record = new LocationRecord();
+        record.setImei(imei);
+        record.setLat(value);
+        record.setLng(-value);
+        record.setTimestamp(value);
+        record.setSpeed(value);
+        record.setHeading(value % 360);
+        return record;
+    }
+
+    private static void assertRecord(long imei, long value, LocationRecord record) {
+        assertEquals(imei, record.getImei());
+        assertEquals(value, record.getLat(), 0);
+        assertEquals(-value, record.getLng(), 0);
+        assertEquals(value, record.getTimestamp());
+        assertEquals(value, record.getSpeed(), 0);
+        assertEquals(value % 360, record.getHeading(), 0);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.workers;
+
+import java.lang.reflect.Field;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Timer;
+import javax.jms.DeliveryMode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.server.connection.ActiveMq;
+import org.server.connection.ActiveMqPublisher;
+import org.server.connection.RecordingConnection;
+import org.server.dto.Location;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Publishing windows that fail: the timer keeps running and statuses still
+ * go out when locations could not be sent.
+ */
+public class LivePositionPublisherTest {
+
+    private static final long IMEI = 359710040000001L;
+
+    private RecordingConnection broker;
+
+    @Before
+    public void setUp() throws Exception {
+        broker = new RecordingConnection();
+        usePublisher(new ActiveMqPublisher(broker.connection(), DeliveryMode.NON_PERSISTENT, 4));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        usePublisher(null);
+    }
+
+    @Test
+    public void failedLocationsDoNotHoldStatusesBack() {
+        LivePositionPublisher publisher = new LivePositionPublisher("LIVE", false, false);
+        broker.failing = "LIVE"::equals;
+        publisher.offerLocation(location());
+        publisher.offerStatus(IMEI, 1);
+
+        publisher.run();
+        assertEquals(Arrays.asList(LivePositionPublisher.AMQ_PREFIX_REQUEST_STATUS + IMEI + "=1"), broker.sent);
+
+        // the location was put back for the next window
+        broker.failing = topic -> false;
+        publisher.run();
+        assertEquals(2, broker.sent.size());
+        assertTrue(broker.sent.get(1).startsWith("LIVE="));
+    }
+
+    @Test
+    public void timerSurvivesFailedWindows() throws Exception {
+        LivePositionPublisher publisher = new LivePositionPublisher("LIVE", true, true);
+        broker.failing = topic -> true;
+        publisher.offerLocation(location());
+        publisher.offerStatus(IMEI, 1);
+        Timer timer = new Timer("LivePositionPublisherTest", true);
+        try {
+            timer.schedule(publisher, 0, 5);
+            Thread.sleep(50);
+            broker.failing = topic -> false;
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (broker.sent.size() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(3, broker.sent.size());
+        } finally {
+            timer.cancel();
+        }
+    }
+
+    private static Location location() {
+        return Location.builder()
+                .type(1)
+                .imei(IMEI)
+                .point(Arrays.asList(6.9271, 79.8612))
+                .speed(42.0)
+                .heading(90.0)
+                .timestamp(LocalDateTime.of(2018, 3, 27, 10, 15, 30))
+                .build();
+    }
+
+    private static void usePublisher(ActiveMqPublisher publisher) throws Exception {
+        Field field = ActiveMq.class.getDeclaredField("PUBLISHER");
+        field.setAccessible(true);
+        field.set(null, publisher);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.workers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import org.server.dto.LocationRecord;
+import org.server.protocol.DeviceFrame;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LocationRingBufferTest {
+
+    private static final int PRODUCERS = 4;
+    private static final int FRAMES_PER_PRODUCER = 50000;
+    private static final int LOCATIONS_PER_FRAME = 3;
+
+    @Test
+    public void sizeIsRoundedUpToAPowerOfTwo() {
+        assertEquals(64, new LocationRingBuffer(33, LocationRingBuffer.WaitStrategy.BUSY_SPIN).getCapacity());
+        assertEquals(64, new LocationRingBuffer(64, LocationRingBuffer.WaitStrategy.BUSY_SPIN).getCapacity());
+    }
+
+    @Test
+    public void frameThatDoesNotFitIsNotPublished() {
+        LocationRingBuffer ring = new LocationRingBuffer(4, LocationRingBuffer.WaitStrategy.BUSY_SPIN);
+        assertTrue(ring.tryPublish(frame(1, 0, 3)));
+        assertFalse(ring.tryPublish(frame(1, 3, 2)));
+        assertEquals(3, ring.size());
+
+        List<LocationRecord> drained = new ArrayList<>();
+        ring.drain((record, endOfBatch) -> drained.add(copy(record)), 16);
+        assertEquals(3, drained.size());
+        assertTrue(ring.tryPublish(frame(1, 3, 2)));
+        assertEquals(2, ring.size());
+    }
+
+    @Test
+    public void drainStopsAtMaxBatch() {
+        LocationRingBuffer ring = new LocationRingBuffer(16, LocationRingBuffer.WaitStrategy.BUSY_SPIN);
+        ring.tryPublish(frame(1, 0, 5));
+
+        List<Boolean> ends = new ArrayList<>();
+        assertEquals(3, ring.drain((record, endOfBatch) -> ends.add(endOfBatch), 3));
+        assertEquals(2, ring.drain((record, endOfBatch) -> ends.add(endOfBatch), 3));
+        assertEquals(0, ring.drain((record, endOfBatch) -> ends.add(endOfBatch), 3));
+        assertEquals(5, ends.size());
+        assertTrue(ends.get(2));
+        assertTrue(ends.get(4));
+    }
+
+    /**
+     * Producers race on a ring much smaller than what they publish, the
+     * consumer must see every location once, the locations of a frame next
+     * to each other and every producer's frames in order.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void concurrentPublishAndDrain() throws Exception {
+        LocationRingBuffer ring = new LocationRingBuffer(256, LocationRingBuffer.WaitStrategy.PARK);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < PRODUCERS; p++) {
+            long imei = p + 1;
+            Thread producer = new Thread(() -> {
+                DeviceFrame frame = new DeviceFrame();
+                try {
+                    start.await();
+                    for (int f = 0; f < FRAMES_PER_PRODUCER; f++) {
+                        fill(frame, imei, f * LOCATIONS_PER_FRAME, LOCATIONS_PER_FRAME);
+                        while (!ring.tryPublish(frame)) {
+                            Thread.yield();
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            });
+            producer.start();
+            producers.add(producer);
+        }
+
+        long[] nextSequence = new long[PRODUCERS + 1];
+        long[] lastImei = {0};
+        int[] inFrame = {0};
+        long total = (long) PRODUCERS * FRAMES_PER_PRODUCER * LOCATIONS_PER_FRAME;
+        long consumed = 0;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        start.countDown();
+        while (consumed < total && System.nanoTime() < deadline) {
+            consumed += ring.drain((record, endOfBatch) -> {
+                int imei = (int) record.getImei();
+                if (inFrame[0] > 0 && imei != lastImei[0]) {
+                    failure.compareAndSet(null, new AssertionError("Frame of " + lastImei[0] + " interleaved with " + imei));
+                }
+                if (record.getTimestamp() != nextSequence[imei]) {
+                    failure.compareAndSet(null, new AssertionError("Expected " + nextSequence[imei] + " of " + imei + " but got " + record.getTimestamp()));
+                }
+                nextSequence[imei]++;
+                lastImei[0] = imei;
+                inFrame[0] = (inFrame[0] + 1) % LOCATIONS_PER_FRAME;
+            }, 64);
+        }
+        for (Thread producer : producers) {
+            producer.join(TimeUnit.SECONDS.toMillis(5));
+        }
+
+        assertNull(failure.get());
+        assertEquals(total, consumed);
+        assertEquals(0, ring.size());
+        for (int p = 1; p <= PRODUCERS; p++) {
+            assertEquals((long) FRAMES_PER_PRODUCER * LOCATIONS_PER_FRAME, nextSequence[p]);
+        }
+    }
+
+    private static DeviceFrame frame(long imei, long first, int count) {
+        DeviceFrame frame = new DeviceFrame();
+        fill(frame, imei, first, count);
+        return frame;
+    }
+
+    private static void fill(DeviceFrame frame, long imei, long first, int count) {
+        frame.reset(0, imei);
+        for (int i = 0; i < count; i++) {
+            LocationRecord location = frame.addLocation();
+            location.setImei(imei);
+            location.setTimestamp(first + i);
+        }
+    }
+
+    private static LocationRecord copy(LocationRecord record) {
+        LocationRecord copy = new LocationRecord();
+        copy.copyFrom(record);
+        return copy;
+    }
+}
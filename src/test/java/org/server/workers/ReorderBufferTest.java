@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.workers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import org.server.dto.LocationRecord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReorderBufferTest {
+
+    @Test
+    public void releasesEverythingWithoutAWindow() {
+        ReorderBuffer buffer = new ReorderBuffer(0, 4);
+        add(buffer, 3, 0);
+        add(buffer, 1, 0);
+        add(buffer, 2, 0);
+        assertFalse(buffer.isOrdered());
+
+        assertEquals(Arrays.asList(1L, 2L, 3L), release(buffer, 0));
+        assertEquals(0, buffer.size());
+        assertTrue(buffer.isOrdered());
+    }
+
+    @Test
+    public void holdsRecordsForTheWindow() {
+        ReorderBuffer buffer = new ReorderBuffer(100, 4);
+        add(buffer, 30, 1000);
+        add(buffer, 10, 1050);
+        add(buffer, 20, 1150);
+
+        assertEquals(Collections.emptyList(), release(buffer, 1099));
+        assertEquals(Collections.singletonList(30L), release(buffer, 1100));
+        // the record received at 1150 stays, so 10 is released alone
+        assertEquals(Collections.singletonList(10L), release(buffer, 1200));
+        assertEquals(1, buffer.size());
+        assertEquals(Collections.singletonList(20L), release(buffer, 1250));
+    }
+
+    @Test
+    public void sortsOnlyWhatIsHeldTogether() {
+        ReorderBuffer buffer = new ReorderBuffer(100, 2);
+        add(buffer, 50, 1000);
+        add(buffer, 40, 1010);
+        add(buffer, 45, 1200);
+        assertFalse(buffer.isOrdered());
+
+        assertEquals(Arrays.asList(40L, 50L), release(buffer, 1150));
+        assertTrue(buffer.isOrdered());
+        assertEquals(Collections.singletonList(45L), release(buffer, 1300));
+    }
+
+    @Test
+    public void equalDeviceTimesKeepTheirArrivalOrder() {
+        ReorderBuffer buffer = new ReorderBuffer(0, 4);
+        for (int imei = 1; imei <= 3; imei++) {
+            LocationRecord record = new LocationRecord();
+            record.setImei(imei);
+            record.setTimestamp(imei == 2 ? 5 : 10);
+            buffer.add(record);
+        }
+
+        List<Long> imeis = new ArrayList<>();
+        buffer.release(0, record -> imeis.add(record.getImei()));
+        assertEquals(Arrays.asList(2L, 1L, 3L), imeis);
+    }
+
+    @Test
+    public void shuffledTrackIsReplayedInOrder() {
+        List<Long> track = new ArrayList<>();
+        for (long t = 0; t < 1000; t++) {
+            track.add(t * 1000);
+        }
+        List<Long> shuffled = new ArrayList<>(track);
+        Collections.shuffle(shuffled, new Random(7));
+
+        ReorderBuffer buffer = new ReorderBuffer(500, 8);
+        for (long timestamp : shuffled) {
+            add(buffer, timestamp, 0);
+        }
+        assertEquals(1000, buffer.size());
+        assertEquals(track, release(buffer, 500));
+    }
+
+    private static void add(ReorderBuffer buffer, long timestamp, long received) {
+        LocationRecord record = new LocationRecord();
+        record.setTimestamp(timestamp);
+        record.setReceivedTime(received);
+        buffer.add(record);
+    }
+
+    private static List<Long> release(ReorderBuffer buffer, long now) {
+        List<Long> released = new ArrayList<>();
+        buffer.release(now, record -> released.add(record.getTimestamp()));
+        return released;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.workers;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+import org.server.protocol.DeviceFrame;
+import org.server.protocol.DeviceProtocol;
+import org.server.protocol.ProtocolRegistry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how devices are spread over the shards and that shards are sized
+ * for the largest frame of every protocol.
+ */
+public class RequestDispatcherTest {
+
+    private static final long IMEI = 359710040000001L;
+
+    @Test(expected = IllegalStateException.class)
+    public void ringSmallerThanATeltonikaPacketIsRefused() {
+        newDispatcher(128).requireCapacity(maxLocationsPerFrame());
+    }
+
+    @Test
+    public void fullTeltonikaPacketIsPublishedAsOneUnit() {
+        RequestDispatcher dispatcher = newDispatcher(256);
+        dispatcher.requireCapacity(maxLocationsPerFrame());
+
+        DeviceFrame frame = new DeviceFrame();
+        frame.reset(0x08, IMEI);
+        for (int i = 0; i < maxLocationsPerFrame(); i++) {
+            frame.addLocation().setImei(IMEI);
+        }
+        assertTrue(dispatcher.publish(frame, new EmbeddedChannel()));
+        assertEquals(255, dispatcher.getShard(dispatcher.shardOf(IMEI)).getRing().size());
+    }
+
+    @Test
+    public void deviceAlwaysMapsToTheSameShard() {
+        RequestDispatcher dispatcher = new RequestDispatcher(8, 16, LocationRingBuffer.WaitStrategy.BUSY_SPIN, IngestBackpressure.OverloadPolicy.REJECT, 1.0, 1.0);
+        RequestDispatcher again = new RequestDispatcher(8, 16, LocationRingBuffer.WaitStrategy.BUSY_SPIN, IngestBackpressure.OverloadPolicy.REJECT, 1.0, 1.0);
+        for (long imei = IMEI; imei < IMEI + 1000; imei++) {
+            assertEquals(dispatcher.shardOf(imei), again.shardOf(imei));
+        }
+    }
+
+    @Test
+    public void consecutiveImeisAreSpreadOverTheShards() {
+        RequestDispatcher dispatcher = new RequestDispatcher(8, 16, LocationRingBuffer.WaitStrategy.BUSY_SPIN, IngestBackpressure.OverloadPolicy.REJECT, 1.0, 1.0);
+        int[] perShard = new int[8];
+        for (long imei = IMEI; imei < IMEI + 8000; imei++) {
+            perShard[dispatcher.shardOf(imei)]++;
+        }
+        for (int count : perShard) {
+            assertTrue("Uneven spread " + count, count > 800 && count < 1200);
+        }
+    }
+
+    @Test
+    public void frameIsPublishedToTheShardOfItsDevice() {
+        RequestDispatcher dispatcher = new RequestDispatcher(4, 16, LocationRingBuffer.WaitStrategy.BUSY_SPIN, IngestBackpressure.OverloadPolicy.REJECT, 1.0, 1.0);
+        DeviceFrame frame = new DeviceFrame();
+        frame.reset(0x08, IMEI);
+        frame.addLocation().setImei(IMEI);
+        frame.addLocation().setImei(IMEI);
+        assertTrue(dispatcher.publish(frame, new EmbeddedChannel()));
+
+        for (int shard = 0; shard < dispatcher.getShardCount(); shard++) {
+            assertEquals(shard == dispatcher.shardOf(IMEI) ? 2 : 0, dispatcher.getShard(shard).getRing().size());
+        }
+    }
+
+    private static int maxLocationsPerFrame() {
+        int max = 0;
+        for (DeviceProtocol protocol : ProtocolRegistry.defaults().getProtocols()) {
+            max = Math.max(max, protocol.getMaxLocationsPerFrame());
+        }
+        return max;
+    }
+
+    private static RequestDispatcher newDispatcher(int size) {
+        return new RequestDispatcher(2, size, LocationRingBuffer.WaitStrategy.BUSY_SPIN, IngestBackpressure.OverloadPolicy.REJECT, 1.0, 1.0);
+    }
+}
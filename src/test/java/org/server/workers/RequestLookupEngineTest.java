@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.workers;
+
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.junit.Before;
+import org.junit.Test;
+import org.server.db.StubDatabaseHandler;
+import org.server.db.VehicleRegistry;
+import org.server.dto.Message;
+import org.server.dto.Vehicle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the offline detector with a short tick against the wall clock.
+ */
+public class RequestLookupEngineTest {
+
+    private static final long IMEI = 359710040000001L;
+    private static final long TICK = 10;
+    private static final long OFFLINE = 200;
+
+    private final LinkedBlockingQueue<Message> mq = new LinkedBlockingQueue<>();
+    private RequestLookupEngine engine;
+
+    @Before
+    public void setUp() throws Exception {
+        StubDatabaseHandler db = new StubDatabaseHandler();
+        db.addVehicle(IMEI, "fleet");
+        VehicleRegistry registry = new VehicleRegistry(db, 16, 60000);
+        registry.reload();
+        engine = new RequestLookupEngine(mq, false, registry, TICK, 0, OFFLINE);
+    }
+
+    @Test
+    public void restoredDeadDeviceStartsOfflineWithoutBeingAnnounced() throws Exception {
+        engine.restore(IMEI, System.currentTimeMillis() - 60 * 60 * 1000);
+        assertEquals(DeviceState.OFFLINE, engine.getState(IMEI));
+        runFor(3 * TICK);
+        assertTrue(mq.isEmpty());
+        assertEquals(DeviceState.OFFLINE, engine.getState(IMEI));
+
+        engine.touch(IMEI, System.currentTimeMillis());
+        engine.run();
+        assertEquals(DeviceState.RECOVERED, engine.getState(IMEI));
+    }
+
+    @Test
+    public void restoredRecentDeviceGoesOfflineOnceSilent() throws Exception {
+        engine.restore(IMEI, System.currentTimeMillis());
+        assertEquals(DeviceState.ONLINE, engine.getState(IMEI));
+        runFor(OFFLINE + 10 * TICK);
+
+        assertEquals(DeviceState.OFFLINE, engine.getState(IMEI));
+        assertEquals(1, mq.size());
+        Message message = mq.take();
+        assertEquals(Message.MessageType.DEVICE_DOWN, message.getMessageType());
+        assertEquals(IMEI, (long) ((Vehicle) ((List<?>) message.getPayload()).get(0)).getImei());
+    }
+
+    @Test
+    public void reportingDeviceStaysOnlineFromItsReceivedTime() throws Exception {
+        assertNull(engine.getState(IMEI));
+        long until = System.currentTimeMillis() + 3 * OFFLINE;
+        while (System.currentTimeMillis() < until) {
+            engine.touch(IMEI, System.currentTimeMillis());
+            engine.run();
+            Thread.sleep(TICK);
+        }
+        assertEquals(DeviceState.ONLINE, engine.getState(IMEI));
+        assertTrue(mq.isEmpty());
+    }
+
+    @Test
+    public void firstPointCountsFromItsReceivedTime() throws Exception {
+        engine.touch(IMEI, System.currentTimeMillis() - 60 * 60 * 1000);
+        runFor(3 * TICK);
+
+        assertEquals(DeviceState.OFFLINE, engine.getState(IMEI));
+        assertEquals(Message.MessageType.DEVICE_DOWN, mq.take().getMessageType());
+    }
+
+    @Test
+    public void failingLookupsDoNotStopTheTimer() throws Exception {
+        StubDatabaseHandler db = new StubDatabaseHandler() {
+            @Override
+            public Vehicle getVehicle(long imei) {
+                throw new IllegalStateException("lookup failed");
+            }
+        };
+        engine = new RequestLookupEngine(mq, false, new VehicleRegistry(db, 16, 60000), TICK, 0, OFFLINE);
+        engine.touch(IMEI, System.currentTimeMillis());
+        runFor(OFFLINE + 10 * TICK);
+
+        assertEquals(DeviceState.OFFLINE, engine.getState(IMEI));
+    }
+
+    private void runFor(long millis) throws InterruptedException {
+        long until = System.currentTimeMillis() + millis;
+        while (System.currentTimeMillis() < until) {
+            engine.run();
+            Thread.sleep(TICK);
+        }
+        engine.run();
+    }
+}
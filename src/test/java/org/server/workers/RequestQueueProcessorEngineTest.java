@@ -0,0 +1,338 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.workers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.server.db.AsyncDatabaseHandler;
+import org.server.db.WriteAheadLog;
+import org.server.dto.Location;
+import org.server.dto.LocationRecord;
+import org.server.dto.properties.DatabaseProperties;
+import org.server.protocol.DeferredReply;
+import org.server.protocol.DeviceFrame;
+import org.server.protocol.Tk103ProtocolDecoder;
+import org.server.util.DistanceCalculator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays shuffled and buffered tracks through the processor and checks the
+ * chained distances of what reaches the database.
+ */
+public class RequestQueueProcessorEngineTest {
+
+    private static final long IMEI_A = 359710040000001L;
+    private static final long IMEI_B = 359710040000002L;
+    private static final long START = 1522108800000L;
+    private static final long INTERVAL = 10000;
+    private static final double DELTA = 1e-9;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final DeviceFrame frame = new DeviceFrame();
+    private final List<Location> written = new ArrayList<>();
+    private LastKnownLocationStore store;
+    private IngestBackpressure queue;
+
+    @Before
+    public void setUp() {
+        store = new LastKnownLocationStore(16, false);
+        queue = new IngestBackpressure(
+                new LocationRingBuffer(1024, LocationRingBuffer.WaitStrategy.BUSY_SPIN),
+                IngestBackpressure.OverloadPolicy.REJECT,
+                1.0,
+                1.0
+        );
+    }
+
+    @Test
+    public void shuffledTrackIsChainedInDeviceTimeOrder() {
+        RequestQueueProcessorEngine engine = newEngine(0);
+        List<LocationRecord> track = new ArrayList<>(track(IMEI_A, 0, 40, 6.9, 79.8));
+        track.addAll(track(IMEI_B, 0, 40, 7.2, 80.6));
+        List<LocationRecord> shuffled = new ArrayList<>(track);
+        Collections.shuffle(shuffled, new Random(42));
+        for (LocationRecord record : shuffled) {
+            publish(record, START + 40 * INTERVAL);
+        }
+        engine.poll(START + 40 * INTERVAL);
+
+        assertEquals(track.size(), written.size());
+        assertChained(IMEI_A, track(IMEI_A, 0, 40, 6.9, 79.8));
+        assertChained(IMEI_B, track(IMEI_B, 0, 40, 7.2, 80.6));
+        assertLastKnown(IMEI_A, START + 39 * INTERVAL);
+    }
+
+    @Test
+    public void shuffledTrackIsHeldForTheReorderWindow() {
+        RequestQueueProcessorEngine engine = newEngine(5000);
+        List<LocationRecord> track = track(IMEI_A, 0, 30, 6.9, 79.8);
+        List<LocationRecord> shuffled = new ArrayList<>(track);
+        Collections.shuffle(shuffled, new Random(7));
+        long received = START + 30 * INTERVAL;
+        for (int i = 0; i < 15; i++) {
+            publish(shuffled.get(i), received);
+        }
+        engine.poll(received + 1000);
+        assertTrue(written.isEmpty());
+
+        for (int i = 15; i < 30; i++) {
+            publish(shuffled.get(i), received + 2000);
+        }
+        engine.poll(received + 2000 + 5000);
+
+        assertEquals(track.size(), written.size());
+        assertChained(IMEI_A, track);
+    }
+
+    @Test
+    public void bufferedUploadIsBackfilledAndChainedWithinItself() {
+        RequestQueueProcessorEngine engine = newEngine(0);
+        List<LocationRecord> track = track(IMEI_A, 0, 31, 6.9, 79.8);
+        for (int i = 0; i < 10; i++) {
+            publish(track.get(i), track.get(i).getTimestamp());
+        }
+        engine.poll(START + 10 * INTERVAL);
+        // first live point after the tunnel, then the buffered points in one upload
+        long received = START + 31 * INTERVAL;
+        publish(track.get(30), received);
+        engine.poll(received);
+        for (int i = 10; i < 30; i++) {
+            publish(track.get(i), received + 1000);
+        }
+        engine.poll(received + 1000);
+
+        Map<Long, Location> byTime = byTimestamp(IMEI_A);
+        assertEquals(31, byTime.size());
+        assertEquals(distance(track.get(9), track.get(30)), byTime.get(time(track.get(30))).getDistance(), DELTA);
+        assertNull(byTime.get(time(track.get(30))).getBackfill());
+        assertNull(byTime.get(time(track.get(10))).getDistance());
+        for (int i = 10; i < 30; i++) {
+            Location location = byTime.get(time(track.get(i)));
+            assertTrue(location.getBackfill());
+            if (i > 10) {
+                assertEquals(distance(track.get(i - 1), track.get(i)), location.getDistance(), DELTA);
+            }
+        }
+        assertLastKnown(IMEI_A, track.get(30).getTimestamp());
+    }
+
+    @Test
+    public void lastKnownTimeAheadOfTheClockSkewIsNotTrusted() {
+        RequestQueueProcessorEngine engine = newEngine(0);
+        LocationRecord future = point(IMEI_A, START + 24L * 60 * 60 * 1000, 6.9, 79.8);
+        store.put(future);
+        List<LocationRecord> track = track(IMEI_A, 0, 10, 6.9, 79.8);
+        for (LocationRecord record : track) {
+            publish(record, record.getTimestamp());
+        }
+        engine.poll(START + 10 * INTERVAL);
+
+        Map<Long, Location> byTime = byTimestamp(IMEI_A);
+        assertEquals(track.size(), byTime.size());
+        assertEquals(distance(future, track.get(0)), byTime.get(time(track.get(0))).getDistance(), DELTA);
+        for (int i = 1; i < track.size(); i++) {
+            Location location = byTime.get(time(track.get(i)));
+            assertNull(location.getBackfill());
+            assertEquals(distance(track.get(i - 1), track.get(i)), location.getDistance(), DELTA);
+        }
+        assertLastKnown(IMEI_A, track.get(9).getTimestamp());
+    }
+
+    @Test
+    public void strayLatePointsKeepAnUnknownDistance() {
+        RequestQueueProcessorEngine engine = newEngine(0);
+        List<LocationRecord> track = track(IMEI_A, 0, 20, 6.9, 79.8);
+        for (int i = 0; i < 20; i += 2) {
+            publish(track.get(i), START + 20 * INTERVAL);
+        }
+        engine.poll(START + 20 * INTERVAL);
+        List<LocationRecord> late = new ArrayList<>();
+        for (int i = 1; i < 18; i += 2) {
+            late.add(track.get(i));
+        }
+        Collections.shuffle(late, new Random(3));
+        for (LocationRecord record : late) {
+            publish(record, START + 21 * INTERVAL);
+        }
+        engine.poll(START + 21 * INTERVAL);
+
+        Map<Long, Location> byTime = byTimestamp(IMEI_A);
+        for (int i = 1; i < 18; i += 2) {
+            Location location = byTime.get(time(track.get(i)));
+            assertTrue(location.getBackfill());
+            assertNull(location.getDistance());
+        }
+        assertLastKnown(IMEI_A, track.get(18).getTimestamp());
+    }
+
+    @Test
+    public void replyIsSentOnceTheFrameIsReleasedAndLogged() throws Exception {
+        WriteAheadLog wal = new WriteAheadLog(folder.getRoot().toPath(), 64 * 1024, 0);
+        RequestQueueProcessorEngine engine = newEngine(5000, wal);
+        EmbeddedChannel channel = new EmbeddedChannel();
+        List<LocationRecord> track = track(IMEI_A, 0, 3, 6.9, 79.8);
+        long received = START + 3 * INTERVAL;
+        frame.reset(0, IMEI_A);
+        for (LocationRecord record : track) {
+            LocationRecord location = frame.addLocation();
+            location.copyFrom(record);
+            location.setReceivedTime(received);
+        }
+        ByteBuf reply = Unpooled.buffer(4).writeInt(track.size());
+        frame.getLocation(track.size() - 1).setReply(new DeferredReply(channel, reply));
+        assertTrue(queue.publish(frame, channel));
+
+        // still held by the reorder window
+        engine.poll(received + 1000);
+        assertNull(channel.readOutbound());
+
+        engine.poll(received + 5000);
+        assertEquals(track.size(), written.size());
+        ByteBuf sent = channel.readOutbound();
+        assertEquals(track.size(), sent.readInt());
+        sent.release();
+    }
+
+    @Test
+    public void replyIsRefusedWithoutLog() {
+        RequestQueueProcessorEngine engine = newEngine(0);
+        EmbeddedChannel channel = new EmbeddedChannel();
+        LocationRecord record = track(IMEI_A, 0, 1, 6.9, 79.8).get(0);
+        frame.reset(0, IMEI_A);
+        LocationRecord location = frame.addLocation();
+        location.copyFrom(record);
+        location.setReceivedTime(START);
+        location.setReply(new DeferredReply(channel, Unpooled.buffer(4).writeInt(1)));
+        assertTrue(queue.publish(frame, channel));
+
+        // the write is acknowledged at once, but only a log can vouch for it before the reply
+        engine.poll(START);
+        assertEquals(1, written.size());
+        assertNull(channel.readOutbound());
+        assertFalse(channel.isOpen());
+    }
+
+    private RequestQueueProcessorEngine newEngine(long reorderWindow) {
+        return newEngine(reorderWindow, null);
+    }
+
+    private RequestQueueProcessorEngine newEngine(long reorderWindow, WriteAheadLog wal) {
+        DatabaseProperties db = new DatabaseProperties();
+        db.setFlushInterval(0);
+        db.setMaxInFlight(1);
+        AsyncDatabaseHandler databaseHandler = locations -> {
+            written.addAll(locations);
+            return CompletableFuture.completedFuture(locations.size());
+        };
+        return new RequestQueueProcessorEngine(
+                queue, 128, reorderWindow, 5 * 60 * 1000,
+                new LinkedBlockingQueue<>(), store, null, null,
+                databaseHandler, db, wal, null
+        );
+    }
+
+    private void publish(LocationRecord record, long received) {
+        frame.reset(0, record.getImei());
+        LocationRecord location = frame.addLocation();
+        location.copyFrom(record);
+        location.setReceivedTime(received);
+        assertTrue(queue.publish(frame, null));
+    }
+
+    private void assertChained(long imei, List<LocationRecord> track) {
+        Map<Long, Location> byTime = byTimestamp(imei);
+        assertEquals(track.size(), byTime.size());
+        assertEquals(0, byTime.get(time(track.get(0))).getDistance(), DELTA);
+        for (int i = 1; i < track.size(); i++) {
+            Location location = byTime.get(time(track.get(i)));
+            assertNull(location.getBackfill());
+            assertEquals(distance(track.get(i - 1), track.get(i)), location.getDistance(), DELTA);
+        }
+    }
+
+    private void assertLastKnown(long imei, long timestamp) {
+        LocationRecord last = new LocationRecord();
+        assertTrue(store.get(imei, last));
+        assertEquals(timestamp, last.getTimestamp());
+        assertFalse(last.getLat() == 0);
+    }
+
+    private Map<Long, Location> byTimestamp(long imei) {
+        Map<Long, Location> byTime = new HashMap<>();
+        written.stream()
+                .filter(location -> location.getImei() == imei)
+                .sorted(Comparator.comparing(Location::getTimestamp))
+                .forEach(location -> byTime.put(location.getTimestamp().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(), location));
+        return byTime;
+    }
+
+    private static long time(LocationRecord record) {
+        return record.getTimestamp();
+    }
+
+    private static double distance(LocationRecord from, LocationRecord to) {
+        return DistanceCalculator.distance(from.getLat(), from.getLng(), to.getLat(), to.getLng());
+    }
+
+    /**
+     * A drive heading north east, points {@code from} to {@code to} of it.
+     */
+    private static List<LocationRecord> track(long imei, int from, int to, double lat, double lng) {
+        Random random = new Random(imei);
+        List<LocationRecord> track = new ArrayList<>();
+        for (int i = 0; i < to; i++) {
+            lat += 0.0005 + random.nextDouble() * 0.001;
+            lng += random.nextDouble() * 0.001;
+            if (i >= from) {
+                track.add(point(imei, START + i * INTERVAL, lat, lng));
+            }
+        }
+        return track;
+    }
+
+    private static LocationRecord point(long imei, long timestamp, double lat, double lng) {
+        LocationRecord record = new LocationRecord();
+        record.setImei(imei);
+        record.setType(Tk103ProtocolDecoder.LOCATION_OK);
+        record.setTimestamp(timestamp);
+        record.setLat(lat);
+        record.setLng(lng);
+        record.setSpeed(40);
+        record.setHeading(45);
+        return record;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 Benjamin.C.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.server.workers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelTest {
+
+    private static final long START = 1_000_003L;
+
+    @Test
+    public void expiresAtTheDeadlineOnEveryLevel() {
+        long[] deltas = {1, 2, 63, 64, 65, 127, 4095, 4096, 4097, 262143, 262144, 300000, 16777215, 16777216, 20000000};
+        TimingWheel wheel = new TimingWheel(START);
+        for (long delta : deltas) {
+            wheel.schedule(new TimingWheel.Timeout(delta), START + delta);
+        }
+        assertEquals(deltas.length, wheel.size());
+
+        List<Long> expired = new ArrayList<>();
+        wheel.advance(START + 20000000, timeout -> {
+            assertEquals(START + timeout.getImei(), wheel.getTick());
+            expired.add(timeout.getImei());
+        });
+
+        assertEquals(deltas.length, expired.size());
+        for (int i = 0; i < deltas.length; i++) {
+            assertEquals(deltas[i], (long) expired.get(i));
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void pastDeadlineExpiresOnTheNextTick() {
+        TimingWheel wheel = new TimingWheel(START);
+        wheel.schedule(new TimingWheel.Timeout(1), START - 100);
+
+        List<Long> ticks = new ArrayList<>();
+        wheel.advance(START + 5, timeout -> ticks.add(wheel.getTick()));
+        assertEquals(1, ticks.size());
+        assertEquals(START + 1, (long) ticks.get(0));
+    }
+
+    @Test
+    public void nothingExpiresEarly() {
+        TimingWheel wheel = new TimingWheel(START);
+        wheel.schedule(new TimingWheel.Timeout(1), START + 5000);
+
+        int[] expired = {0};
+        wheel.advance(START + 4999, timeout -> expired[0]++);
+        assertEquals(0, expired[0]);
+        assertEquals(1, wheel.size());
+
+        wheel.advance(START + 5000, timeout -> expired[0]++);
+        assertEquals(1, expired[0]);
+    }
+
+    @Test
+    public void expiredTimeoutCanBeScheduledAgain() {
+        TimingWheel wheel = new TimingWheel(START);
+        TimingWheel.Timeout timeout = new TimingWheel.Timeout(1);
+        wheel.schedule(timeout, START + 100);
+
+        List<Long> ticks = new ArrayList<>();
+        wheel.advance(START + 1000, expired -> {
+            ticks.add(wheel.getTick());
+            if (ticks.size() < 3) {
+                wheel.schedule(expired, wheel.getTick() + 100);
+            }
+        });
+        assertEquals(3, ticks.size());
+        assertEquals(START + 100, (long) ticks.get(0));
+        assertEquals(START + 200, (long) ticks.get(1));
+        assertEquals(START + 300, (long) ticks.get(2));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void randomDeadlinesExpireInTime() {
+        Random random = new Random(42);
+        TimingWheel wheel = new TimingWheel(START);
+        long[] deadlines = new long[20000];
+        for (int i = 0; i < deadlines.length; i++) {
+            deadlines[i] = START + 1 + random.nextInt(1 << 20);
+            wheel.schedule(new TimingWheel.Timeout(i), deadlines[i]);
+        }
+
+        int[] expired = {0};
+        long to = START;
+        while (wheel.size() > 0) {
+            to += 1 + random.nextInt(5000);
+            wheel.advance(to, timeout -> {
+                assertEquals(deadlines[(int) timeout.getImei()], wheel.getTick());
+                expired[0]++;
+            });
+            assertTrue(to <= START + (1 << 20) + 5000);
+        }
+        assertEquals(deadlines.length, expired[0]);
+    }
+}